@@ -12,4 +12,19 @@ public interface Metric {
    * @return sql insert String
    */
   String toSqlInsertString();
+
+  /**
+   * Gets the id of the host that produced this <tt>Metric</tt>. The host is
+   * not part of the serialized data, it travels in a Kafka record header.
+   *
+   * @return host id, or null if unknown
+   */
+  String getHost();
+
+  /**
+   * Sets the id of the host that produced this <tt>Metric</tt>.
+   *
+   * @param host host id, or null if unknown
+   */
+  void setHost(String host);
 }
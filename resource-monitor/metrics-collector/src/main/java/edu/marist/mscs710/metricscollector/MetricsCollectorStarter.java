@@ -1,5 +1,6 @@
 package edu.marist.mscs710.metricscollector;
 
+import edu.marist.mscs710.metricscollector.kafka.MetricSender;
 import edu.marist.mscs710.metricscollector.producer.OSMetricsProducer;;
 import org.apache.kafka.clients.admin.*;
 import org.apache.kafka.common.config.TopicConfig;
@@ -29,6 +30,7 @@ public class MetricsCollectorStarter {
   private static final String DEFAULT_BROKER = "localhost:9092";
   private static final String RUNFILE = "./runfile.tmp";
   private static final int LOG_RETENTION_HOURS = 12;
+  private static final int DEFAULT_PARTITIONS = 1;
 
   public static void main(String[] args) {
     Properties appProps = new Properties();
@@ -47,11 +49,15 @@ public class MetricsCollectorStarter {
 
     String kafkaBroker = appProps.getProperty("kafkabroker", DEFAULT_BROKER);
     String topic = appProps.getProperty("metricstopic", DEFAULT_TOPIC);
+    int partitions = Integer.parseInt(appProps.getProperty("metricspartitions", Integer.toString(DEFAULT_PARTITIONS)));
+    String hostId = appProps.getProperty("hostid", MetricSender.localHostName());
 
     try (AdminClient kafkaAdminClient = createKafkaAdminClient(kafkaBroker)) {
       // Test broker connection and create topic if necessary
       if (! kafkaAdminClient.listTopics().names().get().contains(topic)) {
-        createTopic(kafkaAdminClient, topic);
+        createTopic(kafkaAdminClient, topic, partitions);
+      } else {
+        addPartitions(kafkaAdminClient, topic, partitions);
       }
     } catch (TimeoutException | InterruptedException e) {
       LOGGER.error(e.getMessage(), e);
@@ -69,7 +75,7 @@ public class MetricsCollectorStarter {
 
     runFile.deleteOnExit();
 
-    MetricsProducer metricsProducer = new OSMetricsProducer(Collections.singletonList(kafkaBroker), topic);
+    MetricsProducer metricsProducer = new OSMetricsProducer(Collections.singletonList(kafkaBroker), topic, hostId);
     metricsProducer.start();
 
     // Signal to shutdown is deletion of runfile
@@ -96,10 +102,10 @@ public class MetricsCollectorStarter {
     return KafkaAdminClient.create(adminProps);
   }
 
-  private static void createTopic(AdminClient adminClient, String topic)
+  private static void createTopic(AdminClient adminClient, String topic, int partitions)
     throws TimeoutException, InterruptedException, ExecutionException, TopicExistsException {
 
-    NewTopic metricsTopic = new NewTopic(topic, 1, (short) 1);
+    NewTopic metricsTopic = new NewTopic(topic, Math.max(partitions, 1), (short) 1);
 
     Map<String, String> configs = metricsTopic.configs() == null ? new HashMap<>() : metricsTopic.configs();
     configs.put(TopicConfig.RETENTION_MS_CONFIG, Long.toString(LOG_RETENTION_HOURS * 60 * 60 * 1000 + 1)); // Hours to MS
@@ -109,4 +115,22 @@ public class MetricsCollectorStarter {
 
     result.all().get();
   }
+
+  /**
+   * Grows an existing topic to the configured number of partitions. Topics
+   * are never shrunk, as Kafka cannot remove partitions.
+   */
+  private static void addPartitions(AdminClient adminClient, String topic, int partitions)
+    throws TimeoutException, InterruptedException, ExecutionException {
+
+    int current = adminClient.describeTopics(Collections.singletonList(topic)).all().get()
+      .get(topic).partitions().size();
+
+    if (current >= partitions)
+      return;
+
+    adminClient.createPartitions(Collections.singletonMap(topic, NewPartitions.increaseTo(partitions))).all().get();
+
+    LOGGER.info("Increased partitions of topic '{}' from {} to {}", topic, current, partitions);
+  }
 }
@@ -1,5 +1,6 @@
 package edu.marist.mscs710.metricscollector.data;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonSubTypes;
@@ -35,6 +36,9 @@ public abstract class MetricData implements Metric {
   @JsonProperty(Fields.DATETIME)
   protected long epochMillisTime;
 
+  @JsonIgnore
+  protected String host;
+
   /**
    * Gets time in milliseconds covered by this snapshot.
    *
@@ -53,6 +57,16 @@ public abstract class MetricData implements Metric {
     return epochMillisTime;
   }
 
+  @Override
+  public String getHost() {
+    return host;
+  }
+
+  @Override
+  public void setHost(String host) {
+    this.host = host;
+  }
+
   /**
    * Sorts a list of <tt>MetricData</tt> chronologically by <tt>epochMillisTime</tt>,
    * from earliest to latest. This method does not modify the order of the original
@@ -280,7 +280,8 @@ public class ProcessData extends MetricData {
       epochMillisTime + ',' +
       deltaMillis + ',' +
       pid + ',' +
-      '\'' + name + '\'' + ',' +
+      // Quotes in a name are doubled, as in any SQL string literal
+      '\'' + name.replace("'", "''") + '\'' + ',' +
       startTime + ',' +
       upTime + ',' +
       cpuUsage + ',' +
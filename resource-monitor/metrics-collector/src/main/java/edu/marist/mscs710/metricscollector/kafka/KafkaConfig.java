@@ -8,6 +8,9 @@ import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.springframework.kafka.core.*;
 import org.springframework.kafka.listener.AcknowledgingMessageListener;
+import org.springframework.kafka.listener.BatchAcknowledgingMessageListener;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
 import org.springframework.kafka.listener.ContainerProperties;
 import org.springframework.kafka.listener.KafkaMessageListenerContainer;
 import org.springframework.kafka.listener.MessageListener;
@@ -93,6 +96,17 @@ public class KafkaConfig {
     return new DefaultKafkaConsumerFactory<>(createConsumerProps(kafkaBrokers, consumerGroup, resetPolicy));
   }
 
+  private static ConsumerFactory<String, Metric> createBatchConsumerFactory(List<String> kafkaBrokers, String consumerGroup,
+                                                                            OffsetResetPolicy resetPolicy, int maxPollRecords,
+                                                                            int fetchMinBytes, int fetchMaxWaitMs) {
+    Map<String, Object> props = createConsumerProps(kafkaBrokers, consumerGroup, resetPolicy);
+    props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, maxPollRecords);
+    props.put(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, fetchMinBytes);
+    props.put(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG, fetchMaxWaitMs);
+
+    return new DefaultKafkaConsumerFactory<>(props);
+  }
+
   /**
    * Creates a Kafka message listener with <tt>OffsetResetPolicy.EARLIEST</tt> and
    * idle between polls of 500 ms.
@@ -159,4 +173,122 @@ public class KafkaConfig {
 
     return new KafkaMessageListenerContainer<>(createConsumerFactory(kafkaBrokers, consumerGroup, resetPolicy), containerProps);
   }
+
+  /**
+   * Creates a manual-acknowledging Kafka batch listener with the supplied
+   * parameters. The data consumer receives all records returned by a single
+   * poll, and is responsible for acknowledging the batch, typically once after
+   * all records in the batch have been processed.
+   *
+   * @param kafkaBrokers     list of kafka brokers
+   * @param consumerGroup    consumer group
+   * @param resetPolicy      consumer auto offset reset policy
+   * @param topic            topic from which to consume messages
+   * @param idleBetweenPolls number of milliseconds to wait between polls to get
+   *                         messages from Kafka
+   * @param maxPollRecords   maximum number of records returned by a single poll
+   * @param fetchMinBytes    minimum number of bytes the broker should return for
+   *                         a fetch request
+   * @param fetchMaxWaitMs   maximum number of milliseconds the broker will wait
+   *                         for <tt>fetchMinBytes</tt> of data to accumulate
+   * @param dataConsumer     <tt>BiConsumer</tt> functional interface, called on a
+   *                         successful poll of one or more messages and is
+   *                         responsible for acknowledging the batch
+   * @return Kafka message listener
+   */
+  public static KafkaMessageListenerContainer<String, Metric> createBatchListener(List<String> kafkaBrokers, String consumerGroup,
+                                                                                  OffsetResetPolicy resetPolicy, String topic, long idleBetweenPolls,
+                                                                                  int maxPollRecords, int fetchMinBytes, int fetchMaxWaitMs,
+                                                                                  BiConsumer<List<ConsumerRecord<String, Metric>>, Acknowledgment> dataConsumer) {
+    return KafkaConfig.createBatchListener(kafkaBrokers, consumerGroup, resetPolicy, topic, idleBetweenPolls,
+      maxPollRecords, fetchMinBytes, fetchMaxWaitMs, null, dataConsumer);
+  }
+
+  /**
+   * Creates a manual-acknowledging Kafka batch listener with the supplied
+   * parameters, notifying a rebalance listener when partitions are assigned
+   * or revoked. A consumer storing its offsets outside of Kafka can seek to
+   * them from <tt>onPartitionsAssigned</tt>, and acknowledge batches only
+   * occasionally.
+   *
+   * @param kafkaBrokers      list of kafka brokers
+   * @param consumerGroup     consumer group
+   * @param resetPolicy       consumer auto offset reset policy
+   * @param topic             topic from which to consume messages
+   * @param idleBetweenPolls  number of milliseconds to wait between polls to get
+   *                          messages from Kafka
+   * @param maxPollRecords    maximum number of records returned by a single poll
+   * @param fetchMinBytes     minimum number of bytes the broker should return for
+   *                          a fetch request
+   * @param fetchMaxWaitMs    maximum number of milliseconds the broker will wait
+   *                          for <tt>fetchMinBytes</tt> of data to accumulate
+   * @param rebalanceListener called on the consumer thread when partitions are
+   *                          assigned or revoked, may be null
+   * @param dataConsumer      <tt>BiConsumer</tt> functional interface, called on a
+   *                          successful poll of one or more messages and is
+   *                          responsible for acknowledging the batch
+   * @return Kafka message listener
+   */
+  public static KafkaMessageListenerContainer<String, Metric> createBatchListener(List<String> kafkaBrokers, String consumerGroup,
+                                                                                  OffsetResetPolicy resetPolicy, String topic, long idleBetweenPolls,
+                                                                                  int maxPollRecords, int fetchMinBytes, int fetchMaxWaitMs,
+                                                                                  ConsumerAwareRebalanceListener rebalanceListener,
+                                                                                  BiConsumer<List<ConsumerRecord<String, Metric>>, Acknowledgment> dataConsumer) {
+    return new KafkaMessageListenerContainer<>(
+      createBatchConsumerFactory(kafkaBrokers, consumerGroup, resetPolicy, maxPollRecords, fetchMinBytes, fetchMaxWaitMs),
+      createBatchContainerProps(topic, idleBetweenPolls, rebalanceListener, dataConsumer));
+  }
+
+  /**
+   * Creates a manual-acknowledging Kafka batch listener with a number of
+   * consumer threads, each polling its share of the topic's partitions. The
+   * data consumer is called concurrently, but records of a single partition
+   * are always delivered in order, by one thread at a time. Threads beyond the
+   * number of partitions are assigned no partitions and stay idle.
+   *
+   * @param kafkaBrokers      list of kafka brokers
+   * @param consumerGroup     consumer group
+   * @param resetPolicy       consumer auto offset reset policy
+   * @param topic             topic from which to consume messages
+   * @param idleBetweenPolls  number of milliseconds to wait between polls to get
+   *                          messages from Kafka
+   * @param maxPollRecords    maximum number of records returned by a single poll
+   * @param fetchMinBytes     minimum number of bytes the broker should return for
+   *                          a fetch request
+   * @param fetchMaxWaitMs    maximum number of milliseconds the broker will wait
+   *                          for <tt>fetchMinBytes</tt> of data to accumulate
+   * @param concurrency       number of consumer threads, at least one
+   * @param rebalanceListener called on each consumer thread when its partitions
+   *                          are assigned or revoked, may be null
+   * @param dataConsumer      <tt>BiConsumer</tt> functional interface, called on a
+   *                          successful poll of one or more messages and is
+   *                          responsible for acknowledging the batch
+   * @return Kafka message listener
+   */
+  public static ConcurrentMessageListenerContainer<String, Metric> createConcurrentBatchListener(List<String> kafkaBrokers, String consumerGroup,
+                                                                                                 OffsetResetPolicy resetPolicy, String topic, long idleBetweenPolls,
+                                                                                                 int maxPollRecords, int fetchMinBytes, int fetchMaxWaitMs,
+                                                                                                 int concurrency, ConsumerAwareRebalanceListener rebalanceListener,
+                                                                                                 BiConsumer<List<ConsumerRecord<String, Metric>>, Acknowledgment> dataConsumer) {
+    ConcurrentMessageListenerContainer<String, Metric> container = new ConcurrentMessageListenerContainer<>(
+      createBatchConsumerFactory(kafkaBrokers, consumerGroup, resetPolicy, maxPollRecords, fetchMinBytes, fetchMaxWaitMs),
+      createBatchContainerProps(topic, idleBetweenPolls, rebalanceListener, dataConsumer));
+    container.setConcurrency(Math.max(concurrency, 1));
+
+    return container;
+  }
+
+  private static ContainerProperties createBatchContainerProps(String topic, long idleBetweenPolls,
+                                                               ConsumerAwareRebalanceListener rebalanceListener,
+                                                               BiConsumer<List<ConsumerRecord<String, Metric>>, Acknowledgment> dataConsumer) {
+    ContainerProperties containerProps = new ContainerProperties(topic);
+    containerProps.setAckMode(ContainerProperties.AckMode.MANUAL_IMMEDIATE);
+    containerProps.setMessageListener((BatchAcknowledgingMessageListener<String, Metric>) dataConsumer::accept);
+    containerProps.setIdleBetweenPolls(idleBetweenPolls);
+
+    if (rebalanceListener != null)
+      containerProps.setConsumerRebalanceListener(rebalanceListener);
+
+    return containerProps;
+  }
 }
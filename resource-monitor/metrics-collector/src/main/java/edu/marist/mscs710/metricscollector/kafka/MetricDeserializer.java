@@ -9,11 +9,14 @@ import edu.marist.mscs710.metricscollector.data.*;
 import edu.marist.mscs710.metricscollector.metric.Fields;
 import edu.marist.mscs710.metricscollector.metric.NullMetric;
 import edu.marist.mscs710.metricscollector.system.SystemConstants;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
 import org.apache.kafka.common.serialization.Deserializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -62,6 +65,26 @@ public class MetricDeserializer implements Deserializer<Metric> {
     }
   }
 
+  /**
+   * Deserializes a message, setting the host of the metric from the
+   * <tt>MetricSender.HOST_HEADER</tt> header, if any.
+   *
+   * @param topic   topic of the message
+   * @param headers headers of the message
+   * @param bytes   serialized metric
+   * @return deserialized metric, or a <tt>NullMetric</tt> if it cannot be read
+   */
+  @Override
+  public Metric deserialize(String topic, Headers headers, byte[] bytes) {
+    Metric metric = deserialize(topic, bytes);
+    Header host = headers == null ? null : headers.lastHeader(MetricSender.HOST_HEADER);
+
+    if (host != null && host.value() != null)
+      metric.setHost(new String(host.value(), StandardCharsets.UTF_8));
+
+    return metric;
+  }
+
   /**
    * Deserializes a <tt>JsonNode</tt> to the specified class.
    *
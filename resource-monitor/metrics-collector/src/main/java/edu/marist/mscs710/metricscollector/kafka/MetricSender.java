@@ -1,46 +1,126 @@
 package edu.marist.mscs710.metricscollector.kafka;
 
 import edu.marist.mscs710.metricscollector.Metric;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.kafka.core.KafkaTemplate;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 /**
- * Wrapper to <tt>KafkaTemplate</tt>
+ * Wrapper to <tt>KafkaTemplate</tt>. Messages are keyed by the sending host
+ * and their metric type, so the metrics of one type from one host always go
+ * to the same partition, in order, while different hosts and types spread
+ * across the partitions of the topic. The host is also sent as the
+ * {@value #HOST_HEADER} header of each message, which
+ * <tt>MetricDeserializer</tt> stamps on the metric, so it is not repeated in
+ * every payload.
  */
 public class MetricSender {
+  /**
+   * Header holding the UTF-8 id of the host that produced a message
+   */
+  public static final String HOST_HEADER = "host";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MetricSender.class);
+
+  private static final String KEY_SEPARATOR = "/";
+  private static final String DEFAULT_HOST = "localhost";
 
   private KafkaTemplate<String, Metric> kafkaTemplate;
+  private String host;
 
   /**
    * Constructs a new <tt>MetricSender</tt> configured to send messages to
-   * the supplied Kafka brokers.
+   * the supplied Kafka brokers, keyed by the local host name.
    *
    * @param kafkaBrokers list of Kafka brokers, in the form host:port
    */
   public MetricSender(List<String> kafkaBrokers) {
-    kafkaTemplate = KafkaConfig.createKafkaTemplate(kafkaBrokers);
+    this(kafkaBrokers, localHostName());
   }
 
   /**
-   * Sends a <tt>Metric</tt> message to the specified topic
+   * Constructs a new <tt>MetricSender</tt> configured to send messages to
+   * the supplied Kafka brokers, keyed by the supplied host.
+   *
+   * @param kafkaBrokers list of Kafka brokers, in the form host:port
+   * @param host         name of the host sending metrics
+   */
+  public MetricSender(List<String> kafkaBrokers, String host) {
+    this.kafkaTemplate = KafkaConfig.createKafkaTemplate(kafkaBrokers);
+    this.host = host;
+  }
+
+  /**
+   * Sends a <tt>Metric</tt> message to the specified topic, keyed by
+   * {@link #recordKey(String, Metric)} and with the host in its
+   * {@value #HOST_HEADER} header.
    *
    * @param topic  topic to which to send messages
    * @param metric data to send
    */
   public void send(String topic, Metric metric) {
-    kafkaTemplate.send(topic, metric);
+    send(topic, recordKey(host, metric), metric);
   }
 
   /**
-   * Sends a <tt>Metric</tt> message to the specified topic with a given key.
+   * Sends a <tt>Metric</tt> message to the specified topic with a given key,
+   * and with the host in its {@value #HOST_HEADER} header.
    *
    * @param topic  topic to which to send messages
    * @param key    key for the message
    * @param metric data to send
    */
   public void send(String topic, String key, Metric metric) {
-    kafkaTemplate.send(topic, key, metric);
+    kafkaTemplate.send(createRecord(topic, key, metric));
+  }
+
+  private ProducerRecord<String, Metric> createRecord(String topic, String key, Metric metric) {
+    ProducerRecord<String, Metric> record = new ProducerRecord<>(topic, key, metric);
+    record.headers().add(HOST_HEADER, host.getBytes(StandardCharsets.UTF_8));
+
+    return record;
+  }
+
+  /**
+   * Gets the name of the host keying and stamped on messages.
+   *
+   * @return host name
+   */
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * Gets the key of a <tt>Metric</tt> message, made of the sending host and
+   * the metric type, e.g. <tt>web01/cpu</tt>.
+   *
+   * @param host   name of the host sending the metric
+   * @param metric data to send
+   * @return message key
+   */
+  public static String recordKey(String host, Metric metric) {
+    return host + KEY_SEPARATOR + MetricDeserializer.lookupMetricType(metric.getClass());
+  }
+
+  /**
+   * Gets the name of the local host, or <tt>localhost</tt> if it cannot be
+   * resolved.
+   *
+   * @return host name
+   */
+  public static String localHostName() {
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException e) {
+      LOGGER.warn("Could not resolve the local host name, using \"{}\"", DEFAULT_HOST, e);
+      return DEFAULT_HOST;
+    }
   }
 
   /**
@@ -8,4 +8,13 @@ public class NullMetric implements Metric {
   public String toSqlInsertString() {
     return "";
   }
+
+  @Override
+  public String getHost() {
+    return null;
+  }
+
+  @Override
+  public void setHost(String host) {
+  }
 }
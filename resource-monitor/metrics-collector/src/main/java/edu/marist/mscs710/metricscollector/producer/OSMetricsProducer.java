@@ -43,23 +43,39 @@ public class OSMetricsProducer implements MetricsProducer {
 
 
   /**
-   * Constructs a new <tt>OSMetricsProducer</tt> configured to a Kafka cluster.
+   * Constructs a new <tt>OSMetricsProducer</tt> configured to a Kafka cluster,
+   * identifying its metrics by the local host name.
    *
    * @param frequency    number of seconds between metric collection, minimum five seconds
    * @param kafkaBrokers list of Kafka brokers in form host:port
    * @param topic        topic to which to send metric data
    */
   public OSMetricsProducer(int frequency, List<String> kafkaBrokers, String topic) {
+    this(frequency, kafkaBrokers, topic, MetricSender.localHostName());
+  }
+
+  /**
+   * Constructs a new <tt>OSMetricsProducer</tt> configured to a Kafka cluster.
+   * Every record sent is keyed by and carries the host id, see
+   * <tt>MetricSender</tt>.
+   *
+   * @param frequency    number of seconds between metric collection, minimum five seconds
+   * @param kafkaBrokers list of Kafka brokers in form host:port
+   * @param topic        topic to which to send metric data
+   * @param hostId       id of the host the metrics are collected from
+   */
+  public OSMetricsProducer(int frequency, List<String> kafkaBrokers, String topic, String hostId) {
     this.frequency = new AtomicInteger(Math.max(frequency, MINIMUM_FREQUENCY));
     this.collecting = new AtomicBoolean(false);
     this.nextProduceTime = new AtomicLong(-1L);
     this.started = new AtomicBoolean(false);
     this.metricSources = new ArrayList<>();
-    this.metricSender = new MetricSender(kafkaBrokers);
+    this.metricSender = new MetricSender(kafkaBrokers, hostId);
     this.topic = topic;
     this.systemConstants = new SystemConstants();
 
-    LOGGER.info("Initialized Metrics Producer with frequency {} seconds, waiting for start command", frequency);
+    LOGGER.info("Initialized Metrics Producer for host \"{}\" with frequency {} seconds, waiting for start command",
+      hostId, frequency);
   }
 
   /**
@@ -73,6 +89,18 @@ public class OSMetricsProducer implements MetricsProducer {
     this(DEFAULT_FREQUENCY, kafkaBrokers, topic);
   }
 
+  /**
+   * Constructs a new <tt>OSMetricsProducer</tt> configured to a Kafka cluster
+   * with default frequency of five seconds.
+   *
+   * @param kafkaBrokers list of Kafka brokers in form host:port
+   * @param topic        topic to which to send metric data
+   * @param hostId       id of the host the metrics are collected from
+   */
+  public OSMetricsProducer(List<String> kafkaBrokers, String topic, String hostId) {
+    this(DEFAULT_FREQUENCY, kafkaBrokers, topic, hostId);
+  }
+
   @Override
   public boolean start() {
     if (started.get()) {
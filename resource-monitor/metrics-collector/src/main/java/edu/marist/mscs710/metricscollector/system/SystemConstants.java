@@ -35,6 +35,9 @@ public class SystemConstants implements Metric {
   @JsonProperty(Fields.SYSTEM_CONSTANTS_CPU_SPEED)
   private double cpuSpeed;
 
+  @JsonIgnore
+  private String host;
+
   /**
    * Constructs a new <tt>SystemConstants</tt>
    */
@@ -96,6 +99,16 @@ public class SystemConstants implements Metric {
     return cpuSpeed;
   }
 
+  @Override
+  public String getHost() {
+    return host;
+  }
+
+  @Override
+  public void setHost(String host) {
+    this.host = host;
+  }
+
   @Override
   public String toString() {
     return "SystemConstants{" +
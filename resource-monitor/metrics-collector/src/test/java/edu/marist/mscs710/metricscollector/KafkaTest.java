@@ -5,6 +5,7 @@ import com.salesforce.kafka.test.junit4.SharedKafkaTestResource;
 import edu.marist.mscs710.metricscollector.data.CpuCoreData;
 import edu.marist.mscs710.metricscollector.kafka.KafkaConfig;
 import edu.marist.mscs710.metricscollector.kafka.MetricDeserializer;
+import edu.marist.mscs710.metricscollector.kafka.MetricSender;
 import edu.marist.mscs710.metricscollector.kafka.MetricSerializer;
 import edu.marist.mscs710.metricscollector.metric.NullMetric;
 import edu.marist.mscs710.metricscollector.producer.OSMetricsProducer;
@@ -14,11 +15,13 @@ import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.junit.*;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
 import org.springframework.kafka.listener.KafkaMessageListenerContainer;
 
 import java.io.File;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 public class KafkaTest {
@@ -88,6 +91,116 @@ public class KafkaTest {
     }
   }
 
+  @Test
+  public void testBatchListenerViaKafka() throws InterruptedException {
+    List<CpuCoreData> sent = new ArrayList<>();
+
+    for (int i = 0; i < 20; i++)
+      sent.add(RandomMetric.getRandomCpuCoreData());
+
+    KafkaTestUtils k = kafka.getKafkaTestUtils();
+
+    try (KafkaProducer<String, Metric> kafkaProducer =
+           k.getKafkaProducer(StringSerializer.class, MetricSerializer.class)) {
+
+      for (CpuCoreData metric : sent)
+        kafkaProducer.send(new ProducerRecord<>(topic, "", metric));
+
+      kafkaProducer.flush();
+    }
+
+    List<Metric> received = Collections.synchronizedList(new ArrayList<>());
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+    KafkaMessageListenerContainer<String, Metric> listener = KafkaConfig.createBatchListener(
+      Collections.singletonList(kafka.getKafkaConnectString()), "TEST_BATCH_GROUP",
+      KafkaConfig.OffsetResetPolicy.EARLIEST, topic, 0, 10, 1, 500,
+      (records, ack) -> {
+        batchSizes.add(records.size());
+        records.forEach(r -> received.add(r.value()));
+        ack.acknowledge();
+      });
+
+    try {
+      listener.start();
+      long endTime = Instant.now().toEpochMilli() + 1000 * 10;
+      while (received.size() < sent.size() && Instant.now().toEpochMilli() < endTime) {
+        Thread.sleep(500);
+      }
+    } finally {
+      listener.stop();
+    }
+
+    Assert.assertEquals(sent, received);
+
+    for (int batchSize : batchSizes)
+      Assert.assertTrue(batchSize <= 10);
+  }
+
+  @Test
+  public void testConcurrentBatchListenerViaKafka() throws InterruptedException {
+    KafkaTestUtils k = kafka.getKafkaTestUtils();
+    k.createTopic(topic, 3, (short) 1);
+
+    List<String> brokers = Collections.singletonList(kafka.getKafkaConnectString());
+    Map<String, List<Metric>> sent = new HashMap<>();
+    List<MetricSender> senders = Arrays.asList(new MetricSender(brokers, "host-a"), new MetricSender(brokers, "host-b"));
+
+    for (int i = 0; i < 10; i++) {
+      for (MetricSender sender : senders) {
+        for (Metric metric : Arrays.asList(RandomMetric.getRandomCpuData(), RandomMetric.getRandomMemoryData())) {
+          String key = MetricSender.recordKey(sender.getHost(), metric);
+
+          // A key given by the caller is sent with the host header too
+          if (sender == senders.get(1))
+            sender.send(topic, key, metric);
+          else
+            sender.send(topic, metric);
+
+          sent.computeIfAbsent(key, metrics -> new ArrayList<>()).add(metric);
+        }
+      }
+    }
+
+    senders.forEach(MetricSender::close);
+
+    Map<String, List<Metric>> received = new ConcurrentHashMap<>();
+    Map<String, Set<Integer>> partitions = new ConcurrentHashMap<>();
+    Map<String, Set<String>> hosts = new ConcurrentHashMap<>();
+
+    ConcurrentMessageListenerContainer<String, Metric> listener = KafkaConfig.createConcurrentBatchListener(
+      brokers, "TEST_CONCURRENT_GROUP", KafkaConfig.OffsetResetPolicy.EARLIEST, topic, 0, 10, 1, 500, 3, null,
+      (records, ack) -> {
+        for (ConsumerRecord<String, Metric> record : records) {
+          received.computeIfAbsent(record.key(), key -> Collections.synchronizedList(new ArrayList<>())).add(record.value());
+          partitions.computeIfAbsent(record.key(), key -> ConcurrentHashMap.newKeySet()).add(record.partition());
+          hosts.computeIfAbsent(record.key(), key -> ConcurrentHashMap.newKeySet()).add(String.valueOf(record.value().getHost()));
+        }
+
+        ack.acknowledge();
+      });
+
+    try {
+      listener.start();
+      long endTime = Instant.now().toEpochMilli() + 1000 * 15;
+      while (received.values().stream().mapToInt(List::size).sum() < 40 && Instant.now().toEpochMilli() < endTime) {
+        Thread.sleep(500);
+      }
+    } finally {
+      listener.stop();
+    }
+
+    // Each host and metric type stays on one partition, in order
+    Assert.assertEquals(sent, received);
+
+    for (Set<Integer> keyPartitions : partitions.values())
+      Assert.assertEquals(1, keyPartitions.size());
+
+    // The host header is stamped on each metric
+    for (Map.Entry<String, Set<String>> keyHosts : hosts.entrySet())
+      Assert.assertEquals(Collections.singleton(keyHosts.getKey().split("/")[0]), keyHosts.getValue());
+  }
+
   @Test
   @Ignore
   public void entryPointTest() throws InterruptedException {
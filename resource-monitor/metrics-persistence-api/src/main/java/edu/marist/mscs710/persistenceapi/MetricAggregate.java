@@ -0,0 +1,162 @@
+package edu.marist.mscs710.persistenceapi;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Summary of a numeric field of a metric type over a window of time.
+ */
+public class MetricAggregate {
+  private final String field;
+  private final long datetime;
+  private final long deltaMillis;
+  private final long count;
+  private final double mean;
+  private final double min;
+  private final double max;
+  private final Map<Double, Double> percentiles;
+
+  /**
+   * Constructs a new <tt>MetricAggregate</tt>.
+   *
+   * @param field       name of the summarized field
+   * @param datetime    epoch milli timestamp of the start of the window
+   * @param deltaMillis total milliseconds covered by the records
+   * @param count       number of records
+   * @param mean        <tt>deltaMillis</tt>-weighted average
+   * @param min         smallest value
+   * @param max         largest value
+   * @param percentiles value of each requested quantile, from 0.0-1.0
+   */
+  public MetricAggregate(String field, long datetime, long deltaMillis, long count, double mean, double min,
+                         double max, Map<Double, Double> percentiles) {
+    this.field = field;
+    this.datetime = datetime;
+    this.deltaMillis = deltaMillis;
+    this.count = count;
+    this.mean = mean;
+    this.min = min;
+    this.max = max;
+    this.percentiles = Collections.unmodifiableMap(new LinkedHashMap<>(percentiles));
+  }
+
+  /**
+   * Gets the name of the summarized field.
+   *
+   * @return field name
+   */
+  public String getField() {
+    return field;
+  }
+
+  /**
+   * Gets the start of the window.
+   *
+   * @return epoch milli timestamp
+   */
+  public long getDatetime() {
+    return datetime;
+  }
+
+  /**
+   * Gets the total milliseconds covered by the records in the window.
+   *
+   * @return total milliseconds
+   */
+  public long getDeltaMillis() {
+    return deltaMillis;
+  }
+
+  /**
+   * Gets the number of records in the window.
+   *
+   * @return number of records
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Gets the average of the field, weighted by each record's
+   * <tt>deltaMillis</tt>.
+   *
+   * @return average value
+   */
+  public double getMean() {
+    return mean;
+  }
+
+  /**
+   * Gets the smallest value of the field.
+   *
+   * @return smallest value
+   */
+  public double getMin() {
+    return min;
+  }
+
+  /**
+   * Gets the largest value of the field.
+   *
+   * @return largest value
+   */
+  public double getMax() {
+    return max;
+  }
+
+  /**
+   * Gets the value of a requested quantile, e.g. 0.95 for the 95th
+   * percentile.
+   *
+   * @param quantile quantile from 0.0-1.0
+   * @return approximate value, or NaN if the quantile was not requested
+   */
+  public double getPercentile(double quantile) {
+    return percentiles.getOrDefault(quantile, Double.NaN);
+  }
+
+  /**
+   * Gets the values of every requested quantile.
+   *
+   * @return unmodifiable map of quantile to value, in the order requested
+   */
+  public Map<Double, Double> getPercentiles() {
+    return percentiles;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    MetricAggregate that = (MetricAggregate) o;
+    return datetime == that.datetime &&
+      deltaMillis == that.deltaMillis &&
+      count == that.count &&
+      Double.compare(that.mean, mean) == 0 &&
+      Double.compare(that.min, min) == 0 &&
+      Double.compare(that.max, max) == 0 &&
+      Objects.equals(field, that.field) &&
+      percentiles.equals(that.percentiles);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(field, datetime);
+  }
+
+  @Override
+  public String toString() {
+    return "MetricAggregate{" +
+      "field='" + field + '\'' +
+      ", datetime=" + datetime +
+      ", deltaMillis=" + deltaMillis +
+      ", count=" + count +
+      ", mean=" + mean +
+      ", min=" + min +
+      ", max=" + max +
+      ", percentiles=" + percentiles +
+      '}';
+  }
+}
@@ -2,14 +2,18 @@ package edu.marist.mscs710.persistenceapi;
 
 import edu.marist.mscs710.metricscollector.Metric;
 import edu.marist.mscs710.metricscollector.data.MetricData;
+import edu.marist.mscs710.metricscollector.data.ProcessData;
+import org.apache.kafka.common.TopicPartition;
 
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 /**
  * Provides a common interface for interacting with various database
  * implementations for persisting <tt>Metric</tt> data.
  */
-public interface MetricsPersistenceService {
+public interface MetricsPersistenceService extends AutoCloseable {
 
   /**
    * Inserts the supplied <tt>Metric</tt> into the database.
@@ -19,6 +23,39 @@ public interface MetricsPersistenceService {
    */
   boolean persistMetric(Metric metric);
 
+  /**
+   * Inserts the supplied <tt>Metric</tt> objects into the database. Unlike
+   * repeated calls to {@link #persistMetric(Metric)}, implementations may
+   * write the whole list in as few transactions as possible.
+   *
+   * @param metrics list of <tt>Metric</tt> objects
+   * @return true if every metric was persisted, false otherwise
+   */
+  boolean persistMetrics(List<? extends Metric> metrics);
+
+  /**
+   * Inserts the supplied <tt>Metric</tt> objects into the database, along
+   * with the Kafka offsets they were consumed up to. The offsets are stored
+   * atomically with the metrics, so a consumer resuming from
+   * {@link #getConsumerOffsets(String)} never skips or double counts a
+   * record, whatever offsets were committed to Kafka.
+   *
+   * @param metrics list of <tt>Metric</tt> objects
+   * @param offsets next offset to consume of each topic partition read
+   * @return true if every metric and offset was persisted, false otherwise
+   */
+  boolean persistMetrics(List<? extends Metric> metrics, Map<TopicPartition, Long> offsets);
+
+  /**
+   * Gets the Kafka offsets stored by
+   * {@link #persistMetrics(List, Map)} for a topic.
+   *
+   * @param topic topic name
+   * @return next offset to consume of each partition with a stored offset,
+   *         or null if they could not be queried
+   */
+  Map<TopicPartition, Long> getConsumerOffsets(String topic);
+
   /**
    * Gets the metric types available in the database
    *
@@ -27,7 +64,18 @@ public interface MetricsPersistenceService {
   List<String> getMetricTypes();
 
   /**
-   * Retrieve metrics from the database within the specified time interval. This
+   * Gets the hosts metrics have been persisted from, i.e. the values of
+   * <tt>Metric.getHost()</tt>, for the host-filtered queries.
+   *
+   * @return hosts in the order they were first persisted, or null if they
+   *         could not be queried
+   */
+  List<String> getHosts();
+
+  /**
+   * Retrieve metrics from the database within the specified time interval.
+   * Where the records of the interval were downsampled by pruning, the
+   * downsampled records are returned in their place.
    *
    * @param earliest   epoch milli timestamp of the earliest record, inclusive
    * @param latest     epoch milli timestamp of the latest record, exclusive
@@ -36,4 +84,230 @@ public interface MetricsPersistenceService {
    * @return list of metric data of type <tt>T</tt>
    */
   <T extends MetricData> List<T> getMetricsInRange(long earliest, long latest, Class<T> clazz);
+
+  /**
+   * Retrieve the metrics of a single host from the database within the
+   * specified time interval.
+   *
+   * @param earliest   epoch milli timestamp of the earliest record, inclusive
+   * @param latest     epoch milli timestamp of the latest record, exclusive
+   * @param clazz      class corresponding to <tt>metricType</tt> to hold the returned metric data
+   * @param host       host of the metrics, or null for every host
+   * @param <T>        <tt>MetricData</tt> and its subtypes
+   * @return list of metric data of type <tt>T</tt>, empty if the host is
+   *         unknown
+   * @see #getMetricsInRange(long, long, Class)
+   */
+  <T extends MetricData> List<T> getMetricsInRange(long earliest, long latest, Class<T> clazz, String host);
+
+  /**
+   * Stream metrics from the database within the specified time interval,
+   * ordered by time. As for {@link #getMetricsInRange(long, long, Class)},
+   * downsampled records are returned in place of those pruned. Records are
+   * read from the database as the stream is consumed, so the whole range is
+   * never held in memory. The stream holds
+   * database resources until it is closed, and should be used in a
+   * try-with-resources statement.
+   *
+   * @param earliest   epoch milli timestamp of the earliest record, inclusive
+   * @param latest     epoch milli timestamp of the latest record, exclusive
+   * @param clazz      class corresponding to <tt>metricType</tt> to hold the returned metric data
+   * @param <T>        <tt>MetricData</tt> and its subtypes
+   * @return stream of metric data of type <tt>T</tt>, or null if the records
+   *         could not be queried
+   */
+  <T extends MetricData> Stream<T> streamMetricsInRange(long earliest, long latest, Class<T> clazz);
+
+  /**
+   * Retrieve metrics from the database within the specified time interval,
+   * with no more than about one data point per <tt>resolutionMillis</tt> for
+   * each series (e.g. each CPU core of each host). Implementations may read coarser
+   * pre-aggregated data, or combine records on the fly, so each returned
+   * metric may cover a span of time given by its <tt>deltaMillis</tt>.
+   *
+   * @param earliest         epoch milli timestamp of the earliest record, inclusive
+   * @param latest           epoch milli timestamp of the latest record, exclusive
+   * @param clazz            class corresponding to <tt>metricType</tt> to hold the returned metric data
+   * @param resolutionMillis target number of milliseconds between data points
+   * @param <T>              <tt>MetricData</tt> and its subtypes
+   * @return list of metric data of type <tt>T</tt>, ordered by time
+   */
+  <T extends MetricData> List<T> getMetricsAtResolution(long earliest, long latest, Class<T> clazz, long resolutionMillis);
+
+  /**
+   * Retrieve the metrics of a single host from the database within the
+   * specified time interval, with no more than about one data point per
+   * <tt>resolutionMillis</tt> for each series.
+   *
+   * @param earliest         epoch milli timestamp of the earliest record, inclusive
+   * @param latest           epoch milli timestamp of the latest record, exclusive
+   * @param clazz            class corresponding to <tt>metricType</tt> to hold the returned metric data
+   * @param resolutionMillis target number of milliseconds between data points
+   * @param host             host of the metrics, or null for every host
+   * @param <T>              <tt>MetricData</tt> and its subtypes
+   * @return list of metric data of type <tt>T</tt>, ordered by time, empty if
+   *         the host is unknown
+   * @see #getMetricsAtResolution(long, long, Class, long)
+   */
+  <T extends MetricData> List<T> getMetricsAtResolution(long earliest, long latest, Class<T> clazz, long resolutionMillis,
+                                                        String host);
+
+  /**
+   * Retrieve about <tt>maxPoints</tt> metrics for each series within the
+   * specified time interval, e.g. to draw a chart of the interval.
+   *
+   * @param earliest   epoch milli timestamp of the earliest record, inclusive
+   * @param latest     epoch milli timestamp of the latest record, exclusive
+   * @param clazz      class corresponding to <tt>metricType</tt> to hold the returned metric data
+   * @param maxPoints  target maximum number of data points per series
+   * @param <T>        <tt>MetricData</tt> and its subtypes
+   * @return list of metric data of type <tt>T</tt>, ordered by time
+   * @see #getMetricsAtResolution(long, long, Class, long)
+   */
+  default <T extends MetricData> List<T> getMetricsInRange(long earliest, long latest, Class<T> clazz, int maxPoints) {
+    long span = latest - earliest;
+    long resolutionMillis = maxPoints > 0 ? (span + maxPoints - 1) / maxPoints : 0;
+
+    return getMetricsAtResolution(earliest, latest, clazz, resolutionMillis);
+  }
+
+  /**
+   * Summarizes a numeric field of a metric type within the specified time
+   * interval, without retrieving the metrics themselves. Records of every
+   * series (e.g. every CPU core, or every process) and every host are
+   * summarized together.
+   * Implementations may read coarser pre-aggregated data for old or long
+   * intervals, in which case percentiles are approximate.
+   *
+   * @param earliest     epoch milli timestamp of the earliest record, inclusive
+   * @param latest       epoch milli timestamp of the latest record, exclusive
+   * @param clazz        class corresponding to the metric type to summarize
+   * @param field        numeric field of the metric type, e.g. <tt>utilization</tt>
+   * @param windowMillis size of each window, aligned to the epoch, or 0 to
+   *                     summarize the whole interval at once
+   * @param quantiles    quantiles to compute, each from 0.0-1.0, e.g. 0.95
+   * @return one summary per window holding records, ordered by time, or null
+   *         if they could not be queried
+   * @throws IllegalArgumentException if the field cannot be summarized, or a
+   *                                  quantile is not from 0.0-1.0
+   */
+  List<MetricAggregate> getAggregates(long earliest, long latest, Class<? extends MetricData> clazz, String field,
+                                      long windowMillis, double... quantiles);
+
+  /**
+   * Summarizes a numeric field of the records of a single host within the
+   * specified time interval.
+   *
+   * @param earliest     epoch milli timestamp of the earliest record, inclusive
+   * @param latest       epoch milli timestamp of the latest record, exclusive
+   * @param clazz        class corresponding to the metric type to summarize
+   * @param host         host of the records, or null for every host
+   * @param field        numeric field of the metric type, e.g. <tt>utilization</tt>
+   * @param windowMillis size of each window, aligned to the epoch, or 0 to
+   *                     summarize the whole interval at once
+   * @param quantiles    quantiles to compute, each from 0.0-1.0, e.g. 0.95
+   * @return one summary per window holding records, ordered by time, empty if
+   *         the host is unknown, or null if they could not be queried
+   * @throws IllegalArgumentException if the field cannot be summarized, or a
+   *                                  quantile is not from 0.0-1.0
+   * @see #getAggregates(long, long, Class, String, long, double...)
+   */
+  List<MetricAggregate> getAggregates(long earliest, long latest, Class<? extends MetricData> clazz, String host,
+                                      String field, long windowMillis, double... quantiles);
+
+  /**
+   * Gets the top processes by a field within the specified time interval.
+   * The records of each process, identified by its pid, start time and host, are
+   * combined into one, holding the <tt>deltaMillis</tt>-weighted average of
+   * each value, and processes are ranked by the average of the field.
+   *
+   * @param earliest epoch milli timestamp of the earliest record, inclusive
+   * @param latest   epoch milli timestamp of the latest record, exclusive
+   * @param field    field to rank by, one of <tt>cpu_usage</tt>, <tt>memory</tt>,
+   *                 <tt>kb_read</tt> or <tt>kb_written</tt>
+   * @param n        maximum number of processes
+   * @return up to <tt>n</tt> combined process records, highest first, or null
+   *         if they could not be queried
+   * @throws IllegalArgumentException if processes cannot be ranked by the field
+   */
+  List<ProcessData> getTopProcesses(long earliest, long latest, String field, int n);
+
+  /**
+   * Gets the lifetimes of the processes alive at any time within the
+   * specified time interval, i.e. started before its end and not seen to end
+   * before its start.
+   *
+   * @param earliest epoch milli timestamp of the start of the interval, inclusive
+   * @param latest   epoch milli timestamp of the end of the interval, exclusive
+   * @return lifetimes ordered by start time, or null if they could not be queried
+   */
+  List<ProcessLifetime> getProcessLifetimes(long earliest, long latest);
+
+  /**
+   * Gets the lifetimes of the processes of a single host alive at any time
+   * within the specified time interval.
+   *
+   * @param earliest epoch milli timestamp of the start of the interval, inclusive
+   * @param latest   epoch milli timestamp of the end of the interval, exclusive
+   * @param host     host of the processes, or null for every host
+   * @return lifetimes ordered by start time, empty if the host is unknown, or
+   *         null if they could not be queried
+   * @see #getProcessLifetimes(long, long)
+   */
+  List<ProcessLifetime> getProcessLifetimes(long earliest, long latest, String host);
+
+  /**
+   * Gets the lifetime of a single process. Where processes of several hosts
+   * have the pid and start time, the lifetime of one of them is returned.
+   *
+   * @param pid       process id
+   * @param startTime epoch milli timestamp the process started
+   * @return lifetime of the process, or null if it is unknown or could not be
+   *         queried
+   */
+  ProcessLifetime getProcessLifetime(int pid, long startTime);
+
+  /**
+   * Gets the lifetime of a single process of a host.
+   *
+   * @param pid       process id
+   * @param startTime epoch milli timestamp the process started
+   * @param host      host of the process, or null for any host
+   * @return lifetime of the process, or null if it is unknown or could not be
+   *         queried
+   * @see #getProcessLifetime(int, long)
+   */
+  ProcessLifetime getProcessLifetime(int pid, long startTime, String host);
+
+  /**
+   * Gets every record of a single process, including the <tt>ENDED</tt>
+   * record if it has ended. Where processes of several hosts have the pid
+   * and start time, the records of the process returned by
+   * {@link #getProcessLifetime(int, long)} are returned.
+   *
+   * @param pid       process id
+   * @param startTime epoch milli timestamp the process started
+   * @return records of the process ordered by time, empty if the process is
+   *         unknown, or null if they could not be queried
+   */
+  List<ProcessData> getProcessHistory(int pid, long startTime);
+
+  /**
+   * Gets every record of a single process of a host, including the
+   * <tt>ENDED</tt> record if it has ended.
+   *
+   * @param pid       process id
+   * @param startTime epoch milli timestamp the process started
+   * @param host      host of the process, or null for any host
+   * @return records of the process ordered by time, empty if the process is
+   *         unknown, or null if they could not be queried
+   * @see #getProcessHistory(int, long)
+   */
+  List<ProcessData> getProcessHistory(int pid, long startTime, String host);
+
+  /**
+   * Releases any database resources held by this service.
+   */
+  @Override
+  void close();
 }
@@ -5,27 +5,46 @@ import edu.marist.mscs710.metricscollector.kafka.KafkaConfig;
 import edu.marist.mscs710.metricscollector.Metric;
 import edu.marist.mscs710.metricscollector.metric.NullMetric;
 import edu.marist.mscs710.persistenceapi.db.SQLiteMetricsImpl;
+import edu.marist.mscs710.persistenceapi.db.ShardedMetricsImpl;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.kafka.listener.KafkaMessageListenerContainer;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.SQLException;
-import java.util.Collections;
-import java.util.Properties;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * Starts the metrics persistence process. This class listens to a topic
  * on the configured Kafka broker for <tt>Metric</tt> data and is responsible
  * for storing the data in a database.
+ * <p>
+ * With <tt>dbsharded=true</tt>, each partition of the topic is written to its
+ * own database file in the db directory by its own writer thread, see
+ * <tt>ShardedMetricsImpl</tt>. Writers are started and stopped as partitions
+ * are assigned to and revoked from this process's consumers.
  */
 public class MetricsPersistenceStarter {
   private static final Logger LOGGER = LoggerFactory.getLogger(MetricsPersistenceStarter.class);
 
   private static final int RUNFILE_CHECK_INTERVAL_MS = 1000 * 2;
-  private static final int IDLE_BETWEEN_POLLS = 1000 * 2;
+  private static final int DEFAULT_IDLE_BETWEEN_POLLS = 0;
+  private static final int DEFAULT_MAX_POLL_RECORDS = 2000;
+  private static final int DEFAULT_FETCH_MIN_BYTES = 1024 * 64;
+  private static final int DEFAULT_FETCH_MAX_WAIT_MS = 1000;
+  private static final int DEFAULT_WRITE_QUEUE_CAPACITY = 20000;
+  private static final long DEFAULT_KAFKA_COMMIT_INTERVAL_MS = 1000 * 30;
+  private static final int DEFAULT_CONSUMER_THREADS = 1;
   private static final String PROPERTIES_FILE = "application.properties";
   private static final String DEFAULT_TOPIC = "resource-monitor-metrics";
   private static final String DEFAULT_BROKER = "localhost:9092";
@@ -34,6 +53,14 @@ public class MetricsPersistenceStarter {
   private static final String RUNFILE = "./runfile.tmp";
 
   private static MetricsPersistenceService metricsPersistenceService;
+  private static WriteBehindQueue writeBehindQueue;
+  private static ShardedMetricsImpl shardedMetrics;
+  private static ConcurrentMessageListenerContainer<String, Metric> listener;
+  private static int writeQueueCapacity;
+  // Keyed by partition, when sharded
+  private static final Map<Integer, WriteBehindQueue> shardWriters = new ConcurrentHashMap<>();
+  // The listener is paused while any writer is full
+  private static final AtomicInteger fullWriters = new AtomicInteger(0);
 
   public static void main(String[] args) {
     Properties appProps = new Properties();
@@ -64,33 +91,116 @@ public class MetricsPersistenceStarter {
     String dbDirectory = appProps.getProperty("dbdirectory", DEFAULT_DB_DIR);
     String kafkaBroker = appProps.getProperty("kafkabroker", DEFAULT_BROKER);
     String topic = appProps.getProperty("metricstopic", DEFAULT_TOPIC);
+    long idleBetweenPolls = Long.parseLong(appProps.getProperty("idlebetweenpollsms", Integer.toString(DEFAULT_IDLE_BETWEEN_POLLS)));
+    int maxPollRecords = Integer.parseInt(appProps.getProperty("maxpollrecords", Integer.toString(DEFAULT_MAX_POLL_RECORDS)));
+    int fetchMinBytes = Integer.parseInt(appProps.getProperty("fetchminbytes", Integer.toString(DEFAULT_FETCH_MIN_BYTES)));
+    int fetchMaxWaitMs = Integer.parseInt(appProps.getProperty("fetchmaxwaitms", Integer.toString(DEFAULT_FETCH_MAX_WAIT_MS)));
+    writeQueueCapacity = Integer.parseInt(appProps.getProperty("writequeuecapacity", Integer.toString(DEFAULT_WRITE_QUEUE_CAPACITY)));
+    long kafkaCommitIntervalMs = Long.parseLong(appProps.getProperty("kafkacommitintervalms", Long.toString(DEFAULT_KAFKA_COMMIT_INTERVAL_MS)));
+    int consumerThreads = Integer.parseInt(appProps.getProperty("consumerthreads", Integer.toString(DEFAULT_CONSUMER_THREADS)));
+    boolean sharded = Boolean.parseBoolean(appProps.getProperty("dbsharded", "false"));
 
     try {
-      metricsPersistenceService = new SQLiteMetricsImpl(
-        dbDirectory + "/metrics.db",
-        dbDirectory + "/db_schema.sql",
-        true);
+      if (sharded) {
+        shardedMetrics = new ShardedMetricsImpl(dbDirectory, dbDirectory + "/db_schema.sql", true, appProps);
+        metricsPersistenceService = shardedMetrics;
+      } else {
+        metricsPersistenceService = new SQLiteMetricsImpl(
+          dbDirectory + "/metrics.db",
+          dbDirectory + "/db_schema.sql",
+          true,
+          appProps);
+      }
     } catch (SQLException | IOException e) {
       LOGGER.error(e.getMessage(), e);
       return;
     }
 
-    KafkaMessageListenerContainer<String, Metric> listener = KafkaConfig.createListener(
+    // Offsets are stored with the metrics, so committing them to Kafka is
+    // only a fallback for a lost database, and done at most once an interval
+    // for each partition
+    Map<TopicPartition, Long> lastKafkaCommits = new ConcurrentHashMap<>();
+
+    // Each consumer thread polls its own partitions, and all of them feed the
+    // single writer of the write-behind queue, or the writer of each
+    // partition's shard
+    listener = KafkaConfig.createConcurrentBatchListener(
       Collections.singletonList(kafkaBroker), CONSUMER_GROUP,
-      KafkaConfig.OffsetResetPolicy.EARLIEST, topic, IDLE_BETWEEN_POLLS,
-      // Listener executes this function on each message
-      (consumerRecord, ack) -> {
-        Metric metric = consumerRecord.value();
-        if (!(metric instanceof NullMetric)) {
-          metricsPersistenceService.persistMetric(metric);
+      KafkaConfig.OffsetResetPolicy.EARLIEST, topic, idleBetweenPolls,
+      maxPollRecords, fetchMinBytes, fetchMaxWaitMs, consumerThreads,
+      new ConsumerAwareRebalanceListener() {
+        @Override
+        public void onPartitionsAssigned(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+          // Shards are opened first, so their stored offsets can be read
+          if (shardedMetrics != null)
+            partitions.forEach(partition -> writerOf(partition.partition()));
+
+          seekToStoredOffsets(consumer, partitions, topic);
+        }
+
+        @Override
+        public void onPartitionsRevokedBeforeCommit(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+          // Queued batches are written before the partitions move, so their
+          // next consumer resumes from the latest offsets in their shards
+          if (shardedMetrics != null)
+            partitions.forEach(partition -> closeWriter(partition.partition()));
+        }
+      },
+      // Listener executes this function on each poll, the batch and its
+      // offsets are persisted together by the writer thread, or split by
+      // partition between the shards' writers
+      (consumerRecords, ack) -> {
+        Map<Integer, List<ConsumerRecord<String, Metric>>> shards = consumerRecords.stream()
+          .collect(Collectors.groupingBy(record -> shardedMetrics == null ? 0 : record.partition()));
+        Map<TopicPartition, Long> batchOffsets = new HashMap<>();
+        AtomicInteger uncommitted = new AtomicInteger(shards.size());
+
+        for (ConsumerRecord<String, Metric> record : consumerRecords)
+          batchOffsets.merge(new TopicPartition(record.topic(), record.partition()), record.offset() + 1, Math::max);
+
+        // Acknowledging commits the whole batch to Kafka, so waits for every shard
+        Runnable onCommit = () -> {
+          if (uncommitted.decrementAndGet() > 0)
+            return;
+
+          long now = Instant.now().toEpochMilli();
+          boolean due = batchOffsets.keySet().stream()
+            .anyMatch(partition -> now - lastKafkaCommits.computeIfAbsent(partition, p -> now) >= kafkaCommitIntervalMs);
+
+          if (due) {
+            batchOffsets.keySet().forEach(partition -> lastKafkaCommits.put(partition, now));
+            ack.acknowledge();
+          }
+        };
+
+        for (Map.Entry<Integer, List<ConsumerRecord<String, Metric>>> shard : shards.entrySet()) {
+          List<Metric> metrics = shard.getValue().stream()
+            .map(ConsumerRecord::value)
+            .filter(metric -> !(metric instanceof NullMetric))
+            .collect(Collectors.toList());
+          Map<TopicPartition, Long> offsets = new HashMap<>();
+
+          for (ConsumerRecord<String, Metric> record : shard.getValue())
+            offsets.merge(new TopicPartition(record.topic(), record.partition()), record.offset() + 1, Math::max);
+
+          WriteBehindQueue writer = writerOf(shard.getKey());
+
+          if (writer == null || !writer.submit(metrics, offsets, onCommit))
+            LOGGER.error("Could not queue {} metrics of shard {}, they will be consumed again on restart",
+              metrics.size(), shard.getKey());
         }
-        ack.acknowledge();
       }
     );
 
+    if (shardedMetrics == null) {
+      writeBehindQueue = newWriter(metricsPersistenceService);
+      writeBehindQueue.start();
+    }
+
     listener.start();
 
-    LOGGER.info("Listening to topic '{}' on kafka broker at '{}' ", topic, kafkaBroker);
+    LOGGER.info("Listening to topic '{}' on kafka broker at '{}' with {} consumer threads{}", topic, kafkaBroker,
+      consumerThreads, sharded ? ", sharded by partition" : "");
 
     while (runFile.exists()) {
       try {
@@ -101,8 +211,87 @@ public class MetricsPersistenceStarter {
       }
     }
 
+    // Batches still queued are written along with their offsets, which the
+    // next run seeks to, whatever offsets were last committed to Kafka
     listener.stop();
 
+    if (writeBehindQueue != null)
+      writeBehindQueue.close();
+
+    new ArrayList<>(shardWriters.keySet()).forEach(MetricsPersistenceStarter::closeWriter);
+    metricsPersistenceService.close();
+
     LOGGER.info("Metrics Persistence process shutdown successfully");
   }
+
+  /**
+   * Creates a write-behind queue for a database. Pausing keeps the consumer
+   * polling, so it stays in the consumer group while the writer catches up.
+   */
+  private static WriteBehindQueue newWriter(MetricsPersistenceService service) {
+    return new WriteBehindQueue(service, writeQueueCapacity,
+      () -> {
+        if (fullWriters.incrementAndGet() == 1)
+          listener.pause();
+      },
+      () -> {
+        if (fullWriters.decrementAndGet() == 0)
+          listener.resume();
+      });
+  }
+
+  /**
+   * Gets the writer of a shard, opening the shard and starting its writer if
+   * needed, or the single writer if not sharded.
+   *
+   * @return the writer, or null if the shard could not be opened
+   */
+  private static WriteBehindQueue writerOf(int shard) {
+    if (shardedMetrics == null)
+      return writeBehindQueue;
+
+    return shardWriters.computeIfAbsent(shard, s -> {
+      try {
+        WriteBehindQueue writer = newWriter(shardedMetrics.openShard(s));
+        writer.start();
+        return writer;
+      } catch (SQLException | IOException e) {
+        LOGGER.error("Could not open shard {}", s, e);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Writes everything queued for a shard and stops its writer.
+   */
+  private static void closeWriter(int shard) {
+    WriteBehindQueue writer = shardWriters.remove(shard);
+
+    if (writer != null)
+      writer.close();
+  }
+
+  /**
+   * Moves a consumer to the offsets stored in the database for its newly
+   * assigned partitions. Partitions without a stored offset start from the
+   * offset committed to Kafka, or the reset policy.
+   */
+  private static void seekToStoredOffsets(Consumer<?, ?> consumer, Collection<TopicPartition> partitions, String topic) {
+    Map<TopicPartition, Long> stored = metricsPersistenceService.getConsumerOffsets(topic);
+
+    if (stored == null) {
+      LOGGER.warn("Could not read stored offsets of topic '{}', resuming from Kafka's committed offsets", topic);
+      return;
+    }
+
+    for (TopicPartition partition : partitions) {
+      Long offset = stored.get(partition);
+
+      if (offset != null) {
+        consumer.seek(partition, offset);
+        LOGGER.info("Resuming {} from stored offset {}", partition, offset);
+      }
+    }
+  }
 }
@@ -0,0 +1,255 @@
+package edu.marist.mscs710.persistenceapi;
+
+import java.util.Objects;
+
+/**
+ * Summary of the lifetime of a single process, identified by its pid, start
+ * time and host, over all of its persisted records.
+ */
+public class ProcessLifetime {
+  private final int pid;
+  private final String name;
+  private final long startTime;
+  private final long firstSeen;
+  private final long lastSeen;
+  private final long ended;
+  private final long samples;
+  private final long deltaMillis;
+  private final double cpuUsage;
+  private final double kbRead;
+  private final double kbWritten;
+  private final long maxMemory;
+  private final String host;
+
+  /**
+   * Constructs a new <tt>ProcessLifetime</tt> of a process on an unknown host.
+   *
+   * @param pid         process id
+   * @param name        name of the process
+   * @param startTime   epoch milli timestamp the process started
+   * @param firstSeen   epoch milli timestamp of the first record of the process
+   * @param lastSeen    epoch milli timestamp of the last record of the process
+   * @param ended       epoch milli timestamp the process was seen to end, or
+   *                    -1 if it has not
+   * @param samples     number of records of the process
+   * @param deltaMillis total milliseconds covered by the records
+   * @param cpuUsage    <tt>deltaMillis</tt>-weighted average cpu usage
+   * @param kbRead      total kilobytes read
+   * @param kbWritten   total kilobytes written
+   * @param maxMemory   largest memory usage of any record, in kilobytes
+   */
+  public ProcessLifetime(int pid, String name, long startTime, long firstSeen, long lastSeen, long ended,
+                         long samples, long deltaMillis, double cpuUsage, double kbRead, double kbWritten,
+                         long maxMemory) {
+    this(pid, name, startTime, firstSeen, lastSeen, ended, samples, deltaMillis, cpuUsage, kbRead, kbWritten,
+      maxMemory, null);
+  }
+
+  /**
+   * Constructs a new <tt>ProcessLifetime</tt>.
+   *
+   * @param pid         process id
+   * @param name        name of the process
+   * @param startTime   epoch milli timestamp the process started
+   * @param firstSeen   epoch milli timestamp of the first record of the process
+   * @param lastSeen    epoch milli timestamp of the last record of the process
+   * @param ended       epoch milli timestamp the process was seen to end, or
+   *                    -1 if it has not
+   * @param samples     number of records of the process
+   * @param deltaMillis total milliseconds covered by the records
+   * @param cpuUsage    <tt>deltaMillis</tt>-weighted average cpu usage
+   * @param kbRead      total kilobytes read
+   * @param kbWritten   total kilobytes written
+   * @param maxMemory   largest memory usage of any record, in kilobytes
+   * @param host        id of the host the process ran on, or null if unknown
+   */
+  public ProcessLifetime(int pid, String name, long startTime, long firstSeen, long lastSeen, long ended,
+                         long samples, long deltaMillis, double cpuUsage, double kbRead, double kbWritten,
+                         long maxMemory, String host) {
+    this.pid = pid;
+    this.name = name;
+    this.startTime = startTime;
+    this.firstSeen = firstSeen;
+    this.lastSeen = lastSeen;
+    this.ended = ended;
+    this.samples = samples;
+    this.deltaMillis = deltaMillis;
+    this.cpuUsage = cpuUsage;
+    this.kbRead = kbRead;
+    this.kbWritten = kbWritten;
+    this.maxMemory = maxMemory;
+    this.host = host;
+  }
+
+  /**
+   * Gets the process id.
+   *
+   * @return process id
+   */
+  public int getPid() {
+    return pid;
+  }
+
+  /**
+   * Gets the name of the process.
+   *
+   * @return process name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the time the process started.
+   *
+   * @return epoch milli timestamp
+   */
+  public long getStartTime() {
+    return startTime;
+  }
+
+  /**
+   * Gets the time of the first record of the process.
+   *
+   * @return epoch milli timestamp
+   */
+  public long getFirstSeen() {
+    return firstSeen;
+  }
+
+  /**
+   * Gets the time of the last record of the process.
+   *
+   * @return epoch milli timestamp
+   */
+  public long getLastSeen() {
+    return lastSeen;
+  }
+
+  /**
+   * Gets the time the process was seen to end.
+   *
+   * @return epoch milli timestamp, or -1 if it has not ended
+   */
+  public long getEnded() {
+    return ended;
+  }
+
+  /**
+   * Checks if the process was seen to end, either by an <tt>ENDED</tt>
+   * record or by its pid being recycled.
+   *
+   * @return true if the process has ended
+   */
+  public boolean isEnded() {
+    return ended >= 0;
+  }
+
+  /**
+   * Gets the number of records of the process.
+   *
+   * @return number of records
+   */
+  public long getSamples() {
+    return samples;
+  }
+
+  /**
+   * Gets the total milliseconds covered by the records of the process.
+   *
+   * @return total milliseconds
+   */
+  public long getDeltaMillis() {
+    return deltaMillis;
+  }
+
+  /**
+   * Gets the average cpu usage of the process, weighted by each record's
+   * <tt>deltaMillis</tt>.
+   *
+   * @return average cpu usage
+   */
+  public double getCpuUsage() {
+    return cpuUsage;
+  }
+
+  /**
+   * Gets the total kilobytes read by the process.
+   *
+   * @return kilobytes read
+   */
+  public double getKbRead() {
+    return kbRead;
+  }
+
+  /**
+   * Gets the total kilobytes written by the process.
+   *
+   * @return kilobytes written
+   */
+  public double getKbWritten() {
+    return kbWritten;
+  }
+
+  /**
+   * Gets the largest memory usage of any record of the process.
+   *
+   * @return memory in kilobytes
+   */
+  public long getMaxMemory() {
+    return maxMemory;
+  }
+
+  /**
+   * Gets the id of the host the process ran on.
+   *
+   * @return host id, or null if unknown
+   */
+  public String getHost() {
+    return host;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    ProcessLifetime that = (ProcessLifetime) o;
+    return pid == that.pid &&
+      startTime == that.startTime &&
+      firstSeen == that.firstSeen &&
+      lastSeen == that.lastSeen &&
+      ended == that.ended &&
+      samples == that.samples &&
+      deltaMillis == that.deltaMillis &&
+      Double.compare(that.cpuUsage, cpuUsage) == 0 &&
+      Double.compare(that.kbRead, kbRead) == 0 &&
+      Double.compare(that.kbWritten, kbWritten) == 0 &&
+      maxMemory == that.maxMemory &&
+      Objects.equals(name, that.name) &&
+      Objects.equals(host, that.host);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(pid, startTime);
+  }
+
+  @Override
+  public String toString() {
+    return "ProcessLifetime{" +
+      "pid=" + pid +
+      ", name='" + name + '\'' +
+      ", startTime=" + startTime +
+      ", firstSeen=" + firstSeen +
+      ", lastSeen=" + lastSeen +
+      ", ended=" + ended +
+      ", samples=" + samples +
+      ", deltaMillis=" + deltaMillis +
+      ", cpuUsage=" + cpuUsage +
+      ", kbRead=" + kbRead +
+      ", kbWritten=" + kbWritten +
+      ", maxMemory=" + maxMemory +
+      ", host='" + host + '\'' +
+      '}';
+  }
+}
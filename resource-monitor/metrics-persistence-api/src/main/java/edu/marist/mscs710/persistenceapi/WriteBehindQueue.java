@@ -0,0 +1,284 @@
+package edu.marist.mscs710.persistenceapi;
+
+import edu.marist.mscs710.metricscollector.Metric;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded write-behind stage between a source of <tt>Metric</tt> data, such
+ * as a Kafka listener, and a <tt>MetricsPersistenceService</tt>. Submitted
+ * batches are drained by a single writer thread, which coalesces everything
+ * queued into one call to <tt>persistMetrics</tt> and then runs the commit
+ * callback of each batch, in submission order. Kafka offsets submitted with
+ * the batches are persisted in the same write, the latest offset of each
+ * partition winning.
+ * <p>
+ * A write that fails is retried, with a growing delay between attempts, and
+ * nothing queued after it is written until it succeeds, so commit callbacks
+ * only ever run for persisted batches, in order. If the queue is closed
+ * while a write is failing, the failed batches and everything queued after
+ * them are dropped without running their callbacks, so their offsets are
+ * never committed and they are consumed again on restart.
+ * <p>
+ * The queue is bounded by number of metrics. When the number of queued
+ * metrics reaches capacity, <tt>onFull</tt> is called so the source can stop
+ * submitting (e.g. pause a listener container). Once the writer drains the
+ * queue to half capacity, <tt>onDrained</tt> is called.
+ */
+public class WriteBehindQueue implements AutoCloseable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+  private static final long POLL_TIMEOUT_MS = 500;
+  private static final long FIRST_RETRY_DELAY_MS = 100;
+  private static final long MAX_RETRY_DELAY_MS = 1000 * 30;
+
+  private final MetricsPersistenceService persistenceService;
+  private final BlockingQueue<PendingBatch> queue = new LinkedBlockingQueue<>();
+  private final AtomicInteger queuedMetrics = new AtomicInteger(0);
+  private final int capacity;
+  private final Runnable onFull;
+  private final Runnable onDrained;
+
+  private volatile boolean running;
+  private boolean full;
+  private Thread writerThread;
+
+  private static class PendingBatch {
+    private final List<? extends Metric> metrics;
+    private final Map<TopicPartition, Long> offsets;
+    private final Runnable onCommit;
+
+    private PendingBatch(List<? extends Metric> metrics, Map<TopicPartition, Long> offsets, Runnable onCommit) {
+      this.metrics = metrics;
+      this.offsets = offsets;
+      this.onCommit = onCommit;
+    }
+  }
+
+  /**
+   * Constructs a new <tt>WriteBehindQueue</tt>. The queue does not accept
+   * metrics until it is started.
+   *
+   * @param persistenceService service to which queued metrics are written
+   * @param capacity           number of queued metrics at which
+   *                           <tt>onFull</tt> is called
+   * @param onFull             called when the queue reaches capacity
+   * @param onDrained          called when a full queue drains to half capacity
+   */
+  public WriteBehindQueue(MetricsPersistenceService persistenceService, int capacity,
+                          Runnable onFull, Runnable onDrained) {
+    this.persistenceService = persistenceService;
+    this.capacity = Math.max(capacity, 1);
+    this.onFull = onFull;
+    this.onDrained = onDrained;
+  }
+
+  /**
+   * Starts the writer thread.
+   */
+  public synchronized void start() {
+    if (running)
+      return;
+
+    running = true;
+    writerThread = new Thread(this::drain, "metrics-writer");
+    writerThread.start();
+
+    LOGGER.info("Started write-behind queue with capacity {}", capacity);
+  }
+
+  /**
+   * Queues a batch of metrics to be persisted. This method never blocks, a
+   * batch is always accepted, even if it takes the queue over capacity.
+   *
+   * @param metrics  metrics to persist
+   * @param onCommit called on the writer thread once the batch is committed,
+   *                 may be null
+   * @return false if the queue is not running, true otherwise
+   */
+  public boolean submit(List<? extends Metric> metrics, Runnable onCommit) {
+    return submit(metrics, Collections.emptyMap(), onCommit);
+  }
+
+  /**
+   * Queues a batch of metrics to be persisted along with the Kafka offsets
+   * they were consumed up to. This method never blocks, a batch is always
+   * accepted, even if it takes the queue over capacity.
+   *
+   * @param metrics  metrics to persist
+   * @param offsets  next offset to consume of each topic partition read
+   * @param onCommit called on the writer thread once the batch and its
+   *                 offsets are committed, may be null
+   * @return false if the queue is not running, true otherwise
+   * @see MetricsPersistenceService#persistMetrics(List, Map)
+   */
+  public boolean submit(List<? extends Metric> metrics, Map<TopicPartition, Long> offsets, Runnable onCommit) {
+    if (!running)
+      return false;
+
+    queue.add(new PendingBatch(metrics, offsets, onCommit));
+
+    if (queuedMetrics.addAndGet(metrics.size()) >= capacity)
+      setFull(true);
+
+    return true;
+  }
+
+  /**
+   * Gets the number of metrics waiting to be written.
+   *
+   * @return number of queued metrics
+   */
+  public int getQueuedMetrics() {
+    return queuedMetrics.get();
+  }
+
+  /**
+   * Stops accepting metrics, writes everything already queued, and stops the
+   * writer thread. Backpressure is then released, even if queued metrics were
+   * dropped, so a source paused by <tt>onFull</tt> is always resumed.
+   */
+  @Override
+  public void close() {
+    Thread writer;
+
+    synchronized (this) {
+      running = false;
+      writer = writerThread;
+      // Wakes a writer waiting to retry a failed write
+      notifyAll();
+    }
+
+    if (writer == null)
+      return;
+
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      LOGGER.error(e.getMessage(), e);
+      Thread.currentThread().interrupt();
+    }
+
+    // A writer that dropped a failed write stops without draining the queue
+    setFull(false);
+
+    LOGGER.info("Write-behind queue shutdown with {} metrics remaining", queuedMetrics.get());
+  }
+
+  private void drain() {
+    List<PendingBatch> batches = new ArrayList<>();
+
+    while (running || !queue.isEmpty()) {
+      try {
+        PendingBatch first = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        if (first == null)
+          continue;
+
+        batches.add(first);
+        queue.drainTo(batches);
+      } catch (InterruptedException e) {
+        LOGGER.error(e.getMessage(), e);
+        break;
+      }
+
+      List<Metric> metrics = new ArrayList<>();
+      Map<TopicPartition, Long> offsets = new HashMap<>();
+
+      for (PendingBatch batch : batches) {
+        metrics.addAll(batch.metrics);
+        offsets.putAll(batch.offsets);
+      }
+
+      if (!persist(metrics, offsets)) {
+        LOGGER.error("Dropping a write of {} metrics and {} queued after it, their offsets are not committed",
+          metrics.size(), queuedMetrics.get() - metrics.size());
+        break;
+      }
+
+      for (PendingBatch batch : batches) {
+        if (batch.onCommit == null)
+          continue;
+
+        try {
+          batch.onCommit.run();
+        } catch (RuntimeException e) {
+          LOGGER.error("Commit callback failed", e);
+        }
+      }
+
+      batches.clear();
+
+      if (queuedMetrics.addAndGet(-metrics.size()) <= capacity / 2)
+        setFull(false);
+    }
+  }
+
+  /**
+   * Writes metrics, retrying until they are persisted or the queue is closed.
+   * Already persisted metrics are skipped by each retry.
+   *
+   * @return true if the metrics were persisted
+   */
+  private boolean persist(List<Metric> metrics, Map<TopicPartition, Long> offsets) {
+    long retryDelay = FIRST_RETRY_DELAY_MS;
+
+    while (true) {
+      boolean persisted = offsets.isEmpty() ? persistenceService.persistMetrics(metrics) :
+        persistenceService.persistMetrics(metrics, offsets);
+
+      if (persisted)
+        return true;
+
+      synchronized (this) {
+        if (!running)
+          return false;
+
+        LOGGER.warn("Some metrics in a write of {} could not be persisted, retrying in {} ms", metrics.size(),
+          retryDelay);
+
+        try {
+          wait(retryDelay);
+        } catch (InterruptedException e) {
+          LOGGER.error(e.getMessage(), e);
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+
+      retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+    }
+  }
+
+  // Transitions and their callbacks happen under one lock, so a pause from
+  // the submitting thread cannot be reordered after a resume from the writer
+  private synchronized void setFull(boolean nowFull) {
+    if (full == nowFull)
+      return;
+
+    full = nowFull;
+
+    if (nowFull) {
+      LOGGER.info("Write-behind queue full with {} metrics, applying backpressure", queuedMetrics.get());
+
+      if (onFull != null)
+        onFull.run();
+    } else {
+      LOGGER.info("Write-behind queue drained to {} metrics, releasing backpressure", queuedMetrics.get());
+
+      if (onDrained != null)
+        onDrained.run();
+    }
+  }
+}
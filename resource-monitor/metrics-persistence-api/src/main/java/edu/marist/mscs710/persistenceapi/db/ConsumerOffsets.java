@@ -0,0 +1,94 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import org.apache.kafka.common.TopicPartition;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SQL for the Kafka offsets consumed into the database, kept in one row per
+ * topic and partition. Offsets are written in the same transaction as the
+ * metrics read up to them, so after a crash the consumer resumes exactly
+ * where the database left off, whatever offsets were committed to Kafka.
+ * <p>
+ * Each offset is the next offset to consume, like offsets committed to
+ * Kafka, i.e. one past the last record persisted.
+ */
+public final class ConsumerOffsets {
+
+  /**
+   * Table holding the next offset of each topic partition
+   */
+  public static final String TABLE = "consumer_offsets";
+
+  private static final String TOPIC = "topic";
+  private static final String PARTITION = "partition_id";
+  private static final String NEXT_OFFSET = "next_offset";
+
+  /**
+   * Creates the offsets table if it does not exist.
+   *
+   * @param conn writer connection
+   * @throws SQLException if the table cannot be created
+   */
+  public static void createTable(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+        TOPIC + " TEXT NOT NULL, " +
+        PARTITION + " INTEGER NOT NULL, " +
+        NEXT_OFFSET + " BIGINT NOT NULL, " +
+        "PRIMARY KEY (" + TOPIC + ", " + PARTITION + "))");
+    }
+  }
+
+  /**
+   * Gets an INSERT statement that stores the next offset of a topic
+   * partition, replacing any offset stored before.
+   * <p>
+   * Parameters are bound with {@link #bindUpsert(PreparedStatement, TopicPartition, long)}.
+   *
+   * @return sql upsert String
+   */
+  public static String upsertSql() {
+    return "INSERT INTO " + TABLE + " (" + TOPIC + ", " + PARTITION + ", " + NEXT_OFFSET + ") VALUES (?, ?, ?) " +
+      "ON CONFLICT (" + TOPIC + ", " + PARTITION + ") DO UPDATE SET " + NEXT_OFFSET + " = excluded." + NEXT_OFFSET;
+  }
+
+  /**
+   * Binds an offset to a statement created from {@link #upsertSql()}.
+   *
+   * @param ps         prepared upsert statement
+   * @param partition  topic partition
+   * @param nextOffset next offset to consume from the partition
+   * @throws SQLException if a parameter cannot be bound
+   */
+  public static void bindUpsert(PreparedStatement ps, TopicPartition partition, long nextOffset) throws SQLException {
+    ps.setString(1, partition.topic());
+    ps.setInt(2, partition.partition());
+    ps.setLong(3, nextOffset);
+  }
+
+  /**
+   * Reads the offsets stored for every partition of a topic.
+   *
+   * @param topic topic name
+   * @param conn  connection to read from
+   * @return next offset of each partition with a stored offset
+   * @throws SQLException if the offsets cannot be read
+   */
+  public static Map<TopicPartition, Long> read(String topic, Connection conn) throws SQLException {
+    Map<TopicPartition, Long> offsets = new HashMap<>();
+
+    try (PreparedStatement ps = conn.prepareStatement("SELECT " + PARTITION + ", " + NEXT_OFFSET + " FROM " +
+      TABLE + " WHERE " + TOPIC + " = ?")) {
+      ps.setString(1, topic);
+      ResultSet rs = ps.executeQuery();
+
+      while (rs.next())
+        offsets.put(new TopicPartition(topic, rs.getInt(1)), rs.getLong(2));
+    }
+
+    return offsets;
+  }
+}
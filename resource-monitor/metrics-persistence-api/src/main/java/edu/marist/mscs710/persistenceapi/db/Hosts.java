@@ -0,0 +1,274 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Dictionary of the hosts metrics are collected from. Every metric table,
+ * rollup tier table and process lifetime stores the integer id of its host,
+ * as the last column of its primary key, and reads join the dictionary to get
+ * the host back. Records persisted before hosts were recorded, or without a
+ * host, have the id {@value #UNKNOWN_ID} and are read with a null host.
+ * <p>
+ * Like <tt>ProcessNames</tt>, ids are cached in memory, and hosts added by
+ * the writer connection are only cached once its transaction commits.
+ */
+public class Hosts {
+
+  /**
+   * Table mapping each host to its id
+   */
+  public static final String TABLE = "hosts";
+
+  /**
+   * Column of the metric tables, and of the dictionary, holding a host's id
+   */
+  public static final String HOST_ID = "host_id";
+
+  /**
+   * Column of the dictionary holding a host, selected by reads of metrics
+   */
+  public static final String HOST = "host";
+
+  /**
+   * Id of records without a host
+   */
+  public static final int UNKNOWN_ID = 0;
+
+  /**
+   * Definition of the host id column of a table
+   */
+  public static final String COLUMN_SQL = HOST_ID + " INTEGER NOT NULL DEFAULT " + UNKNOWN_ID;
+
+  private static final Pattern TABLE_KEY = Pattern.compile("PRIMARY\\s+KEY\\s*\\([^)]*\\)", Pattern.CASE_INSENSITIVE);
+
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+  private final Map<String, Integer> pendingIds = new HashMap<>();
+
+  /**
+   * Creates the dictionary table if it does not exist.
+   *
+   * @param conn writer connection
+   * @throws SQLException if the table cannot be created
+   */
+  public static void createTable(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+        HOST_ID + " INTEGER PRIMARY KEY, " +
+        HOST + " TEXT NOT NULL UNIQUE)");
+    }
+  }
+
+  /**
+   * Gets a join of the dictionary, aliased <tt>h</tt>, to a table, which adds
+   * the <tt>h.</tt>{@value #HOST} column, null for records without a host.
+   *
+   * @param alias alias of the table with a host id column
+   * @return sql join String, to follow the FROM clause
+   */
+  public static String joinSql(String alias) {
+    return " LEFT JOIN " + TABLE + " h ON h." + HOST_ID + " = " + alias + '.' + HOST_ID;
+  }
+
+  /**
+   * Gets a subquery of the records of a single host in a table.
+   *
+   * @param table  table, partition or subquery to select from
+   * @param hostId id of the host
+   * @return sql subquery String, to select from like a table
+   */
+  public static String filterSql(String table, int hostId) {
+    return "(SELECT * FROM " + table + " WHERE " + HOST_ID + " = " + hostId + ")";
+  }
+
+  /**
+   * Adds the host id column to a table created before hosts were recorded,
+   * with every existing record belonging to {@value #UNKNOWN_ID}. A table
+   * with a declared primary key is rebuilt with the host id as the last
+   * column of the key, and the same records and indexes. Other tables only
+   * have the column added.
+   *
+   * @param table metric table, partition or rollup tier table
+   * @param conn  writer connection
+   * @return true if the column was added, false if the table already has it
+   * @throws SQLException if the table cannot be altered
+   */
+  public static boolean addColumn(String table, Connection conn) throws SQLException {
+    String createSql = null;
+    List<String> indexSql = new ArrayList<>();
+
+    try (PreparedStatement ps = conn.prepareStatement(
+      "SELECT type, sql FROM sqlite_master WHERE tbl_name = ? AND sql IS NOT NULL")) {
+      ps.setString(1, table);
+      ResultSet rs = ps.executeQuery();
+
+      while (rs.next()) {
+        if ("table".equals(rs.getString("type")))
+          createSql = rs.getString("sql");
+        else
+          indexSql.add(rs.getString("sql"));
+      }
+    }
+
+    if (createSql == null)
+      throw new SQLException("No table to add hosts to: " + table);
+
+    List<String> primaryKey = new ArrayList<>();
+    boolean rowidKey = false;
+
+    try (Statement stmt = conn.createStatement()) {
+      ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")");
+
+      while (rs.next()) {
+        if (HOST_ID.equalsIgnoreCase(rs.getString("name")))
+          return false;
+
+        int pk = rs.getInt("pk");
+
+        if (pk > 0) {
+          while (primaryKey.size() < pk)
+            primaryKey.add(null);
+
+          primaryKey.set(pk - 1, rs.getString("name"));
+          rowidKey |= "INTEGER".equalsIgnoreCase(rs.getString("type"));
+        }
+      }
+    }
+
+    try (Statement stmt = conn.createStatement()) {
+      // An INTEGER PRIMARY KEY is the rowid, and keeps identifying records alone
+      if (primaryKey.isEmpty() || (primaryKey.size() == 1 && rowidKey)) {
+        stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + COLUMN_SQL);
+        return true;
+      }
+
+      // Keeps the datetime first in the key, so time ranges are still read through it
+      String rebuilt = table + "_hosts";
+      String body = createSql.substring(createSql.indexOf('(') + 1, createSql.lastIndexOf(')'));
+      String key = "PRIMARY KEY (" + String.join(", ", primaryKey) + ", " + HOST_ID + ")";
+      Matcher tableKey = TABLE_KEY.matcher(body);
+
+      if (tableKey.find()) {
+        body = body.substring(0, tableKey.start()).replaceFirst(",\\s*$", "") + ", " + COLUMN_SQL + ", " + key +
+          body.substring(tableKey.end());
+      } else {
+        // A single column key declared on the column itself
+        body = body.replaceFirst("(?i)\\s+PRIMARY\\s+KEY\\b", "") + ", " + COLUMN_SQL + ", " + key;
+      }
+
+      stmt.execute("CREATE TABLE " + rebuilt + " (" + body + ")");
+      stmt.executeUpdate("INSERT INTO " + rebuilt + " SELECT *, " + UNKNOWN_ID + " FROM " + table);
+      stmt.execute("DROP TABLE " + table);
+      stmt.execute("ALTER TABLE " + rebuilt + " RENAME TO " + table);
+
+      for (String sql : indexSql)
+        stmt.execute(sql);
+    }
+
+    return true;
+  }
+
+  /**
+   * Gets the id of a host, adding it to the dictionary if it is new. Must be
+   * called on the writer connection.
+   *
+   * @param host host, or null if unknown
+   * @param conn writer connection
+   * @return id of the host, {@value #UNKNOWN_ID} if the host is null
+   * @throws SQLException if the dictionary cannot be read or written
+   */
+  public int idOf(String host, Connection conn) throws SQLException {
+    if (host == null)
+      return UNKNOWN_ID;
+
+    Integer id = ids.get(host);
+
+    if (id == null)
+      id = pendingIds.get(host);
+
+    if (id != null)
+      return id;
+
+    id = find(host, conn);
+
+    if (id != UNKNOWN_ID) {
+      ids.put(host, id);
+      return id;
+    }
+
+    try (PreparedStatement ps = conn.prepareStatement(
+      "INSERT INTO " + TABLE + " (" + HOST + ") VALUES (?)", Statement.RETURN_GENERATED_KEYS)) {
+      ps.setString(1, host);
+      ps.executeUpdate();
+
+      ResultSet keys = ps.getGeneratedKeys();
+      keys.next();
+      id = keys.getInt(1);
+    }
+
+    pendingIds.put(host, id);
+
+    return id;
+  }
+
+  /**
+   * Looks up the id of a host without adding it to the dictionary.
+   *
+   * @param host host
+   * @param conn connection to read from
+   * @return id of the host, or {@value #UNKNOWN_ID} if it has no records
+   * @throws SQLException if the dictionary cannot be read
+   */
+  public static int find(String host, Connection conn) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(
+      "SELECT " + HOST_ID + " FROM " + TABLE + " WHERE " + HOST + " = ?")) {
+      ps.setString(1, host);
+      ResultSet rs = ps.executeQuery();
+
+      return rs.next() ? rs.getInt(1) : UNKNOWN_ID;
+    }
+  }
+
+  /**
+   * Reads every host in the dictionary.
+   *
+   * @param conn connection to read from
+   * @return hosts, in the order they were first persisted
+   * @throws SQLException if the dictionary cannot be read
+   */
+  public static List<String> list(Connection conn) throws SQLException {
+    List<String> hosts = new ArrayList<>();
+
+    try (Statement stmt = conn.createStatement()) {
+      ResultSet rs = stmt.executeQuery("SELECT " + HOST + " FROM " + TABLE + " ORDER BY " + HOST_ID);
+
+      while (rs.next())
+        hosts.add(rs.getString(1));
+    }
+
+    return hosts;
+  }
+
+  /**
+   * Caches hosts added since the last commit. Call after the writer
+   * connection commits.
+   */
+  public void publish() {
+    ids.putAll(pendingIds);
+    pendingIds.clear();
+  }
+
+  /**
+   * Forgets hosts added since the last commit. Call after the writer
+   * connection rolls back.
+   */
+  public void discard() {
+    pendingIds.clear();
+  }
+}
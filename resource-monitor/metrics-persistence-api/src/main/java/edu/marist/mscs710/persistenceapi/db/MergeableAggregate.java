@@ -0,0 +1,96 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import edu.marist.mscs710.persistenceapi.MetricAggregate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Summary of a window of a field, like <tt>MetricAggregate</tt>, holding a
+ * <tt>QuantileSketch</tt> of the window's values in place of its quantiles,
+ * so summaries of the same window read from separate databases can be
+ * merged before the quantiles are computed.
+ */
+class MergeableAggregate {
+  private final long datetime;
+  private long deltaMillis;
+  private long count;
+  private double mean;
+  private double min;
+  private double max;
+  private final QuantileSketch sketch;
+
+  private MergeableAggregate(long datetime, long deltaMillis, long count, double mean, double min, double max,
+                             QuantileSketch sketch) {
+    this.datetime = datetime;
+    this.deltaMillis = deltaMillis;
+    this.count = count;
+    this.mean = mean;
+    this.min = min;
+    this.max = max;
+    this.sketch = sketch;
+  }
+
+  /**
+   * Reads a summary row of a statement from
+   * <tt>SqlAggregates.sketchSql</tt>.
+   *
+   * @param rs result set positioned on the row
+   * @return summary of the row's window
+   * @throws SQLException if the row cannot be read
+   */
+  static MergeableAggregate read(ResultSet rs) throws SQLException {
+    byte[] sketch = rs.getBytes(7);
+
+    return new MergeableAggregate(rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getDouble(4), rs.getDouble(5),
+      rs.getDouble(6), sketch == null ? new QuantileSketch() : QuantileSketch.fromBytes(sketch));
+  }
+
+  /**
+   * Gets the start of the window.
+   *
+   * @return epoch milli timestamp
+   */
+  long getDatetime() {
+    return datetime;
+  }
+
+  /**
+   * Adds the records of another summary of the same window to this one.
+   *
+   * @param other summary of the same window
+   */
+  void merge(MergeableAggregate other) {
+    long totalMillis = deltaMillis + other.deltaMillis;
+
+    // Same as SqlAggregates' weighted average, falling back to a plain average
+    if (totalMillis > 0)
+      mean = (mean * deltaMillis + other.mean * other.deltaMillis) / totalMillis;
+    else
+      mean = (mean * count + other.mean * other.count) / Math.max(count + other.count, 1);
+
+    deltaMillis = totalMillis;
+    count += other.count;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+    sketch.merge(other.sketch);
+  }
+
+  /**
+   * Computes the summary of the window with its quantiles.
+   *
+   * @param field     name of the summarized field
+   * @param quantiles quantiles to compute, each from 0.0-1.0
+   * @return summary of the window
+   */
+  MetricAggregate toAggregate(String field, double... quantiles) {
+    Map<Double, Double> percentiles = new LinkedHashMap<>();
+
+    for (double q : quantiles)
+      percentiles.put(q, sketch.quantile(q));
+
+    return new MetricAggregate(field, datetime, deltaMillis, count, mean, min, max, percentiles);
+  }
+}
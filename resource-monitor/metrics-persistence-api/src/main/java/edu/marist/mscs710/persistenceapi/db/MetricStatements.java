@@ -0,0 +1,211 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import edu.marist.mscs710.metricscollector.Metric;
+import edu.marist.mscs710.metricscollector.data.*;
+import edu.marist.mscs710.metricscollector.metric.Fields;
+import edu.marist.mscs710.metricscollector.system.SystemConstants;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Parameterized SQL statements for <tt>Metric</tt> data. The column order of
+ * each statement matches the <tt>SQL_INSERT_PREFIX</tt> of the corresponding
+ * metric class, so values are bound in the same order as
+ * <tt>Metric.toSqlInsertString()</tt>. The exception is process records,
+ * which store the id of their name in <tt>ProcessNames</tt> instead of the
+ * name. Every statement inserts the id of the record's host in
+ * <tt>Hosts</tt> as its last column.
+ * <p>
+ * Inserts are idempotent: a record whose natural key is already persisted,
+ * e.g. the <tt>datetime</tt> and host of a CPU record, or the
+ * <tt>datetime</tt>, <tt>pid</tt>, <tt>start_time</tt> and host of a process
+ * record, is skipped with
+ * an update count of 0 instead of failing, so redelivered records can be
+ * replayed safely.
+ */
+public final class MetricStatements {
+
+  /**
+   * Name of the unique index on the natural key of process records, copied
+   * to each partition with the partition's name as its prefix
+   */
+  public static final String PROCESS_IDENTITY_INDEX = Fields.METRIC_TYPE_PROCESSES + "_identity";
+
+  /**
+   * Name of the unique index of system constants records, which have no
+   * other key
+   */
+  public static final String SYSTEM_CONSTANTS_IDENTITY_INDEX = Fields.METRIC_TYPE_SYSTEM_CONSTANTS + "_identity";
+
+  private static final String PROCESS_INSERT_PREFIX = "INSERT INTO " +
+    Fields.METRIC_TYPE_PROCESSES + " (" +
+    Fields.PROCESSES_DATETIME + ',' +
+    Fields.PROCESSES_DELTA_MILLIS + ',' +
+    Fields.PROCESSES_PID + ',' +
+    ProcessNames.NAME_ID + ',' +
+    Fields.PROCESSES_START_TIME + ',' +
+    Fields.PROCESSES_UPTIME + ',' +
+    Fields.PROCESSES_CPU_USAGE + ',' +
+    Fields.PROCESSES_MEMORY + ',' +
+    Fields.PROCESSES_KB_READ + ',' +
+    Fields.PROCESSES_KB_WRITTEN + ',' +
+    Fields.PROCESSES_STATE + ") VALUES ";
+  private static final String VALUES = ") VALUES ";
+  private static final int PROCESS_NAME_ID_INDEX = 4;
+  private static final String IGNORE_DUPLICATES = " ON CONFLICT DO NOTHING";
+
+  /**
+   * Gets the parameterized SQL INSERT statement for a metric type.
+   *
+   * @param metricType type of the metric, i.e. the table name
+   * @return sql insert String with '?' placeholders, or null if the metric
+   *         type is unknown
+   */
+  public static String insertSql(String metricType) {
+    String values = valuesSql(metricType);
+
+    return values == null ? null : values + IGNORE_DUPLICATES;
+  }
+
+  private static String valuesSql(String metricType) {
+    switch (metricType) {
+      case (Fields.METRIC_TYPE_CPU):
+        return withHost(CpuData.SQL_INSERT_PREFIX) + "(?,?,?,?,?)";
+
+      case (Fields.METRIC_TYPE_CPU_CORE):
+        return withHost(CpuCoreData.SQL_INSERT_PREFIX) + "(?,?,?,?,?)";
+
+      case (Fields.METRIC_TYPE_MEMORY):
+        return withHost(MemoryData.SQL_INSERT_PREFIX) + "(?,?,?,?,?)";
+
+      case (Fields.METRIC_TYPE_NETWORK):
+        return withHost(NetworkData.SQL_INSERT_PREFIX) + "(?,?,?,?,?,?)";
+
+      case (Fields.METRIC_TYPE_PROCESSES):
+        return withHost(PROCESS_INSERT_PREFIX) + "(?,?,?,?,?,?,?,?,?,?,?,?)";
+
+      case (Fields.METRIC_TYPE_SYSTEM_METRICS):
+        return withHost(SystemData.SQL_INSERT_PREFIX) + "(?,?,?,?)";
+
+      case (Fields.METRIC_TYPE_SYSTEM_CONSTANTS):
+        return withHost(SystemConstants.SQL_INSERT_PREFIX) + "(?,?,?,?,?)";
+
+      default:
+        return null;
+    }
+  }
+
+  // Adds the host id column to the end of an insert prefix's column list
+  private static String withHost(String prefix) {
+    return prefix.substring(0, prefix.lastIndexOf(VALUES)) + ',' + Hosts.HOST_ID + VALUES;
+  }
+
+  /**
+   * Gets the parameterized SQL INSERT statement for a metric type, inserting
+   * into another table with the same columns, such as a partition.
+   *
+   * @param metricType type of the metric
+   * @param table      name of the table to insert into
+   * @return sql insert String with '?' placeholders, or null if the metric
+   *         type is unknown
+   */
+  public static String insertSql(String metricType, String table) {
+    String sql = insertSql(metricType);
+    String prefix = "INSERT INTO " + metricType;
+
+    return sql == null ? null : "INSERT INTO " + table + sql.substring(prefix.length());
+  }
+
+  /**
+   * Binds the values of a <tt>Metric</tt> to a statement created from
+   * {@link #insertSql(String)} for the same metric type. The name id of a
+   * <tt>ProcessData</tt> is bound separately, with
+   * {@link #bindProcessNameId(PreparedStatement, int)}, and so is the host
+   * id, with {@link #bindHostId(PreparedStatement, int)}. This method does not
+   * execute or batch the statement.
+   *
+   * @param ps     prepared insert statement for the metric's type
+   * @param metric metric data to bind
+   * @throws SQLException if a value cannot be bound
+   * @throws IllegalArgumentException if the metric type is not supported
+   */
+  public static void bindInsert(PreparedStatement ps, Metric metric) throws SQLException {
+    if (metric instanceof CpuData) {
+      CpuData cpu = (CpuData) metric;
+      ps.setLong(1, cpu.getEpochMillisTime());
+      ps.setLong(2, cpu.getDeltaMillis());
+      ps.setDouble(3, cpu.getUtilization());
+      ps.setDouble(4, cpu.getTemperature());
+    } else if (metric instanceof CpuCoreData) {
+      CpuCoreData core = (CpuCoreData) metric;
+      ps.setLong(1, core.getEpochMillisTime());
+      ps.setLong(2, core.getDeltaMillis());
+      ps.setDouble(3, core.getCoreUtilization());
+      ps.setInt(4, core.getCoreId());
+    } else if (metric instanceof MemoryData) {
+      MemoryData memory = (MemoryData) metric;
+      ps.setLong(1, memory.getEpochMillisTime());
+      ps.setLong(2, memory.getDeltaMillis());
+      ps.setDouble(3, memory.getPageFaults());
+      ps.setDouble(4, memory.getMemoryUtilization());
+    } else if (metric instanceof NetworkData) {
+      NetworkData network = (NetworkData) metric;
+      ps.setLong(1, network.getEpochMillisTime());
+      ps.setLong(2, network.getDeltaMillis());
+      ps.setDouble(3, network.getReceive());
+      ps.setDouble(4, network.getSend());
+      ps.setLong(5, network.getThroughput());
+    } else if (metric instanceof ProcessData) {
+      ProcessData process = (ProcessData) metric;
+      ps.setLong(1, process.getEpochMillisTime());
+      ps.setLong(2, process.getDeltaMillis());
+      ps.setInt(3, process.getPid());
+      ps.setLong(5, process.getStartTime());
+      ps.setLong(6, process.getUpTime());
+      ps.setDouble(7, process.getCpuUsage());
+      ps.setLong(8, process.getMemory());
+      ps.setDouble(9, process.getKbRead());
+      ps.setDouble(10, process.getKbWritten());
+      ps.setString(11, process.getPidState().toString());
+    } else if (metric instanceof SystemData) {
+      SystemData system = (SystemData) metric;
+      ps.setLong(1, system.getEpochMillisTime());
+      ps.setLong(2, system.getDeltaMillis());
+      ps.setLong(3, system.getUpTime());
+    } else if (metric instanceof SystemConstants) {
+      SystemConstants constants = (SystemConstants) metric;
+      ps.setDouble(1, constants.getTotalMemGb());
+      ps.setInt(2, constants.getPhysicalCores());
+      ps.setInt(3, constants.getLogicalCores());
+      ps.setDouble(4, constants.getCpuSpeed());
+    } else {
+      throw new IllegalArgumentException("Unsupported metric class: " + metric.getClass().getName());
+    }
+  }
+
+  /**
+   * Binds the name id of a process to a statement created from
+   * {@link #insertSql(String)} for process records.
+   *
+   * @param ps     prepared insert statement for process records
+   * @param nameId id of the process name in <tt>ProcessNames</tt>
+   * @throws SQLException if the value cannot be bound
+   */
+  public static void bindProcessNameId(PreparedStatement ps, int nameId) throws SQLException {
+    ps.setInt(PROCESS_NAME_ID_INDEX, nameId);
+  }
+
+  /**
+   * Binds the host id of a record to a statement created from
+   * {@link #insertSql(String)}, for any metric type.
+   *
+   * @param ps     prepared insert statement
+   * @param hostId id of the record's host in <tt>Hosts</tt>
+   * @throws SQLException if the value cannot be bound
+   */
+  public static void bindHostId(PreparedStatement ps, int hostId) throws SQLException {
+    // The host id is always the last parameter
+    ps.setInt(ps.getParameterMetaData().getParameterCount(), hostId);
+  }
+}
@@ -0,0 +1,308 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import edu.marist.mscs710.metricscollector.data.ProcessData;
+import edu.marist.mscs710.metricscollector.metric.Fields;
+import edu.marist.mscs710.metricscollector.system.Processes;
+import edu.marist.mscs710.persistenceapi.ProcessLifetime;
+
+import java.sql.*;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * SQL for the lifetime of each process, kept in one row per pid, start time
+ * and host as process records are persisted. Each row holds when the process was
+ * first and last seen, when it was seen to end, and running totals of its
+ * records, so questions about whole processes are answered without scanning
+ * the process records.
+ * <p>
+ * A process ends at the time of its <tt>ENDED</tt> record, which has no start
+ * time and so ends the open lifetime of its pid on its host, or when its pid
+ * is recycled, at the start time of the new process. Totals of <tt>kb_read</tt> and
+ * <tt>kb_written</tt> are the rates integrated over each record's
+ * <tt>delta_millis</tt> in seconds.
+ */
+public final class ProcessLifetimes {
+
+  /**
+   * Table holding a row for the lifetime of each process
+   */
+  public static final String TABLE = "process_lifetimes";
+
+  /**
+   * Epoch milli timestamp of the first record of a process
+   */
+  public static final String FIRST_SEEN = "first_seen";
+
+  /**
+   * Epoch milli timestamp of the last record of a process
+   */
+  public static final String LAST_SEEN = "last_seen";
+
+  /**
+   * Epoch milli timestamp a process was seen to end, or null
+   */
+  public static final String ENDED = "ended";
+
+  /**
+   * Total of <tt>cpu_usage</tt> times <tt>delta_millis</tt>
+   */
+  public static final String CPU_MILLIS = "cpu_millis";
+
+  /**
+   * Largest <tt>memory</tt> of any record
+   */
+  public static final String MAX_MEMORY = "max_memory";
+
+  // Time a process stops being alive, indexed for range queries
+  private static final String UNTIL = "COALESCE(" + ENDED + ", " + LAST_SEEN + ")";
+
+  private static final String PROCESS_KEY = Fields.PROCESSES_PID + ", " + Fields.PROCESSES_START_TIME;
+
+  private static final String KEY = PROCESS_KEY + ", " + Hosts.HOST_ID;
+
+  private static final String TOTALS = ProcessNames.NAME_ID + ", " + FIRST_SEEN + ", " +
+    LAST_SEEN + ", " + SqlRollups.SAMPLES + ", " + Fields.DELTA_MILLIS + ", " + CPU_MILLIS + ", " +
+    Fields.PROCESSES_KB_READ + ", " + Fields.PROCESSES_KB_WRITTEN + ", " + MAX_MEMORY;
+
+  private static final String COLUMNS = KEY + ", " + TOTALS;
+
+  private static final String MERGE = " ON CONFLICT (" + KEY + ") DO UPDATE SET " +
+    ProcessNames.NAME_ID + " = excluded." + ProcessNames.NAME_ID + ", " +
+    FIRST_SEEN + " = MIN(" + FIRST_SEEN + ", excluded." + FIRST_SEEN + "), " +
+    LAST_SEEN + " = MAX(" + LAST_SEEN + ", excluded." + LAST_SEEN + "), " +
+    sum(SqlRollups.SAMPLES) + ", " + sum(Fields.DELTA_MILLIS) + ", " + sum(CPU_MILLIS) + ", " +
+    sum(Fields.PROCESSES_KB_READ) + ", " + sum(Fields.PROCESSES_KB_WRITTEN) + ", " +
+    MAX_MEMORY + " = MAX(" + MAX_MEMORY + ", excluded." + MAX_MEMORY + ")";
+
+  private static String sum(String column) {
+    return column + " = " + column + " + excluded." + column;
+  }
+
+  /**
+   * Creates the lifetime table and its index if they do not exist.
+   *
+   * @param conn writer connection
+   * @throws SQLException if the table cannot be created
+   */
+  public static void createTable(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+        Fields.PROCESSES_PID + " INTEGER NOT NULL, " +
+        Fields.PROCESSES_START_TIME + " BIGINT NOT NULL, " +
+        ProcessNames.NAME_ID + " INTEGER NOT NULL, " +
+        FIRST_SEEN + " BIGINT NOT NULL, " +
+        LAST_SEEN + " BIGINT NOT NULL, " +
+        ENDED + " BIGINT, " +
+        SqlRollups.SAMPLES + " INTEGER NOT NULL, " +
+        Fields.DELTA_MILLIS + " BIGINT NOT NULL, " +
+        CPU_MILLIS + " REAL NOT NULL, " +
+        Fields.PROCESSES_KB_READ + " REAL NOT NULL, " +
+        Fields.PROCESSES_KB_WRITTEN + " REAL NOT NULL, " +
+        MAX_MEMORY + " BIGINT NOT NULL, " +
+        Hosts.COLUMN_SQL + ", " +
+        "PRIMARY KEY (" + KEY + "))");
+      stmt.execute("CREATE INDEX IF NOT EXISTS " + TABLE + "_until ON " + TABLE + " (" + UNTIL + ")");
+    }
+  }
+
+  /**
+   * Gets an INSERT statement that adds a single process record to the
+   * lifetime of its process, creating the lifetime if it does not exist.
+   * <p>
+   * Parameters are bound with {@link #bindUpsert(PreparedStatement, ProcessData, int, int)}.
+   *
+   * @return sql upsert String
+   */
+  public static String upsertSql() {
+    return "INSERT INTO " + TABLE + " (" + COLUMNS + ") " +
+      "VALUES (?1, ?2, ?10, ?3, ?4, ?4, 1, ?5, ?6 * ?5, ?7 * ?5 / 1000.0, ?8 * ?5 / 1000.0, ?9)" + MERGE;
+  }
+
+  /**
+   * Binds a process record to a statement created from {@link #upsertSql()}.
+   *
+   * @param ps      prepared upsert statement
+   * @param process process record, in any state but <tt>ENDED</tt>
+   * @param nameId  id of the process name in <tt>ProcessNames</tt>
+   * @param hostId  id of the process's host in <tt>Hosts</tt>
+   * @throws SQLException if a value cannot be bound
+   */
+  public static void bindUpsert(PreparedStatement ps, ProcessData process, int nameId, int hostId) throws SQLException {
+    ps.setInt(1, process.getPid());
+    ps.setLong(2, process.getStartTime());
+    ps.setInt(3, nameId);
+    ps.setLong(4, process.getEpochMillisTime());
+    ps.setLong(5, process.getDeltaMillis());
+    ps.setDouble(6, process.getCpuUsage());
+    ps.setDouble(7, process.getKbRead());
+    ps.setDouble(8, process.getKbWritten());
+    ps.setLong(9, process.getMemory());
+    ps.setInt(10, hostId);
+  }
+
+  /**
+   * Gets an UPDATE statement that ends the open lifetimes of a pid on a host
+   * that started before a time, at that time.
+   * <p>
+   * Parameters are bound with {@link #bindEnd(PreparedStatement, int, long, int)}.
+   *
+   * @return sql update String
+   */
+  public static String endSql() {
+    return "UPDATE " + TABLE + " SET " + ENDED + " = ?2 WHERE " + Fields.PROCESSES_PID + " = ?1 AND " +
+      Hosts.HOST_ID + " = ?3 AND " + ENDED + " IS NULL AND " + Fields.PROCESSES_START_TIME + " < ?2";
+  }
+
+  /**
+   * Binds the pid and end time to a statement created from {@link #endSql()}.
+   * The end time of an <tt>ENDED</tt> record is its own time, and that of a
+   * <tt>NEW</tt> or <tt>RECYCLED</tt> record, which ends any previous process
+   * with the pid, is its start time.
+   *
+   * @param ps     prepared update statement
+   * @param pid    process id
+   * @param ended  epoch milli timestamp the lifetimes ended
+   * @param hostId id of the process's host in <tt>Hosts</tt>
+   * @throws SQLException if a value cannot be bound
+   */
+  public static void bindEnd(PreparedStatement ps, int pid, long ended, int hostId) throws SQLException {
+    ps.setInt(1, pid);
+    ps.setLong(2, ended);
+    ps.setInt(3, hostId);
+  }
+
+  /**
+   * Adds the records of a process table to the lifetimes of their processes,
+   * then ends lifetimes by the records of every table, for databases with
+   * process records from before lifetimes were kept. Those records are from
+   * before hosts were recorded too, so every lifetime is given the default
+   * host id, <tt>Hosts.UNKNOWN_ID</tt>, and the lifetime table may still be
+   * without a host id column.
+   *
+   * @param tables process tables, in time order
+   * @param conn   writer connection
+   * @return number of lifetimes
+   * @throws SQLException if the lifetimes cannot be written
+   */
+  public static int backfill(List<String> tables, Connection conn) throws SQLException {
+    String records = tables.stream()
+      .map(t -> "SELECT * FROM " + t)
+      .collect(Collectors.joining(" UNION ALL ", "(", ")"));
+
+    try (Statement stmt = conn.createStatement()) {
+      // Every table at once, so each process is inserted once without a conflict target
+      stmt.executeUpdate("INSERT INTO " + TABLE + " (" + PROCESS_KEY + ", " + TOTALS + ") " +
+        "SELECT " + PROCESS_KEY + ", MAX(" + ProcessNames.NAME_ID + "), MIN(" + Fields.DATETIME + "), " +
+        "MAX(" + Fields.DATETIME + "), COUNT(*), SUM(" + Fields.DELTA_MILLIS + "), " +
+        "SUM(" + Fields.PROCESSES_CPU_USAGE + " * " + Fields.DELTA_MILLIS + "), " +
+        "SUM(" + Fields.PROCESSES_KB_READ + " * " + Fields.DELTA_MILLIS + " / 1000.0), " +
+        "SUM(" + Fields.PROCESSES_KB_WRITTEN + " * " + Fields.DELTA_MILLIS + " / 1000.0), " +
+        "MAX(" + Fields.PROCESSES_MEMORY + ") FROM " + records +
+        " WHERE " + Fields.PROCESSES_STATE + " <> '" + Processes.PidState.ENDED + "'" +
+        " GROUP BY " + PROCESS_KEY);
+
+      // A recycled pid ends the previous process at the start of the next
+      stmt.executeUpdate("UPDATE " + TABLE + " SET " + ENDED + " = (SELECT MIN(n." + Fields.PROCESSES_START_TIME +
+        ") FROM " + TABLE + " n WHERE n." + Fields.PROCESSES_PID + " = " + TABLE + '.' + Fields.PROCESSES_PID +
+        " AND n." + Fields.PROCESSES_START_TIME + " > " + TABLE + '.' + Fields.PROCESSES_START_TIME + ")" +
+        " WHERE " + ENDED + " IS NULL");
+
+      for (String table : tables) {
+        stmt.executeUpdate("UPDATE " + TABLE + " SET " + ENDED + " = (SELECT MIN(e." + Fields.DATETIME + ") FROM " +
+          table + " e WHERE e." + Fields.PROCESSES_PID + " = " + TABLE + '.' + Fields.PROCESSES_PID +
+          " AND e." + Fields.PROCESSES_STATE + " = '" + Processes.PidState.ENDED + "'" +
+          " AND e." + Fields.DATETIME + " >= " + TABLE + '.' + LAST_SEEN + ")" +
+          " WHERE " + ENDED + " IS NULL");
+      }
+
+      ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + TABLE);
+      rs.next();
+      return rs.getInt(1);
+    }
+  }
+
+  /**
+   * Deletes the lifetimes of processes that stopped being alive before a
+   * time.
+   *
+   * @param bound epoch milli timestamp, exclusive
+   * @param conn  writer connection
+   * @return number of lifetimes deleted
+   * @throws SQLException if the lifetimes cannot be deleted
+   */
+  public static int deleteBefore(long bound, Connection conn) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement("DELETE FROM " + TABLE + " WHERE " + UNTIL + " < ?")) {
+      ps.setLong(1, bound);
+      return ps.executeUpdate();
+    }
+  }
+
+  /**
+   * Gets a SELECT of the lifetimes of processes alive at any time in a range,
+   * i.e. started before its end and not ended before its start, ordered by
+   * start time.
+   *
+   * @param byHost whether to select the processes of a single host
+   * @return sql select String with the range's earliest, inclusive, and
+   *         latest, exclusive, and then the host id if by host, as parameters
+   */
+  public static String aliveSql(boolean byHost) {
+    return selectSql() + " WHERE " + UNTIL + " >= ? AND " + Fields.PROCESSES_START_TIME + " < ?" + hostSql(byHost) +
+      " ORDER BY " + Fields.PROCESSES_START_TIME + ", " + Fields.PROCESSES_PID;
+  }
+
+  /**
+   * Gets a SELECT of the lifetime of a single process, or of the processes of
+   * every host with its pid and start time.
+   *
+   * @param byHost whether to select the process of a single host
+   * @return sql select String with the pid, the start time and then the host
+   *         id if by host, as parameters
+   */
+  public static String processSql(boolean byHost) {
+    return selectSql() + " WHERE t." + Fields.PROCESSES_PID + " = ? AND t." + Fields.PROCESSES_START_TIME + " = ?" +
+      hostSql(byHost);
+  }
+
+  private static String hostSql(boolean byHost) {
+    return byHost ? " AND t." + Hosts.HOST_ID + " = ?" : "";
+  }
+
+  private static String selectSql() {
+    return "SELECT t.*, n." + Fields.PROCESSES_NAME + ", h." + Hosts.HOST + " FROM " + TABLE + " t JOIN " +
+      ProcessNames.TABLE + " n ON n." + ProcessNames.NAME_ID + " = t." + ProcessNames.NAME_ID + Hosts.joinSql("t");
+  }
+
+  /**
+   * Reads the current row of a query from {@link #aliveSql(boolean)} or
+   * {@link #processSql(boolean)}.
+   *
+   * @param rs result set positioned on a row
+   * @return lifetime of the row's process
+   * @throws SQLException if the row cannot be read
+   */
+  public static ProcessLifetime read(ResultSet rs) throws SQLException {
+    long ended = rs.getLong(ENDED);
+
+    if (rs.wasNull())
+      ended = -1;
+
+    long deltaMillis = rs.getLong(Fields.DELTA_MILLIS);
+
+    return new ProcessLifetime(
+      rs.getInt(Fields.PROCESSES_PID),
+      rs.getString(Fields.PROCESSES_NAME),
+      rs.getLong(Fields.PROCESSES_START_TIME),
+      rs.getLong(FIRST_SEEN),
+      rs.getLong(LAST_SEEN),
+      ended,
+      rs.getLong(SqlRollups.SAMPLES),
+      deltaMillis,
+      deltaMillis == 0 ? 0 : rs.getDouble(CPU_MILLIS) / deltaMillis,
+      rs.getDouble(Fields.PROCESSES_KB_READ),
+      rs.getDouble(Fields.PROCESSES_KB_WRITTEN),
+      rs.getLong(MAX_MEMORY),
+      rs.getString(Hosts.HOST));
+  }
+}
@@ -0,0 +1,193 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import edu.marist.mscs710.metricscollector.metric.Fields;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Dictionary of process names. Process records store the integer id of their
+ * name instead of the name itself, and reads join the dictionary to get it
+ * back. Ids are cached in memory, so each name is looked up in the database
+ * at most once.
+ * <p>
+ * Like <tt>TablePartitions</tt>, names added by the writer connection are
+ * only cached once its transaction commits, so a rolled back name is never
+ * handed out again.
+ */
+public class ProcessNames {
+
+  /**
+   * Table mapping each process name to its id
+   */
+  public static final String TABLE = "process_names";
+
+  /**
+   * Column of the process tables, and of the dictionary, holding a name's id
+   */
+  public static final String NAME_ID = "name_id";
+
+  private static final Pattern NAME_COLUMN = Pattern.compile(
+    "\\b" + Fields.PROCESSES_NAME + "\\s+TEXT\\b[^,)]*", Pattern.CASE_INSENSITIVE);
+
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+  private final Map<String, Integer> pendingIds = new HashMap<>();
+
+  /**
+   * Creates the dictionary table if it does not exist.
+   *
+   * @param conn writer connection
+   * @throws SQLException if the table cannot be created
+   */
+  public static void createTable(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+        NAME_ID + " INTEGER PRIMARY KEY, " +
+        Fields.PROCESSES_NAME + " TEXT NOT NULL UNIQUE)");
+    }
+  }
+
+  /**
+   * Gets a SELECT of every column of a process table, with each record's
+   * name joined from the dictionary, and its host from <tt>Hosts</tt>.
+   *
+   * @param table process table or partition
+   * @return sql select String, to be followed by a WHERE clause on the
+   *         table's columns
+   */
+  public static String selectSql(String table) {
+    return "SELECT t.*, n." + Fields.PROCESSES_NAME + ", h." + Hosts.HOST + " FROM " + table + " t JOIN " + TABLE +
+      " n ON n." + NAME_ID + " = t." + NAME_ID + Hosts.joinSql("t");
+  }
+
+  /**
+   * Replaces the name column of a process table with a name id column,
+   * adding every name in it to the dictionary. The table is rebuilt with the
+   * same records and indexes.
+   *
+   * @param table process table or partition
+   * @param conn  writer connection
+   * @return number of records in the table
+   * @throws SQLException if the table cannot be rebuilt
+   */
+  public static int encodeTable(String table, Connection conn) throws SQLException {
+    String createSql = null;
+    List<String> indexSql = new ArrayList<>();
+
+    try (PreparedStatement ps = conn.prepareStatement(
+      "SELECT type, sql FROM sqlite_master WHERE tbl_name = ? AND sql IS NOT NULL")) {
+      ps.setString(1, table);
+      ResultSet rs = ps.executeQuery();
+
+      while (rs.next()) {
+        if ("table".equals(rs.getString("type")))
+          createSql = rs.getString("sql");
+        else
+          indexSql.add(rs.getString("sql"));
+      }
+    }
+
+    if (createSql == null)
+      throw new SQLException("No process table to encode: " + table);
+
+    String encoded = table + "_encoded";
+    String columns = String.join(",", Fields.PROCESSES_DATETIME, Fields.PROCESSES_DELTA_MILLIS,
+      Fields.PROCESSES_PID, Fields.PROCESSES_START_TIME, Fields.PROCESSES_UPTIME, Fields.PROCESSES_CPU_USAGE,
+      Fields.PROCESSES_MEMORY, Fields.PROCESSES_KB_READ, Fields.PROCESSES_KB_WRITTEN, Fields.PROCESSES_STATE);
+
+    try (Statement stmt = conn.createStatement()) {
+      stmt.executeUpdate("INSERT OR IGNORE INTO " + TABLE + " (" + Fields.PROCESSES_NAME + ") " +
+        "SELECT DISTINCT " + Fields.PROCESSES_NAME + " FROM " + table);
+
+      stmt.execute(NAME_COLUMN.matcher(createSql.replaceFirst("(?i)(CREATE\\s+TABLE\\s+(IF\\s+NOT\\s+EXISTS\\s+)?)\"?" +
+        Pattern.quote(table) + "\"?", "$1" + encoded)).replaceFirst(NAME_ID + " INTEGER NOT NULL"));
+
+      int records = stmt.executeUpdate("INSERT INTO " + encoded + " (rec_id," + columns + ',' + NAME_ID + ") " +
+        "SELECT t.rec_id," + columns.replaceAll("(\\w+)", "t.$1") + ",n." + NAME_ID + " FROM " + table + " t " +
+        "JOIN " + TABLE + " n ON n." + Fields.PROCESSES_NAME + " = t." + Fields.PROCESSES_NAME);
+
+      stmt.execute("DROP TABLE " + table);
+      stmt.execute("ALTER TABLE " + encoded + " RENAME TO " + table);
+
+      for (String sql : indexSql)
+        stmt.execute(sql);
+
+      return records;
+    }
+  }
+
+  /**
+   * Gets the id of a process name, adding it to the dictionary if it is new.
+   * Must be called on the writer connection.
+   *
+   * @param name process name
+   * @param conn writer connection
+   * @return id of the name
+   * @throws SQLException if the dictionary cannot be read or written
+   */
+  public int idOf(String name, Connection conn) throws SQLException {
+    Integer id = ids.get(name);
+
+    if (id == null)
+      id = pendingIds.get(name);
+
+    if (id != null)
+      return id;
+
+    try (PreparedStatement ps = conn.prepareStatement(
+      "SELECT " + NAME_ID + " FROM " + TABLE + " WHERE " + Fields.PROCESSES_NAME + " = ?")) {
+      ps.setString(1, name);
+      ResultSet rs = ps.executeQuery();
+
+      if (rs.next()) {
+        ids.put(name, rs.getInt(1));
+        return rs.getInt(1);
+      }
+    }
+
+    try (PreparedStatement ps = conn.prepareStatement(
+      "INSERT INTO " + TABLE + " (" + Fields.PROCESSES_NAME + ") VALUES (?)", Statement.RETURN_GENERATED_KEYS)) {
+      ps.setString(1, name);
+      ps.executeUpdate();
+
+      ResultSet keys = ps.getGeneratedKeys();
+      keys.next();
+      id = keys.getInt(1);
+    }
+
+    pendingIds.put(name, id);
+
+    return id;
+  }
+
+  /**
+   * Gets the number of names cached in memory.
+   *
+   * @return cached names
+   */
+  public int size() {
+    return ids.size();
+  }
+
+  /**
+   * Caches names added since the last commit. Call after the writer
+   * connection commits.
+   */
+  public void publish() {
+    ids.putAll(pendingIds);
+    pendingIds.clear();
+  }
+
+  /**
+   * Forgets names added since the last commit. Call after the writer
+   * connection rolls back.
+   */
+  public void discard() {
+    pendingIds.clear();
+  }
+}
@@ -0,0 +1,124 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cumulative counters of the work done pruning a single metric type. Counters
+ * are updated by the pruning thread and may be read from any thread.
+ */
+public class PruneStats {
+  private final String metricType;
+  private final AtomicLong runs = new AtomicLong(0);
+  private final AtomicLong rowsRead = new AtomicLong(0);
+  private final AtomicLong rowsDeleted = new AtomicLong(0);
+  private final AtomicLong rowsWritten = new AtomicLong(0);
+  private final AtomicLong partitionsDropped = new AtomicLong(0);
+  private final AtomicLong elapsedMillis = new AtomicLong(0);
+
+  /**
+   * Constructs a new <tt>PruneStats</tt> with all counters at zero.
+   *
+   * @param metricType type of the metric these counters belong to
+   */
+  public PruneStats(String metricType) {
+    this.metricType = metricType;
+  }
+
+  /**
+   * Gets the metric type these counters belong to.
+   *
+   * @return metric type
+   */
+  public String getMetricType() {
+    return metricType;
+  }
+
+  /**
+   * Gets the number of times this metric type has been pruned.
+   *
+   * @return number of prune runs
+   */
+  public long getRuns() {
+    return runs.get();
+  }
+
+  /**
+   * Gets the number of rows read from the database for pruning.
+   *
+   * @return rows read
+   */
+  public long getRowsRead() {
+    return rowsRead.get();
+  }
+
+  /**
+   * Gets the number of rows deleted from the database by pruning.
+   *
+   * @return rows deleted
+   */
+  public long getRowsDeleted() {
+    return rowsDeleted.get();
+  }
+
+  /**
+   * Gets the number of combined rows written to the database by pruning.
+   *
+   * @return rows written
+   */
+  public long getRowsWritten() {
+    return rowsWritten.get();
+  }
+
+  /**
+   * Gets the number of whole partitions dropped by pruning. Their rows are
+   * not counted in {@link #getRowsDeleted()}.
+   *
+   * @return partitions dropped
+   */
+  public long getPartitionsDropped() {
+    return partitionsDropped.get();
+  }
+
+  /**
+   * Gets the total number of milliseconds spent pruning this metric type.
+   *
+   * @return elapsed milliseconds
+   */
+  public long getElapsedMillis() {
+    return elapsedMillis.get();
+  }
+
+  void addRun(long elapsedMillis) {
+    this.runs.incrementAndGet();
+    this.elapsedMillis.addAndGet(elapsedMillis);
+  }
+
+  void addRowsRead(long rows) {
+    rowsRead.addAndGet(rows);
+  }
+
+  void addRowsDeleted(long rows) {
+    rowsDeleted.addAndGet(rows);
+  }
+
+  void addRowsWritten(long rows) {
+    rowsWritten.addAndGet(rows);
+  }
+
+  void addPartitionsDropped(long partitions) {
+    partitionsDropped.addAndGet(partitions);
+  }
+
+  @Override
+  public String toString() {
+    return "PruneStats{" +
+      "metricType='" + metricType + '\'' +
+      ", runs=" + runs +
+      ", rowsRead=" + rowsRead +
+      ", rowsDeleted=" + rowsDeleted +
+      ", rowsWritten=" + rowsWritten +
+      ", partitionsDropped=" + partitionsDropped +
+      ", elapsedMillis=" + elapsedMillis +
+      '}';
+  }
+}
@@ -0,0 +1,241 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Mergeable sketch of the distribution of a value, answering quantiles with a
+ * bounded relative error, after DDSketch. Values are counted in logarithmic
+ * bins, each covering values within {@link #RELATIVE_ACCURACY} of its
+ * midpoint, so sketches of separate windows merge into exactly the sketch of
+ * their union.
+ * <p>
+ * Each value is added with a weight, the milliseconds it covers, so
+ * quantiles are of time rather than of records, like the weighted averages
+ * of rollups. Sketches are stored as compact blobs in rollup tables with
+ * {@link #toBytes()}.
+ */
+public class QuantileSketch {
+
+  /**
+   * Largest relative error of any quantile, for values whose magnitude is at
+   * least {@link #MIN_INDEXABLE}
+   */
+  public static final double RELATIVE_ACCURACY = 0.01;
+
+  /**
+   * Smallest magnitude kept apart from zero
+   */
+  public static final double MIN_INDEXABLE = 1e-9;
+
+  /**
+   * Largest number of bins of each sign. The lowest magnitude bins are merged
+   * beyond it, which only loses accuracy for the lowest quantiles.
+   */
+  public static final int MAX_BINS = 2048;
+
+  private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+  private static final double LOG_GAMMA = Math.log(GAMMA);
+  private static final byte VERSION = 1;
+
+  private final TreeMap<Integer, Long> positive = new TreeMap<>();
+  private final TreeMap<Integer, Long> negative = new TreeMap<>();
+  private long zero;
+  private long totalWeight;
+
+  /**
+   * Adds a value to this sketch.
+   *
+   * @param value  value to add, ignored if NaN
+   * @param weight weight of the value, e.g. its milliseconds, at least 1
+   */
+  public void add(double value, long weight) {
+    if (Double.isNaN(value) || weight <= 0)
+      return;
+
+    if (Math.abs(value) < MIN_INDEXABLE)
+      zero += weight;
+    else if (value > 0)
+      addToBin(positive, index(value), weight);
+    else
+      addToBin(negative, index(-value), weight);
+
+    totalWeight += weight;
+  }
+
+  /**
+   * Adds every value of another sketch to this sketch.
+   *
+   * @param other sketch to merge
+   */
+  public void merge(QuantileSketch other) {
+    other.positive.forEach((index, weight) -> addToBin(positive, index, weight));
+    other.negative.forEach((index, weight) -> addToBin(negative, index, weight));
+    zero += other.zero;
+    totalWeight += other.totalWeight;
+  }
+
+  /**
+   * Gets the approximate value of a quantile: the smallest value such that
+   * the values up to it hold at least <tt>quantile</tt> of the total weight.
+   *
+   * @param quantile quantile from 0.0-1.0
+   * @return approximate value, or NaN if the sketch is empty
+   */
+  public double quantile(double quantile) {
+    if (totalWeight == 0)
+      return Double.NaN;
+
+    double rank = Math.max(quantile, 0) * totalWeight;
+    long cumulative = 0;
+
+    for (Map.Entry<Integer, Long> bin : negative.descendingMap().entrySet()) {
+      cumulative += bin.getValue();
+
+      if (cumulative >= rank)
+        return -value(bin.getKey());
+    }
+
+    cumulative += zero;
+
+    if (cumulative >= rank)
+      return 0;
+
+    for (Map.Entry<Integer, Long> bin : positive.entrySet()) {
+      cumulative += bin.getValue();
+
+      if (cumulative >= rank)
+        return value(bin.getKey());
+    }
+
+    return value(positive.lastKey());
+  }
+
+  /**
+   * Gets the total weight of the values added.
+   *
+   * @return total weight
+   */
+  public long getTotalWeight() {
+    return totalWeight;
+  }
+
+  /**
+   * Checks if no values have been added.
+   *
+   * @return true if the sketch is empty
+   */
+  public boolean isEmpty() {
+    return totalWeight == 0;
+  }
+
+  /**
+   * Serializes this sketch. Bins are written as variable length, delta
+   * encoded indexes and weights, so a sketch of a narrow range of values
+   * takes a few bytes per bin.
+   *
+   * @return serialized sketch
+   */
+  public byte[] toBytes() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(16 + (positive.size() + negative.size()) * 4);
+    out.write(VERSION);
+    writeVarLong(out, zero);
+    writeBins(out, positive);
+    writeBins(out, negative);
+
+    return out.toByteArray();
+  }
+
+  /**
+   * Deserializes a sketch written by {@link #toBytes()}.
+   *
+   * @param bytes serialized sketch
+   * @return sketch
+   * @throws IllegalArgumentException if the bytes are not a serialized sketch
+   */
+  public static QuantileSketch fromBytes(byte[] bytes) {
+    if (bytes.length == 0 || bytes[0] != VERSION)
+      throw new IllegalArgumentException("Not a serialized quantile sketch");
+
+    QuantileSketch sketch = new QuantileSketch();
+    int[] pos = {1};
+
+    try {
+      sketch.zero = readVarLong(bytes, pos);
+      sketch.totalWeight = sketch.zero + readBins(bytes, pos, sketch.positive) + readBins(bytes, pos, sketch.negative);
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Truncated quantile sketch", e);
+    }
+
+    return sketch;
+  }
+
+  private static int index(double magnitude) {
+    return (int) Math.ceil(Math.log(magnitude) / LOG_GAMMA);
+  }
+
+  private static double value(int index) {
+    // Midpoint of the bin, within the relative accuracy of all of its values
+    return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+  }
+
+  private static void addToBin(TreeMap<Integer, Long> bins, int index, long weight) {
+    bins.merge(index, weight, Long::sum);
+
+    while (bins.size() > MAX_BINS) {
+      Map.Entry<Integer, Long> lowest = bins.pollFirstEntry();
+      bins.merge(bins.firstKey(), lowest.getValue(), Long::sum);
+    }
+  }
+
+  private static void writeBins(ByteArrayOutputStream out, TreeMap<Integer, Long> bins) {
+    writeVarLong(out, bins.size());
+    int previous = 0;
+
+    for (Map.Entry<Integer, Long> bin : bins.entrySet()) {
+      // Zig-zag encoded, since the first index may be negative
+      long delta = (long) bin.getKey() - previous;
+      writeVarLong(out, (delta << 1) ^ (delta >> 63));
+      writeVarLong(out, bin.getValue());
+      previous = bin.getKey();
+    }
+  }
+
+  private static long readBins(byte[] bytes, int[] pos, TreeMap<Integer, Long> bins) {
+    long size = readVarLong(bytes, pos);
+    long total = 0;
+    int index = 0;
+
+    for (long i = 0; i < size; i++) {
+      long zigZag = readVarLong(bytes, pos);
+      index += (int) ((zigZag >>> 1) ^ -(zigZag & 1));
+      long weight = readVarLong(bytes, pos);
+      bins.put(index, weight);
+      total += weight;
+    }
+
+    return total;
+  }
+
+  private static void writeVarLong(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+
+    out.write((int) value);
+  }
+
+  private static long readVarLong(byte[] bytes, int[] pos) {
+    long value = 0;
+
+    for (int shift = 0; ; shift += 7) {
+      byte b = bytes[pos[0]++];
+      value |= (long) (b & 0x7F) << shift;
+
+      if ((b & 0x80) == 0)
+        return value;
+    }
+  }
+}
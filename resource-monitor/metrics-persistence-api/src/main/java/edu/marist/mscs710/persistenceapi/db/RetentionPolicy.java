@@ -0,0 +1,218 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * How long the records of a metric type are kept at each resolution. Raw
+ * records are kept for the raw retention. One minute rollups, or records
+ * combined into one minute windows for types without rollup tiers, are kept
+ * until the minute retention. One hour rollups, or records combined into one
+ * hour windows, are kept until the time to live, or forever if it is 0.
+ * <p>
+ * Policies are written as the three durations separated by commas, each a
+ * number followed by <tt>m</tt> (minutes), <tt>h</tt> (hours) or <tt>d</tt>
+ * (days), e.g. <tt>2h,24h,30d</tt>. A time to live of <tt>0</tt> keeps records
+ * forever.
+ */
+public final class RetentionPolicy {
+
+  /**
+   * Raw records for 12 hours, one minute windows for 24 hours, and one hour
+   * windows forever
+   */
+  public static final RetentionPolicy DEFAULT = new RetentionPolicy(
+    TimeUnit.HOURS.toMillis(12), TimeUnit.HOURS.toMillis(24), 0);
+
+  /**
+   * Property holding the policy of metric types without one of their own
+   */
+  public static final String PROPERTY = "pruneretention";
+
+  /**
+   * Time to live of a policy keeping records forever, once it is downsampled
+   */
+  public static final long DOWNSAMPLED_TTL_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+  private static final long MIN_RAW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  private static final Pattern DURATION = Pattern.compile("(\\d+)([mhd])");
+
+  private final long rawMillis;
+  private final long minuteMillis;
+  private final long ttlMillis;
+
+  /**
+   * Constructs a new <tt>RetentionPolicy</tt>.
+   *
+   * @param rawMillis    milliseconds raw records are kept
+   * @param minuteMillis milliseconds one minute windows are kept, at least
+   *                     <tt>rawMillis</tt>
+   * @param ttlMillis    milliseconds one hour windows are kept, at least
+   *                     <tt>minuteMillis</tt>, or 0 to keep them forever
+   * @throws IllegalArgumentException if the durations are out of order
+   */
+  public RetentionPolicy(long rawMillis, long minuteMillis, long ttlMillis) {
+    if (rawMillis <= 0 || minuteMillis < rawMillis || (ttlMillis != 0 && ttlMillis < minuteMillis))
+      throw new IllegalArgumentException("Retention must be raw <= minute <= time to live: " +
+        rawMillis + ", " + minuteMillis + ", " + ttlMillis);
+
+    this.rawMillis = rawMillis;
+    this.minuteMillis = minuteMillis;
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * Parses a policy such as <tt>2h,24h,30d</tt>.
+   *
+   * @param policy raw, minute and time to live durations
+   * @return retention policy
+   * @throws IllegalArgumentException if the policy cannot be parsed
+   */
+  public static RetentionPolicy parse(String policy) {
+    String[] durations = policy.split(",");
+
+    if (durations.length != 3)
+      throw new IllegalArgumentException("Retention policy must have 3 durations: " + policy);
+
+    return new RetentionPolicy(parseDuration(durations[0]), parseDuration(durations[1]), parseDuration(durations[2]));
+  }
+
+  private static long parseDuration(String duration) {
+    String trimmed = duration.trim().toLowerCase(Locale.ROOT);
+
+    if (trimmed.equals("0"))
+      return 0;
+
+    Matcher m = DURATION.matcher(trimmed);
+
+    if (!m.matches())
+      throw new IllegalArgumentException("Invalid retention duration: " + duration);
+
+    long amount = Long.parseLong(m.group(1));
+
+    switch (m.group(2)) {
+      case "m":
+        return TimeUnit.MINUTES.toMillis(amount);
+      case "h":
+        return TimeUnit.HOURS.toMillis(amount);
+      default:
+        return TimeUnit.DAYS.toMillis(amount);
+    }
+  }
+
+  /**
+   * Gets the policy of a metric type from properties: the
+   * <tt>pruneretention.&lt;type&gt;</tt> property if set, else the
+   * <tt>pruneretention</tt> property, else {@link #DEFAULT}.
+   *
+   * @param props      application properties
+   * @param metricType type of the metric
+   * @return retention policy of the metric type
+   * @throws IllegalArgumentException if the policy cannot be parsed
+   */
+  public static RetentionPolicy fromProperties(Properties props, String metricType) {
+    String policy = props.getProperty(PROPERTY + '.' + metricType, props.getProperty(PROPERTY));
+
+    return policy == null ? DEFAULT : parse(policy);
+  }
+
+  /**
+   * Gets the number of milliseconds raw records are kept.
+   *
+   * @return raw retention in milliseconds
+   */
+  public long getRawMillis() {
+    return rawMillis;
+  }
+
+  /**
+   * Gets the number of milliseconds one minute windows are kept.
+   *
+   * @return minute retention in milliseconds
+   */
+  public long getMinuteMillis() {
+    return minuteMillis;
+  }
+
+  /**
+   * Gets the number of milliseconds one hour windows are kept.
+   *
+   * @return time to live in milliseconds, or 0 if kept forever
+   */
+  public long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  /**
+   * Checks if records are eventually deleted.
+   *
+   * @return true if the policy has a time to live
+   */
+  public boolean expires() {
+    return ttlMillis > 0;
+  }
+
+  /**
+   * Gets the number of milliseconds records of a resolution are kept.
+   *
+   * @param tier rollup tier, or null for raw records
+   * @return retention in milliseconds, or <tt>Long.MAX_VALUE</tt> if kept forever
+   */
+  public long retentionMillis(RollupTier tier) {
+    if (tier == null)
+      return rawMillis;
+
+    if (tier == RollupTier.MINUTE)
+      return minuteMillis;
+
+    return expires() ? ttlMillis : Long.MAX_VALUE;
+  }
+
+  /**
+   * Gets a policy keeping records for less time, so they are combined into
+   * coarser windows and expire sooner. Each level halves every duration, and
+   * a policy keeping records forever first gets a time to live of
+   * <tt>DOWNSAMPLED_TTL_MILLIS</tt>. Raw records are kept at least one minute.
+   *
+   * @param level number of times to halve the durations, 0 for this policy
+   * @return downsampled retention policy
+   */
+  public RetentionPolicy downsampled(int level) {
+    if (level <= 0)
+      return this;
+
+    long raw = Math.max(rawMillis >> level, MIN_RAW_MILLIS);
+    long minute = Math.max(minuteMillis >> level, raw);
+    long ttl = expires() ? ttlMillis >> level : DOWNSAMPLED_TTL_MILLIS >> (level - 1);
+
+    return new RetentionPolicy(raw, minute, Math.max(ttl, minute));
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    RetentionPolicy that = (RetentionPolicy) o;
+    return rawMillis == that.rawMillis &&
+      minuteMillis == that.minuteMillis &&
+      ttlMillis == that.ttlMillis;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(rawMillis, minuteMillis, ttlMillis);
+  }
+
+  @Override
+  public String toString() {
+    return "RetentionPolicy{" +
+      "rawMillis=" + rawMillis +
+      ", minuteMillis=" + minuteMillis +
+      ", ttlMillis=" + ttlMillis +
+      '}';
+  }
+}
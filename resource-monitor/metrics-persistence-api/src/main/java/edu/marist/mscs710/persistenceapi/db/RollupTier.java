@@ -0,0 +1,63 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+/**
+ * Resolutions at which metrics are rolled up as they are persisted. Each tier
+ * has its own table per metric type, named <tt>&lt;metric type&gt;_&lt;suffix&gt;</tt>,
+ * holding one row per window aligned to the epoch.
+ */
+public enum RollupTier {
+  MINUTE("1m", 1000L * 60),
+  HOUR("1h", 1000L * 60 * 60);
+
+  private final String suffix;
+  private final long windowMillis;
+
+  RollupTier(String suffix, long windowMillis) {
+    this.suffix = suffix;
+    this.windowMillis = windowMillis;
+  }
+
+  /**
+   * Gets the size of each window of this tier.
+   *
+   * @return window size in milliseconds
+   */
+  public long getWindowMillis() {
+    return windowMillis;
+  }
+
+  /**
+   * Gets the name of this tier's table for a metric type.
+   *
+   * @param metricType type of the metric, i.e. the raw table name
+   * @return rollup table name
+   */
+  public String tableName(String metricType) {
+    return metricType + '_' + suffix;
+  }
+
+  /**
+   * Gets the start of the window containing a timestamp.
+   *
+   * @param epochMillis epoch milli timestamp
+   * @return epoch milli timestamp of the window start
+   */
+  public long windowStart(long epochMillis) {
+    return epochMillis - Math.floorMod(epochMillis, windowMillis);
+  }
+
+  /**
+   * Checks if a table belongs to any rollup tier.
+   *
+   * @param tableName name of a table
+   * @return true if the table is a rollup table
+   */
+  public static boolean isTierTable(String tableName) {
+    for (RollupTier tier : values()) {
+      if (tableName.endsWith('_' + tier.suffix))
+        return true;
+    }
+
+    return false;
+  }
+}
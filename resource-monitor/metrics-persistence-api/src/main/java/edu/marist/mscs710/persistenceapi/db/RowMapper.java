@@ -0,0 +1,25 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Converts the current row of a <tt>ResultSet</tt> to an object. A mapper is
+ * created for a single query, so column indexes can be resolved once rather
+ * than for every row.
+ *
+ * @param <T> type of the mapped objects
+ */
+@FunctionalInterface
+public interface RowMapper<T> {
+
+  /**
+   * Maps the current row of the <tt>ResultSet</tt>. This method does not
+   * advance the cursor.
+   *
+   * @param rs <tt>ResultSet</tt> positioned on a row
+   * @return object holding the row's data
+   * @throws SQLException if a value cannot be read
+   */
+  T map(ResultSet rs) throws SQLException;
+}
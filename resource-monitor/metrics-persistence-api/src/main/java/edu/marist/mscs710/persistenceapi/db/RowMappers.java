@@ -0,0 +1,199 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import edu.marist.mscs710.metricscollector.Metric;
+import edu.marist.mscs710.metricscollector.data.*;
+import edu.marist.mscs710.metricscollector.metric.Fields;
+import edu.marist.mscs710.metricscollector.system.Processes;
+import edu.marist.mscs710.metricscollector.system.SystemConstants;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <tt>RowMapper</tt> implementations for each <tt>Metric</tt> type, which
+ * call the metric's constructor with values read directly from a
+ * <tt>ResultSet</tt>. Columns are located by name when the mapper is created,
+ * so queries may select the columns in any order, but must select every
+ * column of the metric. The host of each metric is read from the
+ * <tt>Hosts.HOST</tt> column, if the query joins it.
+ */
+public final class RowMappers {
+
+  /**
+   * Creates a mapper for the rows of a <tt>ResultSet</tt>.
+   *
+   * @param rs    <tt>ResultSet</tt> from an SQL query
+   * @param clazz class to hold each row's data
+   * @param <T>   <tt>Metric</tt> and its subtypes
+   * @return row mapper for the query
+   * @throws SQLException if the query's columns cannot be read
+   * @throws IllegalArgumentException if the metric class is not supported, or
+   *                                  the query is missing one of its columns
+   */
+  public static <T extends Metric> RowMapper<T> create(ResultSet rs, Class<T> clazz) throws SQLException {
+    Columns cols = new Columns(rs.getMetaData());
+    RowMapper<T> mapper = create(cols, clazz);
+    int host = cols.optionalIndex(Hosts.HOST);
+
+    if (host == 0)
+      return mapper;
+
+    return row -> {
+      T metric = mapper.map(row);
+      metric.setHost(getString(row, host));
+      return metric;
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T extends Metric> RowMapper<T> create(Columns cols, Class<T> clazz) {
+    if (clazz == CpuData.class) {
+      int utilization = cols.index(Fields.CPU_UTILIZATION);
+      int temperature = cols.index(Fields.CPU_TEMPERATURE);
+      int deltaMillis = cols.index(Fields.CPU_DELTA_MILLIS);
+      int datetime = cols.index(Fields.CPU_DATETIME);
+
+      return row -> (T) new CpuData(
+        getDouble(row, utilization),
+        getDouble(row, temperature),
+        getLong(row, deltaMillis),
+        getLong(row, datetime));
+    } else if (clazz == CpuCoreData.class) {
+      int coreId = cols.index(Fields.CPU_CORE_CORE_ID);
+      int coreUtilization = cols.index(Fields.CPU_CORE_CORE_UTILIZATION);
+      int deltaMillis = cols.index(Fields.CPU_CORE_DELTA_MILLIS);
+      int datetime = cols.index(Fields.CPU_CORE_DATETIME);
+
+      return row -> (T) new CpuCoreData(
+        getInt(row, coreId),
+        getDouble(row, coreUtilization),
+        getLong(row, deltaMillis),
+        getLong(row, datetime));
+    } else if (clazz == MemoryData.class) {
+      int utilization = cols.index(Fields.MEMORY_UTILIZATION);
+      int pageFaults = cols.index(Fields.MEMORY_PAGE_FAULTS);
+      int deltaMillis = cols.index(Fields.MEMORY_DELTA_MILLIS);
+      int datetime = cols.index(Fields.MEMORY_DATETIME);
+
+      return row -> (T) new MemoryData(
+        getDouble(row, utilization),
+        getDouble(row, pageFaults),
+        getLong(row, deltaMillis),
+        getLong(row, datetime));
+    } else if (clazz == NetworkData.class) {
+      int send = cols.index(Fields.NETWORK_SEND);
+      int receive = cols.index(Fields.NETWORK_RECEIVE);
+      int throughput = cols.index(Fields.NETWORK_THROUGHPUT);
+      int deltaMillis = cols.index(Fields.NETWORK_DELTA_MILLIS);
+      int datetime = cols.index(Fields.NETWORK_DATETIME);
+
+      return row -> (T) new NetworkData(
+        getDouble(row, send),
+        getDouble(row, receive),
+        getLong(row, throughput),
+        getLong(row, deltaMillis),
+        getLong(row, datetime));
+    } else if (clazz == ProcessData.class) {
+      int pid = cols.index(Fields.PROCESSES_PID);
+      int name = cols.index(Fields.PROCESSES_NAME);
+      int startTime = cols.index(Fields.PROCESSES_START_TIME);
+      int upTime = cols.index(Fields.PROCESSES_UPTIME);
+      int cpuUsage = cols.index(Fields.PROCESSES_CPU_USAGE);
+      int memory = cols.index(Fields.PROCESSES_MEMORY);
+      int kbRead = cols.index(Fields.PROCESSES_KB_READ);
+      int kbWritten = cols.index(Fields.PROCESSES_KB_WRITTEN);
+      int state = cols.index(Fields.PROCESSES_STATE);
+      int deltaMillis = cols.index(Fields.PROCESSES_DELTA_MILLIS);
+      int datetime = cols.index(Fields.PROCESSES_DATETIME);
+
+      return row -> {
+        String pidState = getString(row, state);
+
+        return (T) new ProcessData(
+          getInt(row, pid),
+          getString(row, name),
+          getLong(row, startTime),
+          getLong(row, upTime),
+          getDouble(row, cpuUsage),
+          getLong(row, memory),
+          getDouble(row, kbRead),
+          getDouble(row, kbWritten),
+          pidState == null ? null : Processes.PidState.valueOf(pidState),
+          getLong(row, deltaMillis),
+          getLong(row, datetime));
+      };
+    } else if (clazz == SystemData.class) {
+      int upTime = cols.index(Fields.SYSTEM_METRICS_UPTIME);
+      int deltaMillis = cols.index(Fields.SYSTEM_METRICS_DELTA_MILLIS);
+      int datetime = cols.index(Fields.SYSTEM_METRICS_DATETIME);
+
+      return row -> (T) new SystemData(
+        getLong(row, upTime),
+        getLong(row, deltaMillis),
+        getLong(row, datetime));
+    } else if (clazz == SystemConstants.class) {
+      int totalMemory = cols.index(Fields.SYSTEM_CONSTANTS_TOTAL_MEMORY);
+      int physicalCores = cols.index(Fields.SYSTEM_CONSTANTS_PHYSICAL_CORES);
+      int logicalCores = cols.index(Fields.SYSTEM_CONSTANTS_LOGICAL_CORES);
+      int cpuSpeed = cols.index(Fields.SYSTEM_CONSTANTS_CPU_SPEED);
+
+      return row -> (T) new SystemConstants(
+        getDouble(row, totalMemory),
+        getInt(row, physicalCores),
+        getInt(row, logicalCores),
+        getDouble(row, cpuSpeed));
+    }
+
+    throw new IllegalArgumentException("Unsupported metric class: " + clazz.getName());
+  }
+
+  /**
+   * Column indexes of a query by lower case column name.
+   */
+  private static class Columns {
+    private final Map<String, Integer> indexes = new HashMap<>();
+
+    private Columns(ResultSetMetaData rsmd) throws SQLException {
+      for (int i = rsmd.getColumnCount(); i >= 1; i--)
+        indexes.put(rsmd.getColumnLabel(i).toLowerCase(), i);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the query has no such column
+     */
+    private int index(String column) {
+      Integer index = indexes.get(column);
+
+      if (index == null)
+        throw new IllegalArgumentException("Query is missing column " + column + ", it has " + indexes.keySet());
+
+      return index;
+    }
+
+    /**
+     * @return the column's index, or 0 if the query has no such column
+     */
+    private int optionalIndex(String column) {
+      return indexes.getOrDefault(column, 0);
+    }
+  }
+
+  private static long getLong(ResultSet rs, int index) throws SQLException {
+    return rs.getLong(index);
+  }
+
+  private static int getInt(ResultSet rs, int index) throws SQLException {
+    return rs.getInt(index);
+  }
+
+  private static double getDouble(ResultSet rs, int index) throws SQLException {
+    return rs.getDouble(index);
+  }
+
+  private static String getString(ResultSet rs, int index) throws SQLException {
+    return rs.getString(index);
+  }
+}
@@ -0,0 +1,242 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Connections to a single SQLite database: one long-lived writer connection
+ * and a small pool of reader connections. The database is put in WAL journal
+ * mode, so readers see the last committed data without blocking the writer,
+ * and the writer never blocks readers.
+ * <p>
+ * Every connection is configured with the same pragmas, and has the
+ * <tt>SqlSketches</tt> functions registered. Supported properties,
+ * all optional:
+ * <ul>
+ *   <li><tt>dbsynchronous</tt>: <tt>synchronous</tt> pragma, one of OFF, NORMAL, FULL or EXTRA, default NORMAL</li>
+ *   <li><tt>dbcachesizekb</tt>: page cache size of each connection in KiB, default 16384</li>
+ *   <li><tt>dbmmapsize</tt>: bytes of the database file to memory map, default 67108864</li>
+ *   <li><tt>dbpagesize</tt>: page size in bytes, only applied when the database is created, default 4096</li>
+ *   <li><tt>dbbusytimeoutms</tt>: milliseconds to wait for a lock before failing, default 5000</li>
+ *   <li><tt>dbreaderpoolsize</tt>: number of idle reader connections kept open, default 4</li>
+ * </ul>
+ */
+public class SQLiteConnections implements AutoCloseable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SQLiteConnections.class);
+
+  private static final List<String> SYNCHRONOUS_MODES = Arrays.asList("OFF", "NORMAL", "FULL", "EXTRA");
+  private static final String DEFAULT_SYNCHRONOUS = "NORMAL";
+  private static final long DEFAULT_CACHE_SIZE_KB = 16384;
+  private static final long DEFAULT_MMAP_SIZE = 64L * 1024 * 1024;
+  private static final int DEFAULT_PAGE_SIZE = 4096;
+  private static final int DEFAULT_BUSY_TIMEOUT_MS = 5000;
+  private static final int DEFAULT_READER_POOL_SIZE = 4;
+
+  private final String dbUrl;
+  private final String synchronous;
+  private final long cacheSizeKb;
+  private final long mmapSize;
+  private final int pageSize;
+  private final int busyTimeoutMillis;
+  private final BlockingQueue<Connection> idleReaders;
+
+  private Connection writeConn;
+  private volatile boolean closed;
+
+  /**
+   * Constructs a new <tt>SQLiteConnections</tt>. No connection is opened
+   * until one is requested.
+   *
+   * @param dbUrl SQLite database connection String
+   * @param props connection properties
+   * @throws IllegalArgumentException if <tt>dbsynchronous</tt> is not a
+   *                                  valid mode
+   */
+  public SQLiteConnections(String dbUrl, Properties props) {
+    this.dbUrl = dbUrl;
+    this.synchronous = props.getProperty("dbsynchronous", DEFAULT_SYNCHRONOUS).toUpperCase(Locale.ROOT);
+    this.cacheSizeKb = Long.parseLong(props.getProperty("dbcachesizekb", Long.toString(DEFAULT_CACHE_SIZE_KB)));
+    this.mmapSize = Long.parseLong(props.getProperty("dbmmapsize", Long.toString(DEFAULT_MMAP_SIZE)));
+    this.pageSize = Integer.parseInt(props.getProperty("dbpagesize", Integer.toString(DEFAULT_PAGE_SIZE)));
+    this.busyTimeoutMillis = Integer.parseInt(props.getProperty("dbbusytimeoutms", Integer.toString(DEFAULT_BUSY_TIMEOUT_MS)));
+
+    int readerPoolSize = Integer.parseInt(props.getProperty("dbreaderpoolsize", Integer.toString(DEFAULT_READER_POOL_SIZE)));
+    this.idleReaders = new ArrayBlockingQueue<>(Math.max(readerPoolSize, 1));
+
+    if (!SYNCHRONOUS_MODES.contains(synchronous))
+      throw new IllegalArgumentException("Invalid dbsynchronous mode: " + synchronous);
+  }
+
+  /**
+   * Gets the writer connection, opening it if needed. The connection has auto
+   * commit disabled, so callers are responsible for committing or rolling
+   * back. Callers must not close it, and must not use it from more than one
+   * thread at a time.
+   *
+   * @return writer connection
+   * @throws SQLException if the connection cannot be opened
+   */
+  public synchronized Connection getWriteConnection() throws SQLException {
+    if (closed)
+      throw new SQLException("SQLite connections are closed");
+
+    if (writeConn == null || writeConn.isClosed()) {
+      writeConn = DriverManager.getConnection(dbUrl);
+
+      try (Statement stmt = writeConn.createStatement()) {
+        // Page size and auto vacuum must be set before the database has any
+        // tables, and journal mode is stored in the database file
+        stmt.execute("PRAGMA page_size = " + pageSize);
+        stmt.execute("PRAGMA auto_vacuum = INCREMENTAL");
+        stmt.execute("PRAGMA journal_mode = WAL");
+      }
+
+      configure(writeConn);
+      writeConn.setAutoCommit(false);
+
+      LOGGER.info("Opened SQLite writer connection with synchronous = {}, cache size = {} KiB, mmap size = {}",
+        synchronous, cacheSizeKb, mmapSize);
+    }
+
+    return writeConn;
+  }
+
+  /**
+   * Gets a reader connection from the pool, or opens a new one if none are
+   * idle. Closing the returned connection closes any statements created from
+   * it and returns it to the pool.
+   *
+   * @return reader connection in auto commit mode
+   * @throws SQLException if the connection cannot be opened
+   */
+  public Connection getReadConnection() throws SQLException {
+    if (closed)
+      throw new SQLException("SQLite connections are closed");
+
+    Connection conn = idleReaders.poll();
+
+    if (conn == null || conn.isClosed()) {
+      conn = DriverManager.getConnection(dbUrl);
+      configure(conn);
+    }
+
+    return lease(conn);
+  }
+
+  private void configure(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute("PRAGMA synchronous = " + synchronous);
+      stmt.execute("PRAGMA cache_size = " + (-cacheSizeKb));
+      stmt.execute("PRAGMA mmap_size = " + mmapSize);
+      stmt.execute("PRAGMA busy_timeout = " + busyTimeoutMillis);
+    }
+
+    SqlSketches.register(conn);
+  }
+
+  /**
+   * Wraps a pooled connection, so closing it returns the connection to the
+   * pool instead of closing it.
+   */
+  private Connection lease(Connection conn) {
+    List<Statement> statements = new ArrayList<>();
+    boolean[] released = {false};
+
+    return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+      (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "close":
+            if (!released[0]) {
+              released[0] = true;
+              release(conn, statements);
+            }
+            return null;
+
+          case "isClosed":
+            if (released[0])
+              return true;
+            break;
+
+          default:
+            if (released[0])
+              throw new SQLException("Connection has been returned to the pool");
+        }
+
+        try {
+          Object result = method.invoke(conn, args);
+
+          if (result instanceof Statement)
+            statements.add((Statement) result);
+
+          return result;
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      });
+  }
+
+  private void release(Connection conn, List<Statement> statements) {
+    try {
+      // Unclosed statements would hold read transactions open
+      for (Statement stmt : statements)
+        stmt.close();
+
+      if (!conn.getAutoCommit()) {
+        conn.rollback();
+        conn.setAutoCommit(true);
+      }
+
+      if (!closed && idleReaders.offer(conn))
+        return;
+    } catch (SQLException e) {
+      LOGGER.error("Failed to reset SQLite reader connection", e);
+    }
+
+    closeQuietly(conn);
+  }
+
+  /**
+   * Closes the writer connection, which is reopened by the next call to
+   * {@link #getWriteConnection()}.
+   */
+  public synchronized void closeWriteConnection() {
+    if (writeConn != null)
+      closeQuietly(writeConn);
+
+    writeConn = null;
+  }
+
+  /**
+   * Closes the writer connection and all idle reader connections. Reader
+   * connections in use are closed when they are returned.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    closeWriteConnection();
+
+    Connection conn;
+
+    while ((conn = idleReaders.poll()) != null)
+      closeQuietly(conn);
+  }
+
+  private static void closeQuietly(Connection conn) {
+    try {
+      conn.close();
+    } catch (SQLException e) {
+      LOGGER.error("Failed to close SQLite connection", e);
+    }
+  }
+}
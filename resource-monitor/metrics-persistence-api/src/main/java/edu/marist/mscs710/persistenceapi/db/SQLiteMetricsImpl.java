@@ -1,21 +1,37 @@
 package edu.marist.mscs710.persistenceapi.db;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import edu.marist.mscs710.metricscollector.Metric;
 import edu.marist.mscs710.metricscollector.data.*;
 import edu.marist.mscs710.metricscollector.kafka.MetricDeserializer;
 import edu.marist.mscs710.metricscollector.metric.Fields;
+import edu.marist.mscs710.metricscollector.system.Processes;
+import edu.marist.mscs710.persistenceapi.MetricAggregate;
 import edu.marist.mscs710.persistenceapi.MetricsPersistenceService;
+import edu.marist.mscs710.persistenceapi.ProcessLifetime;
+import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteErrorCode;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.*;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static edu.marist.mscs710.persistenceapi.utils.DateUtils.convertEpochMillisDateFormat;
 
@@ -29,385 +45,2338 @@ public class SQLiteMetricsImpl implements MetricsPersistenceService {
 
   private static final long ONE_MIN_MS = 1000 * 60;
   private static final long ONE_HOUR_MS = ONE_MIN_MS * 60;
-  private static final long PRUNE_ELIGIBILITY_MS = ONE_HOUR_MS * 12;
   private static final String PRUNE_BOUND_TABLE = "prune_bounds";
   private static final String BOUND = "bound";
-
-  private MetricDeserializer metricDeser = new MetricDeserializer();
-  private ObjectMapper objectMapper = new ObjectMapper();
-
-  private String dbUrl;
+  private static final String MINUTE_BOUND_SUFFIX = "_minute";
+  private static final long PRUNE_CHUNK_MS = ONE_HOUR_MS;
+  private static final int DEFAULT_BATCH_SIZE = 1000;
+  private static final long DEFAULT_BATCH_MAX_MS = 1000;
+  private static final long DEFAULT_PRUNE_INTERVAL_MIN = 60;
+  private static final long DEFAULT_PRUNE_BUDGET_MS = ONE_MIN_MS * 10;
+  private static final int DEFAULT_FETCH_SIZE = 1000;
+  private static final long DEFAULT_PARTITION_HOURS = 24;
+  private static final long DEFAULT_SIZE_BUDGET_MB = 0;
+  private static final int VACUUM_CHUNK_PAGES = 1024;
+  private static final List<String> TOP_PROCESS_FIELDS = Arrays.asList(Fields.PROCESSES_CPU_USAGE,
+    Fields.PROCESSES_MEMORY, Fields.PROCESSES_KB_READ, Fields.PROCESSES_KB_WRITTEN);
+
+  private SQLiteConnections connections;
+  private TablePartitions partitions;
+  private ProcessNames processNames = new ProcessNames();
+  private Hosts hosts = new Hosts();
   private List<String> metricTypes;
   private List<String> prunables;
 
-  private long nextPruneTime;
   private boolean autoPrune;
+  private long pruneIntervalMinutes;
+  private long pruneBudgetMillis;
+  private int pruneCursor = 0;
+  private ScheduledExecutorService pruneExecutor;
+  private Map<String, PruneStats> pruneStats = new ConcurrentHashMap<>();
+  private Map<String, RetentionPolicy> retentionPolicies = new HashMap<>();
+  private SizeBudget sizeBudget;
+
+  // Fair, so a waiting writer gets the lock as soon as the pruner yields
+  private final ReentrantLock writeLock = new ReentrantLock(true);
+  private Connection writeConn;
+  // Keyed by table name, for raw inserts, rollup upserts and process lifetimes
+  private Map<String, PreparedStatement> insertStatements = new HashMap<>();
+  private int batchSize;
+  private long batchMaxMillis;
+  private int fetchSize;
+  private final AtomicLong droppedMetrics = new AtomicLong(0);
 
   /**
    * Constructs a new <tt>SQLiteMetricsImpl</tt>, which will use an existing
    * SQLite db file, or create a new database if one does not exist at
    * "dbFilePath". Upon construction, this will also create/update the database
-   * schema according to the ".sql" file at "dbSchemaPath".
+   * schema, starting from the ".sql" file at "dbSchemaPath".
    *
    * @param dbFilePath    path of the sqlite database file
    * @param dbSchemaPath  path of the sql database schema file
-   * @param autoPrune     if true, the database will prune itself every hour
+   * @param autoPrune     if true, the database will prune itself every hour on
+   *                      a background thread
    * @throws SQLException
    * @throws IOException
    */
   public SQLiteMetricsImpl(String dbFilePath, String dbSchemaPath, boolean autoPrune) throws SQLException, IOException {
-    this.dbUrl = createSqliteDbUrl(dbFilePath);
-    executeSqlScript(dbSchemaPath);
-    createPruneBoundTable();
+    this(dbFilePath, dbSchemaPath, autoPrune, new Properties());
+  }
+
+  /**
+   * Constructs a new <tt>SQLiteMetricsImpl</tt>, which will use an existing
+   * SQLite db file, or create a new database if one does not exist at
+   * "dbFilePath". Upon construction, this will also create/update the database
+   * schema, starting from the ".sql" file at "dbSchemaPath". The schema file
+   * is applied once, as the first schema version, and later changes are
+   * applied as versioned migrations.
+   * <p>
+   * Supported properties, all optional:
+   * <ul>
+   *   <li><tt>dbbatchsize</tt>: maximum number of rows written per transaction, default 1000</li>
+   *   <li><tt>dbbatchmaxms</tt>: maximum milliseconds a write transaction stays open, default 1000</li>
+   *   <li><tt>dbfetchsize</tt>: number of rows fetched at a time by streaming reads, default 1000</li>
+   *   <li><tt>dbpartitionhours</tt>: hours of raw records held by each partition table, default 24</li>
+   *   <li><tt>pruneintervalmin</tt>: minutes between automatic prune runs, default 60</li>
+   *   <li><tt>prunebudgetms</tt>: milliseconds after which a prune run stops and leaves
+   *       the remaining metric types for the next run, default 600000</li>
+   *   <li><tt>pruneretention</tt>: retention policy of every metric type, see
+   *       <tt>RetentionPolicy</tt>, default 12h,24h,0</li>
+   *   <li><tt>pruneretention.&lt;type&gt;</tt>: retention policy of a single metric type,
+   *       e.g. <tt>pruneretention.processes=2h,24h,30d</tt></li>
+   *   <li><tt>dbsizebudgetmb</tt>: maximum size of the database in MiB, enforced by
+   *       pruning with downsampled retention policies, see <tt>SizeBudget</tt>,
+   *       default 0 for no budget</li>
+   * </ul>
+   * Connection and pragma properties are described in <tt>SQLiteConnections</tt>.
+   *
+   * @param dbFilePath    path of the sqlite database file
+   * @param dbSchemaPath  path of the sql database schema file
+   * @param autoPrune     if true, the database will prune itself periodically
+   *                      on a background thread
+   * @param props         tuning properties for the database
+   * @throws SQLException
+   * @throws IOException
+   */
+  public SQLiteMetricsImpl(String dbFilePath, String dbSchemaPath, boolean autoPrune, Properties props) throws SQLException, IOException {
+    this.connections = new SQLiteConnections(createSqliteDbUrl(dbFilePath), props);
+    this.batchSize = Integer.parseInt(props.getProperty("dbbatchsize", Integer.toString(DEFAULT_BATCH_SIZE)));
+    this.batchMaxMillis = Long.parseLong(props.getProperty("dbbatchmaxms", Long.toString(DEFAULT_BATCH_MAX_MS)));
+    this.fetchSize = Integer.parseInt(props.getProperty("dbfetchsize", Integer.toString(DEFAULT_FETCH_SIZE)));
+    this.partitions = new TablePartitions(ONE_HOUR_MS *
+      Long.parseLong(props.getProperty("dbpartitionhours", Long.toString(DEFAULT_PARTITION_HOURS))));
+    this.pruneIntervalMinutes = Long.parseLong(props.getProperty("pruneintervalmin", Long.toString(DEFAULT_PRUNE_INTERVAL_MIN)));
+    this.pruneBudgetMillis = Long.parseLong(props.getProperty("prunebudgetms", Long.toString(DEFAULT_PRUNE_BUDGET_MS)));
+    this.sizeBudget = new SizeBudget(1024L * 1024 *
+      Long.parseLong(props.getProperty("dbsizebudgetmb", Long.toString(DEFAULT_SIZE_BUDGET_MB))));
+
+    migrateSchema(dbSchemaPath);
+
+    if (sizeBudget.isEnabled())
+      enableIncrementalVacuum();
+
     setMetricTypes();
 
-    prunables = metricTypes.stream()
-      .filter(t -> ! t.equals(Fields.METRIC_TYPE_SYSTEM_CONSTANTS))
-      .collect(Collectors.toList());
+    prunables = metricTypes.stream()
+      .filter(t -> ! t.equals(Fields.METRIC_TYPE_SYSTEM_CONSTANTS))
+      .collect(Collectors.toList());
+
+    for (String metricType : prunables) {
+      pruneStats.put(metricType, new PruneStats(metricType));
+      retentionPolicies.put(metricType, RetentionPolicy.fromProperties(props, metricType));
+    }
+
+    this.autoPrune = autoPrune;
+
+    LOGGER.info("SQLiteMetricsImpl created for db file path '{}' with 'autoPrune' = {}, batch size {}",
+      dbFilePath, this.autoPrune, this.batchSize);
+
+    if (autoPrune)
+      schedulePrune();
+  }
+
+  private void schedulePrune() {
+    pruneExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "metrics-pruner");
+      t.setDaemon(true);
+      return t;
+    });
+
+    pruneExecutor.scheduleWithFixedDelay(() -> {
+      try {
+        prune();
+      } catch (RuntimeException e) {
+        // An exception would cancel all future runs
+        LOGGER.error("Unexpected error during database pruning", e);
+      }
+    }, 0, pruneIntervalMinutes, TimeUnit.MINUTES);
+
+    LOGGER.info("Scheduled database pruning every {} minutes with a budget of {} ms per run",
+      pruneIntervalMinutes, pruneBudgetMillis);
+  }
+
+  @Override
+  public boolean persistMetric(Metric metric) {
+    return persistMetrics(Collections.singletonList(metric));
+  }
+
+  @Override
+  public boolean persistMetrics(List<? extends Metric> metrics) {
+    return persistMetrics(metrics, Collections.emptyMap());
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The offsets are written with the last transaction of the call, so a
+   * crash part way through a long list replays it from the offsets stored
+   * before, and the records already persisted are skipped. A metric the
+   * database rejects is dropped, see {@link #getDroppedMetrics()}, and does
+   * not fail the call.
+   */
+  @Override
+  public boolean persistMetrics(List<? extends Metric> metrics, Map<TopicPartition, Long> offsets) {
+    boolean success;
+
+    writeLock.lock();
+    try {
+      Connection conn = getWriteConnection();
+      AtomicInteger committed = new AtomicInteger(0);
+
+      try {
+        insertBatched(metrics, offsets, committed, conn);
+        success = true;
+      } catch (SQLException e) {
+        // A single bad row fails its whole batch, so retry row by row to
+        // keep the rest of the batch. Batches committed before are kept.
+        LOGGER.warn("Batch insert of {} metrics failed after {} were committed, retrying the rest individually",
+          metrics.size(), committed.get(), e);
+        rollback(conn);
+        success = insertIndividually(metrics.subList(committed.get(), metrics.size()), offsets, conn);
+      }
+    } catch (SQLException e) {
+      LOGGER.error(e.getMessage(), e);
+      return false;
+    } finally {
+      writeLock.unlock();
+    }
+
+    return success;
+  }
+
+  /**
+   * Inserts metrics with batched prepared statements, committing every
+   * <tt>batchSize</tt> rows or <tt>batchMaxMillis</tt>, whichever comes first.
+   * The offsets are stored in the last transaction.
+   *
+   * @param committed set to the number of metrics committed, as each
+   *                  transaction commits
+   */
+  private void insertBatched(List<? extends Metric> metrics, Map<TopicPartition, Long> offsets,
+                             AtomicInteger committed, Connection conn) throws SQLException {
+    Map<PreparedStatement, List<Metric>> inserts = new LinkedHashMap<>();
+    Set<PreparedStatement> pending = new LinkedHashSet<>();
+    List<Metric> batch = new ArrayList<>();
+    long batchStart = Instant.now().toEpochMilli();
+
+    try {
+      for (int i = 0; i < metrics.size(); i++) {
+        Metric metric = metrics.get(i);
+        PreparedStatement insert = bindInsertStatement(metric, conn);
+
+        if (insert != null) {
+          insert.addBatch();
+          inserts.computeIfAbsent(insert, ps -> new ArrayList<>()).add(metric);
+          batch.add(metric);
+        }
+
+        if (batch.size() >= batchSize || Instant.now().toEpochMilli() - batchStart >= batchMaxMillis) {
+          executeBatches(batch, inserts, pending, conn);
+          commit(conn);
+          committed.set(i + 1);
+          batchStart = Instant.now().toEpochMilli();
+        }
+      }
+
+      executeBatches(batch, inserts, pending, conn);
+      bindOffsetStatement(offsets, conn);
+      commit(conn);
+      committed.set(metrics.size());
+    } catch (SQLException e) {
+      for (PreparedStatement ps : inserts.keySet())
+        ps.clearBatch();
+
+      for (PreparedStatement ps : pending)
+        ps.clearBatch();
+
+      throw e;
+    }
+  }
+
+  /**
+   * Inserts metrics one per transaction, storing the offsets in the last
+   * one. A metric the database rejects, e.g. for a NULL value, can never be
+   * persisted, so it is logged, counted as dropped and skipped. Any other
+   * error stops the inserts before the offsets are stored, so the metrics
+   * are persisted again from the offsets stored before.
+   *
+   * @return false if a metric could not be persisted and was not dropped
+   */
+  private boolean insertIndividually(List<? extends Metric> metrics, Map<TopicPartition, Long> offsets,
+                                     Connection conn) throws SQLException {
+    boolean offsetsStored = false;
+
+    for (int i = 0; i < metrics.size(); i++) {
+      Metric metric = metrics.get(i);
+      boolean last = i == metrics.size() - 1;
+
+      try {
+        PreparedStatement insert = bindInsertStatement(metric, conn);
+
+        if (insert != null && insert.executeUpdate() > 0) {
+          for (PreparedStatement ps : bindDerivedStatements(metric, conn))
+            ps.executeUpdate();
+        }
+
+        if (last) {
+          bindOffsetStatement(offsets, conn);
+          offsetsStored = true;
+        }
+
+        commit(conn);
+      } catch (SQLException e) {
+        rollback(conn);
+        offsetsStored = false;
+
+        if (!isConstraintViolation(e)) {
+          LOGGER.error("Failed to persist {}, its offsets are not stored", metric, e);
+          return false;
+        }
+
+        droppedMetrics.incrementAndGet();
+        LOGGER.error("Dropping {}, it violates a constraint of its table", metric, e);
+      }
+    }
+
+    // Offsets not committed with the last metric, which was dropped
+    return offsetsStored || storeOffsets(offsets, conn);
+  }
+
+  private static boolean isConstraintViolation(SQLException e) {
+    // Extended result codes keep the primary code in their low byte
+    return (e.getErrorCode() & 0xFF) == SQLiteErrorCode.SQLITE_CONSTRAINT.code;
+  }
+
+  /**
+   * Stores offsets in a transaction of their own.
+   */
+  private boolean storeOffsets(Map<TopicPartition, Long> offsets, Connection conn) {
+    if (offsets.isEmpty())
+      return true;
+
+    try {
+      bindOffsetStatement(offsets, conn);
+      commit(conn);
+      return true;
+    } catch (SQLException e) {
+      LOGGER.error("Failed to store consumer offsets {}", offsets, e);
+      rollback(conn);
+      return false;
+    }
+  }
+
+  /**
+   * Upserts the next offset of each topic partition, in the current
+   * transaction.
+   */
+  private void bindOffsetStatement(Map<TopicPartition, Long> offsets, Connection conn) throws SQLException {
+    if (offsets.isEmpty())
+      return;
+
+    PreparedStatement ps = getStatement(ConsumerOffsets.TABLE, ConsumerOffsets.upsertSql(), conn);
+
+    for (Map.Entry<TopicPartition, Long> offset : offsets.entrySet()) {
+      ConsumerOffsets.bindUpsert(ps, offset.getKey(), offset.getValue());
+      ps.addBatch();
+    }
+
+    try {
+      ps.executeBatch();
+    } catch (SQLException e) {
+      ps.clearBatch();
+      throw e;
+    }
+  }
+
+  /**
+   * Executes the batched inserts of a batch of metrics, then the rollup and
+   * lifetime statements of the metrics that were inserted. Metrics already
+   * persisted are skipped by their insert, so a replayed metric is never
+   * counted twice.
+   */
+  private void executeBatches(List<Metric> batch, Map<PreparedStatement, List<Metric>> inserts,
+                              Set<PreparedStatement> pending, Connection conn) throws SQLException {
+    Set<Metric> skipped = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    for (Map.Entry<PreparedStatement, List<Metric>> entry : inserts.entrySet()) {
+      int[] counts = entry.getKey().executeBatch();
+
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] == 0)
+          skipped.add(entry.getValue().get(i));
+      }
+    }
+
+    inserts.clear();
+
+    for (Metric metric : batch) {
+      if (skipped.contains(metric))
+        continue;
+
+      for (PreparedStatement ps : bindDerivedStatements(metric, conn)) {
+        ps.addBatch();
+        pending.add(ps);
+      }
+    }
+
+    for (PreparedStatement ps : pending)
+      ps.executeBatch();
+
+    pending.clear();
+
+    if (!skipped.isEmpty())
+      LOGGER.info("Skipped {} of {} metrics already persisted", skipped.size(), batch.size());
+
+    batch.clear();
+  }
+
+  /**
+   * Binds a metric to the insert statement of its raw table.
+   *
+   * @return bound statement, or null if the metric type is unknown
+   */
+  private PreparedStatement bindInsertStatement(Metric metric, Connection conn) throws SQLException {
+    String metricType = MetricDeserializer.lookupMetricType(metric.getClass());
+
+    if (metricType == null)
+      return null;
+
+    PreparedStatement insert = getInsertStatement(metricType, metric, conn);
+    bindInsert(insert, metric, conn);
+
+    return insert;
+  }
+
+  /**
+   * Binds an inserted metric to the upsert statement of each of its rollup
+   * tiers, if any, and to the statements maintaining the lifetime of a
+   * process.
+   *
+   * @return bound statements in execution order
+   */
+  private List<PreparedStatement> bindDerivedStatements(Metric metric, Connection conn) throws SQLException {
+    String metricType = MetricDeserializer.lookupMetricType(metric.getClass());
+    List<PreparedStatement> statements = new ArrayList<>();
+
+    if (SqlRollups.supports(metricType)) {
+      for (RollupTier tier : RollupTier.values()) {
+        PreparedStatement upsert = getStatement(tier.tableName(metricType), SqlRollups.upsertSql(metricType, tier), conn);
+        SqlRollups.bindUpsert(upsert, metric, tier, hosts.idOf(metric.getHost(), conn));
+        statements.add(upsert);
+      }
+    }
+
+    if (metric instanceof ProcessData)
+      statements.addAll(bindLifetimeStatements((ProcessData) metric, conn));
+
+    return statements;
+  }
+
+  /**
+   * Binds a process record to the statements that update the lifetime of
+   * its process, and end the lifetimes it shows have ended.
+   */
+  private List<PreparedStatement> bindLifetimeStatements(ProcessData process, Connection conn) throws SQLException {
+    List<PreparedStatement> statements = new ArrayList<>();
+    int hostId = hosts.idOf(process.getHost(), conn);
+
+    if (process.getPidState() != Processes.PidState.ENDED) {
+      PreparedStatement upsert = getStatement(ProcessLifetimes.TABLE, ProcessLifetimes.upsertSql(), conn);
+      ProcessLifetimes.bindUpsert(upsert, process, processNames.idOf(process.getName(), conn), hostId);
+      statements.add(upsert);
+    }
+
+    switch (process.getPidState()) {
+      case ENDED:
+      case NEW:
+      case RECYCLED:
+        PreparedStatement end = getStatement(ProcessLifetimes.TABLE + "_end", ProcessLifetimes.endSql(), conn);
+        ProcessLifetimes.bindEnd(end, process.getPid(), process.getPidState() == Processes.PidState.ENDED
+          ? process.getEpochMillisTime()
+          : process.getStartTime(), hostId);
+        statements.add(end);
+        break;
+
+      default:
+        break;
+    }
+
+    return statements;
+  }
+
+  /**
+   * Binds a metric to an insert statement of its type, interning its host and
+   * the name of a process.
+   */
+  private void bindInsert(PreparedStatement ps, Metric metric, Connection conn) throws SQLException {
+    MetricStatements.bindInsert(ps, metric);
+    MetricStatements.bindHostId(ps, hosts.idOf(metric.getHost(), conn));
+
+    if (metric instanceof ProcessData)
+      MetricStatements.bindProcessNameId(ps, processNames.idOf(((ProcessData) metric).getName(), conn));
+  }
+
+  /**
+   * Gets the insert statement of the table a metric is stored in: the
+   * partition of its time, or its metric type's table if not partitioned.
+   */
+  private PreparedStatement getInsertStatement(String metricType, Metric metric, Connection conn) throws SQLException {
+    if (!isPartitioned(metricType))
+      return getStatement(metricType, MetricStatements.insertSql(metricType), conn);
+
+    String table = partitions.partitionFor(metricType, ((MetricData) metric).getEpochMillisTime(), conn);
+
+    return getStatement(table, MetricStatements.insertSql(metricType, table), conn);
+  }
+
+  private static boolean isPartitioned(String metricType) {
+    return SqlRollups.supports(metricType) || Fields.METRIC_TYPE_PROCESSES.equals(metricType);
+  }
+
+  /**
+   * Gets the tables holding a range of a metric type's records: the
+   * overlapping partitions, or the table itself if not partitioned.
+   */
+  private List<String> tablesInRange(String table, long earliest, long latest) {
+    return isPartitioned(table) ? partitions.overlapping(table, earliest, latest) : Collections.singletonList(table);
+  }
+
+  /**
+   * Gets the partition tables of a partitioned metric type, in time order.
+   * Records of the type are stored in these tables, and not in the table
+   * named after the type.
+   *
+   * @param metricType type of the metric
+   * @return names of the partition tables, empty if the type is not partitioned
+   */
+  public List<String> getPartitions(String metricType) {
+    return partitions.names(metricType);
+  }
+
+  private PreparedStatement getStatement(String table, String sql, Connection conn) throws SQLException {
+    PreparedStatement ps = insertStatements.get(table);
+
+    if (ps == null) {
+      ps = conn.prepareStatement(sql);
+      insertStatements.put(table, ps);
+    }
+
+    return ps;
+  }
+
+  /**
+   * Gets the long-lived connection used for all writes. The connection is
+   * opened with auto commit disabled, so callers are responsible for
+   * committing or rolling back.
+   */
+  private Connection getWriteConnection() throws SQLException {
+    Connection conn = connections.getWriteConnection();
+
+    // Cached statements belong to the previous connection if it was reopened
+    if (conn != writeConn) {
+      insertStatements.clear();
+      writeConn = conn;
+    }
+
+    return writeConn;
+  }
+
+  /**
+   * Commits the writer connection, publishing any partitions it created.
+   */
+  private void commit(Connection conn) throws SQLException {
+    conn.commit();
+    partitions.publish();
+    processNames.publish();
+    hosts.publish();
+  }
+
+  private void rollback(Connection conn) {
+    try {
+      conn.rollback();
+    } catch (SQLException e) {
+      LOGGER.error("Rollback failed", e);
+    } finally {
+      partitions.discard();
+      processNames.discard();
+      hosts.discard();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (pruneExecutor != null) {
+      pruneExecutor.shutdownNow();
+
+      try {
+        if (!pruneExecutor.awaitTermination(30, TimeUnit.SECONDS))
+          LOGGER.warn("Timed out waiting for database pruning to stop");
+      } catch (InterruptedException e) {
+        LOGGER.error(e.getMessage(), e);
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    writeLock.lock();
+    try {
+      closeWriteConnection();
+      connections.close();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private void closeWriteConnection() {
+    for (PreparedStatement ps : insertStatements.values()) {
+      try {
+        ps.close();
+      } catch (SQLException e) {
+        LOGGER.error("Failed to close prepared statement", e);
+      }
+    }
+
+    insertStatements.clear();
+    connections.closeWriteConnection();
+    writeConn = null;
+  }
+
+  private void setMetricTypes() {
+    List<String> metricTypes = new ArrayList<>();
+
+    try (Connection conn = getReadConnection()) {
+      ResultSet rs = conn.createStatement()
+        .executeQuery("SELECT name FROM sqlite_master WHERE type='table'");
+
+      while (rs.next()) {
+        metricTypes.add(rs.getString("name"));
+      }
+
+    } catch (SQLException e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+
+    this.metricTypes = metricTypes.stream()
+      .filter(s -> ! s.contains("sqlite"))
+      .filter(s -> ! s.equals(PRUNE_BOUND_TABLE))
+      .filter(s -> ! s.equals(SchemaMigrator.VERSION_TABLE))
+      .filter(s -> ! s.equals(TablePartitions.CATALOG_TABLE))
+      .filter(s -> ! s.equals(ProcessNames.TABLE))
+      .filter(s -> ! s.equals(ProcessLifetimes.TABLE))
+      .filter(s -> ! s.equals(ConsumerOffsets.TABLE))
+      .filter(s -> ! s.equals(Hosts.TABLE))
+      .filter(s -> ! TablePartitions.isPartitionTable(s))
+      .filter(s -> ! RollupTier.isTierTable(s))
+      .collect(Collectors.toList());
+  }
+
+  @Override
+  public List<String> getMetricTypes() {
+    return new ArrayList<>(metricTypes);
+  }
+
+  /**
+   * Creates a connection String for the supplied SQLite database file.
+   *
+   * @param dbFilePath path of the SQLite database file
+   * @return SQLite database connection String
+   */
+  public static String createSqliteDbUrl(String dbFilePath) {
+    return "jdbc:sqlite:" + dbFilePath;
+  }
+
+  private Connection getReadConnection() throws SQLException {
+    return connections.getReadConnection();
+  }
+
+  /**
+   * Brings the database schema up to the latest version, applying every
+   * missing version in a single transaction on the writer connection.
+   * Version 1 is the schema file, written with "IF NOT EXISTS" statements, so
+   * databases created before schema versions were recorded are adopted by
+   * running it again.
+   */
+  private void migrateSchema(String dbSchemaPath) throws IOException, SQLException {
+    String schema = new String(Files.readAllBytes(Paths.get(dbSchemaPath)), StandardCharsets.UTF_8);
+
+    int version = new SchemaMigrator()
+      .addScript(1, "Schema file " + Paths.get(dbSchemaPath).getFileName(), schema)
+      .add(2, "Prune bounds table", this::createPruneBoundTable)
+      .add(3, "Rollup tier tables", this::createRollupTables)
+      .addScript(4, "Process time range and lifetime indexes",
+        "CREATE INDEX IF NOT EXISTS processes_datetime ON processes (datetime);" +
+        "CREATE INDEX IF NOT EXISTS processes_pid_start_time ON processes (pid, start_time);")
+      .add(5, "Time partitioned raw metric tables", this::partitionTables)
+      .add(6, "Dictionary encoded process names", this::encodeProcessNames)
+      .add(7, "Process lifetimes", this::createProcessLifetimes)
+      .add(8, "Quantile sketches in rollup tier tables", this::addRollupSketches)
+      .add(9, "Unique process and system constants records", this::addIdentityIndexes)
+      .add(10, "Kafka consumer offsets", ConsumerOffsets::createTable)
+      .add(11, "Host of every record", this::addHosts)
+      .migrate(getWriteConnection());
+
+    partitions.load(getWriteConnection());
+    getWriteConnection().commit();
+
+    LOGGER.info("Database schema is at version {}", version);
+  }
+
+  /**
+   * Moves the names of process records into the <tt>ProcessNames</tt>
+   * dictionary, in the base table and every partition.
+   */
+  private void encodeProcessNames(Connection conn) throws SQLException {
+    ProcessNames.createTable(conn);
+
+    if (!tableExists(Fields.METRIC_TYPE_PROCESSES, conn))
+      return;
+
+    List<String> tables = partitionedTables(Fields.METRIC_TYPE_PROCESSES, conn);
+    long records = 0;
+
+    for (String table : tables)
+      records += ProcessNames.encodeTable(table, conn);
+
+    LOGGER.info("Encoded the names of {} \"{}\" records in {} tables", records, Fields.METRIC_TYPE_PROCESSES, tables.size());
+  }
+
+  /**
+   * Creates the <tt>ProcessLifetimes</tt> table, filled from the process
+   * records already persisted.
+   */
+  private void createProcessLifetimes(Connection conn) throws SQLException {
+    ProcessLifetimes.createTable(conn);
+
+    if (tableExists(Fields.METRIC_TYPE_PROCESSES, conn))
+      LOGGER.info("Created \"{}\" with {} processes", ProcessLifetimes.TABLE, ProcessLifetimes.backfill(partitionedTables(Fields.METRIC_TYPE_PROCESSES, conn), conn));
+  }
+
+  /**
+   * Adds unique indexes on the natural key of process records, in the base
+   * table and every partition, and on system constants records, so inserts
+   * skip records already persisted. Duplicates persisted before are deleted
+   * first, keeping the earliest, and process lifetimes are rebuilt without
+   * them.
+   */
+  private void addIdentityIndexes(Connection conn) throws SQLException {
+    String processKey = String.join(", ", Fields.PROCESSES_DATETIME, Fields.PROCESSES_PID, Fields.PROCESSES_START_TIME);
+    String constantsKey = String.join(", ", Fields.SYSTEM_CONSTANTS_FIELDS);
+
+    try (Statement stmt = conn.createStatement()) {
+      if (tableExists(Fields.METRIC_TYPE_PROCESSES, conn)) {
+        List<String> tables = partitionedTables(Fields.METRIC_TYPE_PROCESSES, conn);
+        int duplicates = 0;
+
+        for (String table : tables) {
+          duplicates += stmt.executeUpdate("DELETE FROM " + table + " WHERE rec_id NOT IN (SELECT MIN(rec_id) FROM " +
+            table + " GROUP BY " + processKey + ")");
+
+          // Named like the copies of the base table's index in new partitions
+          stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS " + table +
+            MetricStatements.PROCESS_IDENTITY_INDEX.substring(Fields.METRIC_TYPE_PROCESSES.length()) +
+            " ON " + table + " (" + processKey + ")");
+        }
+
+        if (duplicates > 0 && tableExists(ProcessLifetimes.TABLE, conn)) {
+          stmt.executeUpdate("DELETE FROM " + ProcessLifetimes.TABLE);
+          ProcessLifetimes.backfill(tables, conn);
+        }
+
+        LOGGER.info("Deleted {} duplicate \"{}\" records", duplicates, Fields.METRIC_TYPE_PROCESSES);
+      }
+
+      if (tableExists(Fields.METRIC_TYPE_SYSTEM_CONSTANTS, conn)) {
+        int duplicates = stmt.executeUpdate("DELETE FROM " + Fields.METRIC_TYPE_SYSTEM_CONSTANTS +
+          " WHERE rowid NOT IN (SELECT MIN(rowid) FROM " + Fields.METRIC_TYPE_SYSTEM_CONSTANTS + " GROUP BY " +
+          constantsKey + ")");
+        stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS " + MetricStatements.SYSTEM_CONSTANTS_IDENTITY_INDEX +
+          " ON " + Fields.METRIC_TYPE_SYSTEM_CONSTANTS + " (" + constantsKey + ")");
+
+        LOGGER.info("Deleted {} duplicate \"{}\" records", duplicates, Fields.METRIC_TYPE_SYSTEM_CONSTANTS);
+      }
+    }
+  }
+
+  /**
+   * Adds the id of its host to every metric record, rollup row and process
+   * lifetime, as the last column of each table's key, so the records of
+   * different hosts at the same time are kept apart. Records persisted
+   * before are given <tt>Hosts.UNKNOWN_ID</tt>.
+   */
+  private void addHosts(Connection conn) throws SQLException {
+    Hosts.createTable(conn);
+    List<String> tables = new ArrayList<>();
+
+    for (String metricType : SqlRollups.metricTypes()) {
+      if (tableExists(metricType, conn))
+        tables.addAll(partitionedTables(metricType, conn));
+
+      for (RollupTier tier : RollupTier.values()) {
+        if (tableExists(tier.tableName(metricType), conn))
+          tables.add(tier.tableName(metricType));
+      }
+    }
+
+    List<String> processTables = tableExists(Fields.METRIC_TYPE_PROCESSES, conn)
+      ? partitionedTables(Fields.METRIC_TYPE_PROCESSES, conn)
+      : Collections.emptyList();
+
+    tables.addAll(processTables);
+
+    for (String table : Arrays.asList(Fields.METRIC_TYPE_SYSTEM_CONSTANTS, ProcessLifetimes.TABLE)) {
+      if (tableExists(table, conn))
+        tables.add(table);
+    }
+
+    int altered = 0;
+
+    for (String table : tables) {
+      if (Hosts.addColumn(table, conn))
+        altered++;
+    }
+
+    // The identity indexes of tables keyed by their rowid take the host too
+    String processKey = String.join(", ", Fields.PROCESSES_DATETIME, Fields.PROCESSES_PID,
+      Fields.PROCESSES_START_TIME, Hosts.HOST_ID);
+    String constantsKey = String.join(", ", Fields.SYSTEM_CONSTANTS_FIELDS) + ", " + Hosts.HOST_ID;
+
+    try (Statement stmt = conn.createStatement()) {
+      for (String table : processTables) {
+        String index = table + MetricStatements.PROCESS_IDENTITY_INDEX.substring(Fields.METRIC_TYPE_PROCESSES.length());
+
+        stmt.execute("DROP INDEX IF EXISTS " + index);
+        stmt.execute("CREATE UNIQUE INDEX " + index + " ON " + table + " (" + processKey + ")");
+      }
+
+      if (tableExists(Fields.METRIC_TYPE_SYSTEM_CONSTANTS, conn)) {
+        stmt.execute("DROP INDEX IF EXISTS " + MetricStatements.SYSTEM_CONSTANTS_IDENTITY_INDEX);
+        stmt.execute("CREATE UNIQUE INDEX " + MetricStatements.SYSTEM_CONSTANTS_IDENTITY_INDEX +
+          " ON " + Fields.METRIC_TYPE_SYSTEM_CONSTANTS + " (" + constantsKey + ")");
+      }
+    }
+
+    LOGGER.info("Added hosts to {} tables", altered);
+  }
+
+  /**
+   * Gets the partitions of a metric type in time order, followed by the base
+   * table, during migrations, before the partition catalog is loaded.
+   */
+  private static List<String> partitionedTables(String metricType, Connection conn) throws SQLException {
+    List<String> tables = new ArrayList<>();
+
+    try (Statement stmt = conn.createStatement()) {
+      ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' ORDER BY name");
+
+      while (rs.next()) {
+        String table = rs.getString(1);
+
+        // Partitions of "cpu" must not match those of "cpu_core"
+        if (TablePartitions.isPartitionTable(table) && table.startsWith(metricType) &&
+          table.lastIndexOf("_p") == metricType.length())
+          tables.add(table);
+      }
+    }
+
+    // The base table last, as it is the template of the partitions
+    tables.add(metricType);
+
+    return tables;
+  }
+
+  /**
+   * Switches a database created without incremental vacuum to it, so space
+   * freed by pruning can be returned to the file system. Switching rebuilds
+   * the whole database once.
+   */
+  private void enableIncrementalVacuum() throws SQLException {
+    Connection conn = getWriteConnection();
+
+    if (pragmaLong("auto_vacuum", conn) == 2) {
+      conn.commit();
+      return;
+    }
+
+    LOGGER.info("Rebuilding database to enable incremental vacuum");
+
+    // VACUUM cannot run inside a transaction
+    conn.commit();
+    conn.setAutoCommit(true);
+
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute("PRAGMA auto_vacuum = INCREMENTAL");
+      stmt.execute("VACUUM");
+    } finally {
+      conn.setAutoCommit(false);
+    }
+  }
+
+  private static long pragmaLong(String pragma, Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery("PRAGMA " + pragma)) {
+      return rs.next() ? rs.getLong(1) : 0;
+    }
+  }
+
+  /**
+   * Moves the records of each partitioned metric type into partitions.
+   */
+  private void partitionTables(Connection conn) throws SQLException {
+    TablePartitions.createCatalog(conn);
+
+    for (String metricType : SqlRollups.metricTypes()) {
+      if (tableExists(metricType, conn))
+        LOGGER.info("Moved {} \"{}\" records into partitions", partitions.moveIntoPartitions(metricType, conn), metricType);
+    }
+
+    if (tableExists(Fields.METRIC_TYPE_PROCESSES, conn)) {
+      LOGGER.info("Moved {} \"{}\" records into partitions",
+        partitions.moveIntoPartitions(Fields.METRIC_TYPE_PROCESSES, conn), Fields.METRIC_TYPE_PROCESSES);
+    }
+  }
+
+  /**
+   * Reduces the database size according to the <tt>RetentionPolicy</tt> of
+   * each metric type, by default:
+   * <ul>
+   *   <li>Metric types with rollup tiers have raw records older than 12 hours
+   *       and one minute rollups older than 24 hours deleted, keeping the one
+   *       hour rollups. Both ages are rounded down to a whole minute and
+   *       hour respectively, so a window is never partly downsampled. Raw
+   *       partitions holding only expired records are dropped whole.</li>
+   *   <li>Process records 12-24 hours old will be combined into one minute
+   *       snapshots, and any process records older than 24 hours will be
+   *       combined into one hour snapshots.</li>
+   * </ul>
+   * Records older than a policy's time to live are deleted at every
+   * resolution, rollups once the whole of their window is older.
+   * <p>
+   * Records are pruned one hour chunk at a time, each chunk in its own
+   * transaction, and the write lock is released between chunks so inserts are
+   * not blocked for a whole run. The prune boundary is stored with every
+   * chunk, so an interrupted run resumes where it stopped. If a run exceeds
+   * its time budget, the remaining work is done first on the next run.
+   * <p>
+   * With a <tt>SizeBudget</tt>, free pages are then reclaimed by incremental
+   * vacuum and the database size is measured. While it is over budget, the
+   * downsampling level is raised and the downsampled metric types pruned
+   * again, until the database fits or the highest level is reached.
+   */
+  public void prune() {
+    prune(Instant.now().toEpochMilli());
+  }
+
+  /**
+   * Prunes the database as {@link #prune()} does, with the retention
+   * policies applied as of a point in time. The time budget is still
+   * measured on the clock.
+   *
+   * @param now epoch milli timestamp the records' ages are measured from
+   */
+  public synchronized void prune(long now) {
+    LOGGER.info("Begin database pruning operation");
+
+    long runStart = Instant.now().toEpochMilli();
+    long deadline = runStart + pruneBudgetMillis;
+    int numTypes = prunables.size();
+    int pruned = 0;
+
+    while (pruned < numTypes) {
+      if (Thread.currentThread().isInterrupted()) {
+        LOGGER.info("Database pruning interrupted");
+        return;
+      }
+
+      String metricType = prunables.get(pruneCursor % numTypes);
+
+      if (!prune(metricType, now, deadline)) {
+        // A type stopped by the budget keeps its place at the front of the
+        // next run, and a type that failed is retried after the others
+        if (outOfTime(deadline)) {
+          LOGGER.warn("Database pruning stopped at \"{}\" after exceeding budget of {} ms, {} of {} metric types deferred to next run",
+            metricType, pruneBudgetMillis, numTypes - pruned, numTypes);
+          break;
+        }
+
+        LOGGER.error("Database pruning of \"{}\" failed, continuing with the next metric type", metricType);
+      }
+
+      pruneCursor = (pruneCursor + 1) % numTypes;
+      pruned++;
+    }
+
+    if (pruned == numTypes && sizeBudget.isEnabled())
+      enforceSizeBudget(now, deadline);
+
+    LOGGER.info("End database pruning operation after {} ms", Instant.now().toEpochMilli() - runStart);
+  }
+
+  /**
+   * Checks if a prune run must stop, because of its deadline or an
+   * interruption. Pruning steps that return false without running out of
+   * time have failed.
+   */
+  private static boolean outOfTime(long deadline) {
+    return Thread.currentThread().isInterrupted() || Instant.now().toEpochMilli() > deadline;
+  }
+
+  /**
+   * Prunes a single metric type.
+   *
+   * @return false if stopped early because of the deadline, an interruption,
+   *         or an error
+   */
+  private boolean prune(String metricType, long now, long deadline) {
+    PruneStats stats = pruneStats.get(metricType);
+    RetentionPolicy policy = getRetentionPolicy(metricType);
+    long start = Instant.now().toEpochMilli();
+
+    // Records before the minute bound are kept in one minute windows, and
+    // before the hour bound in one hour windows. The bounds are on window
+    // edges, so reads never find part of a window downsampled.
+    long minuteBound = RollupTier.MINUTE.windowStart(now - policy.getRawMillis());
+    long hourBound = RollupTier.HOUR.windowStart(now - policy.getMinuteMillis());
+
+    boolean finished = (!policy.expires() || expireAll(metricType, now - policy.getTtlMillis(), deadline, stats))
+      && (SqlRollups.supports(metricType)
+        ? expire(metricType, hourBound, minuteBound, deadline, stats)
+        : compact(metricType, hourBound, minuteBound, deadline, stats));
+
+    stats.addRun(Instant.now().toEpochMilli() - start);
+
+    LOGGER.info("Prune totals: {}", stats);
+
+    return finished;
+  }
+
+  private boolean expire(String metricType, long hourBound, long minuteBound, long deadline, PruneStats stats) {
+    // Rollups are maintained as metrics are persisted, so older rows only need
+    // deleting, and whole partitions can be dropped
+    boolean finished = dropPartitions(metricType, minuteBound, stats)
+      && expireInChunks(metricType, minuteBound, deadline, stats);
+
+    if (finished) {
+      LOGGER.info("Expired raw \"{}\" metrics before {}", metricType, convertEpochMillisDateFormat(minuteBound));
+
+      String minuteTable = RollupTier.MINUTE.tableName(metricType);
+      finished = expireInChunks(minuteTable, hourBound, deadline, stats);
+
+      if (finished)
+        LOGGER.info("Expired \"{}\" rollups before {}", minuteTable, convertEpochMillisDateFormat(hourBound));
+    }
+
+    return finished;
+  }
+
+  /**
+   * Deletes the records of a metric type older than its time to live, from
+   * its raw partitions and every rollup tier.
+   */
+  private boolean expireAll(String metricType, long ttlBound, long deadline, PruneStats stats) {
+    boolean finished = dropPartitions(metricType, ttlBound, stats)
+      && expireInChunks(metricType, ttlBound, deadline, stats);
+
+    // A rollup expires with the last record of its window, i.e. once its
+    // window ends at or before the bound
+    if (SqlRollups.supports(metricType)) {
+      for (RollupTier tier : RollupTier.values())
+        finished = finished && expireInChunks(tier.tableName(metricType), tier.windowStart(ttlBound), deadline, stats);
+    }
+
+    if (finished && metricType.equals(Fields.METRIC_TYPE_PROCESSES))
+      finished = expireProcessLifetimes(ttlBound, stats);
+
+    if (finished)
+      LOGGER.info("Expired \"{}\" metrics before {}", metricType, convertEpochMillisDateFormat(ttlBound));
+
+    return finished;
+  }
+
+  /**
+   * Deletes the lifetimes of processes that stopped being alive before
+   * <tt>bound</tt>, in a single transaction.
+   */
+  private boolean expireProcessLifetimes(long bound, PruneStats stats) {
+    writeLock.lock();
+    try {
+      Connection conn = getWriteConnection();
+      int deleted = ProcessLifetimes.deleteBefore(bound, conn);
+      commit(conn);
+
+      stats.addRowsDeleted(deleted);
+    } catch (SQLException e) {
+      LOGGER.error("Failed to expire \"{}\" records", ProcessLifetimes.TABLE, e);
+
+      if (writeConn != null)
+        rollback(writeConn);
+
+      return false;
+    } finally {
+      writeLock.unlock();
+    }
+
+    return true;
+  }
+
+  private boolean compact(String metricType, long hourBound, long minuteBound, long deadline, PruneStats stats) {
+    // Lower bounds are inclusive, upper bounds are exclusive
+    long hourLowerBound = getLastPruneBound(metricType);
+    boolean finished = pruneInChunks(hourLowerBound, hourBound, metricType, ONE_HOUR_MS, metricType, deadline, stats);
+
+    if (finished) {
+      LOGGER.info("Pruned \"{}\" metrics from {} to {} in 1 hour windows",
+        metricType, convertEpochMillisDateFormat(hourLowerBound), convertEpochMillisDateFormat(hourBound));
+
+      String minuteBoundKey = metricType + MINUTE_BOUND_SUFFIX;
+      long minuteLowerBound = Math.max(hourBound, getLastPruneBound(minuteBoundKey));
+      finished = pruneInChunks(minuteLowerBound, minuteBound, metricType, ONE_MIN_MS, minuteBoundKey, deadline, stats);
+
+      if (finished) {
+        LOGGER.info("Pruned \"{}\" metrics from {} to {} in 1 minute windows",
+          metricType, convertEpochMillisDateFormat(minuteLowerBound), convertEpochMillisDateFormat(minuteBound));
+      }
+    }
+
+    return finished;
+  }
+
+  /**
+   * Prunes [earliest, latest) in chunks of <tt>PRUNE_CHUNK_MS</tt>, each
+   * beginning at the earliest remaining record, so empty stretches of time
+   * are skipped and at most one chunk of records is held in memory.
+   *
+   * @return true if the whole range was pruned, false if pruning stopped
+   *         early because of the deadline, an interruption, or an error
+   */
+  private boolean pruneInChunks(long earliest, long latest, String metricType, long windowSize,
+                                String boundKey, long deadline, PruneStats stats) {
+    long chunkStart = earliest;
+
+    while (chunkStart < latest) {
+      if (outOfTime(deadline))
+        return false;
+
+      writeLock.lock();
+      try {
+        Connection conn = getWriteConnection();
+        long first = getEarliestRecordTime(chunkStart, latest, metricType, conn);
+
+        if (first < 0) {
+          storeLastPruneBound(boundKey, latest, conn);
+          commit(conn);
+          return true;
+        }
+
+        long chunkEnd = Math.min(first + PRUNE_CHUNK_MS, latest);
+
+        if (!prune(first, chunkEnd, metricType, windowSize, boundKey, stats))
+          return false;
+
+        chunkStart = chunkEnd;
+      } catch (SQLException e) {
+        LOGGER.error("Failed to prune \"{}\" metrics", metricType, e);
+
+        if (writeConn != null)
+          rollback(writeConn);
+
+        return false;
+      } finally {
+        writeLock.unlock();
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Drops the partitions of a metric type holding only records before
+   * <tt>bound</tt>, in a single transaction.
+   *
+   * @return false if the partitions could not be dropped
+   */
+  private boolean dropPartitions(String metricType, long bound, PruneStats stats) {
+    writeLock.lock();
+    try {
+      Connection conn = getWriteConnection();
+      List<String> dropped = partitions.dropBefore(metricType, bound, conn);
+
+      if (dropped.isEmpty())
+        return true;
+
+      for (String table : dropped) {
+        PreparedStatement ps = insertStatements.remove(table);
+
+        if (ps != null)
+          ps.close();
+      }
+
+      commit(conn);
+      stats.addPartitionsDropped(dropped.size());
+
+      LOGGER.info("Dropped {} \"{}\" partitions before {}", dropped.size(), metricType, convertEpochMillisDateFormat(bound));
+    } catch (SQLException e) {
+      LOGGER.error("Failed to drop \"{}\" partitions", metricType, e);
+
+      if (writeConn != null)
+        rollback(writeConn);
+
+      return false;
+    } finally {
+      writeLock.unlock();
+    }
+
+    return true;
+  }
+
+  /**
+   * Deletes the records of a table before <tt>bound</tt> one chunk of
+   * <tt>PRUNE_CHUNK_MS</tt> at a time, each chunk in its own transaction.
+   *
+   * @return true if all records before the bound were deleted, false if
+   *         pruning stopped early because of the deadline, an interruption,
+   *         or an error
+   */
+  private boolean expireInChunks(String table, long bound, long deadline, PruneStats stats) {
+    while (true) {
+      if (outOfTime(deadline))
+        return false;
+
+      writeLock.lock();
+      try {
+        Connection conn = getWriteConnection();
+        long first = getEarliestRecordTime(0, bound, table, conn);
+
+        if (first < 0) {
+          // Ends the read transaction, which would otherwise hold back WAL checkpoints
+          commit(conn);
+          return true;
+        }
+
+        int deleted = deleteRecordsInRange(first, Math.min(first + PRUNE_CHUNK_MS, bound), table, conn);
+        commit(conn);
+
+        stats.addRowsDeleted(deleted);
+      } catch (SQLException e) {
+        LOGGER.error("Failed to expire \"{}\" records", table, e);
+
+        if (writeConn != null)
+          rollback(writeConn);
+
+        return false;
+      } finally {
+        writeLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Reclaims free pages and escalates downsampling until the database is
+   * within its size budget, or relaxes downsampling if it is well under.
+   */
+  private void enforceSizeBudget(long now, long deadline) {
+    if (!reclaimSpace(deadline))
+      return;
+
+    if (sizeBudget.relax()) {
+      LOGGER.info("Database size {} bytes under budget of {} bytes, relaxed downsampling to level {}",
+        sizeBudget.getSizeBytes(), sizeBudget.getBudgetBytes(), sizeBudget.getLevel());
+    }
+
+    while (sizeBudget.isOverBudget()) {
+      if (!sizeBudget.escalate()) {
+        LOGGER.warn("Database size {} bytes over budget of {} bytes at highest downsampling level",
+          sizeBudget.getSizeBytes(), sizeBudget.getBudgetBytes());
+        break;
+      }
+
+      LOGGER.warn("Database size {} bytes over budget of {} bytes, escalated downsampling to level {}",
+        sizeBudget.getSizeBytes(), sizeBudget.getBudgetBytes(), sizeBudget.getLevel());
+
+      for (String metricType : prunables) {
+        if (sizeBudget.levelFor(metricType) > 0 && !prune(metricType, now, deadline) && outOfTime(deadline))
+          return;
+      }
+
+      if (!reclaimSpace(deadline))
+        return;
+    }
+
+    LOGGER.info("Size budget totals: {}", sizeBudget);
+  }
+
+  /**
+   * Returns free pages to the file system with incremental vacuum,
+   * <tt>VACUUM_CHUNK_PAGES</tt> at a time, then measures the database size.
+   *
+   * @return false if stopped early because of the deadline, an interruption,
+   *         or an error
+   */
+  private boolean reclaimSpace(long deadline) {
+    while (true) {
+      if (outOfTime(deadline))
+        return false;
+
+      writeLock.lock();
+      try {
+        Connection conn = getWriteConnection();
+        long freePages = pragmaLong("freelist_count", conn);
+
+        if (freePages > 0 && pragmaLong("auto_vacuum", conn) == 2) {
+          try (Statement stmt = conn.createStatement()) {
+            // Unlike execute, executeUpdate steps the pragma until every page is freed
+            stmt.executeUpdate("PRAGMA incremental_vacuum(" + VACUUM_CHUNK_PAGES + ")");
+          }
+
+          long vacuumed = freePages - pragmaLong("freelist_count", conn);
+          commit(conn);
+          sizeBudget.addPagesVacuumed(vacuumed);
+          continue;
+        }
+
+        long pageSize = pragmaLong("page_size", conn);
+        sizeBudget.setSize(pragmaLong("page_count", conn) * pageSize, freePages * pageSize);
+        commit(conn);
+        return true;
+      } catch (SQLException e) {
+        LOGGER.error("Failed to reclaim database space", e);
+
+        if (writeConn != null)
+          rollback(writeConn);
+
+        return false;
+      } finally {
+        writeLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Gets the size budget of the database, with its current size and the
+   * downsampling done to stay within it.
+   *
+   * @return size budget
+   */
+  public SizeBudget getSizeBudget() {
+    return sizeBudget;
+  }
+
+  /**
+   * Gets cumulative pruning counters for each prunable metric type.
+   *
+   * @return map of metric type to its pruning counters
+   */
+  public Map<String, PruneStats> getPruneStats() {
+    return Collections.unmodifiableMap(pruneStats);
+  }
+
+  /**
+   * Gets the number of metrics dropped because the database rejected them,
+   * e.g. for a NULL value in a required column.
+   *
+   * @return number of metrics dropped since construction
+   */
+  public long getDroppedMetrics() {
+    return droppedMetrics.get();
+  }
+
+  private boolean prune(long earliest, long latest, String metricType, long windowSize, String boundKey, PruneStats stats) {
+    Connection conn = null;
+    try {
+      conn = getWriteConnection();
+
+      if (!rollupInJava(earliest, latest, metricType, windowSize, conn, stats))
+        return false;
+
+      // Stored in the same transaction, so a crash never re-prunes a chunk
+      storeLastPruneBound(boundKey, latest, conn);
+      commit(conn);
+    } catch (SQLException e1) {
+      LOGGER.error("Failed prune for \"{}\" metrics from {} to {}, rolling back changes",
+        metricType, convertEpochMillisDateFormat(earliest), convertEpochMillisDateFormat(latest), e1);
+
+      if (conn != null)
+        rollback(conn);
+
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Combines [earliest, latest) with the <tt>combine</tt> method of the metric
+   * type's class, for types whose combination cannot be expressed in SQL.
+   *
+   * @return false if the metrics could not be read
+   */
+  private boolean rollupInJava(long earliest, long latest, String metricType, long windowSize,
+                               Connection conn, PruneStats stats) throws SQLException {
+    List<? extends MetricData> combinedMetrics = combineMetrics(earliest, latest, metricType, windowSize, stats);
+
+    if (combinedMetrics == null)
+      return false;
+
+    int deleted = deleteRecordsInRange(earliest, latest, metricType, conn);
+    Set<PreparedStatement> pending = new LinkedHashSet<>();
+
+    try {
+      for (MetricData metric : combinedMetrics) {
+        PreparedStatement ps = getInsertStatement(metricType, metric, conn);
+        bindInsert(ps, metric, conn);
+        ps.addBatch();
+        pending.add(ps);
+      }
+
+      for (PreparedStatement ps : pending)
+        ps.executeBatch();
+    } catch (SQLException e) {
+      for (PreparedStatement ps : pending)
+        ps.clearBatch();
+
+      throw e;
+    }
+
+    stats.addRowsDeleted(deleted);
+    stats.addRowsWritten(combinedMetrics.size());
+
+    return true;
+  }
+
+  private List<? extends MetricData> combineMetrics(long earliest, long latest, String metricType, long windowSize, PruneStats stats) {
+    // Bucket metrics into windowSize (ms) buckets, combine each bucket, return all in a list.
+    // Other metric types are rolled up by SqlRollups
+    switch (metricType) {
+      case (Fields.METRIC_TYPE_PROCESSES):
+        try (Stream<ProcessData> processMetrics = streamMetricsInRange(earliest, latest, ProcessData.class)) {
+          return processMetrics == null ? null : combineInWindows(windowSize, processMetrics, perHost(ProcessData::combine), stats);
+        }
+
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Applies a combiner to the metrics of each host separately, so the
+   * combined metrics keep their host.
+   */
+  private static <T extends MetricData> Function<List<T>, List<T>> perHost(Function<List<T>, List<T>> combiner) {
+    return metrics -> {
+      Map<String, List<T>> byHost = new LinkedHashMap<>();
+
+      for (T metric : metrics)
+        byHost.computeIfAbsent(metric.getHost(), host -> new ArrayList<>()).add(metric);
+
+      List<T> combined = new ArrayList<>();
+
+      for (Map.Entry<String, List<T>> host : byHost.entrySet()) {
+        for (T metric : combiner.apply(host.getValue())) {
+          metric.setHost(host.getKey());
+          combined.add(metric);
+        }
+      }
+
+      return combined;
+    };
+  }
+
+  /**
+   * Combines a stream of metrics ordered by time in windows beginning at the
+   * first metric, like {@link #bucketMetrics(long, List)}, holding only one
+   * window of metrics at a time.
+   */
+  private static <T extends MetricData> List<T> combineInWindows(long windowSize, Stream<T> metrics,
+                                                                 Function<List<T>, List<T>> combiner, PruneStats stats) {
+    List<T> combined = new ArrayList<>();
+    List<T> window = new ArrayList<>();
+    Iterator<T> it = metrics.iterator();
+
+    if (!it.hasNext())
+      return combined;
+
+    T first = it.next();
+    long origin = first.getEpochMillisTime();
+    long windowNum = 0;
+
+    window.add(first);
+    stats.addRowsRead(1);
+
+    while (it.hasNext()) {
+      T metric = it.next();
+      long metricWindowNum = (metric.getEpochMillisTime() - origin) / windowSize;
+
+      if (metricWindowNum != windowNum) {
+        combined.addAll(combiner.apply(window));
+        window = new ArrayList<>();
+      }
+
+      windowNum = metricWindowNum;
+      window.add(metric);
+      stats.addRowsRead(1);
+    }
+
+    combined.addAll(combiner.apply(window));
+
+    return combined;
+  }
+
+  /**
+   * Groups metrics based on spans of time in milliseconds. All metrics that
+   * fall into each time bucket will be grouped together, regardless of the
+   * number of instances. The buckets will begin with the minimum timestamp
+   * in the list of metrics: [min,min+bucketSize), [min+bucketSize,min+2*bucketSize) ...
+   *
+   * @param bucketSize number of milliseconds in each time span
+   * @param metrics    list of metrics
+   * @param <T>        <tt>MetricData</tt> or its subtypes
+   * @return list of lists of metrics, grouped by bucketSize, or null if
+   *         <tt>metrics</tt> is null.
+   */
+  public static <T extends MetricData> List<List<T>> bucketMetrics(long bucketSize, List<T> metrics) {
+    if (metrics == null)
+      return null;
+
+    if (metrics.isEmpty())
+      return new ArrayList<>();
+
+    long min = metrics.stream().min(Comparator.comparing(MetricData::getEpochMillisTime)).get().getEpochMillisTime();
+
+    // Group in buckets of [min,min+bucketSize), [min+bucketSize,min+2*bucketSize) ...
+    return new ArrayList<>(metrics.stream()
+      .collect(Collectors.groupingBy(m -> (m.getEpochMillisTime() - min) / bucketSize, Collectors.toList()))
+      .values());
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Records are read from the raw partitions. The whole minutes of the range
+   * before the first raw record are read from the one minute rollups, and
+   * the whole hours before those from the one hour rollups, so records
+   * pruned by the retention policy are returned in their downsampled form.
+   */
+  @Override
+  public <T extends MetricData> List<T> getMetricsInRange(long earliest, long latest, Class<T> clazz) {
+    return getMetricsInRange(earliest, latest, clazz, (String) null);
+  }
+
+  @Override
+  public <T extends MetricData> List<T> getMetricsInRange(long earliest, long latest, Class<T> clazz, String host) {
+    String metricType = MetricDeserializer.lookupMetricType(clazz);
+    try (Connection conn = getReadConnection()) {
+      partitions.refresh(conn);
+      List<T> metrics = new ArrayList<>();
+      int hostId = host == null ? Hosts.UNKNOWN_ID : Hosts.find(host, conn);
+
+      if (host != null && hostId == Hosts.UNKNOWN_ID)
+        return metrics;
+
+      List<T> rollups = getPrunedRollups(earliest, latest, metricType, clazz, host, hostId, conn);
+
+      if (rollups == null)
+        return null;
+
+      metrics.addAll(rollups);
+
+      for (String table : tablesInRange(metricType, earliest, latest)) {
+        String source = host == null ? table : Hosts.filterSql(table, hostId);
+        List<T> tableMetrics = readMetrics(getRecordsInRange(earliest, latest, metricType, source, conn), clazz);
+
+        if (tableMetrics == null)
+          return null;
+
+        metrics.addAll(tableMetrics);
+      }
+
+      return metrics;
+    } catch (SQLException e) {
+      LOGGER.error(e.getMessage(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Reads the rollups of the whole minutes of a range before its first raw
+   * record, which may have been pruned.
+   *
+   * @return metrics in time order, empty for metric types without rollups,
+   *         or null if a row cannot be converted
+   */
+  private <T extends MetricData> List<T> getPrunedRollups(long earliest, long latest, String metricType, Class<T> clazz,
+                                                          String host, int hostId, Connection conn) throws SQLException {
+    if (!SqlRollups.supports(metricType))
+      return new ArrayList<>();
+
+    long first = getEarliestRecordTime(earliest, latest, metricType, conn);
+    long rawBound = first == -1 ? latest : RollupTier.MINUTE.windowStart(first);
+
+    return rawBound > earliest
+      ? getRollupsBefore(earliest, rawBound, metricType, clazz, host, hostId, conn)
+      : new ArrayList<>();
+  }
+
+  /**
+   * Reads the rollups of a range of time no longer held by a metric type's
+   * raw records: the one minute rollups, and the one hour rollups of the
+   * whole hours before the first one minute rollup.
+   *
+   * @return metrics in time order, or null if a row cannot be converted
+   */
+  private <T extends MetricData> List<T> getRollupsBefore(long earliest, long latest, String metricType, Class<T> clazz,
+                                                          String host, int hostId, Connection conn) throws SQLException {
+    String minuteTable = RollupTier.MINUTE.tableName(metricType);
+    long first = getEarliestRecordTime(earliest, latest, minuteTable, conn);
+    // Only whole hours are read from the hour rollups, so none overlaps the
+    // raw records of the range
+    long minuteBound = Math.max(RollupTier.HOUR.windowStart(first == -1 ? latest : first), earliest);
+    List<T> metrics = new ArrayList<>();
+
+    for (RollupTier tier : new RollupTier[]{RollupTier.HOUR, RollupTier.MINUTE}) {
+      long from = tier == RollupTier.HOUR ? earliest : minuteBound;
+      long to = tier == RollupTier.HOUR ? minuteBound : latest;
+
+      if (from >= to)
+        continue;
+
+      String source = host == null ? tier.tableName(metricType) : Hosts.filterSql(tier.tableName(metricType), hostId);
+
+      try (PreparedStatement ps = conn.prepareStatement(SqlRollups.selectSql(metricType, source, 0))) {
+        ps.setLong(1, from);
+        ps.setLong(2, to - 1);
+
+        List<T> tierMetrics = readMetrics(ps.executeQuery(), clazz);
+
+        if (tierMetrics == null)
+          return null;
+
+        metrics.addAll(tierMetrics);
+      }
+    }
+
+    return metrics;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Rows are read on a separate connection with a forward-only cursor,
+   * <tt>dbfetchsize</tt> rows at a time. A row that cannot be converted to
+   * <tt>T</tt> is logged and skipped, and an error reading from the database
+   * ends the stream early. Partitions are read one after another, in time
+   * order.
+   * <p>
+   * As for {@link #getMetricsInRange(long, long, Class)}, the rollups of the
+   * whole minutes before the first raw record are read up front, at most one
+   * row per series per minute, and stream first.
+   */
+  @Override
+  public <T extends MetricData> Stream<T> streamMetricsInRange(long earliest, long latest, Class<T> clazz) {
+    String metricType = MetricDeserializer.lookupMetricType(clazz);
+    Connection conn = null;
+
+    try {
+      conn = getReadConnection();
+      partitions.refresh(conn);
+
+      List<T> rollups = getPrunedRollups(earliest, latest, metricType, clazz, null, Hosts.UNKNOWN_ID, conn);
+
+      if (rollups == null) {
+        closeQuietly(conn);
+        return null;
+      }
+
+      MetricCursor<T> cursor = new MetricCursor<>(conn, tablesInRange(metricType, earliest, latest),
+        earliest, latest, clazz, fetchSize);
+
+      return Stream.concat(rollups.stream(), StreamSupport.stream(cursor, false).onClose(cursor::close));
+    } catch (SQLException e) {
+      LOGGER.error(e.getMessage(), e);
+
+      // Closing the connection also closes its statements
+      if (conn != null)
+        closeQuietly(conn);
+
+      return null;
+    }
+  }
+
+  /**
+   * Iterates the records of a range of time in a list of tables, one table
+   * after another, as metrics. Closes its connection once the last row is
+   * read or the cursor is closed.
+   */
+  private static class MetricCursor<T extends MetricData> extends Spliterators.AbstractSpliterator<T> implements AutoCloseable {
+    private final Connection conn;
+    private final Iterator<String> tables;
+    private final long earliest;
+    private final long latest;
+    private final Class<T> clazz;
+    private final String metricType;
+    private final int fetchSize;
+    private ResultSet rs;
+    private RowMapper<T> mapper;
+    private boolean closed;
+
+    private MetricCursor(Connection conn, List<String> tables, long earliest, long latest,
+                         Class<T> clazz, int fetchSize) throws SQLException {
+      super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+      this.conn = conn;
+      this.tables = tables.iterator();
+      this.earliest = earliest;
+      this.latest = latest;
+      this.clazz = clazz;
+      this.metricType = MetricDeserializer.lookupMetricType(clazz);
+      this.fetchSize = fetchSize;
+
+      // Fails fast if the first table cannot be queried
+      nextTable();
+    }
+
+    private boolean nextTable() throws SQLException {
+      if (rs != null)
+        rs.getStatement().close();
+
+      rs = null;
+
+      if (!tables.hasNext())
+        return false;
+
+      // Earliest is inclusive and latest is exclusive
+      PreparedStatement ps = conn.prepareStatement(
+        selectSql(metricType, tables.next()) + " WHERE " + Fields.DATETIME + " BETWEEN ? AND ? ORDER BY " + Fields.DATETIME,
+        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      ps.setFetchSize(fetchSize);
+      ps.setLong(1, earliest);
+      ps.setLong(2, latest - 1);
+
+      rs = ps.executeQuery();
+      mapper = RowMappers.create(rs, clazz);
+
+      return true;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+      if (closed)
+        return false;
+
+      try {
+        while (rs != null) {
+          while (rs.next()) {
+            try {
+              action.accept(mapper.map(rs));
+              return true;
+            } catch (IllegalArgumentException e) {
+              LOGGER.error("Skipping \"{}\" record that could not be read", clazz.getSimpleName(), e);
+            }
+          }
+
+          nextTable();
+        }
+      } catch (SQLException e) {
+        LOGGER.error(e.getMessage(), e);
+      }
+
+      close();
+      return false;
+    }
+
+    @Override
+    public void close() {
+      if (closed)
+        return;
+
+      closed = true;
+      closeQuietly(conn);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Processes are ranked inside SQLite, reading each partition in the range
+   * through its <tt>datetime</tt> index.
+   */
+  @Override
+  public List<ProcessData> getTopProcesses(long earliest, long latest, String field, int n) {
+    checkTopProcesses(field);
+
+    try (Connection conn = getReadConnection()) {
+      partitions.refresh(conn);
+      List<String> tables = tablesInRange(Fields.METRIC_TYPE_PROCESSES, earliest, latest);
+
+      if (tables.isEmpty() || n <= 0)
+        return new ArrayList<>();
+
+      try (PreparedStatement ps = conn.prepareStatement(topProcessesSql(tables, field))) {
+        ps.setLong(1, earliest);
+        ps.setLong(2, latest - 1);
+        ps.setInt(3, n);
+
+        return readMetrics(ps.executeQuery(), ProcessData.class);
+      }
+    } catch (SQLException e) {
+      LOGGER.error(e.getMessage(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Checks that processes can be ranked by a field.
+   *
+   * @throws IllegalArgumentException if processes cannot be ranked by the field
+   */
+  static void checkTopProcesses(String field) {
+    if (!TOP_PROCESS_FIELDS.contains(field))
+      throw new IllegalArgumentException("Processes cannot be ranked by " + field + ", only by " + TOP_PROCESS_FIELDS);
+  }
+
+  /**
+   * Gets a SELECT of the top processes by a field in a range of a list of
+   * tables, with the range's earliest and latest, both inclusive, and the
+   * number of processes as parameters. Each process is combined into a
+   * single row, with the weighted averages of its values, the total
+   * <tt>delta_millis</tt>, and the time, uptime and state of its last record.
+   */
+  private static String topProcessesSql(List<String> tables, String field) {
+    // Each table is filtered by its own index before the tables are combined
+    String source = tables.stream()
+      .map(t -> "SELECT * FROM " + t + " WHERE " + Fields.DATETIME + " BETWEEN ?1 AND ?2")
+      .collect(Collectors.joining(" UNION ALL "));
+
+    StringBuilder sql = new StringBuilder("SELECT r.*, n.").append(Fields.PROCESSES_NAME)
+      .append(", h.").append(Hosts.HOST)
+      .append(" FROM (SELECT ").append(Fields.PROCESSES_PID).append(", ").append(Fields.PROCESSES_START_TIME)
+      .append(", ").append(Hosts.HOST_ID).append(", ").append(ProcessNames.NAME_ID)
+      // The only MAX, so the bare uptime and state are those of the last record
+      .append(", MAX(").append(Fields.DATETIME).append(") AS ").append(Fields.DATETIME)
+      .append(", ").append(Fields.PROCESSES_UPTIME).append(", ").append(Fields.PROCESSES_STATE)
+      .append(", SUM(").append(Fields.DELTA_MILLIS).append(") AS ").append(Fields.DELTA_MILLIS);
+
+    for (String col : TOP_PROCESS_FIELDS) {
+      sql.append(", SUM(").append(col).append(" * ").append(Fields.DELTA_MILLIS).append(") / NULLIF(SUM(")
+        .append(Fields.DELTA_MILLIS).append("), 0) AS ").append(col);
+    }
+
+    return sql.append(" FROM (").append(source).append(") WHERE ").append(Fields.PROCESSES_STATE)
+      .append(" <> '").append(Processes.PidState.ENDED).append("' GROUP BY ").append(Fields.PROCESSES_PID)
+      .append(", ").append(Fields.PROCESSES_START_TIME).append(", ").append(Hosts.HOST_ID)
+      .append(" ORDER BY ").append(field).append(" DESC LIMIT ?3) r")
+      .append(" JOIN ").append(ProcessNames.TABLE).append(" n ON n.").append(ProcessNames.NAME_ID)
+      .append(" = r.").append(ProcessNames.NAME_ID).append(Hosts.joinSql("r"))
+      .append(" ORDER BY r.").append(field).append(" DESC")
+      .toString();
+  }
+
+  @Override
+  public List<ProcessLifetime> getProcessLifetimes(long earliest, long latest) {
+    return getProcessLifetimes(earliest, latest, null);
+  }
+
+  @Override
+  public List<ProcessLifetime> getProcessLifetimes(long earliest, long latest, String host) {
+    try (Connection conn = getReadConnection();
+         PreparedStatement ps = conn.prepareStatement(ProcessLifetimes.aliveSql(host != null))) {
+      List<ProcessLifetime> lifetimes = new ArrayList<>();
+      int hostId = host == null ? Hosts.UNKNOWN_ID : Hosts.find(host, conn);
+
+      if (host != null && hostId == Hosts.UNKNOWN_ID)
+        return lifetimes;
+
+      ps.setLong(1, earliest);
+      ps.setLong(2, latest);
+
+      if (host != null)
+        ps.setInt(3, hostId);
 
-    this.autoPrune = autoPrune;
+      ResultSet rs = ps.executeQuery();
 
-    LOGGER.info("SQLiteMetricsImpl created for db file path '{}' with 'autoPrune' = {}", dbFilePath, this.autoPrune);
+      while (rs.next())
+        lifetimes.add(ProcessLifetimes.read(rs));
 
-    if (autoPrune)
-      prune();
+      return lifetimes;
+    } catch (SQLException e) {
+      LOGGER.error(e.getMessage(), e);
+      return null;
+    }
   }
 
   @Override
-  public boolean persistMetric(Metric metric) {
-    try (Connection conn = getSqliteConnection()) {
-      conn.createStatement().execute(metric.toSqlInsertString());
+  public ProcessLifetime getProcessLifetime(int pid, long startTime) {
+    return getProcessLifetime(pid, startTime, null);
+  }
+
+  @Override
+  public ProcessLifetime getProcessLifetime(int pid, long startTime, String host) {
+    try (Connection conn = getReadConnection()) {
+      int hostId = host == null ? Hosts.UNKNOWN_ID : Hosts.find(host, conn);
+
+      if (host != null && hostId == Hosts.UNKNOWN_ID)
+        return null;
+
+      return getProcessLifetime(pid, startTime, host == null ? null : hostId, conn);
     } catch (SQLException e) {
       LOGGER.error(e.getMessage(), e);
-      return false;
+      return null;
     }
-
-    if (autoPrune && Instant.now().toEpochMilli() > nextPruneTime)
-      prune();
-
-    return true;
   }
 
-  private void persistMetric(Metric metric, Connection conn) throws SQLException {
-    conn.createStatement().execute(metric.toSqlInsertString());
-  }
+  private static ProcessLifetime getProcessLifetime(int pid, long startTime, Integer hostId, Connection conn)
+    throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(ProcessLifetimes.processSql(hostId != null))) {
+      ps.setInt(1, pid);
+      ps.setLong(2, startTime);
 
-  private void setMetricTypes() {
-    List<String> metricTypes = new ArrayList<>();
+      if (hostId != null)
+        ps.setInt(3, hostId);
 
-    try (Connection conn = getSqliteConnection()) {
-      ResultSet rs = conn.createStatement()
-        .executeQuery("SELECT name FROM sqlite_master WHERE type='table'");
+      ResultSet rs = ps.executeQuery();
 
-      while (rs.next()) {
-        metricTypes.add(rs.getString("name"));
-      }
+      return rs.next() ? ProcessLifetimes.read(rs) : null;
+    }
+  }
 
+  @Override
+  public List<String> getHosts() {
+    try (Connection conn = getReadConnection()) {
+      return Hosts.list(conn);
     } catch (SQLException e) {
       LOGGER.error(e.getMessage(), e);
+      return null;
     }
-
-    this.metricTypes = metricTypes.stream()
-      .filter(s -> ! s.contains("sqlite"))
-      .filter(s -> ! s.equals(PRUNE_BOUND_TABLE))
-      .collect(Collectors.toList());
   }
 
   @Override
-  public List<String> getMetricTypes() {
-    return new ArrayList<>(metricTypes);
+  public Map<TopicPartition, Long> getConsumerOffsets(String topic) {
+    try (Connection conn = getReadConnection()) {
+      return ConsumerOffsets.read(topic, conn);
+    } catch (SQLException e) {
+      LOGGER.error(e.getMessage(), e);
+      return null;
+    }
   }
 
   /**
-   * Creates a connection String for the supplied SQLite database file.
-   *
-   * @param dbFilePath path of the SQLite database file
-   * @return SQLite database connection String
+   * {@inheritDoc}
+   * <p>
+   * Only the partitions spanning the process's lifetime are read, each
+   * through its <tt>(pid, start_time)</tt> index.
    */
-  public static String createSqliteDbUrl(String dbFilePath) {
-    return "jdbc:sqlite:" + dbFilePath;
+  @Override
+  public List<ProcessData> getProcessHistory(int pid, long startTime) {
+    return getProcessHistory(pid, startTime, null);
   }
 
-  private Connection getSqliteConnection() throws SQLException {
-    return DriverManager.getConnection(dbUrl);
-  }
+  @Override
+  public List<ProcessData> getProcessHistory(int pid, long startTime, String host) {
+    try (Connection conn = getReadConnection()) {
+      partitions.refresh(conn);
 
-  // Statements that do not begin on a new line and in-line comments
-  // will cause this method to fail
-  private void executeSqlScript(String dbSchemaPath) throws IOException, SQLException {
-    try (BufferedReader br = new BufferedReader(
-      new InputStreamReader(new FileInputStream(dbSchemaPath)))) {
+      // One read transaction, so the lifetime and records agree
+      conn.setAutoCommit(false);
+      List<ProcessData> history = new ArrayList<>();
+      int hostId = host == null ? Hosts.UNKNOWN_ID : Hosts.find(host, conn);
 
-      StringBuilder sql = new StringBuilder();
+      if (host != null && hostId == Hosts.UNKNOWN_ID)
+        return history;
 
-      String line;
+      ProcessLifetime lifetime = getProcessLifetime(pid, startTime, host == null ? null : hostId, conn);
 
-      while ((line = br.readLine()) != null) {
-        if (line.startsWith("--"))
-          continue;
+      if (lifetime == null)
+        return history;
 
-        sql.append(line);
+      // Without a host, the records of the process whose lifetime was found
+      if (host == null && lifetime.getHost() != null)
+        hostId = Hosts.find(lifetime.getHost(), conn);
 
-        if (line.endsWith(";")) {
-          try (Connection conn = getSqliteConnection()) {
-            conn.createStatement().execute(sql.toString());
-          }
-          sql = new StringBuilder();
+      long until = Math.max(lifetime.getLastSeen(), lifetime.getEnded()) + 1;
+
+      for (String table : tablesInRange(Fields.METRIC_TYPE_PROCESSES, lifetime.getFirstSeen(), until)) {
+        try (PreparedStatement ps = conn.prepareStatement(ProcessNames.selectSql(table) +
+          " WHERE t." + Fields.PROCESSES_PID + " = ? AND (t." + Fields.PROCESSES_START_TIME + " = ? OR (t." +
+          Fields.PROCESSES_STATE + " = '" + Processes.PidState.ENDED + "' AND t." + Fields.DATETIME + " = ?))" +
+          " AND t." + Hosts.HOST_ID + " = ? ORDER BY t." + Fields.DATETIME)) {
+          ps.setInt(1, pid);
+          ps.setLong(2, startTime);
+          ps.setLong(3, lifetime.getEnded());
+          ps.setInt(4, hostId);
+
+          history.addAll(readMetrics(ps.executeQuery(), ProcessData.class));
         }
       }
+
+      return history;
+    } catch (SQLException e) {
+      LOGGER.error(e.getMessage(), e);
+      return null;
+    }
+  }
+
+  private static void closeQuietly(Connection conn) {
+    try {
+      conn.close();
+    } catch (SQLException e) {
+      LOGGER.error("Failed to close SQLite connection", e);
     }
   }
 
   /**
-   * Reduces the database size by combining metrics into snapshots of
-   * greater time intervals. Records 12-24 hours old will be combined into
-   * one minute snapshots, and any records older than 24 hours will be
-   * combined into one hour snapshots.
+   * {@inheritDoc}
+   * <p>
+   * Reads the finest of the raw table, the one minute rollups and the one
+   * hour rollups that is no finer than the resolution and still holds the
+   * whole range after pruning. If that still has more rows than the
+   * resolution calls for, rows are combined into windows of the resolution
+   * inside SQLite. Metric types without rollup tiers, i.e. processes, are
+   * always returned as stored.
    */
-  public void prune() {
-    LOGGER.info("Begin database pruning operation");
+  @Override
+  public <T extends MetricData> List<T> getMetricsAtResolution(long earliest, long latest, Class<T> clazz, long resolutionMillis) {
+    return getMetricsAtResolution(earliest, latest, clazz, resolutionMillis, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Reads the same table as {@link #getMetricsAtResolution(long, long, Class, long)},
+   * filtered to the host's records.
+   */
+  @Override
+  public <T extends MetricData> List<T> getMetricsAtResolution(long earliest, long latest, Class<T> clazz,
+                                                               long resolutionMillis, String host) {
+    String metricType = MetricDeserializer.lookupMetricType(clazz);
 
-    long minuteBound = getPruneUpperBound();
-    long hourBound = minuteBound - PRUNE_ELIGIBILITY_MS;
+    if (!SqlRollups.supports(metricType))
+      return getMetricsInRange(earliest, latest, clazz, host);
 
-    for (String metricType : prunables) {
-      long lowerBound = getLastPruneBound(metricType);
+    RollupTier tier = selectTier(metricType, earliest, resolutionMillis);
+    String table = tier == null ? metricType : tier.tableName(metricType);
 
-      // Lower bound is inclusive, upper bound is exclusive
-      if (prune(lowerBound, hourBound, metricType, ONE_HOUR_MS)) {
-        LOGGER.info("Successfully pruned \"{}\" metrics from {} to {} in 1 hour windows",
-          metricType, convertEpochMillisDateFormat(lowerBound), convertEpochMillisDateFormat(hourBound));
+    try (Connection conn = getReadConnection()) {
+      partitions.refresh(conn);
+      String source = tier == null ? unionOf(tablesInRange(metricType, earliest, latest)) : table;
+      int hostId = host == null ? Hosts.UNKNOWN_ID : Hosts.find(host, conn);
 
-        try {
-          storeLastPruneBound(metricType, hourBound);
-        } catch (SQLException e) {
-          LOGGER.error("Failed to store prune boundary", e);
-        }
+      if (source == null || (host != null && hostId == Hosts.UNKNOWN_ID))
+        return new ArrayList<>();
+
+      if (host != null)
+        source = Hosts.filterSql(source, hostId);
+
+      long bucketMillis = 0;
+
+      if (resolutionMillis > 0 && countRecordsInRange(earliest, latest, table, conn) > (latest - earliest) / resolutionMillis) {
+        // Windows must be whole multiples of the tier's, so no row is split
+        long tierMillis = tier == null ? 1 : tier.getWindowMillis();
+        bucketMillis = (resolutionMillis + tierMillis - 1) / tierMillis * tierMillis;
       }
 
-      if (prune(hourBound, minuteBound, metricType, ONE_MIN_MS)) {
-        LOGGER.info("Successfully pruned \"{}\" metrics from {} to {} in 1 minute windows",
-          metricType, convertEpochMillisDateFormat(hourBound), convertEpochMillisDateFormat(minuteBound));
+      try (PreparedStatement ps = conn.prepareStatement(SqlRollups.selectSql(metricType, source, bucketMillis))) {
+        ps.setLong(1, earliest);
+        ps.setLong(2, latest - 1);
+
+        return readMetrics(ps.executeQuery(), clazz);
       }
+    } catch (SQLException e) {
+      LOGGER.error(e.getMessage(), e);
+      return null;
     }
+  }
 
-    LOGGER.info("End database pruning operation");
-
-    setNextPruneTime();
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The table is selected as for {@link #getMetricsAtResolution(long, long, Class, long)}
+   * at a resolution of the window size, so an interval summarized at once is
+   * read from the finest table still holding it. The summaries are computed
+   * by a single query inside SQLite.
+   */
+  @Override
+  public List<MetricAggregate> getAggregates(long earliest, long latest, Class<? extends MetricData> clazz,
+                                             String field, long windowMillis, double... quantiles) {
+    return getAggregates(earliest, latest, clazz, null, field, windowMillis, quantiles);
   }
 
-  private boolean prune(long earliest, long latest, String metricType, long windowSize) {
-    List<? extends MetricData> combinedMetrics = combineMetrics(earliest, latest, metricType, windowSize);
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Reads the same table as {@link #getAggregates(long, long, Class, String, long, double...)},
+   * filtered to the host's records.
+   */
+  @Override
+  public List<MetricAggregate> getAggregates(long earliest, long latest, Class<? extends MetricData> clazz,
+                                             String host, String field, long windowMillis, double... quantiles) {
+    checkAggregate(clazz, field, quantiles);
 
-    if (combinedMetrics == null)
-      return false;
+    return readAggregates(earliest, latest, clazz, host, field, windowMillis, quantiles, rs -> {
+      Map<Double, Double> percentiles = new LinkedHashMap<>();
 
-    if (combinedMetrics.isEmpty())
-      return true;
+      for (int i = 0; i < quantiles.length; i++)
+        percentiles.put(quantiles[i], rs.getDouble(i + 7));
 
-    Connection conn = null;
-    try {
-      conn = getSqliteConnection();
-      conn.setAutoCommit(false);
+      return new MetricAggregate(field, rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getDouble(4),
+        rs.getDouble(5), rs.getDouble(6), percentiles);
+    });
+  }
 
-      deleteRecordsInRange(earliest, latest, metricType, conn);
+  /**
+   * Summarizes a field like {@link #getAggregates(long, long, Class, String, String, long, double...)},
+   * keeping a sketch of each window's values in place of its quantiles, so
+   * the summaries can be merged with those of other databases.
+   *
+   * @return one summary per window holding records, ordered by time, empty
+   *         if the host is unknown, or null if they could not be queried
+   * @throws IllegalArgumentException if the field cannot be summarized
+   */
+  List<MergeableAggregate> getMergeableAggregates(long earliest, long latest, Class<? extends MetricData> clazz,
+                                                  String host, String field, long windowMillis) {
+    checkAggregate(clazz, field);
 
-      for (MetricData metric : combinedMetrics) {
-        persistMetric(metric, conn);
-      }
+    return readAggregates(earliest, latest, clazz, host, field, windowMillis, null, MergeableAggregate::read);
+  }
 
-      conn.commit();
-    } catch (SQLException e1) {
-      LOGGER.error("Failed prune for \"{}\" metrics from {} to {}, rolling back changes",
-        metricType, convertEpochMillisDateFormat(earliest), convertEpochMillisDateFormat(latest), e1);
+  /**
+   * Checks that a field of a metric type can be summarized, at the given
+   * quantiles.
+   *
+   * @throws IllegalArgumentException if the field cannot be summarized, or a
+   *                                  quantile is not from 0.0-1.0
+   */
+  static void checkAggregate(Class<? extends MetricData> clazz, String field, double... quantiles) {
+    String metricType = MetricDeserializer.lookupMetricType(clazz);
 
-      try {
-        if (conn != null)
-          conn.rollback();
-      } catch (SQLException e2) {
-        LOGGER.error("Rollback failed", e2);
-      }
+    if (!SqlAggregates.supports(metricType, field))
+      throw new IllegalArgumentException("Cannot summarize field " + field + " of " + metricType +
+        ", only " + SqlAggregates.fields(metricType));
 
-      return false;
-    } finally {
-      try {
-        if (conn != null)
-          conn.close();
-      } catch (SQLException e3) {
-        LOGGER.error("Failed to close SQLite connection", e3);
-      }
+    for (double q : quantiles) {
+      if (!(q >= 0 && q <= 1))
+        throw new IllegalArgumentException("Quantile must be from 0.0-1.0: " + q);
     }
-
-    return true;
   }
 
-  private List<? extends MetricData> combineMetrics(long earliest, long latest, String metricType, long windowSize) {
-    // Bucket metrics into windowSize (ms) buckets, combine each bucket, return all in a list
-    switch (metricType) {
-      case (Fields.METRIC_TYPE_CPU):
-        List<List<CpuData>> cpuMetrics = bucketMetrics(windowSize, getMetricsInRange(earliest, latest, CpuData.class));
-        return cpuMetrics == null ? null : cpuMetrics.stream().map(CpuData::combine).collect(Collectors.toList());
+  /**
+   * Reads the summaries of a field from the finest table still holding the
+   * range, with the quantile columns of <tt>SqlAggregates.selectSql</tt>, or
+   * the sketch column of <tt>SqlAggregates.sketchSql</tt> if
+   * <tt>quantiles</tt> is null.
+   */
+  private <A> List<A> readAggregates(long earliest, long latest, Class<? extends MetricData> clazz, String host,
+                                     String field, long windowMillis, double[] quantiles, RowMapper<A> mapper) {
+    String metricType = MetricDeserializer.lookupMetricType(clazz);
+    RollupTier tier = SqlRollups.supports(metricType)
+      ? selectTier(metricType, earliest, Math.max(windowMillis, 0))
+      : null;
 
-      case (Fields.METRIC_TYPE_CPU_CORE):
-        List<List<CpuCoreData>> cpuCoreMetrics = bucketMetrics(windowSize, getMetricsInRange(earliest, latest, CpuCoreData.class));
-        return cpuCoreMetrics == null ? null : cpuCoreMetrics.stream().map(CpuCoreData::combine).flatMap(Collection::stream).collect(Collectors.toList());
+    try (Connection conn = getReadConnection()) {
+      partitions.refresh(conn);
+      String source = tier == null ? unionOf(tablesInRange(metricType, earliest, latest)) : tier.tableName(metricType);
+      int hostId = host == null ? Hosts.UNKNOWN_ID : Hosts.find(host, conn);
 
-      case (Fields.METRIC_TYPE_MEMORY):
-        List<List<MemoryData>> memoryMetrics = bucketMetrics(windowSize, getMetricsInRange(earliest, latest, MemoryData.class));
-        return memoryMetrics == null ? null : memoryMetrics.stream().map(MemoryData::combine).collect(Collectors.toList());
+      if (source == null || (host != null && hostId == Hosts.UNKNOWN_ID))
+        return new ArrayList<>();
 
-      case (Fields.METRIC_TYPE_NETWORK):
-        List<List<NetworkData>> networkMetrics = bucketMetrics(windowSize, getMetricsInRange(earliest, latest, NetworkData.class));
-        return networkMetrics == null ? null : networkMetrics.stream().map(NetworkData::combine).collect(Collectors.toList());
+      if (host != null)
+        source = Hosts.filterSql(source, hostId);
 
-      case (Fields.METRIC_TYPE_PROCESSES):
-        List<List<ProcessData>> processMetrics = bucketMetrics(windowSize, getMetricsInRange(earliest, latest, ProcessData.class));
-        return processMetrics == null ? null : processMetrics.stream().map(ProcessData::combine).flatMap(Collection::stream).collect(Collectors.toList());
+      // Windows must be whole multiples of the tier's, so no row is split
+      long tierMillis = tier == null ? 1 : tier.getWindowMillis();
+      long bucketMillis = windowMillis > 0 ? (windowMillis + tierMillis - 1) / tierMillis * tierMillis : 0;
+      String sql = quantiles == null
+        ? SqlAggregates.sketchSql(metricType, field, source, tier, bucketMillis)
+        : SqlAggregates.selectSql(metricType, field, source, tier, bucketMillis, quantiles.length);
 
-      case (Fields.METRIC_TYPE_SYSTEM_METRICS):
-        List<List<SystemData>> systemMetrics = bucketMetrics(windowSize, getMetricsInRange(earliest, latest, SystemData.class));
-        return systemMetrics == null ? null : systemMetrics.stream().map(SystemData::combine).collect(Collectors.toList());
+      try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        ps.setLong(1, earliest);
+        ps.setLong(2, latest - 1);
 
-      default:
-        return null;
+        for (int i = 0; quantiles != null && i < quantiles.length; i++)
+          ps.setDouble(i + 3, quantiles[i]);
+
+        ResultSet rs = ps.executeQuery();
+        List<A> aggregates = new ArrayList<>();
+
+        while (rs.next()) {
+          // A whole interval without records is still summarized as one row
+          if (rs.getLong(3) == 0)
+            continue;
+
+          aggregates.add(mapper.map(rs));
+        }
+
+        return aggregates;
+      }
+    } catch (SQLException e) {
+      LOGGER.error(e.getMessage(), e);
+      return null;
     }
   }
 
   /**
-   * Groups metrics based on spans of time in milliseconds. All metrics that
-   * fall into each time bucket will be grouped together, regardless of the
-   * number of instances. The buckets will begin with the minimum timestamp
-   * in the list of metrics: [min,min+bucketSize), [min+bucketSize,min+2*bucketSize) ...
+   * Gets a table, or a subquery of all rows of several tables with the same
+   * columns, to select from.
    *
-   * @param bucketSize number of milliseconds in each time span
-   * @param metrics    list of metrics
-   * @param <T>        <tt>MetricData</tt> or its subtypes
-   * @return list of lists of metrics, grouped by bucketSize, or null if
-   *         <tt>metrics</tt> is null.
+   * @return table name or subquery, or null if there are no tables
    */
-  public static <T extends MetricData> List<List<T>> bucketMetrics(long bucketSize, List<T> metrics) {
-    if (metrics == null)
+  private static String unionOf(List<String> tables) {
+    if (tables.isEmpty())
       return null;
 
-    if (metrics.isEmpty())
-      return new ArrayList<>();
+    if (tables.size() == 1)
+      return tables.get(0);
 
-    long min = metrics.stream().min(Comparator.comparing(MetricData::getEpochMillisTime)).get().getEpochMillisTime();
+    return tables.stream()
+      .map(t -> "SELECT * FROM " + t)
+      .collect(Collectors.joining(" UNION ALL ", "(", ")"));
+  }
 
-    // Group in buckets of [min,min+bucketSize), [min+bucketSize,min+2*bucketSize) ...
-    return new ArrayList<>(metrics.stream()
-      .collect(Collectors.groupingBy(m -> (m.getEpochMillisTime() - min) / bucketSize, Collectors.toList()))
-      .values());
+  /**
+   * Selects the rollup tier to read for a resolution, or null for raw
+   * records. Ranges that begin before a table's records are expired by
+   * the metric type's retention policy are read from a coarser table.
+   */
+  private RollupTier selectTier(String metricType, long earliest, long resolutionMillis) {
+    RetentionPolicy policy = getRetentionPolicy(metricType);
+    long age = Instant.now().toEpochMilli() - earliest;
+
+    if (resolutionMillis < RollupTier.MINUTE.getWindowMillis() && age <= policy.retentionMillis(null))
+      return null;
+
+    if (resolutionMillis < RollupTier.HOUR.getWindowMillis() && age <= policy.retentionMillis(RollupTier.MINUTE))
+      return RollupTier.MINUTE;
+
+    return RollupTier.HOUR;
   }
 
-  @Override
-  public <T extends MetricData> List<T> getMetricsInRange(long earliest, long latest, Class<T> clazz) {
-    String metricType = MetricDeserializer.lookupMetricType(clazz);
-    try (Connection conn = getSqliteConnection()) {
-      ResultSet rs = getRecordsInRange(earliest, latest, metricType, conn);
+  /**
+   * Gets the retention policy currently applied to a metric type by pruning,
+   * downsampled while the database is over its size budget.
+   *
+   * @param metricType type of the metric
+   * @return retention policy, <tt>RetentionPolicy.DEFAULT</tt> if the type
+   *         is not pruned
+   */
+  public RetentionPolicy getRetentionPolicy(String metricType) {
+    return sizeBudget.apply(metricType, retentionPolicies.getOrDefault(metricType, RetentionPolicy.DEFAULT));
+  }
 
-      List<T> metrics = new ArrayList<>();
+  private static <T extends Metric> List<T> readMetrics(ResultSet rs, Class<T> clazz) throws SQLException {
+    RowMapper<T> mapper = RowMappers.create(rs, clazz);
+    List<T> metrics = new ArrayList<>();
 
-      while (rs.next()) {
+    while (rs.next()) {
 
-        try {
-          metrics.add(createMetric(rs, clazz));
-        } catch (JsonProcessingException e) {
-          LOGGER.error(e.getMessage(), e);
-          return null;
-        }
+      try {
+        metrics.add(mapper.map(rs));
+      } catch (IllegalArgumentException e) {
+        LOGGER.error(e.getMessage(), e);
+        return null;
       }
-
-      return metrics;
-    } catch (SQLException e) {
-      LOGGER.error(e.getMessage(), e);
-      return null;
     }
+
+    return metrics;
   }
 
   /**
    * Creates a <tt>Metric</tt> object from the current row of the supplied
-   * <tt>ResultSet</tt>. This method does not advance the cursor.
+   * <tt>ResultSet</tt>. This method does not advance the cursor. To read many
+   * rows, create a mapper once with <tt>RowMappers.create</tt> instead.
    *
    * @param rs         <tt>ResultSet</tt> from an SQL query
    * @param clazz      class corresponding to <tt>metricType</tt> to hold the returned metric data
    * @param <T>        <tt>Metric</tt> and its subtypes
    * @return metric data of type <tt>T</tt>
    * @throws SQLException
-   * @throws JsonProcessingException
    */
-  public <T extends Metric> T createMetric(ResultSet rs, Class<T> clazz) throws SQLException, JsonProcessingException {
-    ObjectNode node = objectMapper.createObjectNode();
-
-    ResultSetMetaData rsmd = rs.getMetaData();
-    int numColumns = rsmd.getColumnCount();
-
-    for (int i = 1; i <= numColumns; i++) {
-      switch (rsmd.getColumnType(i)) {
-        case (java.sql.Types.BIGINT):
-          node.put(rsmd.getColumnName(i), rs.getLong(i));
-          break;
-
-        case (java.sql.Types.INTEGER):
-        case (java.sql.Types.SMALLINT):
-        case (java.sql.Types.TINYINT):
-          node.put(rsmd.getColumnName(i), rs.getInt(i));
-          break;
-
-        case (java.sql.Types.REAL):
-        case (java.sql.Types.DOUBLE):
-        case (java.sql.Types.FLOAT):
-          node.put(rsmd.getColumnName(i), rs.getDouble(i));
-          break;
-
-        case (java.sql.Types.VARCHAR):
-        case (java.sql.Types.NVARCHAR):
-        case (java.sql.Types.LONGVARCHAR):
-        case (java.sql.Types.LONGNVARCHAR):
-        case (java.sql.Types.CHAR):
-        case (java.sql.Types.NCHAR):
-          node.put(rsmd.getColumnName(i), rs.getString(i));
-          break;
-
-        default:
-          node.putPOJO(rsmd.getColumnName(i), rs.getObject(i));
-          break;
-      }
-    }
-
-    return metricDeser.deserialize(node, clazz);
+  public <T extends Metric> T createMetric(ResultSet rs, Class<T> clazz) throws SQLException {
+    return RowMappers.create(rs, clazz).map(rs);
   }
 
-  private static ResultSet getRecordsInRange(long earliest, long latest, String table, Connection conn) throws SQLException {
+  private static ResultSet getRecordsInRange(long earliest, long latest, String metricType, String table,
+                                             Connection conn) throws SQLException {
     // Earliest is inclusive and latest is exclusive
     return conn.createStatement()
       .executeQuery(
-        "SELECT * FROM " + table +
+        selectSql(metricType, table) +
         " WHERE datetime BETWEEN " + earliest + " AND " + (latest - 1)
       );
   }
 
-  private void deleteRecordsInRange(long earliest, long latest, String table, Connection conn) throws SQLException {
+  /**
+   * Gets a SELECT of every column of a metric type's table, joining the host
+   * of every record and the names of process records.
+   */
+  private static String selectSql(String metricType, String table) {
+    return Fields.METRIC_TYPE_PROCESSES.equals(metricType)
+      ? ProcessNames.selectSql(table)
+      : "SELECT t.*, h." + Hosts.HOST + " FROM " + table + " t" + Hosts.joinSql("t");
+  }
+
+  private int deleteRecordsInRange(long earliest, long latest, String table, Connection conn) throws SQLException {
     // Earliest is inclusive, latest is exclusive
-    conn.createStatement()
-      .executeUpdate(
-        "DELETE FROM " + table +
-          " WHERE datetime BETWEEN " + earliest + " AND " + (latest - 1)
-      );
+    int deleted = 0;
+
+    try (Statement stmt = conn.createStatement()) {
+      for (String t : tablesInRange(table, earliest, latest)) {
+        deleted += stmt.executeUpdate(
+          "DELETE FROM " + t +
+            " WHERE datetime BETWEEN " + earliest + " AND " + (latest - 1)
+        );
+      }
+    }
+
+    return deleted;
   }
 
-  private void storeLastPruneBound(String metricType, long exclusiveBound) throws SQLException {
-    try (Connection conn = getSqliteConnection()) {
-      conn.createStatement().execute(
-        "REPLACE INTO " + PRUNE_BOUND_TABLE +
-          " (" + Fields.METRIC_TYPE + ',' + BOUND + ") VALUES (" +
-          '\'' + metricType + '\'' + ',' + exclusiveBound + ')' + ';'
-      );
+  private static void storeLastPruneBound(String boundKey, long exclusiveBound, Connection conn) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(
+      "REPLACE INTO " + PRUNE_BOUND_TABLE + " (" + Fields.METRIC_TYPE + ',' + BOUND + ") VALUES (?,?)")) {
+      ps.setString(1, boundKey);
+      ps.setLong(2, exclusiveBound);
+      ps.executeUpdate();
+    }
+  }
+
+  private long countRecordsInRange(long earliest, long latest, String table, Connection conn) throws SQLException {
+    // Earliest is inclusive and latest is exclusive
+    long count = 0;
+
+    for (String t : tablesInRange(table, earliest, latest)) {
+      try (PreparedStatement ps = conn.prepareStatement(
+        "SELECT COUNT(*) FROM " + t + " WHERE " + Fields.DATETIME + " BETWEEN ? AND ?")) {
+        ps.setLong(1, earliest);
+        ps.setLong(2, latest - 1);
+
+        ResultSet rs = ps.executeQuery();
+        count += rs.next() ? rs.getLong(1) : 0;
+      }
+    }
+
+    return count;
+  }
+
+  private long getEarliestRecordTime(long earliest, long latest, String table, Connection conn) throws SQLException {
+    // Earliest is inclusive and latest is exclusive, returns -1 if there are no records
+    for (String t : tablesInRange(table, earliest, latest)) {
+      try (PreparedStatement ps = conn.prepareStatement(
+        "SELECT MIN(" + Fields.DATETIME + ") FROM " + t + " WHERE " + Fields.DATETIME + " BETWEEN ? AND ?")) {
+        ps.setLong(1, earliest);
+        ps.setLong(2, latest - 1);
+
+        ResultSet rs = ps.executeQuery();
+        rs.next();
+        long first = rs.getLong(1);
+
+        // Partitions are in time order, so the first with a record has the earliest
+        if (!rs.wasNull())
+          return first;
+      }
     }
+
+    return -1;
   }
 
   private long getLastPruneBound(String metricType) {
-    try (Connection conn = getSqliteConnection()) {
+    try (Connection conn = getReadConnection()) {
       ResultSet rs = conn.createStatement().executeQuery(
         "SELECT * FROM " + PRUNE_BOUND_TABLE +
           " WHERE " + Fields.METRIC_TYPE + " = '" + metricType + '\''
@@ -423,23 +2392,83 @@ public class SQLiteMetricsImpl implements MetricsPersistenceService {
     }
   }
 
-  private void createPruneBoundTable() throws SQLException {
-    try (Connection conn = getSqliteConnection()) {
-      conn.createStatement().execute(
-        "CREATE TABLE IF NOT EXISTS " + PRUNE_BOUND_TABLE + " ( " +
-          Fields.METRIC_TYPE + " TEXT NOT NULL PRIMARY KEY, " +
-          BOUND + " BIGINT NOT NULL);"
-      );
+  /**
+   * Creates the rollup tier tables of each metric type that supports them.
+   * A newly created table is filled from the raw records already persisted.
+   */
+  private void createRollupTables(Connection conn) throws SQLException {
+    for (String metricType : SqlRollups.metricTypes()) {
+      if (!tableExists(metricType, conn))
+        continue;
+
+      for (RollupTier tier : RollupTier.values()) {
+        String table = tier.tableName(metricType);
+
+        if (tableExists(table, conn))
+          continue;
+
+        try (Statement stmt = conn.createStatement()) {
+          stmt.execute(SqlRollups.createTableSql(metricType, tier));
+          int rows = stmt.executeUpdate(SqlRollups.backfillSql(metricType, tier));
+
+          LOGGER.info("Created rollup table \"{}\" with {} rows", table, rows);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds the sketch columns to rollup tier tables created before rollups
+   * carried sketches. Rows already rolled up keep no sketch, and quantiles
+   * of their windows are approximated from their averages.
+   */
+  private void addRollupSketches(Connection conn) throws SQLException {
+    for (String metricType : SqlRollups.metricTypes()) {
+      for (RollupTier tier : RollupTier.values()) {
+        String table = tier.tableName(metricType);
+
+        if (!tableExists(table, conn) || hasSketchColumns(table, conn))
+          continue;
+
+        try (Statement stmt = conn.createStatement()) {
+          for (String sql : SqlRollups.addSketchColumnsSql(metricType, tier))
+            stmt.execute(sql);
+        }
+
+        LOGGER.info("Added quantile sketches to rollup table \"{}\"", table);
+      }
+    }
+  }
+
+  private static boolean hasSketchColumns(String table, Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")");
+
+      while (rs.next()) {
+        if (rs.getString("name").endsWith(SqlSketches.SKETCH_SUFFIX))
+          return true;
+      }
+
+      return false;
     }
   }
 
-  private static long getPruneUpperBound() {
-    // Exclusive upper bound
-    return Instant.now().toEpochMilli() - PRUNE_ELIGIBILITY_MS;
+  private static boolean tableExists(String table, Connection conn) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(
+      "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?")) {
+      ps.setString(1, table);
+      return ps.executeQuery().next();
+    }
   }
 
-  private void setNextPruneTime() {
-    nextPruneTime = Instant.now().toEpochMilli() + ONE_HOUR_MS;
+  private void createPruneBoundTable(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute(
+        "CREATE TABLE IF NOT EXISTS " + PRUNE_BOUND_TABLE + " ( " +
+          Fields.METRIC_TYPE + " TEXT NOT NULL PRIMARY KEY, " +
+          BOUND + " BIGINT NOT NULL);"
+      );
+    }
   }
 
 }
@@ -0,0 +1,206 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Applies versioned changes to a database schema. Each migration has a
+ * version number, and the versions applied to a database are recorded in
+ * its <tt>schema_version</tt> table. {@link #migrate(Connection)} applies
+ * every migration newer than the database's version, in version order, all
+ * in a single transaction, so a database is never left partially migrated.
+ */
+public class SchemaMigrator {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SchemaMigrator.class);
+
+  /**
+   * Table recording the migrations applied to a database
+   */
+  public static final String VERSION_TABLE = "schema_version";
+
+  /**
+   * A change to the database schema, applied on the connection passed in.
+   * Migrations must not commit or roll back.
+   */
+  @FunctionalInterface
+  public interface Migration {
+    void apply(Connection conn) throws SQLException;
+  }
+
+  private static class VersionedMigration {
+    private final String description;
+    private final Migration migration;
+
+    private VersionedMigration(String description, Migration migration) {
+      this.description = description;
+      this.migration = migration;
+    }
+  }
+
+  private final Map<Integer, VersionedMigration> migrations = new TreeMap<>();
+
+  /**
+   * Adds a migration.
+   *
+   * @param version     schema version the migration produces, greater than 0
+   * @param description short description of the change
+   * @param migration   change to apply
+   * @return this <tt>SchemaMigrator</tt>
+   * @throws IllegalArgumentException if the version is invalid or already added
+   */
+  public SchemaMigrator add(int version, String description, Migration migration) {
+    if (version < 1 || migrations.containsKey(version))
+      throw new IllegalArgumentException("Invalid or duplicate schema version: " + version);
+
+    migrations.put(version, new VersionedMigration(description, migration));
+    return this;
+  }
+
+  /**
+   * Adds a migration that executes a script of SQL statements.
+   *
+   * @param version     schema version the migration produces, greater than 0
+   * @param description short description of the change
+   * @param script      SQL statements, see {@link #splitStatements(String)}
+   * @return this <tt>SchemaMigrator</tt>
+   */
+  public SchemaMigrator addScript(int version, String description, String script) {
+    return add(version, description, conn -> executeScript(conn, script));
+  }
+
+  /**
+   * Applies all migrations newer than the database's schema version and
+   * commits them. If any migration fails, everything is rolled back.
+   *
+   * @param conn connection with auto commit disabled
+   * @return schema version of the database after migrating
+   * @throws SQLException if a migration fails
+   */
+  public int migrate(Connection conn) throws SQLException {
+    try {
+      try (Statement stmt = conn.createStatement()) {
+        stmt.execute("CREATE TABLE IF NOT EXISTS " + VERSION_TABLE + " (" +
+          "version INTEGER NOT NULL PRIMARY KEY, " +
+          "description TEXT NOT NULL, " +
+          "applied BIGINT NOT NULL)");
+      }
+
+      int version = getSchemaVersion(conn);
+
+      for (Map.Entry<Integer, VersionedMigration> entry : migrations.entrySet()) {
+        if (entry.getKey() <= version)
+          continue;
+
+        VersionedMigration migration = entry.getValue();
+        LOGGER.info("Migrating database schema to version {}: {}", entry.getKey(), migration.description);
+
+        migration.migration.apply(conn);
+
+        try (PreparedStatement ps = conn.prepareStatement(
+          "INSERT INTO " + VERSION_TABLE + " (version, description, applied) VALUES (?,?,?)")) {
+          ps.setInt(1, entry.getKey());
+          ps.setString(2, migration.description);
+          ps.setLong(3, Instant.now().toEpochMilli());
+          ps.executeUpdate();
+        }
+
+        version = entry.getKey();
+      }
+
+      conn.commit();
+
+      return version;
+    } catch (SQLException e) {
+      LOGGER.error("Database schema migration failed, rolling back", e);
+      conn.rollback();
+      throw e;
+    }
+  }
+
+  /**
+   * Gets the schema version of a database.
+   *
+   * @param conn database connection
+   * @return latest applied schema version, or 0 if none have been applied
+   * @throws SQLException if the version table cannot be read
+   */
+  public static int getSchemaVersion(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      ResultSet rs = stmt.executeQuery("SELECT MAX(version) FROM " + VERSION_TABLE);
+      return rs.next() ? rs.getInt(1) : 0;
+    }
+  }
+
+  /**
+   * Executes each statement of a SQL script.
+   *
+   * @param conn   database connection
+   * @param script SQL statements, see {@link #splitStatements(String)}
+   * @throws SQLException if a statement fails
+   */
+  public static void executeScript(Connection conn, String script) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      for (String sql : splitStatements(script))
+        stmt.execute(sql);
+    }
+  }
+
+  /**
+   * Splits a SQL script into statements at each semi colon outside of quotes.
+   * "--" comments are removed. Statements containing semi colons of their
+   * own, such as triggers, are not supported.
+   *
+   * @param script SQL statements
+   * @return individual statements, without their semi colons
+   */
+  public static List<String> splitStatements(String script) {
+    List<String> statements = new ArrayList<>();
+    StringBuilder sql = new StringBuilder();
+    char quote = 0;
+
+    for (int i = 0; i < script.length(); i++) {
+      char c = script.charAt(i);
+
+      if (quote != 0) {
+        if (c == quote)
+          quote = 0;
+      } else if (c == '\'' || c == '"') {
+        quote = c;
+      } else if (c == '-' && i + 1 < script.length() && script.charAt(i + 1) == '-') {
+        // Skip to the end of the line
+        while (i + 1 < script.length() && script.charAt(i + 1) != '\n')
+          i++;
+
+        continue;
+      } else if (c == ';') {
+        addStatement(statements, sql);
+        sql = new StringBuilder();
+        continue;
+      }
+
+      sql.append(c);
+    }
+
+    addStatement(statements, sql);
+
+    return statements;
+  }
+
+  private static void addStatement(List<String> statements, StringBuilder sql) {
+    String statement = sql.toString().trim();
+
+    if (!statement.isEmpty())
+      statements.add(statement);
+  }
+}
@@ -0,0 +1,822 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import edu.marist.mscs710.metricscollector.Metric;
+import edu.marist.mscs710.metricscollector.data.CpuCoreData;
+import edu.marist.mscs710.metricscollector.data.CpuData;
+import edu.marist.mscs710.metricscollector.data.MemoryData;
+import edu.marist.mscs710.metricscollector.data.MetricData;
+import edu.marist.mscs710.metricscollector.data.NetworkData;
+import edu.marist.mscs710.metricscollector.data.ProcessData;
+import edu.marist.mscs710.metricscollector.data.SystemData;
+import edu.marist.mscs710.metricscollector.metric.Fields;
+import edu.marist.mscs710.persistenceapi.MetricAggregate;
+import edu.marist.mscs710.persistenceapi.MetricsPersistenceService;
+import edu.marist.mscs710.persistenceapi.ProcessLifetime;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static edu.marist.mscs710.metricscollector.utils.DataUtils.weightedAverage;
+
+/**
+ * Sharded implementation of <tt>MetricsPersistenceService</tt>, spreading
+ * metrics over several SQLite databases in one directory. Each shard is a
+ * <tt>SQLiteMetricsImpl</tt> with its own database file, writer connection
+ * and pruner, so writes to separate shards never wait on each other.
+ * <p>
+ * Metrics persisted with Kafka offsets are written to the shard of their
+ * topic partition, along with the offsets, so a partition's offsets always
+ * live with its metrics, and whichever consumer is assigned the partition
+ * resumes from its shard. Metrics persisted without offsets are written to
+ * the shard of their host's group, so a host always lands in the same shard.
+ * <p>
+ * Every query fans out to every open shard in parallel, and the results are
+ * merged: metrics and process records in time order, summaries window by
+ * window, and top processes re-ranked. A host's metrics are not always in a
+ * single shard, as the collector maps hosts to partitions anew when the
+ * topic's partitions are increased, so a series (e.g. a host's CPU) may
+ * continue in another shard, even in the middle of a window. Rows of the
+ * same host, time and series read from several shards are therefore combined,
+ * as are the records and lifetimes of a process found in several shards, so
+ * the merged results are the same as those of a single database, except that
+ * quantiles of summaries merged from several shards are approximate, within
+ * the relative accuracy of <tt>QuantileSketch</tt>.
+ * <p>
+ * Shards already in the directory are opened on construction, and others
+ * as they are first written, e.g. when a consumer is assigned a new
+ * partition. A shard stays open, and readable, after its partition is
+ * revoked. Supported properties, all optional:
+ * <ul>
+ *   <li><tt>dbhostgroups</tt>: number of host groups metrics persisted without
+ *       offsets are spread over, default 1</li>
+ *   <li><tt>dbshardreadthreads</tt>: number of threads querying shards in
+ *       parallel, default the number of processors</li>
+ * </ul>
+ * Every other property is passed to each shard, see <tt>SQLiteMetricsImpl</tt>.
+ */
+public class ShardedMetricsImpl implements MetricsPersistenceService {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ShardedMetricsImpl.class);
+
+  private static final String SHARD_FILE_PREFIX = "metrics-shard-";
+  private static final String SHARD_FILE_SUFFIX = ".db";
+  private static final Pattern SHARD_FILE = Pattern.compile(
+    Pattern.quote(SHARD_FILE_PREFIX) + "(\\d+)" + Pattern.quote(SHARD_FILE_SUFFIX));
+  private static final int DEFAULT_HOST_GROUPS = 1;
+  private static final Map<String, ToDoubleFunction<ProcessData>> TOP_PROCESS_VALUES = new HashMap<>();
+
+  static {
+    TOP_PROCESS_VALUES.put(Fields.PROCESSES_CPU_USAGE, ProcessData::getCpuUsage);
+    TOP_PROCESS_VALUES.put(Fields.PROCESSES_MEMORY, ProcessData::getMemory);
+    TOP_PROCESS_VALUES.put(Fields.PROCESSES_KB_READ, ProcessData::getKbRead);
+    TOP_PROCESS_VALUES.put(Fields.PROCESSES_KB_WRITTEN, ProcessData::getKbWritten);
+  }
+
+  // Combiners of the metric types read from rollups, combining rows of the
+  // same series into one
+  private static final Map<Class<?>, Function<List<MetricData>, List<MetricData>>> COMBINERS = new HashMap<>();
+
+  static {
+    addCombiner(CpuData.class, metrics -> Collections.singletonList(CpuData.combine(metrics)));
+    addCombiner(CpuCoreData.class, CpuCoreData::combine);
+    addCombiner(MemoryData.class, metrics -> Collections.singletonList(MemoryData.combine(metrics)));
+    addCombiner(NetworkData.class, metrics -> Collections.singletonList(NetworkData.combine(metrics)));
+    addCombiner(SystemData.class, metrics -> Collections.singletonList(SystemData.combine(metrics)));
+  }
+
+  private final File dbDirectory;
+  private final String dbSchemaPath;
+  private final boolean autoPrune;
+  private final Properties props;
+  private final int hostGroups;
+  private final Map<Integer, SQLiteMetricsImpl> shards = new ConcurrentSkipListMap<>();
+  private final ExecutorService readers;
+
+  /**
+   * Constructs a new <tt>ShardedMetricsImpl</tt>, which will open every
+   * shard database in "dbDirectory", creating the directory if it does not
+   * exist. Every shard's schema is created/updated starting from the ".sql"
+   * file at "dbSchemaPath", as for <tt>SQLiteMetricsImpl</tt>.
+   *
+   * @param dbDirectory  path of the directory holding the shard database files
+   * @param dbSchemaPath path of the sql database schema file
+   * @param autoPrune    if true, each shard will prune itself periodically on
+   *                     a background thread
+   * @param props        tuning properties for the shards
+   * @throws SQLException if a shard cannot be opened
+   * @throws IOException  if the directory or schema file cannot be read
+   */
+  public ShardedMetricsImpl(String dbDirectory, String dbSchemaPath, boolean autoPrune, Properties props)
+    throws SQLException, IOException {
+    this.dbDirectory = new File(dbDirectory);
+    this.dbSchemaPath = dbSchemaPath;
+    this.autoPrune = autoPrune;
+    this.props = props;
+    this.hostGroups = Math.max(1,
+      Integer.parseInt(props.getProperty("dbhostgroups", Integer.toString(DEFAULT_HOST_GROUPS))));
+
+    int readThreads = Math.max(1, Integer.parseInt(props.getProperty("dbshardreadthreads",
+      Integer.toString(Runtime.getRuntime().availableProcessors()))));
+    AtomicInteger readerCount = new AtomicInteger(0);
+
+    this.readers = Executors.newFixedThreadPool(readThreads, r -> {
+      Thread t = new Thread(r, "metrics-shard-reader-" + readerCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+
+    if (!this.dbDirectory.isDirectory() && !this.dbDirectory.mkdirs())
+      throw new IOException("Could not create shard directory " + dbDirectory);
+
+    File[] files = this.dbDirectory.listFiles();
+
+    try {
+      for (File file : files == null ? new File[0] : files) {
+        Matcher matcher = SHARD_FILE.matcher(file.getName());
+
+        if (matcher.matches())
+          openShard(Integer.parseInt(matcher.group(1)));
+      }
+    } catch (SQLException | IOException e) {
+      close();
+      throw e;
+    }
+
+    LOGGER.info("ShardedMetricsImpl created for db directory '{}' with {} shards, {} host groups",
+      dbDirectory, shards.size(), hostGroups);
+  }
+
+  /**
+   * Opens a shard, creating its database if it does not exist. Opening a
+   * shard that is already open returns it.
+   *
+   * @param shard shard id, i.e. a topic partition or host group
+   * @return the shard
+   * @throws SQLException if the shard cannot be opened
+   * @throws IOException  if the schema file cannot be read
+   */
+  public synchronized SQLiteMetricsImpl openShard(int shard) throws SQLException, IOException {
+    SQLiteMetricsImpl db = shards.get(shard);
+
+    if (db == null) {
+      String dbFilePath = new File(dbDirectory, SHARD_FILE_PREFIX + shard + SHARD_FILE_SUFFIX).getPath();
+      db = new SQLiteMetricsImpl(dbFilePath, dbSchemaPath, autoPrune, props);
+      shards.put(shard, db);
+
+      LOGGER.info("Opened shard {} at '{}'", shard, dbFilePath);
+    }
+
+    return db;
+  }
+
+  /**
+   * Gets an open shard.
+   *
+   * @param shard shard id
+   * @return the shard, or null if it is not open
+   */
+  public SQLiteMetricsImpl getShard(int shard) {
+    return shards.get(shard);
+  }
+
+  /**
+   * Gets the ids of the open shards.
+   *
+   * @return shard ids, in ascending order
+   */
+  public Set<Integer> getShards() {
+    return Collections.unmodifiableSet(new TreeSet<>(shards.keySet()));
+  }
+
+  /**
+   * Gets the shard metrics of a host are persisted to when they are
+   * persisted without Kafka offsets.
+   *
+   * @param host host, or null if unknown
+   * @return shard id of the host's group
+   */
+  public int hostGroupOf(String host) {
+    return Math.floorMod(Objects.hashCode(host), hostGroups);
+  }
+
+  @Override
+  public boolean persistMetric(Metric metric) {
+    return persistMetrics(Collections.singletonList(metric));
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Each host group is written to its shard in turn.
+   */
+  @Override
+  public boolean persistMetrics(List<? extends Metric> metrics) {
+    Map<Integer, List<Metric>> groups = new TreeMap<>();
+
+    for (Metric metric : metrics)
+      groups.computeIfAbsent(hostGroupOf(metric.getHost()), group -> new ArrayList<>()).add(metric);
+
+    boolean success = true;
+
+    for (Map.Entry<Integer, List<Metric>> group : groups.entrySet()) {
+      SQLiteMetricsImpl shard = openShardQuietly(group.getKey());
+      success &= shard != null && shard.persistMetrics(group.getValue());
+    }
+
+    return success;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The metrics and offsets are written to the shard of the offsets'
+   * partition, so every offset must be of the same partition number.
+   *
+   * @throws IllegalArgumentException if the offsets are of several partitions
+   */
+  @Override
+  public boolean persistMetrics(List<? extends Metric> metrics, Map<TopicPartition, Long> offsets) {
+    if (offsets.isEmpty())
+      return persistMetrics(metrics);
+
+    Set<Integer> partitions = offsets.keySet().stream()
+      .map(TopicPartition::partition)
+      .collect(Collectors.toSet());
+
+    if (partitions.size() > 1)
+      throw new IllegalArgumentException("Metrics of several partitions cannot be persisted to one shard: " +
+        offsets.keySet());
+
+    SQLiteMetricsImpl shard = openShardQuietly(partitions.iterator().next());
+
+    return shard != null && shard.persistMetrics(metrics, offsets);
+  }
+
+  private SQLiteMetricsImpl openShardQuietly(int shard) {
+    try {
+      return openShard(shard);
+    } catch (SQLException | IOException e) {
+      LOGGER.error("Could not open shard {}", shard, e);
+      return null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Each partition's offsets are read from every shard, and the shard of the
+   * partition always holds the latest.
+   */
+  @Override
+  public Map<TopicPartition, Long> getConsumerOffsets(String topic) {
+    List<Map<TopicPartition, Long>> results = fanOut(shard -> shard.getConsumerOffsets(topic));
+
+    if (results == null)
+      return null;
+
+    Map<TopicPartition, Long> offsets = new HashMap<>();
+    results.forEach(result -> result.forEach((partition, offset) -> offsets.merge(partition, offset, Math::max)));
+
+    return offsets;
+  }
+
+  @Override
+  public List<String> getMetricTypes() {
+    return distinct(fanOut(SQLiteMetricsImpl::getMetricTypes));
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Hosts are ordered by shard, then by the order they were first persisted
+   * to it.
+   */
+  @Override
+  public List<String> getHosts() {
+    return distinct(fanOut(SQLiteMetricsImpl::getHosts));
+  }
+
+  @Override
+  public <T extends MetricData> List<T> getMetricsInRange(long earliest, long latest, Class<T> clazz) {
+    return getMetricsInRange(earliest, latest, clazz, (String) null);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Rollups read in place of pruned records are combined as for
+   * {@link #getMetricsAtResolution(long, long, Class, long, String)}.
+   */
+  @Override
+  public <T extends MetricData> List<T> getMetricsInRange(long earliest, long latest, Class<T> clazz, String host) {
+    return mergeSeries(fanOut(shard -> shard.getMetricsInRange(earliest, latest, clazz, host)), clazz);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Every shard is streamed at once, each on its own connection, and their
+   * records are merged in time order as the stream is consumed. Rows of a
+   * series at the same time in several shards, such as the rollups of a
+   * window split between shards, are combined as by
+   * {@link #getMetricsInRange(long, long, Class)}.
+   */
+  @Override
+  public <T extends MetricData> Stream<T> streamMetricsInRange(long earliest, long latest, Class<T> clazz) {
+    List<Stream<T>> streams = new ArrayList<>();
+
+    for (SQLiteMetricsImpl shard : shards.values()) {
+      Stream<T> stream = shard.streamMetricsInRange(earliest, latest, clazz);
+
+      if (stream == null) {
+        streams.forEach(Stream::close);
+        return null;
+      }
+
+      streams.add(stream);
+    }
+
+    Function<List<T>, List<T>> combiner = streams.size() > 1 ? combinerOf(clazz) : null;
+
+    return StreamSupport.stream(new MergedCursor<>(streams, combiner), false)
+      .onClose(() -> streams.forEach(Stream::close));
+  }
+
+  /**
+   * Merges the time ordered streams of several shards into one, always
+   * taking the earliest record at the head of a stream, and the first
+   * shard's on ties. With a combiner, the records of every stream at a time
+   * are taken at once and combined like <tt>mergeSeries</tt>.
+   */
+  private static class MergedCursor<T extends MetricData> extends Spliterators.AbstractSpliterator<T> {
+    private final PriorityQueue<ShardCursor<T>> cursors = new PriorityQueue<>(
+      Comparator.<ShardCursor<T>>comparingLong(cursor -> cursor.next.getEpochMillisTime())
+        .thenComparingInt(cursor -> cursor.shard));
+    private final Function<List<T>, List<T>> combiner;
+    private final Deque<T> combined = new ArrayDeque<>();
+
+    private MergedCursor(List<Stream<T>> streams, Function<List<T>, List<T>> combiner) {
+      super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+      this.combiner = combiner;
+
+      for (int i = 0; i < streams.size(); i++) {
+        ShardCursor<T> cursor = new ShardCursor<>(i, streams.get(i).iterator());
+
+        if (cursor.advance())
+          cursors.add(cursor);
+      }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+      if (combiner == null) {
+        T next = poll();
+
+        if (next == null)
+          return false;
+
+        action.accept(next);
+        return true;
+      }
+
+      if (combined.isEmpty()) {
+        if (cursors.isEmpty())
+          return false;
+
+        long datetime = cursors.peek().next.getEpochMillisTime();
+        List<T> rows = new ArrayList<>();
+
+        while (!cursors.isEmpty() && cursors.peek().next.getEpochMillisTime() == datetime)
+          rows.add(poll());
+
+        combined.addAll(combineSeries(rows, combiner));
+      }
+
+      action.accept(combined.poll());
+      return true;
+    }
+
+    private T poll() {
+      ShardCursor<T> cursor = cursors.poll();
+
+      if (cursor == null)
+        return null;
+
+      T next = cursor.next;
+
+      if (cursor.advance())
+        cursors.add(cursor);
+
+      return next;
+    }
+  }
+
+  private static class ShardCursor<T> {
+    private final int shard;
+    private final Iterator<T> records;
+    private T next;
+
+    private ShardCursor(int shard, Iterator<T> records) {
+      this.shard = shard;
+      this.records = records;
+    }
+
+    private boolean advance() {
+      next = records.hasNext() ? records.next() : null;
+      return next != null;
+    }
+  }
+
+  @Override
+  public <T extends MetricData> List<T> getMetricsAtResolution(long earliest, long latest, Class<T> clazz,
+                                                               long resolutionMillis) {
+    return getMetricsAtResolution(earliest, latest, clazz, resolutionMillis, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * A window of a series split between shards is read as a row from each
+   * shard, and the rows are combined into one, weighted by
+   * <tt>deltaMillis</tt>.
+   */
+  @Override
+  public <T extends MetricData> List<T> getMetricsAtResolution(long earliest, long latest, Class<T> clazz,
+                                                               long resolutionMillis, String host) {
+    return mergeSeries(fanOut(shard -> shard.getMetricsAtResolution(earliest, latest, clazz, resolutionMillis, host)),
+      clazz);
+  }
+
+  @Override
+  public List<MetricAggregate> getAggregates(long earliest, long latest, Class<? extends MetricData> clazz,
+                                             String field, long windowMillis, double... quantiles) {
+    return getAggregates(earliest, latest, clazz, null, field, windowMillis, quantiles);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Each shard summarizes its own records, with a sketch of each window's
+   * values, and the summaries of each window are merged before its
+   * quantiles are computed. Quantiles are approximate, even when read from
+   * raw records.
+   */
+  @Override
+  public List<MetricAggregate> getAggregates(long earliest, long latest, Class<? extends MetricData> clazz,
+                                             String host, String field, long windowMillis, double... quantiles) {
+    SQLiteMetricsImpl.checkAggregate(clazz, field, quantiles);
+
+    List<List<MergeableAggregate>> results = fanOut(shard ->
+      shard.getMergeableAggregates(earliest, latest, clazz, host, field, windowMillis));
+
+    if (results == null)
+      return null;
+
+    Map<Long, MergeableAggregate> windows = new TreeMap<>();
+
+    for (List<MergeableAggregate> result : results) {
+      for (MergeableAggregate aggregate : result)
+        windows.merge(aggregate.getDatetime(), aggregate, (merged, other) -> {
+          merged.merge(other);
+          return merged;
+        });
+    }
+
+    return windows.values().stream()
+      .map(window -> window.toAggregate(field, quantiles))
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * A process may have records in several shards, so with more than one
+   * shard every shard's processes are read, and each process's rows are
+   * combined before the processes are ranked.
+   */
+  @Override
+  public List<ProcessData> getTopProcesses(long earliest, long latest, String field, int n) {
+    SQLiteMetricsImpl.checkTopProcesses(field);
+
+    if (n <= 0)
+      return new ArrayList<>();
+
+    // A process ranked low in each of two shards may still be a top process
+    int shardLimit = shards.size() > 1 ? Integer.MAX_VALUE : n;
+    List<List<ProcessData>> results = fanOut(shard -> shard.getTopProcesses(earliest, latest, field, shardLimit));
+
+    if (results == null)
+      return null;
+
+    Map<List<Object>, ProcessData> processes = new LinkedHashMap<>();
+
+    for (List<ProcessData> result : results) {
+      for (ProcessData process : result)
+        processes.merge(Arrays.asList(process.getPid(), process.getStartTime(), process.getHost()), process,
+          ShardedMetricsImpl::combineProcess);
+    }
+
+    return processes.values().stream()
+      .sorted(Comparator.comparingDouble(TOP_PROCESS_VALUES.get(field)).reversed())
+      .limit(n)
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Combines the rows of a process read from two shards as
+   * <tt>getTopProcesses</tt> of a single database combines its records:
+   * weighted averages of the values, total <tt>deltaMillis</tt>, and the
+   * time, uptime and state of the last.
+   */
+  private static ProcessData combineProcess(ProcessData first, ProcessData second) {
+    ProcessData last = second.getEpochMillisTime() > first.getEpochMillisTime() ? second : first;
+    long firstMillis = first.getDeltaMillis();
+    long secondMillis = second.getDeltaMillis();
+
+    ProcessData combined = new ProcessData(first.getPid(), first.getName(), first.getStartTime(), last.getUpTime(),
+      weightedAverage(first.getCpuUsage(), firstMillis, second.getCpuUsage(), secondMillis),
+      (long) weightedAverage(first.getMemory(), firstMillis, second.getMemory(), secondMillis),
+      weightedAverage(first.getKbRead(), firstMillis, second.getKbRead(), secondMillis),
+      weightedAverage(first.getKbWritten(), firstMillis, second.getKbWritten(), secondMillis),
+      last.getPidState(), firstMillis + secondMillis, last.getEpochMillisTime());
+
+    combined.setHost(first.getHost());
+    return combined;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The lifetimes of a process found in several shards are combined.
+   */
+  @Override
+  public List<ProcessLifetime> getProcessLifetimes(long earliest, long latest) {
+    return getProcessLifetimes(earliest, latest, null);
+  }
+
+  @Override
+  public List<ProcessLifetime> getProcessLifetimes(long earliest, long latest, String host) {
+    List<List<ProcessLifetime>> results = fanOut(shard -> shard.getProcessLifetimes(earliest, latest, host));
+
+    if (results == null)
+      return null;
+
+    Map<List<Object>, ProcessLifetime> lifetimes = new LinkedHashMap<>();
+
+    for (List<ProcessLifetime> result : results) {
+      for (ProcessLifetime lifetime : result)
+        lifetimes.merge(Arrays.asList(lifetime.getPid(), lifetime.getStartTime(), lifetime.getHost()), lifetime,
+          ShardedMetricsImpl::combineLifetime);
+    }
+
+    return merge(Collections.singletonList(new ArrayList<>(lifetimes.values())),
+      Comparator.comparingLong(ProcessLifetime::getStartTime).thenComparingInt(ProcessLifetime::getPid));
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The lifetimes of the process found in several shards are combined.
+   */
+  @Override
+  public ProcessLifetime getProcessLifetime(int pid, long startTime) {
+    return getProcessLifetime(pid, startTime, null);
+  }
+
+  @Override
+  public ProcessLifetime getProcessLifetime(int pid, long startTime, String host) {
+    List<ProcessLifetime> lifetimes = fanOut(shard ->
+      Optional.ofNullable(shard.getProcessLifetime(pid, startTime, host)))
+      .stream()
+      .map(lifetime -> lifetime.orElse(null))
+      .filter(Objects::nonNull)
+      .collect(Collectors.toList());
+
+    if (lifetimes.isEmpty())
+      return null;
+
+    // Processes of other hosts with the same pid and start time are left out,
+    // as a single database returns one of them
+    String processHost = lifetimes.get(0).getHost();
+
+    return lifetimes.stream()
+      .filter(lifetime -> Objects.equals(processHost, lifetime.getHost()))
+      .reduce(ShardedMetricsImpl::combineLifetime)
+      .get();
+  }
+
+  private static ProcessLifetime combineLifetime(ProcessLifetime first, ProcessLifetime second) {
+    return new ProcessLifetime(first.getPid(), first.getName(), first.getStartTime(),
+      Math.min(first.getFirstSeen(), second.getFirstSeen()),
+      Math.max(first.getLastSeen(), second.getLastSeen()),
+      Math.max(first.getEnded(), second.getEnded()),
+      first.getSamples() + second.getSamples(),
+      first.getDeltaMillis() + second.getDeltaMillis(),
+      weightedAverage(first.getCpuUsage(), first.getDeltaMillis(), second.getCpuUsage(), second.getDeltaMillis()),
+      first.getKbRead() + second.getKbRead(),
+      first.getKbWritten() + second.getKbWritten(),
+      Math.max(first.getMaxMemory(), second.getMaxMemory()),
+      first.getHost());
+  }
+
+  @Override
+  public List<ProcessData> getProcessHistory(int pid, long startTime) {
+    return getProcessHistory(pid, startTime, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Without a host, only the records of the host of the first shard holding
+   * the process are kept, as for {@link #getProcessLifetime(int, long)}.
+   */
+  @Override
+  public List<ProcessData> getProcessHistory(int pid, long startTime, String host) {
+    List<List<ProcessData>> results = fanOut(shard -> shard.getProcessHistory(pid, startTime, host));
+
+    if (results == null || host != null)
+      return mergeByTime(results);
+
+    Optional<List<ProcessData>> first = results.stream()
+      .filter(result -> !result.isEmpty())
+      .findFirst();
+
+    if (!first.isPresent())
+      return new ArrayList<>();
+
+    String processHost = first.get().get(0).getHost();
+
+    return mergeByTime(results).stream()
+      .filter(record -> Objects.equals(processHost, record.getHost()))
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Runs a query on every open shard in parallel.
+   *
+   * @return the result of each shard, in shard order, or null if any shard's
+   *         result is null
+   */
+  private <R> List<R> fanOut(Function<SQLiteMetricsImpl, R> query) {
+    List<CompletableFuture<R>> futures = shards.values().stream()
+      .map(shard -> CompletableFuture.supplyAsync(() -> query.apply(shard), readers))
+      .collect(Collectors.toList());
+    List<R> results = new ArrayList<>();
+
+    for (CompletableFuture<R> future : futures) {
+      R result;
+
+      try {
+        result = future.join();
+      } catch (CompletionException e) {
+        // Argument errors are thrown as they are by a single database
+        if (e.getCause() instanceof RuntimeException)
+          throw (RuntimeException) e.getCause();
+
+        throw e;
+      }
+
+      if (result == null)
+        return null;
+
+      results.add(result);
+    }
+
+    return results;
+  }
+
+  private static <T extends MetricData> List<T> mergeByTime(List<List<T>> results) {
+    return merge(results, Comparator.comparingLong(MetricData::getEpochMillisTime));
+  }
+
+  /**
+   * Merges the results of every shard in time order, like
+   * <tt>mergeByTime</tt>, combining the rows of each host at the same time
+   * that are of the same series, e.g. of the same CPU core.
+   */
+  private static <T extends MetricData> List<T> mergeSeries(List<List<T>> results, Class<T> clazz) {
+    List<T> merged = mergeByTime(results);
+    Function<List<T>, List<T>> combiner = combinerOf(clazz);
+
+    if (merged == null || combiner == null || results.size() < 2)
+      return merged;
+
+    List<T> combined = new ArrayList<>(merged.size());
+    int start = 0;
+
+    while (start < merged.size()) {
+      long datetime = merged.get(start).getEpochMillisTime();
+      int end = start + 1;
+
+      while (end < merged.size() && merged.get(end).getEpochMillisTime() == datetime)
+        end++;
+
+      combined.addAll(combineSeries(merged.subList(start, end), combiner));
+      start = end;
+    }
+
+    return combined;
+  }
+
+  /**
+   * Combines the rows of each host at a single time that are of the same
+   * series.
+   */
+  private static <T extends MetricData> List<T> combineSeries(List<T> rowsAtTime, Function<List<T>, List<T>> combiner) {
+    Map<String, List<T>> byHost = new LinkedHashMap<>();
+    List<T> combined = new ArrayList<>(rowsAtTime.size());
+
+    for (T metric : rowsAtTime)
+      byHost.computeIfAbsent(metric.getHost(), host -> new ArrayList<>()).add(metric);
+
+    for (Map.Entry<String, List<T>> host : byHost.entrySet()) {
+      List<T> rows = host.getValue();
+      List<T> series = rows.size() > 1 ? combiner.apply(rows) : rows;
+
+      // Rows are kept as they are unless some were of the same series
+      if (series.size() == rows.size()) {
+        combined.addAll(rows);
+      } else {
+        series.forEach(metric -> metric.setHost(host.getKey()));
+        combined.addAll(series);
+      }
+    }
+
+    return combined;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T extends MetricData> void addCombiner(Class<T> clazz, Function<List<T>, List<T>> combiner) {
+    COMBINERS.put(clazz, (Function<List<MetricData>, List<MetricData>>) (Function<?, ?>) combiner);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T extends MetricData> Function<List<T>, List<T>> combinerOf(Class<T> clazz) {
+    return (Function<List<T>, List<T>>) (Function<?, ?>) COMBINERS.get(clazz);
+  }
+
+  /**
+   * Merges the ordered results of every shard into one ordered list. The sort
+   * is stable, so records at the same time keep their shard order, and
+   * merges the already ordered runs in linear time.
+   */
+  private static <T> List<T> merge(List<List<T>> results, Comparator<? super T> order) {
+    if (results == null)
+      return null;
+
+    List<T> merged = results.stream()
+      .flatMap(List::stream)
+      .collect(Collectors.toList());
+
+    merged.sort(order);
+    return merged;
+  }
+
+  private static List<String> distinct(List<List<String>> results) {
+    if (results == null)
+      return null;
+
+    return results.stream()
+      .flatMap(List::stream)
+      .distinct()
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Closes every shard, waiting for queries in progress to finish.
+   */
+  @Override
+  public void close() {
+    readers.shutdown();
+
+    try {
+      if (!readers.awaitTermination(30, TimeUnit.SECONDS))
+        LOGGER.warn("Timed out waiting for shard queries to finish");
+    } catch (InterruptedException e) {
+      LOGGER.error(e.getMessage(), e);
+      Thread.currentThread().interrupt();
+    }
+
+    shards.values().forEach(SQLiteMetricsImpl::close);
+    shards.clear();
+  }
+}
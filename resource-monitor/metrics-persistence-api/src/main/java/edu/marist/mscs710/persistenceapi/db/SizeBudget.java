@@ -0,0 +1,202 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import edu.marist.mscs710.metricscollector.metric.Fields;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size budget of the database, and the downsampling used to stay within it.
+ * While the database is over budget, each prune run escalates the
+ * downsampling level, which downsamples the <tt>RetentionPolicy</tt> of
+ * process records first and the other metric types one level behind. Once
+ * the database is back under {@link #LOW_WATER_RATIO} of the budget, the
+ * level is relaxed one step per run.
+ * <p>
+ * Sizes and counters are updated by the pruning thread and may be read from
+ * any thread.
+ */
+public class SizeBudget {
+
+  /**
+   * Highest downsampling level
+   */
+  public static final int MAX_LEVEL = 10;
+
+  /**
+   * Fraction of the budget the database must be under for the downsampling
+   * level to be relaxed
+   */
+  public static final double LOW_WATER_RATIO = 0.8;
+
+  private final long budgetBytes;
+  private final AtomicLong sizeBytes = new AtomicLong(0);
+  private final AtomicLong freeBytes = new AtomicLong(0);
+  private final AtomicInteger level = new AtomicInteger(0);
+  private final AtomicLong escalations = new AtomicLong(0);
+  private final AtomicLong relaxations = new AtomicLong(0);
+  private final AtomicLong pagesVacuumed = new AtomicLong(0);
+
+  /**
+   * Constructs a new <tt>SizeBudget</tt> at downsampling level 0.
+   *
+   * @param budgetBytes maximum size of the database in bytes, or 0 for no
+   *                    budget
+   */
+  public SizeBudget(long budgetBytes) {
+    if (budgetBytes < 0)
+      throw new IllegalArgumentException("Size budget must not be negative: " + budgetBytes);
+
+    this.budgetBytes = budgetBytes;
+  }
+
+  /**
+   * Checks if the database has a size budget.
+   *
+   * @return true if there is a budget
+   */
+  public boolean isEnabled() {
+    return budgetBytes > 0;
+  }
+
+  /**
+   * Gets the maximum size of the database.
+   *
+   * @return budget in bytes, or 0 for no budget
+   */
+  public long getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  /**
+   * Gets the size of the database when it was last measured, including free
+   * pages not yet reclaimed.
+   *
+   * @return size in bytes
+   */
+  public long getSizeBytes() {
+    return sizeBytes.get();
+  }
+
+  /**
+   * Gets the size of the free pages of the database when it was last
+   * measured.
+   *
+   * @return free bytes
+   */
+  public long getFreeBytes() {
+    return freeBytes.get();
+  }
+
+  /**
+   * Gets the current downsampling level.
+   *
+   * @return level from 0, no downsampling, to {@link #MAX_LEVEL}
+   */
+  public int getLevel() {
+    return level.get();
+  }
+
+  /**
+   * Gets the number of times the downsampling level was raised.
+   *
+   * @return escalations
+   */
+  public long getEscalations() {
+    return escalations.get();
+  }
+
+  /**
+   * Gets the number of times the downsampling level was lowered.
+   *
+   * @return relaxations
+   */
+  public long getRelaxations() {
+    return relaxations.get();
+  }
+
+  /**
+   * Gets the number of free pages returned to the file system by incremental
+   * vacuum.
+   *
+   * @return pages vacuumed
+   */
+  public long getPagesVacuumed() {
+    return pagesVacuumed.get();
+  }
+
+  /**
+   * Checks if the database was over budget when last measured.
+   *
+   * @return true if over budget
+   */
+  public boolean isOverBudget() {
+    return isEnabled() && sizeBytes.get() > budgetBytes;
+  }
+
+  /**
+   * Gets the downsampling level of a metric type. Process records are
+   * downsampled first, at the current level, and other metric types one
+   * level behind.
+   *
+   * @param metricType type of the metric
+   * @return downsampling level of the metric type
+   */
+  public int levelFor(String metricType) {
+    int current = level.get();
+
+    return metricType.equals(Fields.METRIC_TYPE_PROCESSES) ? current : Math.max(current - 1, 0);
+  }
+
+  /**
+   * Gets the policy a metric type is pruned with at the current downsampling
+   * level.
+   *
+   * @param metricType type of the metric
+   * @param policy     configured retention policy of the metric type
+   * @return downsampled retention policy
+   */
+  public RetentionPolicy apply(String metricType, RetentionPolicy policy) {
+    return policy.downsampled(levelFor(metricType));
+  }
+
+  void setSize(long sizeBytes, long freeBytes) {
+    this.sizeBytes.set(sizeBytes);
+    this.freeBytes.set(freeBytes);
+  }
+
+  boolean escalate() {
+    if (level.get() >= MAX_LEVEL)
+      return false;
+
+    level.incrementAndGet();
+    escalations.incrementAndGet();
+    return true;
+  }
+
+  boolean relax() {
+    if (level.get() == 0 || sizeBytes.get() > budgetBytes * LOW_WATER_RATIO)
+      return false;
+
+    level.decrementAndGet();
+    relaxations.incrementAndGet();
+    return true;
+  }
+
+  void addPagesVacuumed(long pages) {
+    pagesVacuumed.addAndGet(pages);
+  }
+
+  @Override
+  public String toString() {
+    return "SizeBudget{" +
+      "budgetBytes=" + budgetBytes +
+      ", sizeBytes=" + sizeBytes +
+      ", freeBytes=" + freeBytes +
+      ", level=" + level +
+      ", escalations=" + escalations +
+      ", relaxations=" + relaxations +
+      ", pagesVacuumed=" + pagesVacuumed +
+      '}';
+  }
+}
@@ -0,0 +1,170 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import edu.marist.mscs710.metricscollector.system.Processes;
+import edu.marist.mscs710.metricscollector.metric.Fields;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SELECT statements that summarize a numeric field of a metric type over a
+ * time range inside SQLite, optionally in fixed windows, without loading any
+ * rows into Java objects.
+ * <p>
+ * Each summary row holds the window start as its <tt>datetime</tt>, the
+ * total <tt>delta_millis</tt>, the number of raw records, the
+ * <tt>delta_millis</tt>-weighted mean, the minimum and maximum, and one
+ * column per requested quantile. Quantiles are weighted by
+ * <tt>delta_millis</tt> as well: the quantile <tt>q</tt> is the smallest
+ * value such that the values up to it cover at least <tt>q</tt> of the
+ * window's time. Read from a rollup tier table, the mean, minimum, maximum
+ * and count are exact, and quantiles are read from the merged
+ * <tt>QuantileSketch</tt> of the rollup rows, within its relative accuracy.
+ * Rows rolled up before rollups carried sketches count as their average.
+ */
+public final class SqlAggregates {
+
+  private static final List<String> PROCESS_FIELDS = Arrays.asList(Fields.PROCESSES_UPTIME,
+    Fields.PROCESSES_CPU_USAGE, Fields.PROCESSES_MEMORY, Fields.PROCESSES_KB_READ, Fields.PROCESSES_KB_WRITTEN);
+
+  /**
+   * Gets the numeric fields of a metric type that can be summarized.
+   *
+   * @param metricType type of the metric
+   * @return field names, empty if the metric type is not supported
+   */
+  public static List<String> fields(String metricType) {
+    if (Fields.METRIC_TYPE_PROCESSES.equals(metricType))
+      return PROCESS_FIELDS;
+
+    SqlRollups.RollupColumns columns = SqlRollups.columns(metricType);
+
+    return columns == null ? Collections.emptyList() : columns.values;
+  }
+
+  /**
+   * Checks if a field of a metric type can be summarized.
+   *
+   * @param metricType type of the metric
+   * @param field      field name
+   * @return true if the field is a numeric field of the metric type
+   */
+  public static boolean supports(String metricType, String field) {
+    return fields(metricType).contains(field);
+  }
+
+  /**
+   * Gets a SELECT statement summarizing a field over a time range. Records
+   * of every series of the metric type (e.g. every CPU core, or every
+   * process) are summarized together; <tt>ENDED</tt> process records are
+   * left out.
+   * <p>
+   * The statement takes <tt>?1</tt> the earliest datetime inclusive,
+   * <tt>?2</tt> the latest datetime inclusive, and one parameter per
+   * quantile from <tt>?3</tt>, each from 0.0-1.0. Rows are ordered by
+   * datetime, and the range is summarized as a single row with <tt>?1</tt>
+   * as its datetime if <tt>bucketMillis</tt> is not positive. Columns are,
+   * in order: datetime, delta_millis, count, mean, min, max, then the
+   * quantiles.
+   *
+   * @param metricType   type of the metric
+   * @param field        field to summarize
+   * @param table        table to read: a rollup tier table, or a raw table,
+   *                     partition, or subquery of partitions
+   * @param tier         rollup tier of <tt>table</tt>, or null for raw records
+   * @param bucketMillis size of each window, aligned to the epoch, or 0 to
+   *                     summarize the whole range
+   * @param quantiles    number of quantile parameters
+   * @return sql select String
+   * @throws IllegalArgumentException if the field cannot be summarized
+   */
+  public static String selectSql(String metricType, String field, String table, RollupTier tier, long bucketMillis,
+                                 int quantiles) {
+    return selectSql(metricType, field, table, tier, bucketMillis, quantiles, false);
+  }
+
+  /**
+   * Gets a SELECT statement summarizing a field over a time range like
+   * {@link #selectSql(String, String, String, RollupTier, long, int)}, but
+   * with a single <tt>QuantileSketch</tt> blob of each window's values in
+   * place of the quantile columns, so summaries of separate databases can
+   * be merged. The sketch is built from the raw records of a raw table, or
+   * merged from the rollup rows of a rollup tier table.
+   * <p>
+   * The statement takes <tt>?1</tt> the earliest datetime inclusive and
+   * <tt>?2</tt> the latest datetime inclusive. Columns are, in order:
+   * datetime, delta_millis, count, mean, min, max, sketch.
+   *
+   * @param metricType   type of the metric
+   * @param field        field to summarize
+   * @param table        table to read: a rollup tier table, or a raw table,
+   *                     partition, or subquery of partitions
+   * @param tier         rollup tier of <tt>table</tt>, or null for raw records
+   * @param bucketMillis size of each window, aligned to the epoch, or 0 to
+   *                     summarize the whole range
+   * @return sql select String
+   * @throws IllegalArgumentException if the field cannot be summarized
+   */
+  public static String sketchSql(String metricType, String field, String table, RollupTier tier, long bucketMillis) {
+    return selectSql(metricType, field, table, tier, bucketMillis, 0, true);
+  }
+
+  private static String selectSql(String metricType, String field, String table, RollupTier tier, long bucketMillis,
+                                  int quantiles, boolean sketched) {
+    if (!supports(metricType, field))
+      throw new IllegalArgumentException("Cannot summarize field " + field + " of " + metricType);
+
+    boolean windowed = bucketMillis > 0;
+    String bucket = windowed ? "(" + Fields.DATETIME + " / " + bucketMillis + ") * " + bucketMillis : "?1";
+    String weight = "MAX(" + Fields.DELTA_MILLIS + ", 0)";
+
+    StringBuilder inner = new StringBuilder("SELECT ").append(bucket).append(" AS bucket, ")
+      .append(weight).append(" AS w, ")
+      .append(field).append(" AS v, ")
+      .append(tier == null ? field : field + SqlRollups.MIN_SUFFIX).append(" AS lo, ")
+      .append(tier == null ? field : field + SqlRollups.MAX_SUFFIX).append(" AS hi, ")
+      .append(tier == null ? "1" : SqlRollups.SAMPLES).append(" AS n");
+
+    if ((quantiles > 0 || sketched) && tier != null) {
+      String sketch = field + SqlSketches.SKETCH_SUFFIX;
+      inner.append(", COALESCE(").append(sketch).append(", sketch_add(NULL, ").append(field).append(", ")
+        .append(Fields.DELTA_MILLIS).append(")) AS s");
+    } else if (quantiles > 0 && !sketched) {
+      String window = windowed ? "PARTITION BY " + bucket : "";
+      inner.append(", SUM(").append(weight).append(") OVER (").append(window).append(" ORDER BY ").append(field)
+        .append(" ROWS UNBOUNDED PRECEDING) AS cum")
+        .append(", SUM(").append(weight).append(") OVER (").append(window).append(") AS total");
+    }
+
+    inner.append(" FROM ").append(table)
+      .append(" WHERE ").append(Fields.DATETIME).append(" BETWEEN ?1 AND ?2 AND ").append(field).append(" IS NOT NULL");
+
+    if (Fields.METRIC_TYPE_PROCESSES.equals(metricType))
+      inner.append(" AND ").append(Fields.PROCESSES_STATE).append(" <> '").append(Processes.PidState.ENDED).append('\'');
+
+    // Same as SqlRollups' weighted average, falling back to a plain average
+    StringBuilder sql = new StringBuilder("SELECT bucket, SUM(w), SUM(n), ")
+      .append("COALESCE(SUM(v * w) * 1.0 / NULLIF(SUM(w), 0), AVG(v)), MIN(lo), MAX(hi)");
+
+    if (sketched)
+      sql.append(tier != null ? ", sketch_merge(s)" : ", sketch_of(v, w)");
+
+    for (int i = 0; i < quantiles; i++) {
+      if (tier != null) {
+        sql.append(", sketch_quantile(sketch_merge(s), ?").append(i + 3).append(')');
+      } else {
+        // Values only grow with the running total, so the smallest value whose
+        // running total reaches the quantile is the weighted quantile
+        sql.append(", MIN(CASE WHEN cum >= total * ?").append(i + 3).append(" THEN v END)");
+      }
+    }
+
+    sql.append(" FROM (").append(inner).append(')');
+
+    if (windowed)
+      sql.append(" GROUP BY bucket ORDER BY bucket");
+
+    return sql.toString();
+  }
+}
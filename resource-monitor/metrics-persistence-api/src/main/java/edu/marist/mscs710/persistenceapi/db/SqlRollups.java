@@ -0,0 +1,390 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import edu.marist.mscs710.metricscollector.Metric;
+import edu.marist.mscs710.metricscollector.data.*;
+import edu.marist.mscs710.metricscollector.metric.Fields;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * SQL equivalents of the <tt>combine</tt> methods of <tt>MetricData</tt>
+ * types whose fields are all <tt>delta_millis</tt>-weighted averages. These
+ * types are rolled up into the tables of each <tt>RollupTier</tt> inside
+ * SQLite, as they are persisted, without loading any rows into Java objects.
+ * <p>
+ * Each rollup row holds the window start as its <tt>datetime</tt>, the total
+ * <tt>delta_millis</tt> and number of <tt>samples</tt> in the window, and for
+ * every value column its weighted average along with <tt>&lt;column&gt;_min</tt>,
+ * <tt>&lt;column&gt;_max</tt> and <tt>&lt;column&gt;_sketch</tt>, a
+ * <tt>QuantileSketch</tt> of the window's values built by the functions of
+ * <tt>SqlSketches</tt>, which must be registered on the connection. Each
+ * host has its own rows, keyed by the id of the host in <tt>Hosts</tt>.
+ * <p>
+ * <tt>ProcessData</tt> has no SQL equivalent, since combining processes
+ * depends on the lifecycle of each pid.
+ */
+public final class SqlRollups {
+
+  /**
+   * Number of raw rows combined into a rollup row
+   */
+  public static final String SAMPLES = "samples";
+
+  /**
+   * Suffix of the column holding the minimum of a value column
+   */
+  public static final String MIN_SUFFIX = "_min";
+
+  /**
+   * Suffix of the column holding the maximum of a value column
+   */
+  public static final String MAX_SUFFIX = "_max";
+
+  /**
+   * Columns of a metric table and how each is combined.
+   */
+  static final class RollupColumns {
+    /**
+     * Columns that identify a separate series within the table, grouped on
+     */
+    final List<String> keys;
+
+    /**
+     * Columns combined with a weighted average, minimum and maximum
+     */
+    final List<String> values;
+
+    RollupColumns(List<String> keys, List<String> values) {
+      this.keys = keys;
+      this.values = values;
+    }
+  }
+
+  static RollupColumns columns(String metricType) {
+    switch (metricType) {
+      case (Fields.METRIC_TYPE_CPU):
+        return new RollupColumns(Collections.emptyList(),
+          Arrays.asList(Fields.CPU_UTILIZATION, Fields.CPU_TEMPERATURE));
+
+      case (Fields.METRIC_TYPE_CPU_CORE):
+        return new RollupColumns(Collections.singletonList(Fields.CPU_CORE_CORE_ID),
+          Collections.singletonList(Fields.CPU_CORE_CORE_UTILIZATION));
+
+      case (Fields.METRIC_TYPE_MEMORY):
+        return new RollupColumns(Collections.emptyList(),
+          Arrays.asList(Fields.MEMORY_UTILIZATION, Fields.MEMORY_PAGE_FAULTS));
+
+      case (Fields.METRIC_TYPE_NETWORK):
+        return new RollupColumns(Collections.emptyList(),
+          Arrays.asList(Fields.NETWORK_THROUGHPUT, Fields.NETWORK_SEND, Fields.NETWORK_RECEIVE));
+
+      case (Fields.METRIC_TYPE_SYSTEM_METRICS):
+        return new RollupColumns(Collections.emptyList(),
+          Collections.singletonList(Fields.SYSTEM_METRICS_UPTIME));
+
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Gets the metric types rolled up in SQL.
+   *
+   * @return metric types that have rollup tier tables
+   */
+  public static List<String> metricTypes() {
+    return Arrays.asList(Fields.METRIC_TYPE_CPU, Fields.METRIC_TYPE_CPU_CORE, Fields.METRIC_TYPE_MEMORY,
+      Fields.METRIC_TYPE_NETWORK, Fields.METRIC_TYPE_SYSTEM_METRICS);
+  }
+
+  /**
+   * Checks if a metric type is rolled up in SQL.
+   *
+   * @param metricType type of the metric
+   * @return true if the metric type has rollup tier tables
+   */
+  public static boolean supports(String metricType) {
+    return columns(metricType) != null;
+  }
+
+  /**
+   * Gets the ALTER TABLE statements adding the sketch columns to a rollup
+   * tier table created before rollups carried sketches. Existing rows are
+   * left without sketches.
+   *
+   * @param metricType type of the metric, i.e. the raw table name
+   * @param tier       rollup tier of the table
+   * @return sql alter table Strings, empty if the metric type is not supported
+   */
+  public static List<String> addSketchColumnsSql(String metricType, RollupTier tier) {
+    RollupColumns columns = columns(metricType);
+
+    if (columns == null)
+      return Collections.emptyList();
+
+    return columns.values.stream()
+      .map(col -> "ALTER TABLE " + tier.tableName(metricType) + " ADD COLUMN " + col + SqlSketches.SKETCH_SUFFIX + " BLOB")
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Gets the CREATE TABLE statement of a rollup tier table.
+   *
+   * @param metricType type of the metric, i.e. the raw table name
+   * @param tier       rollup tier of the table
+   * @return sql create table String, or null if the metric type is not supported
+   */
+  public static String createTableSql(String metricType, RollupTier tier) {
+    RollupColumns columns = columns(metricType);
+
+    if (columns == null)
+      return null;
+
+    StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ")
+      .append(tier.tableName(metricType)).append(" (")
+      .append(Fields.DATETIME).append(" BIGINT NOT NULL, ")
+      .append(Fields.DELTA_MILLIS).append(" BIGINT NOT NULL, ")
+      .append(SAMPLES).append(" INTEGER NOT NULL");
+
+    for (String key : columns.keys)
+      sql.append(", ").append(key).append(" INTEGER NOT NULL");
+
+    for (String col : columns.values) {
+      sql.append(", ").append(col).append(" REAL, ")
+        .append(col).append(MIN_SUFFIX).append(" REAL, ")
+        .append(col).append(MAX_SUFFIX).append(" REAL, ")
+        .append(col).append(SqlSketches.SKETCH_SUFFIX).append(" BLOB");
+    }
+
+    sql.append(", ").append(Hosts.COLUMN_SQL).append(", PRIMARY KEY (").append(Fields.DATETIME);
+
+    for (String key : columns.keys)
+      sql.append(", ").append(key);
+
+    return sql.append(", ").append(Hosts.HOST_ID).append("))").toString();
+  }
+
+  /**
+   * Gets an INSERT statement that adds a single metric to the open window of
+   * a rollup tier table, creating the window's row if it does not exist. The
+   * average is updated with the same math as <tt>DataUtils.weightedAverage</tt>.
+   * <p>
+   * Parameters are bound with {@link #bindUpsert(PreparedStatement, Metric, RollupTier, int)}.
+   *
+   * @param metricType type of the metric, i.e. the raw table name
+   * @param tier       rollup tier of the table
+   * @return sql upsert String, or null if the metric type is not supported
+   */
+  public static String upsertSql(String metricType, RollupTier tier) {
+    RollupColumns columns = columns(metricType);
+
+    if (columns == null)
+      return null;
+
+    StringBuilder insert = new StringBuilder("INSERT INTO ").append(tier.tableName(metricType))
+      .append(" (").append(Fields.DATETIME).append(", ").append(Fields.DELTA_MILLIS).append(", ").append(SAMPLES);
+    StringBuilder values = new StringBuilder(" VALUES (?1, ?2, 1");
+
+    // Each value parameter is used for the average, min, max and sketch
+    int param = 3;
+
+    for (String key : columns.keys) {
+      insert.append(", ").append(key);
+      values.append(", ?").append(param++);
+    }
+
+    for (String col : columns.values) {
+      insert.append(", ").append(col).append(", ").append(col).append(MIN_SUFFIX).append(", ").append(col).append(MAX_SUFFIX)
+        .append(", ").append(col).append(SqlSketches.SKETCH_SUFFIX);
+      values.append(", ?").append(param).append(", ?").append(param).append(", ?").append(param)
+        .append(", sketch_add(NULL, ?").append(param++).append(", ?2)");
+    }
+
+    // The host id is the last parameter
+    insert.append(", ").append(Hosts.HOST_ID);
+    values.append(", ?").append(param);
+
+    StringBuilder sql = insert.append(')').append(values).append(')')
+      .append(" ON CONFLICT (").append(Fields.DATETIME);
+
+    for (String key : columns.keys)
+      sql.append(", ").append(key);
+
+    sql.append(", ").append(Hosts.HOST_ID).append(") DO UPDATE SET ")
+      .append(Fields.DELTA_MILLIS).append(" = ").append(Fields.DELTA_MILLIS).append(" + excluded.").append(Fields.DELTA_MILLIS)
+      .append(", ").append(SAMPLES).append(" = ").append(SAMPLES).append(" + 1");
+
+    // Weight of the new value, or a plain running mean if no time is covered
+    String weight = "COALESCE(excluded." + Fields.DELTA_MILLIS + " * 1.0 / NULLIF(" + Fields.DELTA_MILLIS +
+      " + excluded." + Fields.DELTA_MILLIS + ", 0), 1.0 / (" + SAMPLES + " + 1))";
+
+    for (String col : columns.values) {
+      String min = col + MIN_SUFFIX;
+      String max = col + MAX_SUFFIX;
+      String sketch = col + SqlSketches.SKETCH_SUFFIX;
+
+      sql.append(", ").append(col).append(" = ").append(col)
+        .append(" + (excluded.").append(col).append(" - ").append(col).append(") * ").append(weight)
+        .append(", ").append(min).append(" = MIN(").append(min).append(", excluded.").append(min).append(')')
+        .append(", ").append(max).append(" = MAX(").append(max).append(", excluded.").append(max).append(')')
+        .append(", ").append(sketch).append(" = sketch_add(").append(sketch).append(", excluded.").append(col)
+        .append(", excluded.").append(Fields.DELTA_MILLIS).append(')');
+    }
+
+    return sql.toString();
+  }
+
+  /**
+   * Binds the values of a <tt>Metric</tt> to a statement created from
+   * {@link #upsertSql(String, RollupTier)} for the same metric type and tier.
+   * This method does not execute or batch the statement.
+   *
+   * @param ps     prepared upsert statement for the metric's type and tier
+   * @param metric metric data to bind
+   * @param tier   rollup tier of the statement
+   * @param hostId id of the metric's host in <tt>Hosts</tt>
+   * @throws SQLException if a value cannot be bound
+   * @throws IllegalArgumentException if the metric type is not supported
+   */
+  public static void bindUpsert(PreparedStatement ps, Metric metric, RollupTier tier, int hostId) throws SQLException {
+    if (!(metric instanceof MetricData))
+      throw new IllegalArgumentException("Unsupported metric class: " + metric.getClass().getName());
+
+    MetricData data = (MetricData) metric;
+    ps.setLong(1, tier.windowStart(data.getEpochMillisTime()));
+    ps.setLong(2, data.getDeltaMillis());
+
+    if (metric instanceof CpuData) {
+      CpuData cpu = (CpuData) metric;
+      ps.setDouble(3, cpu.getUtilization());
+      ps.setDouble(4, cpu.getTemperature());
+    } else if (metric instanceof CpuCoreData) {
+      CpuCoreData core = (CpuCoreData) metric;
+      ps.setInt(3, core.getCoreId());
+      ps.setDouble(4, core.getCoreUtilization());
+    } else if (metric instanceof MemoryData) {
+      MemoryData memory = (MemoryData) metric;
+      ps.setDouble(3, memory.getMemoryUtilization());
+      ps.setDouble(4, memory.getPageFaults());
+    } else if (metric instanceof NetworkData) {
+      NetworkData network = (NetworkData) metric;
+      ps.setLong(3, network.getThroughput());
+      ps.setDouble(4, network.getSend());
+      ps.setDouble(5, network.getReceive());
+    } else if (metric instanceof SystemData) {
+      SystemData system = (SystemData) metric;
+      ps.setLong(3, system.getUpTime());
+    } else {
+      throw new IllegalArgumentException("Unsupported metric class: " + metric.getClass().getName());
+    }
+
+    ps.setInt(ps.getParameterMetaData().getParameterCount(), hostId);
+  }
+
+  /**
+   * Gets an INSERT statement that rebuilds a rollup tier table from every row
+   * of its raw table. Meant for filling a newly created, empty tier table
+   * from records persisted before hosts were recorded, which all belong to
+   * <tt>Hosts.UNKNOWN_ID</tt>, the default of the tier table's host id.
+   *
+   * @param metricType type of the metric, i.e. the raw table name
+   * @param tier       rollup tier of the table
+   * @return sql insert String, or null if the metric type is not supported
+   */
+  public static String backfillSql(String metricType, RollupTier tier) {
+    RollupColumns columns = columns(metricType);
+
+    if (columns == null)
+      return null;
+
+    long window = tier.getWindowMillis();
+    String bucket = "(" + Fields.DATETIME + " / " + window + ")";
+
+    StringBuilder insert = new StringBuilder("INSERT INTO ").append(tier.tableName(metricType))
+      .append(" (").append(Fields.DATETIME).append(", ").append(Fields.DELTA_MILLIS).append(", ").append(SAMPLES);
+    StringBuilder select = new StringBuilder(" SELECT ").append(bucket).append(" * ").append(window)
+      .append(", SUM(").append(Fields.DELTA_MILLIS).append("), COUNT(*)");
+    StringBuilder groupBy = new StringBuilder(" GROUP BY ").append(bucket);
+
+    for (String key : columns.keys) {
+      insert.append(", ").append(key);
+      select.append(", ").append(key);
+      groupBy.append(", ").append(key);
+    }
+
+    for (String col : columns.values) {
+      insert.append(", ").append(col).append(", ").append(col).append(MIN_SUFFIX).append(", ").append(col).append(MAX_SUFFIX)
+        .append(", ").append(col).append(SqlSketches.SKETCH_SUFFIX);
+      select.append(", ").append(weightedAverage(col))
+        .append(", MIN(").append(col).append("), MAX(").append(col).append(')')
+        .append(", sketch_of(").append(col).append(", ").append(Fields.DELTA_MILLIS).append(')');
+    }
+
+    return insert.append(')').append(select).append(" FROM ").append(metricType).append(groupBy).toString();
+  }
+
+  /**
+   * Gets a SELECT statement for the records of a metric type in a time range,
+   * read from its raw records or a rollup tier table, with the columns of the
+   * raw table. If <tt>bucketMillis</tt> is positive, records are combined
+   * into windows of that size aligned to the epoch, each with the window start
+   * as its <tt>datetime</tt>, separately for each host. Every row has the
+   * <tt>Hosts.HOST</tt> of its records.
+   * <p>
+   * The statement takes two parameters: <tt>?1</tt> the earliest datetime
+   * inclusive, and <tt>?2</tt> the latest datetime inclusive. Rows are ordered
+   * by datetime.
+   *
+   * @param metricType   type of the metric
+   * @param table        table to read: a rollup tier table, or a raw table,
+   *                     partition, or subquery of partitions
+   * @param bucketMillis size of each window, or 0 to return records as stored
+   * @return sql select String, or null if the metric type is not supported
+   */
+  public static String selectSql(String metricType, String table, long bucketMillis) {
+    RollupColumns columns = columns(metricType);
+
+    if (columns == null)
+      return null;
+    String bucket = "(" + Fields.DATETIME + " / " + bucketMillis + ")";
+    boolean combine = bucketMillis > 0;
+
+    StringBuilder sql = new StringBuilder("SELECT h.").append(Hosts.HOST).append(", ");
+    StringBuilder groupBy = new StringBuilder(" GROUP BY ").append(bucket).append(", t.").append(Hosts.HOST_ID);
+
+    if (combine) {
+      sql.append(bucket).append(" * ").append(bucketMillis).append(" AS ").append(Fields.DATETIME)
+        .append(", SUM(").append(Fields.DELTA_MILLIS).append(") AS ").append(Fields.DELTA_MILLIS);
+    } else {
+      sql.append(Fields.DATETIME).append(", ").append(Fields.DELTA_MILLIS);
+    }
+
+    for (String key : columns.keys) {
+      sql.append(", ").append(key);
+      groupBy.append(", ").append(key);
+    }
+
+    for (String col : columns.values)
+      sql.append(", ").append(combine ? weightedAverage(col) + " AS " + col : col);
+
+    sql.append(" FROM ").append(table).append(" t").append(Hosts.joinSql("t"))
+      .append(" WHERE ").append(Fields.DATETIME).append(" BETWEEN ?1 AND ?2");
+
+    if (combine)
+      sql.append(groupBy);
+
+    return sql.append(" ORDER BY ").append(Fields.DATETIME).toString();
+  }
+
+  private static String weightedAverage(String expr) {
+    // Same result as DataUtils.weightedAverage applied over each row, falls
+    // back to a plain average if no time is covered
+    return "COALESCE(SUM(" + expr + " * " + Fields.DELTA_MILLIS + ") * 1.0 / NULLIF(SUM(" +
+      Fields.DELTA_MILLIS + "), 0), AVG(" + expr + "))";
+  }
+}
@@ -0,0 +1,129 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import org.sqlite.Function;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * SQL functions for building, merging and reading <tt>QuantileSketch</tt>
+ * blobs inside SQLite, so rollups and aggregates carry sketches without
+ * loading any rows into Java objects. Every connection to the database must
+ * register them with {@link #register(Connection)} before touching a rollup
+ * table.
+ * <ul>
+ *   <li><tt>sketch_add(sketch, value, delta_millis)</tt>: the sketch, or a
+ *       new one if NULL, with the value added</li>
+ *   <li><tt>sketch_of(value, delta_millis)</tt>: aggregate sketch of the
+ *       values of a group</li>
+ *   <li><tt>sketch_merge(sketch)</tt>: aggregate merge of the sketches of a
+ *       group, ignoring NULLs</li>
+ *   <li><tt>sketch_quantile(sketch, quantile)</tt>: approximate value of the
+ *       quantile, or NULL if the sketch is NULL or empty</li>
+ * </ul>
+ * Values are weighted by their <tt>delta_millis</tt>, and records covering
+ * no time count as covering one millisecond.
+ */
+public final class SqlSketches {
+
+  /**
+   * Suffix of the rollup column holding the sketch of a value column
+   */
+  public static final String SKETCH_SUFFIX = "_sketch";
+
+  // sqlite3_value_type of NULL
+  private static final int SQLITE_NULL = 5;
+
+  /**
+   * Registers the sketch functions on a connection.
+   *
+   * @param conn unwrapped SQLite connection
+   * @throws SQLException if a function cannot be registered
+   */
+  public static void register(Connection conn) throws SQLException {
+    Function.create(conn, "sketch_add", new Function() {
+      @Override
+      protected void xFunc() throws SQLException {
+        QuantileSketch sketch = sketchOf(value_blob(0));
+
+        if (sketch == null)
+          sketch = new QuantileSketch();
+
+        if (value_type(1) != SQLITE_NULL)
+          sketch.add(value_double(1), weight(value_long(2)));
+
+        result(sketch.toBytes());
+      }
+    }, 3, Function.FLAG_DETERMINISTIC);
+
+    Function.create(conn, "sketch_of", new Function.Aggregate() {
+      private QuantileSketch sketch;
+
+      @Override
+      protected void xStep() throws SQLException {
+        if (sketch == null)
+          sketch = new QuantileSketch();
+
+        if (value_type(0) != SQLITE_NULL)
+          sketch.add(value_double(0), weight(value_long(1)));
+      }
+
+      @Override
+      protected void xFinal() throws SQLException {
+        result(sketch == null ? new QuantileSketch().toBytes() : sketch.toBytes());
+      }
+    }, 2, Function.FLAG_DETERMINISTIC);
+
+    Function.create(conn, "sketch_merge", new Function.Aggregate() {
+      private QuantileSketch sketch;
+
+      @Override
+      protected void xStep() throws SQLException {
+        QuantileSketch other = sketchOf(value_blob(0));
+
+        if (other == null)
+          return;
+
+        if (sketch == null)
+          sketch = other;
+        else
+          sketch.merge(other);
+      }
+
+      @Override
+      protected void xFinal() throws SQLException {
+        if (sketch == null)
+          result();
+        else
+          result(sketch.toBytes());
+      }
+    }, 1, Function.FLAG_DETERMINISTIC);
+
+    Function.create(conn, "sketch_quantile", new Function() {
+      @Override
+      protected void xFunc() throws SQLException {
+        QuantileSketch sketch = sketchOf(value_blob(0));
+
+        if (sketch == null || sketch.isEmpty())
+          result();
+        else
+          result(sketch.quantile(value_double(1)));
+      }
+    }, 2, Function.FLAG_DETERMINISTIC);
+  }
+
+  private static QuantileSketch sketchOf(byte[] bytes) throws SQLException {
+    if (bytes == null)
+      return null;
+
+    try {
+      return QuantileSketch.fromBytes(bytes);
+    } catch (IllegalArgumentException e) {
+      throw new SQLException(e.getMessage(), e);
+    }
+  }
+
+  private static long weight(long deltaMillis) {
+    return Math.max(deltaMillis, 1);
+  }
+}
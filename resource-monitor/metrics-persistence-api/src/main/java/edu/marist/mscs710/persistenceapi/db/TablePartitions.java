@@ -0,0 +1,441 @@
+package edu.marist.mscs710.persistenceapi.db;
+
+import edu.marist.mscs710.metricscollector.metric.Fields;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+/**
+ * Time partitions of the raw metric tables. Records of a partitioned metric
+ * type are stored in one table per span of time, named
+ * <tt>&lt;type&gt;_p&lt;yyyyMMddHH&gt;</tt> after the UTC hour the partition
+ * begins. Partitions are created as records arrive, with the columns and
+ * indexes of the type's base table, which is left empty as their template.
+ * <p>
+ * Each partition covers [start, end) and is recorded in the
+ * <tt>partitions</tt> table, so partitions created with an earlier partition
+ * size stay valid. Partitions never overlap: a new partition is clipped to
+ * the partitions on either side of it.
+ * <p>
+ * Partitions created or dropped on the writer connection are only visible to
+ * readers once {@link #publish()} is called after the transaction commits,
+ * and are forgotten by {@link #discard()} if it rolls back. Only the thread
+ * holding the writer connection may create, drop, publish or discard
+ * partitions, and only one process may write to the database. Readers pick
+ * up partitions created by another process with {@link #refresh(Connection)}.
+ */
+public class TablePartitions {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TablePartitions.class);
+
+  /**
+   * Table recording the span of time of every partition
+   */
+  public static final String CATALOG_TABLE = "partitions";
+
+  private static final String METRIC_TYPE = "metric_type";
+  private static final String NAME = "name";
+  private static final String EARLIEST = "earliest";
+  private static final String LATEST = "latest";
+
+  private static final Pattern PARTITION_NAME = Pattern.compile(".+_p\\d{10}");
+  private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHH")
+    .withZone(ZoneOffset.UTC);
+
+  /**
+   * A partition table and the span of time it holds.
+   */
+  private static final class Partition {
+    private final String metricType;
+    private final String name;
+    private final long start;
+    private final long end;
+
+    private Partition(String metricType, String name, long start, long end) {
+      this.metricType = metricType;
+      this.name = name;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  private final long partitionMillis;
+  // Committed partitions of each metric type by start time
+  private volatile Map<String, NavigableMap<Long, Partition>> partitions = new ConcurrentHashMap<>();
+  // Schema version of the database when the catalog was last read
+  private volatile int schemaVersion = -1;
+  private final List<Partition> pendingCreates = new ArrayList<>();
+  private final List<Partition> pendingDrops = new ArrayList<>();
+
+  /**
+   * Constructs a new <tt>TablePartitions</tt>.
+   *
+   * @param partitionMillis span of time of a new partition, a whole number
+   *                        of hours
+   * @throws IllegalArgumentException if the span is not a whole number of
+   *                                  hours
+   */
+  public TablePartitions(long partitionMillis) {
+    if (partitionMillis <= 0 || partitionMillis % RollupTier.HOUR.getWindowMillis() != 0)
+      throw new IllegalArgumentException("Partition span must be a whole number of hours: " + partitionMillis);
+
+    this.partitionMillis = partitionMillis;
+  }
+
+  /**
+   * Checks if a table is a partition.
+   *
+   * @param tableName name of the table
+   * @return true if the name is that of a partition table
+   */
+  public static boolean isPartitionTable(String tableName) {
+    return PARTITION_NAME.matcher(tableName).matches();
+  }
+
+  /**
+   * Creates the partition catalog table if it does not exist.
+   *
+   * @param conn writer connection
+   * @throws SQLException if the table cannot be created
+   */
+  public static void createCatalog(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute("CREATE TABLE IF NOT EXISTS " + CATALOG_TABLE + " (" +
+        NAME + " TEXT NOT NULL PRIMARY KEY, " +
+        METRIC_TYPE + " TEXT NOT NULL, " +
+        EARLIEST + " BIGINT NOT NULL, " +
+        LATEST + " BIGINT NOT NULL)");
+    }
+  }
+
+  /**
+   * Loads the committed partitions from the catalog, replacing any known
+   * partitions. Must be called on the writer connection, with nothing
+   * pending.
+   *
+   * @param conn writer connection
+   * @throws SQLException if the catalog cannot be read
+   */
+  public void load(Connection conn) throws SQLException {
+    pendingCreates.clear();
+    pendingDrops.clear();
+    read(conn);
+  }
+
+  /**
+   * Reloads the partitions from the catalog if the database schema has
+   * changed since it was last read, e.g. because another process created or
+   * dropped partitions. Call before reading partitions on a reader
+   * connection; creating or dropping a partition changes the schema version.
+   *
+   * @param conn reader connection
+   * @throws SQLException if the catalog cannot be read
+   */
+  public void refresh(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      ResultSet rs = stmt.executeQuery("PRAGMA schema_version");
+
+      if (rs.next() && rs.getInt(1) == schemaVersion)
+        return;
+    }
+
+    read(conn);
+  }
+
+  private void read(Connection conn) throws SQLException {
+    Map<String, NavigableMap<Long, Partition>> loaded = new ConcurrentHashMap<>();
+
+    try (Statement stmt = conn.createStatement()) {
+      // Read first, so a change made while reading the catalog is read again
+      ResultSet rs = stmt.executeQuery("PRAGMA schema_version");
+      int version = rs.next() ? rs.getInt(1) : -1;
+
+      rs = stmt.executeQuery("SELECT * FROM " + CATALOG_TABLE);
+
+      while (rs.next()) {
+        add(loaded, new Partition(rs.getString(METRIC_TYPE), rs.getString(NAME), rs.getLong(EARLIEST), rs.getLong(LATEST)));
+      }
+
+      partitions = loaded;
+      schemaVersion = version;
+    }
+  }
+
+  /**
+   * Gets the partition holding a point in time, creating it on the writer
+   * connection if needed.
+   *
+   * @param metricType type of the metric, i.e. the base table name
+   * @param datetime   epoch milli timestamp of a record
+   * @param conn       writer connection
+   * @return name of the partition table
+   * @throws SQLException if the partition cannot be created
+   */
+  public String partitionFor(String metricType, long datetime, Connection conn) throws SQLException {
+    return partition(metricType, datetime, conn).name;
+  }
+
+  private Partition partition(String metricType, long datetime, Connection conn) throws SQLException {
+    NavigableMap<Long, Partition> committed = partitions.get(metricType);
+    Map.Entry<Long, Partition> floor = committed == null ? null : committed.floorEntry(datetime);
+
+    if (floor != null && datetime < floor.getValue().end)
+      return floor.getValue();
+
+    for (Partition p : pendingCreates) {
+      if (p.metricType.equals(metricType) && datetime >= p.start && datetime < p.end)
+        return p;
+    }
+
+    long start = Math.floorDiv(datetime, partitionMillis) * partitionMillis;
+    long end = start + partitionMillis;
+
+    // Clip to the neighbouring partitions, which may have another span
+    for (Partition p : neighbours(metricType)) {
+      if (p.end <= datetime)
+        start = Math.max(start, p.end);
+      else if (p.start > datetime)
+        end = Math.min(end, p.start);
+    }
+
+    Partition partition = new Partition(metricType,
+      metricType + "_p" + NAME_FORMAT.format(Instant.ofEpochMilli(start)), start, end);
+
+    create(partition, conn);
+    pendingCreates.add(partition);
+
+    return partition;
+  }
+
+  /**
+   * Moves the records of a metric type's base table into partitions, e.g.
+   * those persisted before the type was partitioned.
+   *
+   * @param metricType type of the metric, i.e. the base table name
+   * @param conn       writer connection
+   * @return number of records moved
+   * @throws SQLException if the records cannot be moved
+   */
+  public long moveIntoPartitions(String metricType, Connection conn) throws SQLException {
+    long moved = 0;
+
+    while (true) {
+      long first;
+
+      try (Statement stmt = conn.createStatement()) {
+        ResultSet rs = stmt.executeQuery("SELECT MIN(" + Fields.DATETIME + ") FROM " + metricType);
+        first = rs.next() ? rs.getLong(1) : 0;
+
+        if (rs.wasNull())
+          return moved;
+      }
+
+      Partition partition = partition(metricType, first, conn);
+      String range = " WHERE " + Fields.DATETIME + " >= " + partition.start + " AND " + Fields.DATETIME + " < " + partition.end;
+
+      try (Statement stmt = conn.createStatement()) {
+        moved += stmt.executeUpdate("INSERT INTO " + partition.name + " SELECT * FROM " + metricType + range);
+        stmt.executeUpdate("DELETE FROM " + metricType + range);
+      }
+    }
+  }
+
+  private List<Partition> neighbours(String metricType) {
+    List<Partition> neighbours = new ArrayList<>(all(metricType));
+
+    for (Partition p : pendingCreates) {
+      if (p.metricType.equals(metricType))
+        neighbours.add(p);
+    }
+
+    return neighbours;
+  }
+
+  private static void create(Partition partition, Connection conn) throws SQLException {
+    List<String> statements = new ArrayList<>();
+
+    try (PreparedStatement ps = conn.prepareStatement(
+      "SELECT type, name, sql FROM sqlite_master WHERE tbl_name = ? AND sql IS NOT NULL ORDER BY type DESC")) {
+      ps.setString(1, partition.metricType);
+      ResultSet rs = ps.executeQuery();
+
+      // Tables sort before their indexes
+      while (rs.next()) {
+        String sql = rs.getString("sql");
+        String name = rs.getString("name");
+
+        if ("table".equals(rs.getString("type"))) {
+          statements.add(renameObject(sql, "TABLE", partition.metricType, partition.name));
+        } else {
+          String indexName = name.startsWith(partition.metricType)
+            ? partition.name + name.substring(partition.metricType.length())
+            : partition.name + '_' + name;
+
+          statements.add(renameObject(renameTable(sql, partition.metricType, partition.name),
+            "INDEX", name, indexName));
+        }
+      }
+    }
+
+    if (statements.isEmpty())
+      throw new SQLException("No base table to partition: " + partition.metricType);
+
+    try (Statement stmt = conn.createStatement()) {
+      for (String sql : statements)
+        stmt.execute(sql);
+    }
+
+    try (PreparedStatement ps = conn.prepareStatement("INSERT INTO " + CATALOG_TABLE +
+      " (" + NAME + ',' + METRIC_TYPE + ',' + EARLIEST + ',' + LATEST + ") VALUES (?,?,?,?)")) {
+      ps.setString(1, partition.name);
+      ps.setString(2, partition.metricType);
+      ps.setLong(3, partition.start);
+      ps.setLong(4, partition.end);
+      ps.executeUpdate();
+    }
+
+    LOGGER.info("Created partition \"{}\"", partition.name);
+  }
+
+  // Renames the object of a "CREATE <kind> [IF NOT EXISTS] <name>" statement
+  private static String renameObject(String sql, String kind, String name, String newName) {
+    return sql.replaceFirst("(?i)^CREATE\\s+(UNIQUE\\s+)?" + kind + "\\s+(IF\\s+NOT\\s+EXISTS\\s+)?[\"'`\\[]?" +
+      Pattern.quote(name) + "[\"'`\\]]?", "CREATE $1" + kind + " IF NOT EXISTS " + newName);
+  }
+
+  // Renames the table of a "CREATE INDEX ... ON <table>" statement
+  private static String renameTable(String sql, String table, String newTable) {
+    return sql.replaceFirst("(?i)\\sON\\s+[\"'`\\[]?" + Pattern.quote(table) + "[\"'`\\]]?", " ON " + newTable);
+  }
+
+  /**
+   * Gets the committed partitions of a metric type that overlap a range of
+   * time, in time order.
+   *
+   * @param metricType type of the metric, i.e. the base table name
+   * @param earliest   epoch milli timestamp, inclusive
+   * @param latest     epoch milli timestamp, exclusive
+   * @return names of the partition tables
+   */
+  public List<String> overlapping(String metricType, long earliest, long latest) {
+    NavigableMap<Long, Partition> committed = partitions.get(metricType);
+    List<String> names = new ArrayList<>();
+
+    if (committed == null || earliest >= latest)
+      return names;
+
+    Long from = committed.floorKey(earliest);
+
+    for (Partition p : committed.subMap(from == null ? Long.MIN_VALUE : from, true, latest, false).values()) {
+      if (p.end > earliest)
+        names.add(p.name);
+    }
+
+    return names;
+  }
+
+  /**
+   * Gets the names of all committed partitions of a metric type, in time
+   * order.
+   *
+   * @param metricType type of the metric, i.e. the base table name
+   * @return names of the partition tables
+   */
+  public List<String> names(String metricType) {
+    List<String> names = new ArrayList<>();
+
+    for (Partition p : all(metricType))
+      names.add(p.name);
+
+    return names;
+  }
+
+  private Collection<Partition> all(String metricType) {
+    NavigableMap<Long, Partition> committed = partitions.get(metricType);
+    return committed == null ? Collections.emptyList() : committed.values();
+  }
+
+  /**
+   * Drops the partitions of a metric type that end on or before a bound.
+   * Readers stop seeing the partitions immediately.
+   *
+   * @param metricType type of the metric, i.e. the base table name
+   * @param bound      epoch milli timestamp, exclusive
+   * @param conn       writer connection
+   * @return names of the dropped partition tables
+   * @throws SQLException if a partition cannot be dropped
+   */
+  public List<String> dropBefore(String metricType, long bound, Connection conn) throws SQLException {
+    NavigableMap<Long, Partition> committed = partitions.get(metricType);
+    List<String> dropped = new ArrayList<>();
+
+    if (committed == null)
+      return dropped;
+
+    for (Partition p : new ArrayList<>(committed.headMap(bound, false).values())) {
+      if (p.end > bound)
+        continue;
+
+      // Removed first, so no new reads of the partition begin
+      committed.remove(p.start);
+      pendingDrops.add(p);
+
+      try (Statement stmt = conn.createStatement()) {
+        stmt.execute("DROP TABLE IF EXISTS " + p.name);
+      }
+
+      try (PreparedStatement ps = conn.prepareStatement("DELETE FROM " + CATALOG_TABLE + " WHERE " + NAME + " = ?")) {
+        ps.setString(1, p.name);
+        ps.executeUpdate();
+      }
+
+      dropped.add(p.name);
+    }
+
+    return dropped;
+  }
+
+  /**
+   * Makes partitions created since the last commit visible. Call after the
+   * writer connection commits.
+   */
+  public void publish() {
+    for (Partition p : pendingCreates)
+      add(p);
+
+    pendingCreates.clear();
+    pendingDrops.clear();
+  }
+
+  /**
+   * Forgets partitions created since the last commit, and restores those
+   * dropped. Call after the writer connection rolls back.
+   */
+  public void discard() {
+    for (Partition p : pendingDrops)
+      add(p);
+
+    pendingCreates.clear();
+    pendingDrops.clear();
+  }
+
+  private void add(Partition partition) {
+    add(partitions, partition);
+  }
+
+  private static void add(Map<String, NavigableMap<Long, Partition>> partitions, Partition partition) {
+    partitions.computeIfAbsent(partition.metricType, t -> new ConcurrentSkipListMap<>())
+      .put(partition.start, partition);
+  }
+}
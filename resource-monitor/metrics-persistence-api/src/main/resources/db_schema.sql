@@ -1,6 +1,6 @@
--- This file should not have in-line comments
--- Statements should begin on a new line (i.e. on a line there
--- should be nothing after a semi colon)
+-- Version 1 of the database schema, applied once to each database.
+-- Later schema changes are migrations in SQLiteMetricsImpl, so this
+-- file should not be changed.
 
 PRAGMA foreign_keys = off;
 
@@ -4,7 +4,6 @@ import com.salesforce.kafka.test.KafkaTestUtils;
 import com.salesforce.kafka.test.junit4.SharedKafkaTestResource;
 import edu.marist.mscs710.metricscollector.data.SystemData;
 import edu.marist.mscs710.metricscollector.kafka.MetricSerializer;
-import edu.marist.mscs710.metricscollector.metric.Fields;
 import edu.marist.mscs710.metricscollector.Metric;
 import edu.marist.mscs710.persistenceapi.db.SQLiteMetricsImpl;
 import org.apache.kafka.clients.admin.AdminClient;
@@ -21,6 +20,7 @@ import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
@@ -49,14 +49,19 @@ public class MetricsPersistenceTest {
 
   @AfterClass
   public static void cleanup() throws SQLException {
-    List<String> tableNames = sqlIte.getMetricTypes();
+    sqlIte.close();
 
-    for (String table : tableNames) {
-      try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
+    try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
+      ResultSet rs = conn.createStatement()
+        .executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name NOT LIKE 'sqlite%'");
+      List<String> tableNames = new ArrayList<>();
+
+      while (rs.next())
+        tableNames.add(rs.getString(1));
+
+      for (String table : tableNames)
         conn.createStatement().execute("DROP TABLE " + table + ";");
-      }
     }
-
   }
 
   @Test
@@ -80,6 +85,8 @@ public class MetricsPersistenceTest {
     String runFile = "./runfile.tmp";
     System.setProperty("kafkabroker", kafka.getKafkaConnectString());
     System.setProperty("metricstopic", topic);
+    // Commit to Kafka after every write, rather than lazily
+    System.setProperty("kafkacommitintervalms", "0");
 
     Thread consumerThread = new Thread(() -> MetricsPersistenceStarter.main(new String[0]));
 
@@ -88,18 +95,18 @@ public class MetricsPersistenceTest {
     new File(runFile).delete();
     consumerThread.join();
 
-    try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
-      ResultSet rs = conn.createStatement()
-        .executeQuery("SELECT * FROM " + Fields.METRIC_TYPE_SYSTEM_METRICS + ";");
+    // Records are in partitions created by the service's own connections
+    List<SystemData> persisted = sqlIte.getMetricsInRange(0, 100, SystemData.class);
 
-      for (int i = 0; i < metrics.size(); i++) {
-        rs.next();
+    Assert.assertEquals(metrics.size(), persisted.size());
 
-        Assert.assertEquals(i + 1, rs.getLong("uptime"));
-        Assert.assertEquals(i + 1, rs.getLong("datetime"));
-      }
+    for (int i = 0; i < metrics.size(); i++) {
+      Assert.assertEquals(i + 1, persisted.get(i).getUpTime());
+      Assert.assertEquals(i + 1, persisted.get(i).getEpochMillisTime());
     }
 
+    Assert.assertEquals(Long.valueOf(metrics.size()), sqlIte.getConsumerOffsets(topic).get(new TopicPartition(topic, 0)));
+
     try (AdminClient kafkaAdminClient = kTest.getAdminClient()) {
       long offset = kafkaAdminClient
         .listConsumerGroupOffsets("PERSISTENCE_SERVICE")
@@ -0,0 +1,73 @@
+package edu.marist.mscs710.persistenceapi;
+
+import edu.marist.mscs710.persistenceapi.db.QuantileSketch;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class QuantileSketchTest {
+
+  @Test
+  public void testQuantilesWithinRelativeAccuracy() {
+    QuantileSketch sketch = new QuantileSketch();
+    double[] values = new double[10000];
+
+    for (int i = 0; i < values.length; i++) {
+      values[i] = Math.exp(i / 1000.0) - 1;
+      sketch.add(values[i], 1);
+    }
+
+    Arrays.sort(values);
+
+    for (double q : new double[]{0.01, 0.25, 0.5, 0.9, 0.95, 0.99, 1.0}) {
+      double exact = values[(int) Math.ceil(q * values.length) - 1];
+      Assert.assertEquals(exact, sketch.quantile(q), exact * QuantileSketch.RELATIVE_ACCURACY);
+    }
+
+    Assert.assertEquals(0, sketch.quantile(0), 0);
+    Assert.assertEquals(values.length, sketch.getTotalWeight());
+  }
+
+  @Test
+  public void testWeightsNegativeValuesAndZero() {
+    QuantileSketch sketch = new QuantileSketch();
+    sketch.add(-10, 1);
+    sketch.add(0, 1);
+    sketch.add(50, 97);
+    sketch.add(100, 1);
+
+    Assert.assertEquals(-10, sketch.quantile(0.01), 0.1);
+    Assert.assertEquals(0, sketch.quantile(0.02), 0);
+    Assert.assertEquals(50, sketch.quantile(0.5), 0.5);
+    Assert.assertEquals(100, sketch.quantile(1.0), 1);
+    Assert.assertTrue(Double.isNaN(new QuantileSketch().quantile(0.5)));
+  }
+
+  @Test
+  public void testMergeAndSerialize() {
+    QuantileSketch all = new QuantileSketch();
+    QuantileSketch first = new QuantileSketch();
+    QuantileSketch second = new QuantileSketch();
+
+    for (int i = 0; i < 1000; i++) {
+      double value = i % 7 == 0 ? -i : i / 3.0;
+      all.add(value, i + 1);
+      (i < 500 ? first : second).add(value, i + 1);
+    }
+
+    first.merge(second);
+
+    // Merging is exact, so the merged sketch is the sketch of the union
+    Assert.assertArrayEquals(all.toBytes(), first.toBytes());
+    Assert.assertArrayEquals(all.toBytes(), QuantileSketch.fromBytes(all.toBytes()).toBytes());
+    Assert.assertEquals(all.quantile(0.95), QuantileSketch.fromBytes(first.toBytes()).quantile(0.95), 0);
+
+    try {
+      QuantileSketch.fromBytes(new byte[]{42});
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
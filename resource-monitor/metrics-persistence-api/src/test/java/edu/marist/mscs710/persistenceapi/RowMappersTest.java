@@ -0,0 +1,190 @@
+package edu.marist.mscs710.persistenceapi;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.marist.mscs710.metricscollector.Metric;
+import edu.marist.mscs710.metricscollector.data.*;
+import edu.marist.mscs710.metricscollector.kafka.MetricDeserializer;
+import edu.marist.mscs710.metricscollector.metric.Fields;
+import edu.marist.mscs710.metricscollector.system.SystemConstants;
+import edu.marist.mscs710.persistenceapi.db.ProcessNames;
+import edu.marist.mscs710.persistenceapi.db.RowMapper;
+import edu.marist.mscs710.persistenceapi.db.RowMappers;
+import edu.marist.mscs710.persistenceapi.db.SQLiteMetricsImpl;
+import org.junit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class RowMappersTest {
+  private static String dbSchemaPath = "./src/test/resources/db_schema.sql";
+  private static String dbFilePath = "./src/test/resources/row-mappers.db";
+
+  private static final int BENCHMARK_ROWS = 20000;
+  private static final int BENCHMARK_RUNS = 3;
+
+  private static SQLiteMetricsImpl sqlIte;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final MetricDeserializer metricDeser = new MetricDeserializer();
+
+  @BeforeClass
+  public static void prepare() throws IOException, SQLException {
+    sqlIte = new SQLiteMetricsImpl(dbFilePath, dbSchemaPath, false);
+
+    List<Supplier<? extends Metric>> generators = Arrays.asList(
+      RandomMetric::getRandomCpuData,
+      RandomMetric::getRandomCpuCoreData,
+      RandomMetric::getRandomMemoryData,
+      RandomMetric::getRandomNetworkData,
+      RandomMetric::getRandomProcessData,
+      RandomMetric::getRandomSystemData,
+      RandomMetric::getRandomSystemConstants
+    );
+
+    for (Supplier<? extends Metric> generator : generators) {
+      sqlIte.persistMetrics(IntStream.range(0, 100)
+        .mapToObj(i -> generator.get())
+        .collect(Collectors.toList()));
+    }
+  }
+
+  @AfterClass
+  public static void cleanup() {
+    sqlIte.close();
+    new File(dbFilePath).delete();
+  }
+
+  @Test
+  public void testMatchesJacksonMapping() throws SQLException, JsonProcessingException {
+    List<Class<? extends Metric>> classes = Arrays.asList(CpuData.class, CpuCoreData.class, MemoryData.class,
+      NetworkData.class, ProcessData.class, SystemData.class, SystemConstants.class);
+
+    for (Class<? extends Metric> clazz : classes) {
+      List<? extends Metric> expected = readWithJackson(clazz);
+
+      Assert.assertFalse(expected.isEmpty());
+      Assert.assertEquals(expected, readWithMapper(clazz));
+    }
+  }
+
+  @Test
+  public void testMissingColumn() throws SQLException {
+    String partition = sqlIte.getPartitions(Fields.METRIC_TYPE_CPU).get(0);
+
+    try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
+      ResultSet rs = conn.createStatement().executeQuery(
+        "SELECT " + Fields.CPU_UTILIZATION + ", " + Fields.CPU_DELTA_MILLIS + ", " + Fields.CPU_DATETIME + " FROM " + partition);
+
+      try {
+        RowMappers.create(rs, CpuData.class);
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertTrue(e.getMessage().contains(Fields.CPU_TEMPERATURE));
+      }
+    }
+  }
+
+  @Test
+  @Ignore
+  public void testMappingThroughput() throws SQLException, JsonProcessingException {
+    sqlIte.persistMetrics(IntStream.range(0, BENCHMARK_ROWS)
+      .mapToObj(i -> RandomMetric.getRandomProcessData())
+      .collect(Collectors.toList()));
+
+    int rows = readWithMapper(ProcessData.class).size();
+    long jacksonNanos = Long.MAX_VALUE;
+    long mapperNanos = Long.MAX_VALUE;
+
+    // Best of several runs, so the first run's warm up is not counted
+    for (int i = 0; i < BENCHMARK_RUNS; i++) {
+      long start = System.nanoTime();
+      Assert.assertEquals(rows, readWithJackson(ProcessData.class).size());
+      jacksonNanos = Math.min(jacksonNanos, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      Assert.assertEquals(rows, readWithMapper(ProcessData.class).size());
+      mapperNanos = Math.min(mapperNanos, System.nanoTime() - start);
+    }
+
+    System.out.printf("Mapped %d process rows: ObjectNode + Jackson %.0f rows/sec, RowMapper %.0f rows/sec%n",
+      rows, rows * 1e9 / jacksonNanos, rows * 1e9 / mapperNanos);
+  }
+
+  private <T extends Metric> List<T> readWithMapper(Class<T> clazz) throws SQLException {
+    try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
+      ResultSet rs = conn.createStatement().executeQuery(selectAll(clazz));
+      RowMapper<T> mapper = RowMappers.create(rs, clazz);
+      List<T> metrics = new ArrayList<>();
+
+      while (rs.next())
+        metrics.add(mapper.map(rs));
+
+      return metrics;
+    }
+  }
+
+  // Mapping used before row mappers, kept as the reference and benchmark baseline
+  private <T extends Metric> List<T> readWithJackson(Class<T> clazz) throws SQLException, JsonProcessingException {
+    try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
+      ResultSet rs = conn.createStatement().executeQuery(selectAll(clazz));
+      List<T> metrics = new ArrayList<>();
+
+      while (rs.next()) {
+        ObjectNode node = objectMapper.createObjectNode();
+        ResultSetMetaData rsmd = rs.getMetaData();
+
+        for (int i = 1; i <= rsmd.getColumnCount(); i++) {
+          switch (rsmd.getColumnType(i)) {
+            case (Types.BIGINT):
+            case (Types.INTEGER):
+              node.put(rsmd.getColumnName(i), rs.getLong(i));
+              break;
+
+            case (Types.REAL):
+            case (Types.DOUBLE):
+            case (Types.FLOAT):
+              node.put(rsmd.getColumnName(i), rs.getDouble(i));
+              break;
+
+            case (Types.VARCHAR):
+              node.put(rsmd.getColumnName(i), rs.getString(i));
+              break;
+
+            default:
+              node.putPOJO(rsmd.getColumnName(i), rs.getObject(i));
+              break;
+          }
+        }
+
+        metrics.add(metricDeser.deserialize(node, clazz));
+      }
+
+      return metrics;
+    }
+  }
+
+  private static String selectAll(Class<? extends Metric> clazz) {
+    String metricType = MetricDeserializer.lookupMetricType(clazz);
+    List<String> partitions = sqlIte.getPartitions(metricType);
+
+    boolean processes = metricType.equals(Fields.METRIC_TYPE_PROCESSES);
+
+    if (partitions.isEmpty())
+      return processes
+        ? ProcessNames.selectSql(metricType) + " ORDER BY t.rowid"
+        : "SELECT * FROM " + metricType + " ORDER BY rowid";
+
+    return partitions.stream()
+      .map(p -> processes ? ProcessNames.selectSql(p) : "SELECT * FROM " + p)
+      .collect(Collectors.joining(" UNION ALL "));
+  }
+}
@@ -6,17 +6,46 @@ import edu.marist.mscs710.metricscollector.data.*;
 import edu.marist.mscs710.metricscollector.metric.Fields;
 import edu.marist.mscs710.metricscollector.system.Processes;
 import edu.marist.mscs710.metricscollector.system.SystemConstants;
+import edu.marist.mscs710.persistenceapi.db.ConsumerOffsets;
+import edu.marist.mscs710.persistenceapi.db.Hosts;
+import edu.marist.mscs710.persistenceapi.db.ProcessLifetimes;
+import edu.marist.mscs710.persistenceapi.db.ProcessNames;
+import edu.marist.mscs710.persistenceapi.db.PruneStats;
+import edu.marist.mscs710.persistenceapi.db.QuantileSketch;
+import edu.marist.mscs710.persistenceapi.db.RetentionPolicy;
+import edu.marist.mscs710.persistenceapi.db.RollupTier;
 import edu.marist.mscs710.persistenceapi.db.SQLiteMetricsImpl;
+import edu.marist.mscs710.persistenceapi.db.SchemaMigrator;
+import edu.marist.mscs710.persistenceapi.db.SizeBudget;
+import edu.marist.mscs710.persistenceapi.db.SqlRollups;
+import edu.marist.mscs710.persistenceapi.db.SqlSketches;
+import org.apache.kafka.common.TopicPartition;
 import org.junit.*;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 public class SQLiteMetricsTest {
   private static String dbSchemaPath = "./src/test/resources/db_schema.sql";
@@ -24,7 +53,10 @@ public class SQLiteMetricsTest {
 
   private static final long ONE_MIN_MS = 1000 * 60;
   private static final long ONE_HOUR_MS = ONE_MIN_MS * 60;
+  private static final long ONE_DAY_MS = ONE_HOUR_MS * 24;
   private static final long SQLITE_PRUNE_ELIGIBILITY_MS = ONE_HOUR_MS * 12;
+  private static final DateTimeFormatter PARTITION_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHH")
+    .withZone(ZoneOffset.UTC);
 
   private static SQLiteMetricsImpl sqlIte;
 
@@ -35,15 +67,19 @@ public class SQLiteMetricsTest {
 
   @AfterClass
   public static void cleanup() throws SQLException {
-    List<String> tableNames = sqlIte.getMetricTypes();
-    tableNames.add("prune_bounds");
+    sqlIte.close();
 
-    for (String table : tableNames) {
-      try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
+    try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
+      ResultSet rs = conn.createStatement()
+        .executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name NOT LIKE 'sqlite%'");
+      List<String> tableNames = new ArrayList<>();
+
+      while (rs.next())
+        tableNames.add(rs.getString(1));
+
+      for (String table : tableNames)
         conn.createStatement().execute("DROP TABLE " + table + ";");
-      }
     }
-
   }
 
   @Test
@@ -55,7 +91,7 @@ public class SQLiteMetricsTest {
     sqlIte.persistMetric(metric);
 
     try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
-      ResultSet rs = conn.createStatement().executeQuery("SELECT * FROM " + Fields.METRIC_TYPE_SYSTEM_METRICS + ";");
+      ResultSet rs = conn.createStatement().executeQuery("SELECT * FROM " + allRows(Fields.METRIC_TYPE_SYSTEM_METRICS) + ";");
       rs.next();
 
       Assert.assertEquals(metric.getUpTime(), rs.getLong(Fields.SYSTEM_METRICS_UPTIME));
@@ -80,7 +116,7 @@ public class SQLiteMetricsTest {
     sqlIte.persistMetric(process);
 
     try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
-      ResultSet rs = conn.createStatement().executeQuery("SELECT * FROM " + Fields.METRIC_TYPE_PROCESSES + ";");
+      ResultSet rs = conn.createStatement().executeQuery("SELECT * FROM " + allRows(Fields.METRIC_TYPE_PROCESSES) + ";");
       rs.next();
 
       Assert.assertEquals(process.getEpochMillisTime(), rs.getLong("datetime"));
@@ -108,7 +144,7 @@ public class SQLiteMetricsTest {
     sqlIte.persistMetric(cpu);
 
     try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
-      ResultSet rs = conn.createStatement().executeQuery("SELECT * FROM " + Fields.METRIC_TYPE_CPU + ";");
+      ResultSet rs = conn.createStatement().executeQuery("SELECT * FROM " + allRows(Fields.METRIC_TYPE_CPU) + ";");
       rs.next();
 
       Assert.assertEquals(cpu.getEpochMillisTime(), rs.getLong("datetime"));
@@ -129,7 +165,7 @@ public class SQLiteMetricsTest {
     sqlIte.persistMetric(cpuCore);
 
     try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
-      ResultSet rs = conn.createStatement().executeQuery("SELECT * FROM " + Fields.METRIC_TYPE_CPU_CORE + ";");
+      ResultSet rs = conn.createStatement().executeQuery("SELECT * FROM " + allRows(Fields.METRIC_TYPE_CPU_CORE) + ";");
       rs.next();
 
       Assert.assertEquals(cpuCore.getEpochMillisTime(), rs.getLong("datetime"));
@@ -150,7 +186,7 @@ public class SQLiteMetricsTest {
     sqlIte.persistMetric(memory);
 
     try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
-      ResultSet rs = conn.createStatement().executeQuery("SELECT * FROM " + Fields.METRIC_TYPE_MEMORY + ";");
+      ResultSet rs = conn.createStatement().executeQuery("SELECT * FROM " + allRows(Fields.METRIC_TYPE_MEMORY) + ";");
       rs.next();
 
       Assert.assertEquals(memory.getEpochMillisTime(), rs.getLong("datetime"));
@@ -171,7 +207,7 @@ public class SQLiteMetricsTest {
     sqlIte.persistMetric(network);
 
     try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
-      ResultSet rs = conn.createStatement().executeQuery("SELECT * FROM " + Fields.METRIC_TYPE_NETWORK + ";");
+      ResultSet rs = conn.createStatement().executeQuery("SELECT * FROM " + allRows(Fields.METRIC_TYPE_NETWORK) + ";");
       rs.next();
 
       Assert.assertEquals(network.getEpochMillisTime(), rs.getLong("datetime"));
@@ -192,7 +228,7 @@ public class SQLiteMetricsTest {
     sqlIte.persistMetric(systemConstants);
 
     try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
-      ResultSet rs = conn.createStatement().executeQuery("SELECT * FROM " + Fields.METRIC_TYPE_SYSTEM_CONSTANTS + ";");
+      ResultSet rs = conn.createStatement().executeQuery("SELECT * FROM " + allRows(Fields.METRIC_TYPE_SYSTEM_CONSTANTS) + ";");
       rs.next();
 
       Assert.assertEquals(systemConstants.getTotalMemGb(), rs.getDouble("total_memory"), 0.0);
@@ -220,44 +256,1069 @@ public class SQLiteMetricsTest {
     Assert.assertEquals(process, data.get(0));
   }
 
+  @Test
+  public void testPersistMetricsBatch() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_CPU_CORE);
+    deleteAllRows(Fields.METRIC_TYPE_PROCESSES);
+
+    List<Metric> metrics = new ArrayList<>();
+
+    for (int i = 0; i < 2500; i++) {
+      metrics.add(new CpuCoreData(i % 8, 0.5, 5000, 1000 + i / 8));
+      metrics.add(RandomMetric.getRandomProcessData());
+    }
+
+    Assert.assertTrue(sqlIte.persistMetrics(metrics));
+
+    Assert.assertEquals(2500, countRows(Fields.METRIC_TYPE_CPU_CORE));
+    Assert.assertEquals(2500, countRows(Fields.METRIC_TYPE_PROCESSES));
+  }
+
+  @Test
+  public void testPersistMetricsBatchWithDuplicate() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_SYSTEM_METRICS);
+    deleteAllRows(RollupTier.MINUTE.tableName(Fields.METRIC_TYPE_SYSTEM_METRICS));
+
+    List<SystemData> metrics = Arrays.asList(
+      new SystemData(1, 1, 1),
+      new SystemData(2, 2, 2),
+      new SystemData(3, 3, 2),
+      new SystemData(4, 4, 4)
+    );
+
+    // Duplicate primary key skips only the offending row, which is not rolled up
+    Assert.assertTrue(sqlIte.persistMetrics(metrics));
+    Assert.assertEquals(3, countRows(Fields.METRIC_TYPE_SYSTEM_METRICS));
+    Assert.assertEquals(3, sumColumn(RollupTier.MINUTE.tableName(Fields.METRIC_TYPE_SYSTEM_METRICS), "samples"));
+  }
+
+  @Test
+  public void testReplayIsIdempotent() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_CPU);
+    deleteAllRows(RollupTier.MINUTE.tableName(Fields.METRIC_TYPE_CPU));
+    deleteAllRows(Fields.METRIC_TYPE_PROCESSES);
+    deleteAllRows(ProcessLifetimes.TABLE);
+
+    List<Metric> metrics = Arrays.asList(
+      new CpuData(0.5, 40, 1000, 1000),
+      new CpuData(0.7, 40, 1000, 2000),
+      new ProcessData(91, "replayed", 500, 500, 0.5, 1024, 1.0, 1.0, Processes.PidState.NEW, 1000, 1000),
+      new ProcessData(91, "replayed", 500, 1500, 0.5, 1024, 1.0, 1.0, Processes.PidState.RUNNING, 1000, 2000),
+      new ProcessData(91, "replayed", 3000));
+
+    Assert.assertTrue(sqlIte.persistMetrics(metrics));
+
+    // Redelivered records, in a batch and one at a time, change nothing
+    Assert.assertTrue(sqlIte.persistMetrics(metrics));
+    Assert.assertTrue(sqlIte.persistMetric(metrics.get(3)));
+
+    Assert.assertEquals(2, countRows(Fields.METRIC_TYPE_CPU));
+    Assert.assertEquals(2, sumColumn(RollupTier.MINUTE.tableName(Fields.METRIC_TYPE_CPU), "samples"));
+    Assert.assertEquals(3, sqlIte.getMetricsInRange(0, 4000, ProcessData.class).size());
+    Assert.assertEquals(2, sqlIte.getProcessLifetime(91, 500).getSamples());
+    Assert.assertEquals(3000, sqlIte.getProcessLifetime(91, 500).getEnded());
+  }
+
+  @Test
+  public void testRetryAfterCommittedBatches() throws SQLException, IOException {
+    String retryDbPath = "./src/test/resources/retry.db";
+    new File(retryDbPath).delete();
+
+    Properties props = new Properties();
+    props.setProperty("dbbatchsize", "2");
+
+    SQLiteMetricsImpl retry = new SQLiteMetricsImpl(retryDbPath, dbSchemaPath, false, props);
+
+    try {
+      Assert.assertTrue(retry.persistMetric(new CpuData(0.1, 40, 1000, 0)));
+      String partition = retry.getPartitions(Fields.METRIC_TYPE_CPU).get(0);
+
+      // Counts every committed insert attempt, including those skipped as replays
+      try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(retryDbPath))) {
+        conn.createStatement().execute("CREATE TABLE attempts (datetime BIGINT)");
+        conn.createStatement().execute("CREATE TRIGGER count_attempts BEFORE INSERT ON " + partition +
+          " BEGIN INSERT INTO attempts VALUES (NEW.datetime); END");
+      }
+
+      // The NaN row fails the second batch, after the first was committed
+      List<CpuData> metrics = Arrays.asList(
+        new CpuData(0.5, 40, 1000, 1000),
+        new CpuData(0.5, 40, 1000, 2000),
+        new CpuData(0.5, 40, 1000, 3000),
+        new CpuData(Double.NaN, 40, 1000, 4000),
+        new CpuData(0.5, 40, 1000, 5000));
+
+      // The NaN row can never be persisted, so it is dropped
+      Assert.assertTrue(retry.persistMetrics(metrics));
+      Assert.assertEquals(1, retry.getDroppedMetrics());
+      Assert.assertEquals(5, retry.getMetricsInRange(0, 6000, CpuData.class).size());
+
+      // Only the rows after the committed batch are retried
+      try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(retryDbPath))) {
+        ResultSet rs = conn.createStatement().executeQuery("SELECT datetime FROM attempts ORDER BY datetime");
+        List<Long> attempts = new ArrayList<>();
+
+        while (rs.next())
+          attempts.add(rs.getLong(1));
+
+        Assert.assertEquals(Arrays.asList(1000L, 2000L, 3000L, 5000L), attempts);
+      }
+
+      TopicPartition partition0 = new TopicPartition("metrics", 0);
+
+      // Offsets are stored even when the last row is dropped
+      Assert.assertTrue(retry.persistMetrics(Arrays.asList(
+        new CpuData(0.5, 40, 1000, 6000),
+        new CpuData(Double.NaN, 40, 1000, 7000)), Collections.singletonMap(partition0, 2L)));
+      Assert.assertEquals(2, retry.getDroppedMetrics());
+      Assert.assertEquals(Long.valueOf(2), retry.getConsumerOffsets("metrics").get(partition0));
+
+      // Any other error leaves the offsets as they were
+      try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(retryDbPath))) {
+        conn.createStatement().execute("CREATE TRIGGER fail_9000 BEFORE INSERT ON " + partition +
+          " WHEN NEW.datetime = 9000 BEGIN INSERT INTO missing VALUES (1); END");
+      }
+
+      Assert.assertFalse(retry.persistMetrics(Arrays.asList(
+        new CpuData(0.5, 40, 1000, 8000),
+        new CpuData(0.5, 40, 1000, 9000)), Collections.singletonMap(partition0, 4L)));
+      Assert.assertEquals(2, retry.getDroppedMetrics());
+      Assert.assertEquals(Long.valueOf(2), retry.getConsumerOffsets("metrics").get(partition0));
+    } finally {
+      retry.close();
+      new File(retryDbPath).delete();
+    }
+  }
+
+  @Test
+  public void testConsumerOffsets() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_CPU);
+    deleteAllRows(ConsumerOffsets.TABLE);
+
+    TopicPartition first = new TopicPartition("metrics", 0);
+    TopicPartition second = new TopicPartition("metrics", 1);
+    Map<TopicPartition, Long> offsets = new HashMap<>();
+    offsets.put(first, 10L);
+    offsets.put(second, 4L);
+    offsets.put(new TopicPartition("other", 0), 7L);
+
+    Assert.assertTrue(sqlIte.getConsumerOffsets("metrics").isEmpty());
+    Assert.assertTrue(sqlIte.persistMetrics(Collections.singletonList(new CpuData(0.5, 40, 1000, 1000)), offsets));
+    Assert.assertEquals(1, countRows(Fields.METRIC_TYPE_CPU));
+
+    offsets.remove(new TopicPartition("other", 0));
+    Assert.assertEquals(offsets, sqlIte.getConsumerOffsets("metrics"));
+
+    // Later offsets replace earlier ones, even with no metrics to persist
+    Assert.assertTrue(sqlIte.persistMetrics(Collections.emptyList(), Collections.singletonMap(first, 12L)));
+    Assert.assertEquals(Long.valueOf(12), sqlIte.getConsumerOffsets("metrics").get(first));
+    Assert.assertEquals(Long.valueOf(4), sqlIte.getConsumerOffsets("metrics").get(second));
+    Assert.assertFalse(sqlIte.getMetricTypes().contains(ConsumerOffsets.TABLE));
+  }
+
+  @Test
+  public void testHosts() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_CPU);
+    deleteAllRows(RollupTier.HOUR.tableName(Fields.METRIC_TYPE_CPU));
+    deleteAllRows(Fields.METRIC_TYPE_PROCESSES);
+    deleteAllRows(ProcessLifetimes.TABLE);
+
+    long hour = ONE_HOUR_MS * 1000;
+    CpuData first = new CpuData(0.5, 40, 1000, hour);
+    CpuData second = new CpuData(0.9, 60, 1000, hour);
+    first.setHost("host-a");
+    second.setHost("host-b");
+
+    ProcessData firstProcess = new ProcessData(5, "svc", hour - 1000, 1000, 0.2, 10, 0.0, 0.0,
+      Processes.PidState.NEW, 1000, hour);
+    ProcessData secondProcess = new ProcessData(5, "svc", hour - 1000, 1000, 0.4, 10, 0.0, 0.0,
+      Processes.PidState.NEW, 1000, hour);
+    firstProcess.setHost("host-a");
+    secondProcess.setHost("host-b");
+
+    // Records of different hosts at the same time are both kept
+    Assert.assertTrue(sqlIte.persistMetrics(Arrays.asList(first, second, firstProcess, secondProcess)));
+    Assert.assertEquals(2, countRows(Fields.METRIC_TYPE_CPU));
+    Assert.assertEquals(2, countRows(Fields.METRIC_TYPE_PROCESSES));
+    Assert.assertTrue(sqlIte.getHosts().containsAll(Arrays.asList("host-a", "host-b")));
+    Assert.assertFalse(sqlIte.getMetricTypes().contains(Hosts.TABLE));
+
+    List<CpuData> all = sqlIte.getMetricsInRange(hour, hour + 1, CpuData.class);
+    Assert.assertEquals(2, all.size());
+    Assert.assertEquals(Arrays.asList("host-a", "host-b"), all.stream()
+      .map(CpuData::getHost)
+      .sorted()
+      .collect(Collectors.toList()));
+
+    List<CpuData> hostA = sqlIte.getMetricsInRange(hour, hour + 1, CpuData.class, "host-a");
+    Assert.assertEquals(Collections.singletonList(first), hostA);
+    Assert.assertEquals("host-a", hostA.get(0).getHost());
+    Assert.assertTrue(sqlIte.getMetricsInRange(hour, hour + 1, CpuData.class, "host-c").isEmpty());
+
+    List<ProcessData> processes = sqlIte.getMetricsInRange(hour, hour + 1, ProcessData.class, "host-b");
+    Assert.assertEquals(Collections.singletonList(secondProcess), processes);
+    Assert.assertEquals("host-b", processes.get(0).getHost());
+
+    // Rollups and lifetimes are kept per host
+    List<CpuData> hourly = sqlIte.getMetricsAtResolution(hour, hour + ONE_HOUR_MS, CpuData.class, ONE_HOUR_MS, "host-b");
+    Assert.assertEquals(1, hourly.size());
+    Assert.assertEquals(0.9, hourly.get(0).getUtilization(), 0.0001);
+    Assert.assertEquals("host-b", hourly.get(0).getHost());
+
+    Assert.assertEquals(0.9, sqlIte.getAggregates(hour, hour + ONE_HOUR_MS, CpuData.class, "host-b",
+      Fields.CPU_UTILIZATION, 0).get(0).getMean(), 0.0001);
+    Assert.assertEquals(2, sqlIte.getAggregates(hour, hour + ONE_HOUR_MS, CpuData.class,
+      Fields.CPU_UTILIZATION, 0).get(0).getCount());
+
+    Assert.assertEquals(Arrays.asList("host-a", "host-b"), sqlIte.getProcessLifetimes(hour, hour + 1).stream()
+      .map(ProcessLifetime::getHost)
+      .sorted()
+      .collect(Collectors.toList()));
+
+    // Processes of different hosts with the same pid and start time are told apart
+    Assert.assertEquals(Collections.singletonList("host-b"), sqlIte.getProcessLifetimes(hour, hour + 1, "host-b").stream()
+      .map(ProcessLifetime::getHost)
+      .collect(Collectors.toList()));
+    Assert.assertTrue(sqlIte.getProcessLifetimes(hour, hour + 1, "host-c").isEmpty());
+    Assert.assertEquals(0.4, sqlIte.getProcessLifetime(5, hour - 1000, "host-b").getCpuUsage(), 0.0001);
+    Assert.assertNull(sqlIte.getProcessLifetime(5, hour - 1000, "host-c"));
+    Assert.assertEquals(Collections.singletonList(secondProcess), sqlIte.getProcessHistory(5, hour - 1000, "host-b"));
+    Assert.assertTrue(sqlIte.getProcessHistory(5, hour - 1000, "host-c").isEmpty());
+
+    // Without a host, the records of a single process
+    String host = sqlIte.getProcessLifetime(5, hour - 1000).getHost();
+    Assert.assertEquals(Collections.singletonList(host), sqlIte.getProcessHistory(5, hour - 1000).stream()
+      .map(ProcessData::getHost)
+      .collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testPersistProcessNameWithQuote() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_PROCESSES);
+
+    ProcessData process = new ProcessData(1, "it's a process", 1, 1, 0.5, 1, 1.0, 1.0,
+      Processes.PidState.RUNNING, 5000, 10);
+
+    Assert.assertTrue(sqlIte.persistMetric(process));
+    Assert.assertEquals(process, sqlIte.getMetricsInRange(0, 11, ProcessData.class).get(0));
+  }
+
+  @Test
+  public void testProcessNamesDictionary() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_PROCESSES);
+
+    List<ProcessData> metrics = Arrays.asList(
+      new ProcessData(1, "java", 1, 1, 0.5, 1, 1.0, 1.0, Processes.PidState.RUNNING, 5000, 10),
+      new ProcessData(2, "java", 1, 1, 0.5, 1, 1.0, 1.0, Processes.PidState.RUNNING, 5000, 10),
+      new ProcessData(3, "chrome", 1, 1, 0.5, 1, 1.0, 1.0, Processes.PidState.RUNNING, 5000, 10),
+      new ProcessData(1, "java", 1, 1, 0.5, 1, 1.0, 1.0, Processes.PidState.RUNNING, 5000, 20)
+    );
+
+    Assert.assertTrue(sqlIte.persistMetrics(metrics));
+    Assert.assertEquals(metrics, sqlIte.getMetricsInRange(0, 21, ProcessData.class));
+
+    try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
+      // Records hold the id of their name, and each name is stored once
+      ResultSet rs = conn.createStatement().executeQuery("SELECT COUNT(DISTINCT " + ProcessNames.NAME_ID + ") FROM " +
+        allRows(Fields.METRIC_TYPE_PROCESSES));
+      rs.next();
+      Assert.assertEquals(2, rs.getLong(1));
+
+      rs = conn.createStatement().executeQuery("SELECT COUNT(*) FROM " + ProcessNames.TABLE +
+        " WHERE name IN ('java', 'chrome')");
+      rs.next();
+      Assert.assertEquals(2, rs.getLong(1));
+
+      rs = conn.createStatement().executeQuery("PRAGMA table_info(" + Fields.METRIC_TYPE_PROCESSES + ")");
+
+      while (rs.next())
+        Assert.assertNotEquals("name", rs.getString("name"));
+    }
+  }
+
+  @Test
+  public void testProcessLifetimes() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_PROCESSES);
+    deleteAllRows(ProcessLifetimes.TABLE);
+
+    List<ProcessData> svc = Arrays.asList(
+      new ProcessData(71, "svc", 1000, 1000, 0.5, 2048, 1000, 0, Processes.PidState.NEW, 1000, 2000),
+      new ProcessData(71, "svc", 1000, 2000, 0.1, 4096, 3000, 0, Processes.PidState.RUNNING, 1000, 3000),
+      new ProcessData(71, "svc", 3500));
+
+    Assert.assertTrue(sqlIte.persistMetrics(svc));
+    Assert.assertTrue(sqlIte.persistMetrics(Arrays.asList(
+      new ProcessData(72, "db", 500, 1000, 0.2, 1024, 0, 0, Processes.PidState.NEW, 1000, 1500),
+      new ProcessData(71, "worker", 4000, 1000, 0.2, 1024, 0, 0, Processes.PidState.NEW, 1000, 5000),
+      new ProcessData(71, "worker", 4000, 2000, 0.2, 1024, 0, 0, Processes.PidState.RUNNING, 1000, 6000),
+      new ProcessData(71, "batch", 6500, 500, 0.2, 1024, 0, 0, Processes.PidState.RECYCLED, 500, 7000),
+      new ProcessData(72, "db", 500, 7500, 0.2, 1024, 0, 0, Processes.PidState.RUNNING, 6500, 8000))));
+
+    // Totals are kept as records arrive, and the ENDED record ends the process
+    Assert.assertEquals(new ProcessLifetime(71, "svc", 1000, 2000, 3000, 3500, 2, 2000, 0.3, 4.0, 0, 4),
+      sqlIte.getProcessLifetime(71, 1000));
+
+    // A recycled pid ends the previous process when the next one starts
+    Assert.assertEquals(6500, sqlIte.getProcessLifetime(71, 4000).getEnded());
+    Assert.assertFalse(sqlIte.getProcessLifetime(72, 500).isEnded());
+    Assert.assertNull(sqlIte.getProcessLifetime(71, 1));
+
+    Assert.assertEquals(Arrays.asList("db", "worker"), sqlIte.getProcessLifetimes(3600, 4500).stream()
+      .map(ProcessLifetime::getName)
+      .collect(Collectors.toList()));
+    Assert.assertEquals(Arrays.asList("db", "svc", "worker", "batch"), sqlIte.getProcessLifetimes(0, 10000).stream()
+      .map(ProcessLifetime::getName)
+      .collect(Collectors.toList()));
+
+    Assert.assertEquals(svc, sqlIte.getProcessHistory(71, 1000));
+    Assert.assertTrue(sqlIte.getProcessHistory(71, 1).isEmpty());
+
+    try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
+      ResultSet rs = conn.createStatement().executeQuery("EXPLAIN QUERY PLAN " +
+        ProcessLifetimes.aliveSql(false).replace("?", "0"));
+      StringBuilder plan = new StringBuilder();
+
+      while (rs.next())
+        plan.append(rs.getString("detail")).append('\n');
+
+      Assert.assertTrue(plan.toString(), plan.toString().contains(ProcessLifetimes.TABLE + "_until"));
+    }
+  }
+
+  @Test
+  public void testGetTopProcesses() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_PROCESSES);
+
+    Assert.assertTrue(sqlIte.persistMetrics(Arrays.asList(
+      new ProcessData(81, "a", 1000, 1000, 0.9, 2048, 2.0, 0.0, Processes.PidState.NEW, 1000, 2000),
+      new ProcessData(81, "a", 1000, 4000, 0.3, 4096, 6.0, 0.0, Processes.PidState.RUNNING, 3000, 5000),
+      new ProcessData(82, "b", 2000, 1000, 0.5, 1024, 1.0, 0.0, Processes.PidState.NEW, 1000, 3000),
+      new ProcessData(83, "c", 2000, 1000, 0.1, 8192, 0.0, 0.0, Processes.PidState.NEW, 1000, 3000),
+      new ProcessData(83, "c", 6000))));
+
+    List<ProcessData> top = sqlIte.getTopProcesses(0, 10000, Fields.PROCESSES_CPU_USAGE, 2);
+    Assert.assertEquals(Arrays.asList("b", "a"), top.stream()
+      .map(ProcessData::getName)
+      .collect(Collectors.toList()));
+
+    // Values are weighted by deltaMillis, and the rest come from the last record
+    ProcessData a = top.get(1);
+    Assert.assertEquals(0.45, a.getCpuUsage(), 1e-9);
+    Assert.assertEquals(3584, a.getMemory());
+    Assert.assertEquals(5.0, a.getKbRead(), 1e-9);
+    Assert.assertEquals(4000, a.getDeltaMillis());
+    Assert.assertEquals(4000, a.getUpTime());
+    Assert.assertEquals(5000, a.getEpochMillisTime());
+    Assert.assertEquals(Processes.PidState.RUNNING, a.getPidState());
+
+    // The ENDED record is left out of the averages
+    Assert.assertEquals(Arrays.asList("c", "a", "b"),
+      sqlIte.getTopProcesses(0, 10000, Fields.PROCESSES_MEMORY, 5).stream()
+        .map(ProcessData::getName)
+        .collect(Collectors.toList()));
+    Assert.assertEquals(8192, sqlIte.getTopProcesses(0, 10000, Fields.PROCESSES_MEMORY, 1).get(0).getMemory());
+
+    // Only records in the range count
+    Assert.assertEquals(0.3, sqlIte.getTopProcesses(4000, 10000, Fields.PROCESSES_CPU_USAGE, 1).get(0).getCpuUsage(),
+      1e-9);
+    Assert.assertTrue(sqlIte.getTopProcesses(20000, 30000, Fields.PROCESSES_CPU_USAGE, 1).isEmpty());
+
+    try {
+      sqlIte.getTopProcesses(0, 10000, Fields.PROCESSES_NAME, 1);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
   @Test
   public void testPrune() throws SQLException {
     deleteAllRows(Fields.METRIC_TYPE_SYSTEM_METRICS);
+    deleteAllRows(RollupTier.MINUTE.tableName(Fields.METRIC_TYPE_SYSTEM_METRICS));
+    deleteAllRows(RollupTier.HOUR.tableName(Fields.METRIC_TYPE_SYSTEM_METRICS));
+
+    long now = Instant.now().toEpochMilli();
+    long minuteBound = now - SQLITE_PRUNE_ELIGIBILITY_MS;
+    long hourBound = minuteBound - SQLITE_PRUNE_ELIGIBILITY_MS;
+
+    List<SystemData> metrics = Arrays.asList(
+      new SystemData(1, 1, hourBound - ONE_HOUR_MS * 3 / 2),
+      new SystemData(2, 1, hourBound + ONE_HOUR_MS),
+      new SystemData(3, 1, now)
+    );
+
+    metrics.forEach(m -> m.setHost("pruned-host"));
+    Assert.assertTrue(sqlIte.persistMetrics(metrics));
+
+    PruneStats stats = sqlIte.getPruneStats().get(Fields.METRIC_TYPE_SYSTEM_METRICS);
+    long runsBefore = stats.getRuns();
+    long deletedBefore = stats.getRowsDeleted();
+    long droppedBefore = stats.getPartitionsDropped();
+
+    sqlIte.prune();
+
+    Assert.assertEquals(runsBefore + 1, stats.getRuns());
+
+    // The minute rollup is deleted, and each expired raw record is deleted
+    // unless its whole partition was dropped
+    long deleted = stats.getRowsDeleted() - deletedBefore;
+    Assert.assertTrue(deleted == 3 || (deleted >= 1 && stats.getPartitionsDropped() > droppedBefore));
+
+    // Raw records older than 12 hours and minute rollups older than 24 hours are expired
+    Assert.assertEquals(Collections.singletonList(metrics.get(2)),
+      sqlIte.getMetricsInRange(metrics.get(2).getEpochMillisTime(), now + 1, SystemData.class));
+    Assert.assertEquals(2, countRows(RollupTier.MINUTE.tableName(Fields.METRIC_TYPE_SYSTEM_METRICS)));
+    Assert.assertEquals(3, countRows(RollupTier.HOUR.tableName(Fields.METRIC_TYPE_SYSTEM_METRICS)));
+
+    // Expired records are read from the finest rollup still holding them
+    SystemData hourRollup = new SystemData(1, 1, RollupTier.HOUR.windowStart(metrics.get(0).getEpochMillisTime()));
+    SystemData minuteRollup = new SystemData(2, 1, RollupTier.MINUTE.windowStart(metrics.get(1).getEpochMillisTime()));
+
+    Assert.assertEquals(Arrays.asList(hourRollup, minuteRollup, metrics.get(2)),
+      sqlIte.getMetricsInRange(0, now + 1, SystemData.class));
+    Assert.assertEquals(Collections.singletonList(hourRollup), sqlIte.getMetricsInRange(0, hourBound, SystemData.class));
+    Assert.assertEquals(Collections.singletonList(minuteRollup),
+      sqlIte.getMetricsInRange(hourBound, minuteBound, SystemData.class, "pruned-host"));
+  }
+
+  @Test
+  public void testPruneChunked() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_SYSTEM_METRICS);
 
     long minuteBound = Instant.now().toEpochMilli() - SQLITE_PRUNE_ELIGIBILITY_MS;
-    long hourBound = minuteBound - SQLITE_PRUNE_ELIGIBILITY_MS + 100;
+    long start = minuteBound - ONE_DAY_MS * 30;
+
+    // Chunks start at the earliest remaining record, skipping the month-long gap
+    Assert.assertTrue(sqlIte.persistMetrics(Arrays.asList(
+      new SystemData(1, 1, start),
+      new SystemData(2, 1, start + ONE_MIN_MS * 30),
+      new SystemData(3, 1, start + ONE_HOUR_MS * 2),
+      new SystemData(4, 1, minuteBound - ONE_HOUR_MS),
+      new SystemData(5, 1, minuteBound - ONE_HOUR_MS + ONE_MIN_MS)
+    )));
+
+    sqlIte.prune();
+
+    Assert.assertEquals(0, countRows(Fields.METRIC_TYPE_SYSTEM_METRICS));
+  }
+
+  @Test
+  public void testPruneContinuesPastFailedType() throws SQLException, IOException {
+    String failingDbPath = "./src/test/resources/prune-failure.db";
+    new File(failingDbPath).delete();
+
+    SQLiteMetricsImpl failing = new SQLiteMetricsImpl(failingDbPath, dbSchemaPath, false);
+
+    try {
+      long expired = Instant.now().toEpochMilli() - SQLITE_PRUNE_ELIGIBILITY_MS - ONE_HOUR_MS;
+      Assert.assertTrue(failing.persistMetric(new SystemData(1, 1, expired)));
+
+      // Every prune of cpu fails
+      try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(failingDbPath))) {
+        conn.createStatement().execute("DROP TABLE " + RollupTier.MINUTE.tableName(Fields.METRIC_TYPE_CPU));
+      }
+
+      failing.prune();
+      failing.prune();
+
+      // The other metric types are still pruned on every run
+      for (PruneStats stats : failing.getPruneStats().values())
+        Assert.assertEquals(stats.toString(), 2, stats.getRuns());
+
+      try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(failingDbPath))) {
+        for (String partition : failing.getPartitions(Fields.METRIC_TYPE_SYSTEM_METRICS)) {
+          ResultSet rs = conn.createStatement().executeQuery("SELECT COUNT(*) FROM " + partition);
+          rs.next();
+          Assert.assertEquals(0, rs.getLong(1));
+        }
+      }
+    } finally {
+      failing.close();
+      new File(failingDbPath).delete();
+    }
+  }
+
+  @Test
+  public void testRollupTiers() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_CPU_CORE);
+    deleteAllRows(RollupTier.MINUTE.tableName(Fields.METRIC_TYPE_CPU_CORE));
+    deleteAllRows(RollupTier.HOUR.tableName(Fields.METRIC_TYPE_CPU_CORE));
+
+    long start = RollupTier.HOUR.windowStart(Instant.now().toEpochMilli() - ONE_DAY_MS);
+
+    List<CpuCoreData> metrics = Arrays.asList(
+      new CpuCoreData(0, 0.25, 5000, start),
+      new CpuCoreData(1, 0.5, 5000, start),
+      new CpuCoreData(0, 0.75, 2500, start + 5000),
+      new CpuCoreData(1, 0.1, 2500, start + 5000),
+      new CpuCoreData(0, 0.3, 7500, start + ONE_MIN_MS * 59)
+    );
+
+    Assert.assertTrue(sqlIte.persistMetrics(metrics));
+
+    Assert.assertEquals(3, countRows(RollupTier.MINUTE.tableName(Fields.METRIC_TYPE_CPU_CORE)));
+    Assert.assertEquals(2, countRows(RollupTier.HOUR.tableName(Fields.METRIC_TYPE_CPU_CORE)));
+
+    try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
+      for (CpuCoreData expected : CpuCoreData.combine(metrics)) {
+        List<CpuCoreData> core = metrics.stream()
+          .filter(m -> m.getCoreId() == expected.getCoreId())
+          .collect(Collectors.toList());
+
+        ResultSet rs = conn.createStatement().executeQuery(
+          "SELECT * FROM " + RollupTier.HOUR.tableName(Fields.METRIC_TYPE_CPU_CORE) +
+            " WHERE core_id = " + expected.getCoreId());
+
+        Assert.assertTrue(rs.next());
+        Assert.assertEquals(start, rs.getLong("datetime"));
+        Assert.assertEquals(expected.getDeltaMillis(), rs.getLong("delta_millis"));
+        Assert.assertEquals(core.size(), rs.getInt("samples"));
+        Assert.assertEquals(expected.getCoreUtilization(), rs.getDouble("core_utilization"), 1e-9);
+        Assert.assertEquals(core.stream().mapToDouble(CpuCoreData::getCoreUtilization).min().getAsDouble(),
+          rs.getDouble("core_utilization_min"), 0);
+        Assert.assertEquals(core.stream().mapToDouble(CpuCoreData::getCoreUtilization).max().getAsDouble(),
+          rs.getDouble("core_utilization_max"), 0);
+      }
+    }
+  }
+
+  @Test
+  public void testGetMetricsAtResolution() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_MEMORY);
+    deleteAllRows(RollupTier.MINUTE.tableName(Fields.METRIC_TYPE_MEMORY));
+    deleteAllRows(RollupTier.HOUR.tableName(Fields.METRIC_TYPE_MEMORY));
+
+    long now = Instant.now().toEpochMilli();
+    long start = (now - ONE_MIN_MS * 10) / (ONE_MIN_MS * 2) * (ONE_MIN_MS * 2);
+    long end = start + ONE_MIN_MS * 10;
+
+    List<MemoryData> metrics = LongStream.range(0, 120)
+      .mapToObj(i -> new MemoryData(i % 2, (double) i, 5000, start + i * 5000))
+      .collect(Collectors.toList());
+
+    Assert.assertTrue(sqlIte.persistMetrics(metrics));
+
+    // Few enough raw records to return as stored
+    Assert.assertEquals(metrics, sqlIte.getMetricsInRange(start, end, MemoryData.class, 1000));
+
+    // Minute rollups combined into 2 minute windows
+    List<MemoryData> combined = sqlIte.getMetricsInRange(start, end, MemoryData.class, 5);
+
+    Assert.assertEquals(5, combined.size());
+
+    for (int i = 0; i < combined.size(); i++) {
+      Assert.assertEquals(start + i * ONE_MIN_MS * 2, combined.get(i).getEpochMillisTime());
+      Assert.assertEquals(ONE_MIN_MS * 2, combined.get(i).getDeltaMillis());
+      Assert.assertEquals(0.5, combined.get(i).getMemoryUtilization(), 1e-9);
+      Assert.assertEquals(i * 24 + 11.5, combined.get(i).getPageFaults(), 1e-9);
+    }
+
+    // Ranges older than the minute rollups are read from hour rollups
+    List<MemoryData> hourly = sqlIte.getMetricsInRange(now - ONE_DAY_MS * 3, now, MemoryData.class, 1000);
+
+    Assert.assertEquals(ONE_MIN_MS * 10, hourly.stream().mapToLong(MemoryData::getDeltaMillis).sum());
+    Assert.assertTrue(hourly.stream().allMatch(m -> m.getEpochMillisTime() % ONE_HOUR_MS == 0));
+  }
+
+  @Test
+  public void testGetAggregates() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_CPU);
+    deleteAllRows(RollupTier.MINUTE.tableName(Fields.METRIC_TYPE_CPU));
+    deleteAllRows(RollupTier.HOUR.tableName(Fields.METRIC_TYPE_CPU));
+
+    long now = Instant.now().toEpochMilli();
+    long start = (now - ONE_MIN_MS * 10) / (ONE_MIN_MS * 2) * (ONE_MIN_MS * 2);
+    long end = start + 100 * 1000;
+
+    // The first record covers as much time as the other 99 records together
+    Assert.assertTrue(sqlIte.persistMetrics(LongStream.range(0, 100)
+      .mapToObj(i -> new CpuData(i / 100.0, 40, i == 0 ? 51000 : 1000, start + i * 1000))
+      .collect(Collectors.toList())));
+
+    List<MetricAggregate> total = sqlIte.getAggregates(start, end, CpuData.class, Fields.CPU_UTILIZATION, 0,
+      0.5, 0.95);
+
+    Assert.assertEquals(1, total.size());
+    Assert.assertEquals(start, total.get(0).getDatetime());
+    Assert.assertEquals(150000, total.get(0).getDeltaMillis());
+    Assert.assertEquals(100, total.get(0).getCount());
+    Assert.assertEquals(0.33, total.get(0).getMean(), 1e-9);
+    Assert.assertEquals(0.0, total.get(0).getMin(), 1e-9);
+    Assert.assertEquals(0.99, total.get(0).getMax(), 1e-9);
+    Assert.assertEquals(0.24, total.get(0).getPercentile(0.5), 1e-9);
+    Assert.assertEquals(0.92, total.get(0).getPercentile(0.95), 1e-9);
+    Assert.assertTrue(Double.isNaN(total.get(0).getPercentile(0.99)));
+
+    // Raw records in 20 second windows
+    List<MetricAggregate> windows = sqlIte.getAggregates(start, end, CpuData.class, Fields.CPU_UTILIZATION, 20000,
+      0.5);
+
+    Assert.assertEquals(5, windows.size());
+    Assert.assertEquals(start + 20000, windows.get(1).getDatetime());
+    Assert.assertEquals(20, windows.get(1).getCount());
+    Assert.assertEquals(0.295, windows.get(1).getMean(), 1e-9);
+    Assert.assertEquals(0.2, windows.get(1).getMin(), 1e-9);
+    Assert.assertEquals(0.39, windows.get(1).getMax(), 1e-9);
+    Assert.assertEquals(0.29, windows.get(1).getPercentile(0.5), 1e-9);
+    Assert.assertEquals(0.0, windows.get(0).getPercentile(0.5), 1e-9);
+
+    // Minute windows are read from the minute rollups, keeping exact extremes
+    List<MetricAggregate> minutes = sqlIte.getAggregates(start, end, CpuData.class, Fields.CPU_UTILIZATION,
+      ONE_MIN_MS, 0.5);
+
+    Assert.assertEquals(2, minutes.size());
+    Assert.assertEquals(60, minutes.get(0).getCount());
+    Assert.assertEquals(40, minutes.get(1).getCount());
+    Assert.assertEquals(0.6, minutes.get(1).getMin(), 1e-9);
+    Assert.assertEquals(0.99, minutes.get(1).getMax(), 1e-9);
+    Assert.assertEquals(0.795, minutes.get(1).getMean(), 1e-9);
+    Assert.assertEquals(0.79, minutes.get(1).getPercentile(0.5), 0.79 * QuantileSketch.RELATIVE_ACCURACY);
+
+    // Quantiles of rollups are read from their merged sketches
+    List<MetricAggregate> sketched = sqlIte.getAggregates(start, end, CpuData.class, Fields.CPU_UTILIZATION,
+      ONE_MIN_MS * 2, 0.5, 0.99);
+
+    Assert.assertEquals(1, sketched.size());
+    Assert.assertEquals(100, sketched.get(0).getCount());
+    Assert.assertEquals(0.24, sketched.get(0).getPercentile(0.5), 0.24 * QuantileSketch.RELATIVE_ACCURACY);
+    Assert.assertEquals(0.98, sketched.get(0).getPercentile(0.99), 0.98 * QuantileSketch.RELATIVE_ACCURACY);
+
+    Assert.assertTrue(sqlIte.getAggregates(end, end + 1000, CpuData.class, Fields.CPU_UTILIZATION, 0).isEmpty());
+
+    try {
+      sqlIte.getAggregates(start, end, CpuData.class, Fields.DATETIME, 0);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    try {
+      sqlIte.getAggregates(start, end, CpuData.class, Fields.CPU_UTILIZATION, 0, 95);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testStreamMetricsInRange() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_SYSTEM_METRICS);
 
     List<SystemData> metrics = Arrays.asList(
-      new SystemData(4,4, hourBound - ONE_HOUR_MS * 3 / 2 ),
-      new SystemData(4,4, hourBound - ONE_HOUR_MS * 3 / 2 + ONE_HOUR_MS - 1),
-      new SystemData(1,1, hourBound - ONE_HOUR_MS * 3 / 2 + ONE_HOUR_MS),
-      new SystemData(2,2, hourBound),
-      new SystemData(2,2, hourBound + ONE_MIN_MS - 1),
-      new SystemData(3,3, hourBound + ONE_MIN_MS),
-      new SystemData(3,3, hourBound + 2 * ONE_MIN_MS - 1)
+      new SystemData(3, 1, 30),
+      new SystemData(1, 1, 10),
+      new SystemData(2, 1, 20),
+      new SystemData(4, 1, 40)
     );
 
-    for (Metric metric : metrics) {
-      sqlIte.persistMetric(metric);
+    Assert.assertTrue(sqlIte.persistMetrics(metrics));
+
+    try (Stream<SystemData> stream = sqlIte.streamMetricsInRange(10, 40, SystemData.class)) {
+      Assert.assertEquals(Arrays.asList(metrics.get(1), metrics.get(2), metrics.get(0)),
+        stream.collect(Collectors.toList()));
+    }
+
+    // Closing a partially consumed stream releases its connection
+    try (Stream<SystemData> stream = sqlIte.streamMetricsInRange(0, 50, SystemData.class)) {
+      Assert.assertEquals(metrics.get(1), stream.findFirst().get());
     }
 
+    Assert.assertTrue(sqlIte.persistMetric(new SystemData(5, 1, 50)));
+  }
+
+  @Test
+  public void testPruneProcesses() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_PROCESSES);
+    deleteAllRows("prune_bounds");
+
+    long hourBound = Instant.now().toEpochMilli() - SQLITE_PRUNE_ELIGIBILITY_MS * 2;
+    long start = hourBound - ONE_DAY_MS;
+
+    List<ProcessData> metrics = LongStream.range(0, 6)
+      .mapToObj(i -> new ProcessData(42, "proc", start - ONE_HOUR_MS, ONE_HOUR_MS + i * ONE_MIN_MS * 20,
+        0.1 * i, 1000 * i, i, i, Processes.PidState.RUNNING, ONE_MIN_MS * 20, start + i * ONE_MIN_MS * 20))
+      .collect(Collectors.toList());
+
+    Assert.assertTrue(sqlIte.persistMetrics(metrics));
+
     sqlIte.prune();
 
-    List<SystemData> hourlyPrune = sqlIte.getMetricsInRange(0, hourBound, SystemData.class);
-    List<SystemData> minutelyPrune = sqlIte.getMetricsInRange(hourBound, minuteBound, SystemData.class);
+    // Two 1 hour windows, each combined into one record for the pid
+    List<ProcessData> pruned = sqlIte.getMetricsInRange(0, hourBound, ProcessData.class);
+    pruned.sort(Comparator.comparing(ProcessData::getEpochMillisTime));
 
-    Assert.assertEquals(2, hourlyPrune.size());
-    Assert.assertEquals(2, minutelyPrune.size());
+    Assert.assertEquals(2, pruned.size());
+    Assert.assertEquals(ProcessData.combine(metrics.subList(0, 3)).get(0), pruned.get(0));
+    Assert.assertEquals(ProcessData.combine(metrics.subList(3, 6)).get(0), pruned.get(1));
+  }
 
-    Assert.assertEquals(SystemData.combine(metrics.subList(0,2)), hourlyPrune.get(0));
-    Assert.assertEquals(SystemData.combine(metrics.subList(2,3)), hourlyPrune.get(1));
-    Assert.assertEquals(SystemData.combine(metrics.subList(3,5)), minutelyPrune.get(0));
-    Assert.assertEquals(SystemData.combine(metrics.subList(5,7)), minutelyPrune.get(1));
+  @Test
+  public void testReadersDoNotBlockWriter() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_SYSTEM_METRICS);
+
+    Assert.assertTrue(sqlIte.persistMetrics(Arrays.asList(new SystemData(1, 1, 10), new SystemData(2, 1, 20))));
+
+    try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
+      ResultSet rs = conn.createStatement().executeQuery("PRAGMA journal_mode");
+      rs.next();
+
+      Assert.assertEquals("wal", rs.getString(1));
+    }
+
+    // An open cursor holds a read transaction while the write commits
+    try (Stream<SystemData> stream = sqlIte.streamMetricsInRange(0, 100, SystemData.class)) {
+      Iterator<SystemData> it = stream.iterator();
+
+      Assert.assertEquals(10, it.next().getEpochMillisTime());
+      Assert.assertTrue(sqlIte.persistMetric(new SystemData(3, 1, 30)));
+      Assert.assertEquals(20, it.next().getEpochMillisTime());
+    }
+
+    Assert.assertEquals(3, sqlIte.getMetricsInRange(0, 100, SystemData.class).size());
+  }
+
+  @Test
+  public void testSchemaMigrations() throws SQLException, IOException {
+    try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
+      int version = SchemaMigrator.getSchemaVersion(conn);
+      Assert.assertTrue(version >= 4);
+
+      // Reopening the database applies nothing again
+      new SQLiteMetricsImpl(dbFilePath, dbSchemaPath, false).close();
+
+      Assert.assertEquals(version, SchemaMigrator.getSchemaVersion(conn));
+      Assert.assertEquals(version, countRows(SchemaMigrator.VERSION_TABLE));
+
+      ResultSet rs = conn.createStatement().executeQuery("EXPLAIN QUERY PLAN SELECT * FROM " +
+        Fields.METRIC_TYPE_PROCESSES + " WHERE datetime >= 1 AND datetime < 2 ORDER BY datetime");
+      rs.next();
+      Assert.assertTrue(rs.getString("detail").contains("processes_datetime"));
+
+      rs = conn.createStatement().executeQuery("EXPLAIN QUERY PLAN SELECT * FROM " +
+        Fields.METRIC_TYPE_PROCESSES + " WHERE pid = 1 AND start_time = 2");
+      rs.next();
+      Assert.assertTrue(rs.getString("detail").contains("processes_pid_start_time"));
+    }
+  }
+
+  @Test
+  public void testPartitions() throws SQLException {
+    deleteAllRows(Fields.METRIC_TYPE_MEMORY);
+
+    long day = (Instant.now().toEpochMilli() / ONE_DAY_MS - 10) * ONE_DAY_MS;
+
+    List<MemoryData> metrics = Arrays.asList(
+      new MemoryData(1, 1, 1, day + ONE_HOUR_MS),
+      new MemoryData(2, 2, 1, day + ONE_DAY_MS - 1),
+      new MemoryData(3, 3, 1, day + ONE_DAY_MS),
+      new MemoryData(4, 4, 1, day + ONE_DAY_MS * 2 + ONE_HOUR_MS)
+    );
+
+    Assert.assertTrue(sqlIte.persistMetrics(metrics));
+
+    List<String> days = LongStream.range(0, 3)
+      .mapToObj(i -> Fields.METRIC_TYPE_MEMORY + "_p" + PARTITION_FORMAT.format(Instant.ofEpochMilli(day + ONE_DAY_MS * i)))
+      .collect(Collectors.toList());
+
+    Assert.assertTrue(sqlIte.getPartitions(Fields.METRIC_TYPE_MEMORY).containsAll(days));
+    Assert.assertEquals(2, countRows(days.get(0)));
+
+    // The base table is only a template
+    try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
+      ResultSet rs = conn.createStatement().executeQuery("SELECT COUNT(*) FROM " + Fields.METRIC_TYPE_MEMORY);
+      rs.next();
+
+      Assert.assertEquals(0, rs.getLong(1));
+    }
+
+    // Reads span partitions in time order
+    Assert.assertEquals(metrics, sqlIte.getMetricsInRange(day, day + ONE_DAY_MS * 3, MemoryData.class));
+
+    // No hour rollup is read in place of raw records part way through its hour
+    Assert.assertEquals(metrics.subList(1, 3),
+      sqlIte.getMetricsInRange(day + ONE_HOUR_MS + 1, day + ONE_DAY_MS + 1, MemoryData.class));
+
+    try (Stream<MemoryData> stream = sqlIte.streamMetricsInRange(day + ONE_HOUR_MS + 1, day + ONE_DAY_MS + 1, MemoryData.class)) {
+      Assert.assertEquals(metrics.subList(1, 3), stream.collect(Collectors.toList()));
+    }
+
+    PruneStats stats = sqlIte.getPruneStats().get(Fields.METRIC_TYPE_MEMORY);
+    long droppedBefore = stats.getPartitionsDropped();
+
+    sqlIte.prune();
+
+    // Expired partitions are dropped whole
+    Assert.assertTrue(stats.getPartitionsDropped() >= droppedBefore + 3);
+    Assert.assertTrue(Collections.disjoint(days, sqlIte.getPartitions(Fields.METRIC_TYPE_MEMORY)));
+
+    // Their records are read from the one hour rollups instead
+    List<MemoryData> rollups = sqlIte.getMetricsInRange(day, day + ONE_DAY_MS * 3, MemoryData.class);
+
+    Assert.assertEquals(
+      metrics.stream().map(m -> RollupTier.HOUR.windowStart(m.getEpochMillisTime())).collect(Collectors.toList()),
+      rollups.stream()
+        .map(MemoryData::getEpochMillisTime)
+        .collect(Collectors.toList()));
+
+    try (Stream<MemoryData> stream = sqlIte.streamMetricsInRange(day, day + ONE_DAY_MS * 3, MemoryData.class)) {
+      Assert.assertEquals(rollups, stream.collect(Collectors.toList()));
+    }
+  }
+
+  @Test
+  public void testLegacyRecordsMovedIntoPartitions() throws SQLException, IOException {
+    String legacyDbPath = "./src/test/resources/legacy.db";
+    new File(legacyDbPath).delete();
+
+    // A database created before partitions, with records in the base tables
+    try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(legacyDbPath))) {
+      SchemaMigrator.executeScript(conn, new String(Files.readAllBytes(Paths.get(dbSchemaPath)), StandardCharsets.UTF_8));
+
+      // and an hour rollup table from before rollups carried sketches or hosts
+      conn.createStatement().execute(SqlRollups.createTableSql(Fields.METRIC_TYPE_SYSTEM_METRICS, RollupTier.HOUR)
+        .replace(", uptime" + SqlSketches.SKETCH_SUFFIX + " BLOB", "")
+        .replace(", " + Hosts.COLUMN_SQL, "")
+        .replace(", " + Hosts.HOST_ID + ")", ")"));
+      conn.createStatement().executeUpdate("INSERT INTO " + RollupTier.HOUR.tableName(Fields.METRIC_TYPE_SYSTEM_METRICS) +
+        " VALUES (0, 1000, 1, 5, 5, 5)");
+      conn.createStatement().executeUpdate(new SystemData(1, 1, 10).toSqlInsertString());
+      conn.createStatement().executeUpdate(new SystemData(2, 1, ONE_DAY_MS + 10).toSqlInsertString());
+      conn.createStatement().executeUpdate(new ProcessData(1, "it's a process", 1, 1, 0.5, 1, 1.0, 1.0,
+        Processes.PidState.RUNNING, 5000, 10).toSqlInsertString());
+      conn.createStatement().executeUpdate(new ProcessData(1, "it's a process", 1, 1, 0.5, 1, 1.0, 1.0,
+        Processes.PidState.RUNNING, 5000, 10).toSqlInsertString());
+      conn.createStatement().executeUpdate(new ProcessData(1, "it's a process", 1, 1, 0.5, 1, 1.0, 1.0,
+        Processes.PidState.RUNNING, 5000, ONE_DAY_MS + 10).toSqlInsertString());
+    }
+
+    SQLiteMetricsImpl legacy = new SQLiteMetricsImpl(legacyDbPath, dbSchemaPath, false);
+
+    try {
+      Assert.assertEquals(2, legacy.getPartitions(Fields.METRIC_TYPE_SYSTEM_METRICS).size());
+      Assert.assertEquals(Arrays.asList(new SystemData(1, 1, 10), new SystemData(2, 1, ONE_DAY_MS + 10)),
+        legacy.getMetricsInRange(0, ONE_DAY_MS * 2, SystemData.class));
+
+      // Process names are moved into the dictionary as records are partitioned,
+      // and the duplicate record is deleted
+      Assert.assertEquals(2, legacy.getPartitions(Fields.METRIC_TYPE_PROCESSES).size());
+      Assert.assertEquals(Arrays.asList(10L, ONE_DAY_MS + 10), legacy.getMetricsInRange(0, ONE_DAY_MS * 2, ProcessData.class)
+        .stream()
+        .filter(p -> p.getName().equals("it's a process"))
+        .map(ProcessData::getEpochMillisTime)
+        .collect(Collectors.toList()));
+      Assert.assertEquals(2, legacy.getProcessLifetime(1, 1).getSamples());
+
+      // Rollups without a sketch count as their average
+      List<MetricAggregate> hourly = legacy.getAggregates(0, ONE_HOUR_MS, SystemData.class,
+        Fields.SYSTEM_METRICS_UPTIME, ONE_HOUR_MS, 0.5);
+      Assert.assertEquals(1, hourly.size());
+      Assert.assertEquals(5, hourly.get(0).getPercentile(0.5), 5 * QuantileSketch.RELATIVE_ACCURACY);
+    } finally {
+      legacy.close();
+      new File(legacyDbPath).delete();
+    }
+  }
+
+  @Test
+  public void testRetentionPolicy() throws SQLException, IOException {
+    Assert.assertEquals(new RetentionPolicy(ONE_HOUR_MS * 2, ONE_DAY_MS, ONE_DAY_MS * 30), RetentionPolicy.parse("2h, 24h, 30d"));
+    Assert.assertEquals(RetentionPolicy.DEFAULT, RetentionPolicy.parse("12h,1d,0"));
+
+    for (String invalid : Arrays.asList("2h,24h", "2x,24h,0", "24h,2h,0", "2h,24h,12h")) {
+      try {
+        RetentionPolicy.parse(invalid);
+        Assert.fail("Parsed invalid retention policy " + invalid);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+
+    String retentionDbPath = "./src/test/resources/retention.db";
+    new File(retentionDbPath).delete();
+
+    Properties props = new Properties();
+    props.setProperty("pruneretention." + Fields.METRIC_TYPE_SYSTEM_METRICS, "1h,2h,3h");
+
+    SQLiteMetricsImpl retention = new SQLiteMetricsImpl(retentionDbPath, dbSchemaPath, false, props);
+
+    try {
+      Assert.assertEquals(RetentionPolicy.parse("1h,2h,3h"), retention.getRetentionPolicy(Fields.METRIC_TYPE_SYSTEM_METRICS));
+      Assert.assertEquals(RetentionPolicy.DEFAULT, retention.getRetentionPolicy(Fields.METRIC_TYPE_CPU));
+
+      // Pruned as of the next whole hour, so every record is a fixed distance
+      // from the windows' edges
+      long now = RollupTier.HOUR.windowStart(Instant.now().toEpochMilli()) + ONE_HOUR_MS;
+      List<SystemData> metrics = Arrays.asList(
+        new SystemData(1, 1, now - ONE_MIN_MS * 210),
+        new SystemData(2, 1, now - ONE_MIN_MS * 150),
+        new SystemData(3, 1, now - ONE_MIN_MS * 90),
+        new SystemData(4, 1, now - ONE_MIN_MS * 30)
+      );
+
+      Assert.assertTrue(retention.persistMetrics(metrics));
+
+      retention.prune(now);
+
+      // Raw records are kept 1 hour, minute rollups 2 hours, and nothing past
+      // 3 hours. The hour rollup of the record from 150 minutes ago is kept, as
+      // its window ends 2 hours ago.
+      Assert.assertEquals(Arrays.asList(
+        new SystemData(2, 1, RollupTier.HOUR.windowStart(metrics.get(1).getEpochMillisTime())),
+        new SystemData(3, 1, RollupTier.MINUTE.windowStart(metrics.get(2).getEpochMillisTime())),
+        metrics.get(3)
+      ), retention.getMetricsInRange(0, now + 1, SystemData.class));
+
+      try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(retentionDbPath))) {
+        ResultSet rs = conn.createStatement().executeQuery(
+          "SELECT COUNT(*) FROM " + RollupTier.MINUTE.tableName(Fields.METRIC_TYPE_SYSTEM_METRICS));
+        rs.next();
+        Assert.assertEquals(2, rs.getLong(1));
+
+        rs = conn.createStatement().executeQuery(
+          "SELECT COUNT(*) FROM " + RollupTier.HOUR.tableName(Fields.METRIC_TYPE_SYSTEM_METRICS) +
+            " WHERE datetime < " + (now - ONE_HOUR_MS * 3));
+        rs.next();
+        Assert.assertEquals(0, rs.getLong(1));
+      }
+
+      // Within the minute retention, minute resolutions are read from the minute rollups
+      Assert.assertEquals(2, retention.getMetricsAtResolution(now - ONE_MIN_MS * 100, now, SystemData.class, ONE_MIN_MS).size());
+
+      // Half an hour later the window has started more than 3 hours before, but
+      // still ends within them
+      retention.prune(now + ONE_MIN_MS * 30);
+
+      Assert.assertEquals(new SystemData(2, 1, RollupTier.HOUR.windowStart(metrics.get(1).getEpochMillisTime())),
+        retention.getMetricsInRange(0, now - ONE_HOUR_MS * 2, SystemData.class).get(0));
+    } finally {
+      retention.close();
+      new File(retentionDbPath).delete();
+    }
+  }
+
+  @Test
+  public void testPruneBoundsAreAligned() throws SQLException, IOException {
+    String retentionDbPath = "./src/test/resources/aligned.db";
+    new File(retentionDbPath).delete();
+
+    Properties props = new Properties();
+    props.setProperty("pruneretention." + Fields.METRIC_TYPE_SYSTEM_METRICS, "1h,2h,3h");
+
+    SQLiteMetricsImpl retention = new SQLiteMetricsImpl(retentionDbPath, dbSchemaPath, false, props);
+
+    try {
+      // Pruned half a minute into an hour, so neither bound is on a window's edge
+      long hour = RollupTier.HOUR.windowStart(Instant.now().toEpochMilli()) + ONE_HOUR_MS;
+      long now = hour + 30000;
+      List<SystemData> metrics = Arrays.asList(
+        new SystemData(1, 1, hour - ONE_HOUR_MS * 2 + 10000),
+        new SystemData(2, 1, hour - ONE_MIN_MS * 70),
+        new SystemData(3, 1, hour - ONE_HOUR_MS + 10000),
+        new SystemData(4, 1, hour - ONE_HOUR_MS + 40000)
+      );
+
+      Assert.assertTrue(retention.persistMetrics(metrics));
+
+      retention.prune(now);
+
+      // Whole minutes of raw records and whole hours of minute rollups are
+      // kept, so no part of a window is left without records
+      Assert.assertEquals(Arrays.asList(
+        new SystemData(1, 1, hour - ONE_HOUR_MS * 2),
+        new SystemData(2, 1, hour - ONE_MIN_MS * 70),
+        metrics.get(2),
+        metrics.get(3)
+      ), retention.getMetricsInRange(0, now, SystemData.class));
+    } finally {
+      retention.close();
+      new File(retentionDbPath).delete();
+    }
+  }
+
+  @Test
+  public void testSizeBudget() throws SQLException, IOException {
+    Assert.assertEquals(new RetentionPolicy(ONE_HOUR_MS * 6, ONE_HOUR_MS * 12, ONE_DAY_MS * 30),
+      RetentionPolicy.DEFAULT.downsampled(1));
+    Assert.assertEquals(new RetentionPolicy(ONE_HOUR_MS, ONE_HOUR_MS * 12, ONE_DAY_MS),
+      RetentionPolicy.parse("2h,1d,2d").downsampled(1));
+
+    String budgetDbPath = "./src/test/resources/budget.db";
+    new File(budgetDbPath).delete();
+
+    Properties props = new Properties();
+    props.setProperty("dbsizebudgetmb", "1");
+    props.setProperty("pruneretention." + Fields.METRIC_TYPE_PROCESSES, "30d,60d,0");
+
+    SQLiteMetricsImpl budgeted = new SQLiteMetricsImpl(budgetDbPath, dbSchemaPath, false, props);
+
+    try {
+      // Ten processes every 5 minutes for 10 days, all within the configured raw retention
+      long start = Instant.now().toEpochMilli() - ONE_DAY_MS * 10;
+      List<ProcessData> metrics = LongStream.range(0, ONE_DAY_MS * 10 / (ONE_MIN_MS * 5))
+        .mapToObj(i -> start + i * ONE_MIN_MS * 5)
+        .flatMap(datetime -> LongStream.range(0, 10)
+          .mapToObj(pid -> new ProcessData((int) pid, "process-" + pid, start - ONE_HOUR_MS, datetime - start,
+            0.5, 1024 * pid, pid, pid, Processes.PidState.RUNNING, ONE_MIN_MS * 5, datetime)))
+        .collect(Collectors.toList());
+
+      Assert.assertTrue(budgeted.persistMetrics(metrics));
+
+      budgeted.prune();
+
+      SizeBudget budget = budgeted.getSizeBudget();
+
+      Assert.assertEquals(1024 * 1024, budget.getBudgetBytes());
+      Assert.assertTrue(budget.getSizeBytes() <= budget.getBudgetBytes());
+      Assert.assertTrue(budget.getLevel() > 0);
+      Assert.assertEquals(budget.getLevel(), budget.getEscalations());
+      Assert.assertTrue(budget.getPagesVacuumed() > 0);
+
+      // Process records were combined into coarser windows to fit the budget
+      Assert.assertEquals(RetentionPolicy.parse("30d,60d,0").downsampled(budget.getLevel()),
+        budgeted.getRetentionPolicy(Fields.METRIC_TYPE_PROCESSES));
+      Assert.assertTrue(budgeted.getMetricsInRange(0, Instant.now().toEpochMilli(), ProcessData.class).size() < metrics.size());
+    } finally {
+      budgeted.close();
+      new File(budgetDbPath).delete();
+    }
+  }
+
+  // Records of a partitioned metric type are in its partitions, and process
+  // names are in their dictionary
+  private static String allRows(String table) {
+    List<String> partitions = sqlIte.getPartitions(table);
+    boolean processes = table.equals(Fields.METRIC_TYPE_PROCESSES);
+
+    if (partitions.isEmpty())
+      return processes ? "(" + ProcessNames.selectSql(table) + ")" : table;
+
+    return partitions.stream()
+      .map(p -> processes ? ProcessNames.selectSql(p) : "SELECT * FROM " + p)
+      .collect(Collectors.joining(" UNION ALL ", "(", ")"));
+  }
+
+  private long countRows(String table) throws SQLException {
+    try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
+      ResultSet rs = conn.createStatement().executeQuery("SELECT COUNT(*) FROM " + allRows(table));
+      rs.next();
+      return rs.getLong(1);
+    }
+  }
+
+  private long sumColumn(String table, String column) throws SQLException {
+    try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
+      ResultSet rs = conn.createStatement().executeQuery("SELECT TOTAL(" + column + ") FROM " + allRows(table));
+      rs.next();
+      return rs.getLong(1);
+    }
   }
 
   private void deleteAllRows(String table) throws SQLException {
     try (Connection conn = DriverManager.getConnection(SQLiteMetricsImpl.createSqliteDbUrl(dbFilePath))) {
       conn.createStatement().executeUpdate("DELETE FROM " + table);
+
+      for (String partition : sqlIte.getPartitions(table))
+        conn.createStatement().executeUpdate("DELETE FROM " + partition);
     }
   }
 }
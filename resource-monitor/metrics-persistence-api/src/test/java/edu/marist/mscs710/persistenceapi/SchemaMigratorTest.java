@@ -0,0 +1,91 @@
+package edu.marist.mscs710.persistenceapi;
+
+import edu.marist.mscs710.persistenceapi.db.SchemaMigrator;
+import org.junit.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+public class SchemaMigratorTest {
+  private Connection conn;
+
+  @Before
+  public void prepare() throws SQLException {
+    conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+    conn.setAutoCommit(false);
+  }
+
+  @After
+  public void cleanup() throws SQLException {
+    conn.close();
+  }
+
+  @Test
+  public void testSplitStatements() {
+    String script = "-- Table: a\n" +
+      "CREATE TABLE a (x TEXT); -- trailing comment\n" +
+      "INSERT INTO a VALUES ('semi;colon -- not a comment'); INSERT INTO a VALUES ('it''s');\n" +
+      "\n;";
+
+    Assert.assertEquals(Arrays.asList(
+      "CREATE TABLE a (x TEXT)",
+      "INSERT INTO a VALUES ('semi;colon -- not a comment')",
+      "INSERT INTO a VALUES ('it''s')"),
+      SchemaMigrator.splitStatements(script));
+  }
+
+  @Test
+  public void testMigrateAppliesNewVersionsOnce() throws SQLException {
+    SchemaMigrator migrator = new SchemaMigrator()
+      .addScript(1, "Create a", "CREATE TABLE a (x INTEGER);")
+      .addScript(2, "Fill a", "INSERT INTO a VALUES (1);");
+
+    Assert.assertEquals(2, migrator.migrate(conn));
+    Assert.assertEquals(2, migrator.migrate(conn));
+    Assert.assertEquals(1, count("a"));
+
+    migrator.addScript(3, "Fill a again", "INSERT INTO a VALUES (2);");
+
+    Assert.assertEquals(3, migrator.migrate(conn));
+    Assert.assertEquals(2, count("a"));
+    Assert.assertEquals(3, count(SchemaMigrator.VERSION_TABLE));
+  }
+
+  @Test
+  public void testFailedMigrationRollsBack() throws SQLException {
+    new SchemaMigrator().addScript(1, "Create a", "CREATE TABLE a (x INTEGER);").migrate(conn);
+
+    SchemaMigrator migrator = new SchemaMigrator()
+      .addScript(1, "Create a", "CREATE TABLE a (x INTEGER);")
+      .addScript(2, "Create b", "CREATE TABLE b (x INTEGER);")
+      .addScript(3, "Broken", "INSERT INTO missing VALUES (1);");
+
+    try {
+      migrator.migrate(conn);
+      Assert.fail("Migration should have failed");
+    } catch (SQLException e) {
+      // expected
+    }
+
+    Assert.assertEquals(1, SchemaMigrator.getSchemaVersion(conn));
+
+    ResultSet rs = conn.createStatement().executeQuery("SELECT name FROM sqlite_master WHERE name = 'b'");
+    Assert.assertFalse(rs.next());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDuplicateVersion() {
+    new SchemaMigrator()
+      .addScript(1, "Create a", "CREATE TABLE a (x INTEGER);")
+      .addScript(1, "Create b", "CREATE TABLE b (x INTEGER);");
+  }
+
+  private long count(String table) throws SQLException {
+    ResultSet rs = conn.createStatement().executeQuery("SELECT COUNT(*) FROM " + table);
+    rs.next();
+    return rs.getLong(1);
+  }
+}
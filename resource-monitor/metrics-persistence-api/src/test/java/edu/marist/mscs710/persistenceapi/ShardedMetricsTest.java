@@ -0,0 +1,250 @@
+package edu.marist.mscs710.persistenceapi;
+
+import edu.marist.mscs710.metricscollector.Metric;
+import edu.marist.mscs710.metricscollector.data.CpuData;
+import edu.marist.mscs710.metricscollector.data.ProcessData;
+import edu.marist.mscs710.metricscollector.metric.Fields;
+import edu.marist.mscs710.metricscollector.system.Processes;
+import edu.marist.mscs710.persistenceapi.db.QuantileSketch;
+import edu.marist.mscs710.persistenceapi.db.ShardedMetricsImpl;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ShardedMetricsTest {
+  private static String dbSchemaPath = "./src/test/resources/db_schema.sql";
+  private static String dbDirectory = "./src/test/resources/shards";
+  private static String topic = "metrics";
+
+  private static final long ONE_HOUR_MS = 1000 * 60 * 60;
+
+  // Recent enough for raw records to be read, aligned to the hour
+  private static final long BASE = Instant.now().toEpochMilli() / ONE_HOUR_MS * ONE_HOUR_MS - ONE_HOUR_MS;
+
+  private ShardedMetricsImpl sharded;
+
+  @Before
+  public void prepare() throws IOException, SQLException {
+    deleteShards();
+    sharded = new ShardedMetricsImpl(dbDirectory, dbSchemaPath, false, new Properties());
+  }
+
+  @After
+  public void cleanup() {
+    sharded.close();
+    deleteShards();
+  }
+
+  private static void deleteShards() {
+    File[] files = new File(dbDirectory).listFiles();
+
+    for (File file : files == null ? new File[0] : files)
+      file.delete();
+
+    new File(dbDirectory).delete();
+  }
+
+  private static CpuData cpu(double utilization, long epochMillis, String host) {
+    CpuData cpu = new CpuData(utilization, 40, 1000, BASE + epochMillis);
+    cpu.setHost(host);
+    return cpu;
+  }
+
+  private static Map<TopicPartition, Long> offsets(int partition, long nextOffset) {
+    return Collections.singletonMap(new TopicPartition(topic, partition), nextOffset);
+  }
+
+  @Test
+  public void testPartitionShardsAndMergedReads() {
+    List<CpuData> hostA = Arrays.asList(cpu(0.1, 1000, "host-a"), cpu(0.3, 3000, "host-a"), cpu(0.5, 5000, "host-a"));
+    List<CpuData> hostB = Arrays.asList(cpu(0.2, 2000, "host-b"), cpu(0.4, 4000, "host-b"));
+
+    Assert.assertTrue(sharded.persistMetrics(hostA, offsets(0, 3)));
+    Assert.assertTrue(sharded.persistMetrics(hostB, offsets(1, 2)));
+    Assert.assertEquals(new TreeSet<>(Arrays.asList(0, 1)), sharded.getShards());
+
+    // Each shard holds only its partition's records
+    Assert.assertEquals(hostA, sharded.getShard(0).getMetricsInRange(BASE, BASE + 10000, CpuData.class));
+    Assert.assertEquals(hostB, sharded.getShard(1).getMetricsInRange(BASE, BASE + 10000, CpuData.class));
+
+    List<CpuData> expected = Stream.concat(hostA.stream(), hostB.stream())
+      .sorted(Comparator.comparingLong(CpuData::getEpochMillisTime))
+      .collect(Collectors.toList());
+
+    Assert.assertEquals(expected, sharded.getMetricsInRange(BASE, BASE + 10000, CpuData.class));
+    Assert.assertEquals(hostB, sharded.getMetricsInRange(BASE, BASE + 10000, CpuData.class, "host-b"));
+    Assert.assertEquals(expected.subList(1, 4), sharded.getMetricsAtResolution(BASE + 2000, BASE + 5000, CpuData.class, 0));
+
+    try (Stream<CpuData> stream = sharded.streamMetricsInRange(BASE, BASE + 10000, CpuData.class)) {
+      Assert.assertEquals(expected, stream.collect(Collectors.toList()));
+    }
+
+    Assert.assertEquals(Arrays.asList("host-a", "host-b"), sharded.getHosts());
+
+    Map<TopicPartition, Long> stored = new HashMap<>(offsets(0, 3));
+    stored.putAll(offsets(1, 2));
+    Assert.assertEquals(stored, sharded.getConsumerOffsets(topic));
+
+    try {
+      Map<TopicPartition, Long> twoPartitions = new HashMap<>(stored);
+      sharded.persistMetrics(hostA, twoPartitions);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testMergedAggregatesAndTopProcesses() {
+    Assert.assertTrue(sharded.persistMetrics(Arrays.asList(cpu(0.1, 1000, "host-a"), cpu(0.3, 61000, "host-a")),
+      offsets(0, 2)));
+    Assert.assertTrue(sharded.persistMetrics(Arrays.asList(cpu(0.2, 2000, "host-b"), cpu(0.6, 62000, "host-b")),
+      offsets(1, 2)));
+
+    List<MetricAggregate> aggregates = sharded.getAggregates(BASE, BASE + 120000, CpuData.class, Fields.CPU_UTILIZATION,
+      60000, 0.5, 1.0);
+
+    // Windows of both shards are merged, time ordered
+    Assert.assertEquals(2, aggregates.size());
+    Assert.assertEquals(BASE, aggregates.get(0).getDatetime());
+    Assert.assertEquals(2, aggregates.get(0).getCount());
+    Assert.assertEquals(2000, aggregates.get(0).getDeltaMillis());
+    Assert.assertEquals(0.15, aggregates.get(0).getMean(), 0.0001);
+    Assert.assertEquals(0.1, aggregates.get(0).getMin(), 0);
+    Assert.assertEquals(0.2, aggregates.get(0).getMax(), 0);
+    Assert.assertEquals(0.1, aggregates.get(0).getPercentile(0.5), 0.1 * QuantileSketch.RELATIVE_ACCURACY);
+    Assert.assertEquals(0.6, aggregates.get(1).getPercentile(1.0), 0.6 * QuantileSketch.RELATIVE_ACCURACY);
+
+    Assert.assertEquals(0.6, sharded.getAggregates(BASE, BASE + 120000, CpuData.class, "host-b", Fields.CPU_UTILIZATION,
+      0).get(0).getMax(), 0);
+
+    try {
+      sharded.getAggregates(BASE, BASE + 120000, CpuData.class, "nonexistent", 0);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    List<Metric> processes = new ArrayList<>();
+
+    for (int pid = 1; pid <= 3; pid++) {
+      ProcessData process = new ProcessData(pid, "svc" + pid, BASE, 1000, pid / 10.0, 10, 0.0, 0.0,
+        Processes.PidState.RUNNING, 1000, BASE + 1000);
+      process.setHost("host-a");
+      processes.add(process);
+    }
+
+    ProcessData busiest = new ProcessData(9, "busy", BASE, 1000, 0.9, 10, 0.0, 0.0,
+      Processes.PidState.RUNNING, 1000, BASE + 1000);
+    busiest.setHost("host-b");
+
+    Assert.assertTrue(sharded.persistMetrics(processes, offsets(0, 5)));
+    Assert.assertTrue(sharded.persistMetrics(Collections.singletonList(busiest), offsets(1, 3)));
+
+    // Processes of every shard are ranked together
+    Assert.assertEquals(Arrays.asList(9, 3), sharded.getTopProcesses(BASE, BASE + 2000, Fields.PROCESSES_CPU_USAGE, 2).stream()
+      .map(ProcessData::getPid)
+      .collect(Collectors.toList()));
+    Assert.assertEquals(4, sharded.getProcessLifetimes(BASE, BASE + 2000).size());
+    Assert.assertEquals("host-b", sharded.getProcessLifetime(9, BASE).getHost());
+    Assert.assertEquals(Collections.singletonList(busiest), sharded.getProcessHistory(9, BASE));
+  }
+
+  @Test
+  public void testHostSpanningShards() {
+    // The host moved to another partition part way through a minute
+    Assert.assertTrue(sharded.persistMetrics(Collections.singletonList(cpu(0.2, 1000, "host-a")), offsets(0, 1)));
+    Assert.assertTrue(sharded.persistMetrics(Collections.singletonList(cpu(0.4, 31000, "host-a")), offsets(1, 1)));
+
+    List<CpuData> minutes = sharded.getMetricsAtResolution(BASE, BASE + 60000, CpuData.class, 60000);
+
+    Assert.assertEquals(1, minutes.size());
+    Assert.assertEquals(BASE, minutes.get(0).getEpochMillisTime());
+    Assert.assertEquals(2000, minutes.get(0).getDeltaMillis());
+    Assert.assertEquals(0.3, minutes.get(0).getUtilization(), 0.0001);
+    Assert.assertEquals("host-a", minutes.get(0).getHost());
+
+    // Raw records are not combined
+    Assert.assertEquals(2, sharded.getMetricsInRange(BASE, BASE + 60000, CpuData.class).size());
+
+    ProcessData early = new ProcessData(1, "svc", BASE, 1000, 0.9, 10, 0.0, 0.0,
+      Processes.PidState.RUNNING, 1000, BASE + 1000);
+    ProcessData late = new ProcessData(1, "svc", BASE, 4000, 0.1, 10, 0.0, 0.0,
+      Processes.PidState.RUNNING, 3000, BASE + 4000);
+    ProcessData other = new ProcessData(2, "other", BASE, 1000, 0.5, 10, 0.0, 0.0,
+      Processes.PidState.RUNNING, 1000, BASE + 1000);
+
+    early.setHost("host-a");
+    late.setHost("host-a");
+    other.setHost("host-b");
+
+    Assert.assertTrue(sharded.persistMetrics(Arrays.asList(early, other), offsets(0, 3)));
+    Assert.assertTrue(sharded.persistMetrics(Collections.singletonList(late), offsets(1, 2)));
+
+    // The process is ranked once, by its records in both shards
+    List<ProcessData> top = sharded.getTopProcesses(BASE, BASE + 5000, Fields.PROCESSES_CPU_USAGE, 2);
+
+    Assert.assertEquals(Arrays.asList(2, 1), top.stream().map(ProcessData::getPid).collect(Collectors.toList()));
+    Assert.assertEquals(0.3, top.get(1).getCpuUsage(), 0.0001);
+    Assert.assertEquals(4000, top.get(1).getDeltaMillis());
+    Assert.assertEquals(4000, top.get(1).getUpTime());
+
+    // Though its first shard alone ranks it above the other process
+    Assert.assertEquals(2, sharded.getTopProcesses(BASE, BASE + 5000, Fields.PROCESSES_CPU_USAGE, 1).get(0).getPid());
+
+    Assert.assertEquals(2, sharded.getProcessLifetimes(BASE, BASE + 5000).size());
+    Assert.assertEquals(2, sharded.getProcessLifetime(1, BASE).getSamples());
+    Assert.assertEquals(BASE + 4000, sharded.getProcessLifetime(1, BASE).getLastSeen());
+
+    // Processes are filtered by host in every shard
+    Assert.assertEquals(1, sharded.getProcessLifetimes(BASE, BASE + 5000, "host-a").size());
+    Assert.assertEquals(2, sharded.getProcessLifetime(1, BASE, "host-a").getSamples());
+    Assert.assertNull(sharded.getProcessLifetime(1, BASE, "host-b"));
+    Assert.assertEquals(Arrays.asList(early, late), sharded.getProcessHistory(1, BASE, "host-a"));
+    Assert.assertTrue(sharded.getProcessHistory(1, BASE, "host-b").isEmpty());
+
+    // Once pruned, the minute rollups of the host in both shards are read,
+    // and streamed, as one
+    for (int shard : sharded.getShards())
+      sharded.getShard(shard).prune(BASE + ONE_HOUR_MS * 13);
+
+    List<CpuData> pruned = sharded.getMetricsInRange(BASE, BASE + 60000, CpuData.class);
+
+    Assert.assertEquals(1, pruned.size());
+    Assert.assertEquals(0.3, pruned.get(0).getUtilization(), 0.0001);
+
+    try (Stream<CpuData> stream = sharded.streamMetricsInRange(BASE, BASE + 60000, CpuData.class)) {
+      Assert.assertEquals(pruned, stream.collect(Collectors.toList()));
+    }
+  }
+
+  @Test
+  public void testReopenAndHostGroups() throws IOException, SQLException {
+    Assert.assertTrue(sharded.persistMetrics(Collections.singletonList(cpu(0.1, 1000, "host-a")), offsets(3, 1)));
+    sharded.close();
+
+    Properties props = new Properties();
+    props.setProperty("dbhostgroups", "2");
+    sharded = new ShardedMetricsImpl(dbDirectory, dbSchemaPath, false, props);
+
+    // Existing shards are opened, and keep their offsets
+    Assert.assertEquals(Collections.singleton(3), sharded.getShards());
+    Assert.assertEquals(offsets(3, 1), sharded.getConsumerOffsets(topic));
+
+    // Without offsets, metrics go to the shard of their host's group
+    CpuData other = cpu(0.7, 2000, "host-c");
+    Assert.assertTrue(sharded.persistMetric(other));
+
+    int group = sharded.hostGroupOf("host-c");
+    Assert.assertTrue(group == 0 || group == 1);
+    Assert.assertEquals(Collections.singletonList(other), sharded.getShard(group).getMetricsInRange(BASE, BASE + 10000, CpuData.class));
+    Assert.assertEquals(2, sharded.getMetricsInRange(BASE, BASE + 10000, CpuData.class).size());
+  }
+}
@@ -0,0 +1,158 @@
+package edu.marist.mscs710.persistenceapi;
+
+import edu.marist.mscs710.metricscollector.Metric;
+import edu.marist.mscs710.metricscollector.data.SystemData;
+import edu.marist.mscs710.persistenceapi.db.SQLiteMetricsImpl;
+import org.junit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+public class WriteBehindQueueTest {
+  private static String dbSchemaPath = "./src/test/resources/db_schema.sql";
+  private static String dbFilePath = "./src/test/resources/write-behind.db";
+
+  private static CountDownLatch writerGate;
+  // Number of upcoming writes to fail
+  private static AtomicInteger failures = new AtomicInteger(0);
+  private static SQLiteMetricsImpl sqlIte;
+
+  @BeforeClass
+  public static void prepare() throws IOException, SQLException {
+    sqlIte = new SQLiteMetricsImpl(dbFilePath, dbSchemaPath, false) {
+      @Override
+      public boolean persistMetrics(List<? extends Metric> metrics) {
+        try {
+          writerGate.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+
+        if (failures.getAndUpdate(n -> Math.max(n - 1, 0)) > 0)
+          return false;
+
+        return super.persistMetrics(metrics);
+      }
+    };
+  }
+
+  @AfterClass
+  public static void cleanup() {
+    sqlIte.close();
+    new File(dbFilePath).delete();
+  }
+
+  @Test
+  public void testBackpressureAndCommitOrder() throws InterruptedException {
+    writerGate = new CountDownLatch(1);
+
+    AtomicInteger fullCount = new AtomicInteger(0);
+    AtomicInteger drainedCount = new AtomicInteger(0);
+    List<Integer> committed = Collections.synchronizedList(new ArrayList<>());
+
+    WriteBehindQueue queue = new WriteBehindQueue(sqlIte, 10,
+      fullCount::incrementAndGet, drainedCount::incrementAndGet);
+
+    queue.start();
+
+    for (int i = 0; i < 4; i++) {
+      final int batchNum = i;
+      List<SystemData> batch = LongStream.range(i * 4, i * 4 + 4)
+        .mapToObj(l -> new SystemData(l, 1, l))
+        .collect(Collectors.toList());
+
+      Assert.assertTrue(queue.submit(batch, () -> committed.add(batchNum)));
+    }
+
+    // Writer is blocked, so the queue is over capacity and nothing is committed
+    Assert.assertEquals(1, fullCount.get());
+    Assert.assertEquals(0, drainedCount.get());
+    Assert.assertTrue(committed.isEmpty());
+
+    writerGate.countDown();
+    queue.close();
+
+    Assert.assertEquals(1, drainedCount.get());
+    Assert.assertEquals(0, queue.getQueuedMetrics());
+    Assert.assertEquals(Arrays.asList(0, 1, 2, 3), committed);
+    Assert.assertEquals(16, sqlIte.getMetricsInRange(0, 16, SystemData.class).size());
+    Assert.assertFalse(queue.submit(Collections.emptyList(), null));
+  }
+
+  @Test
+  public void testFailedWriteIsRetriedBeforeCommit() throws InterruptedException {
+    writerGate = new CountDownLatch(0);
+    failures.set(2);
+
+    List<Integer> committed = Collections.synchronizedList(new ArrayList<>());
+    WriteBehindQueue queue = new WriteBehindQueue(sqlIte, 10, null, null);
+    List<SystemData> batch = LongStream.range(100, 104)
+      .mapToObj(l -> new SystemData(l, 1, l))
+      .collect(Collectors.toList());
+
+    queue.start();
+    Assert.assertTrue(queue.submit(batch, () -> committed.add(0)));
+
+    long endTime = System.currentTimeMillis() + 10000;
+    while (committed.isEmpty() && System.currentTimeMillis() < endTime)
+      Thread.sleep(50);
+
+    queue.close();
+
+    Assert.assertEquals(0, failures.get());
+    Assert.assertEquals(Collections.singletonList(0), committed);
+    Assert.assertEquals(4, sqlIte.getMetricsInRange(100, 104, SystemData.class).size());
+  }
+
+  @Test
+  public void testFailingWriteIsNeverCommitted() throws InterruptedException {
+    writerGate = new CountDownLatch(0);
+    failures.set(Integer.MAX_VALUE);
+
+    AtomicInteger fullCount = new AtomicInteger(0);
+    AtomicInteger drainedCount = new AtomicInteger(0);
+    List<Integer> committed = Collections.synchronizedList(new ArrayList<>());
+    WriteBehindQueue queue = new WriteBehindQueue(sqlIte, 4,
+      fullCount::incrementAndGet, drainedCount::incrementAndGet);
+
+    queue.start();
+
+    try {
+      for (int i = 0; i < 2; i++) {
+        final int batchNum = i;
+        List<SystemData> batch = LongStream.range(200 + i * 4, 204 + i * 4)
+          .mapToObj(l -> new SystemData(l, 1, l))
+          .collect(Collectors.toList());
+
+        Assert.assertTrue(queue.submit(batch, () -> committed.add(batchNum)));
+      }
+
+      Thread.sleep(500);
+
+      // The failed write stays queued, so backpressure is never released
+      Assert.assertTrue(committed.isEmpty());
+      Assert.assertEquals(1, fullCount.get());
+      Assert.assertEquals(0, drainedCount.get());
+      Assert.assertEquals(8, queue.getQueuedMetrics());
+
+      queue.close();
+    } finally {
+      failures.set(0);
+    }
+
+    // Closing releases backpressure, though nothing was written
+    Assert.assertTrue(committed.isEmpty());
+    Assert.assertEquals(1, drainedCount.get());
+    Assert.assertTrue(sqlIte.getMetricsInRange(200, 208, SystemData.class).isEmpty());
+  }
+}